@@ -0,0 +1,50 @@
+package it.grid.storm.api.filesystem.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks once per thread count, with the GC profiler enabled so
+ * that allocation rates are reported next to the timings.
+ * <p>
+ * Usage: {@code java -jar target/benchmarks.jar [threads[,threads...]] [jmh options]}
+ * <p>
+ * The thread counts default to 1,2,4,8. All the other arguments are passed
+ * to JMH, for example a benchmark regular expression.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+public class BenchmarkRunner {
+
+	private static final String DEFAULT_THREADS = "1,2,4,8";
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+
+		String threads = DEFAULT_THREADS;
+		String[] jmhArgs = args;
+		if (args.length > 0 && args[0].matches("[0-9]+(,[0-9]+)*")) {
+			threads = args[0];
+			jmhArgs = new String[args.length - 1];
+			System.arraycopy(args, 1, jmhArgs, 0, jmhArgs.length);
+		}
+
+		CommandLineOptions cmdOptions = new CommandLineOptions(jmhArgs);
+
+		for (String t : threads.split(",")) {
+
+			ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions).threads(Integer.parseInt(t))
+					.addProfiler(GCProfiler.class);
+			if (cmdOptions.getIncludes().isEmpty()) {
+				options.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+			}
+			new Runner(options.build()).run();
+		}
+	}
+
+}
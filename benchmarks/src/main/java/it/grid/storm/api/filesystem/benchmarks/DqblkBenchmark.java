@@ -0,0 +1,64 @@
+package it.grid.storm.api.filesystem.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary.T_dqblk;
+
+/**
+ * Measure the cost of the JNA dqblk structure: native memory allocation and
+ * the reflective {@link T_dqblk#read()} and {@link T_dqblk#write()}.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DqblkBenchmark {
+
+	private T_dqblk dqblk;
+
+	@Setup
+	public void setUp() {
+
+		dqblk = new T_dqblk();
+		dqblk.dqb_bhardlimit = StubCLibrary.BLOCKHARDLIMIT;
+		dqblk.dqb_curspace = StubCLibrary.CURSPACE;
+		dqblk.write();
+	}
+
+	@Benchmark
+	public T_dqblk allocate() {
+
+		return new T_dqblk();
+	}
+
+	@Benchmark
+	public long read() {
+
+		dqblk.read();
+		return dqblk.dqb_curspace;
+	}
+
+	@Benchmark
+	public T_dqblk write() {
+
+		dqblk.write();
+		return dqblk;
+	}
+
+}
@@ -0,0 +1,162 @@
+package it.grid.storm.api.filesystem.benchmarks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupDatabase;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupEntry;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupResolver;
+
+/**
+ * Measure {@link PosixQuotaManager} read methods against a
+ * {@link StubCLibrary}.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetGroupQuotaBenchmark {
+
+	private static final String BLOCKDEVICE = "/dev/stub";
+	private static final int GID = 1003;
+	private static final String GROUP = "test.vo";
+
+	/**
+	 * Whether the stubbed quotactl() succeeds (0) or fails with ESRCH (3), the
+	 * common outcome for groups without a quota.
+	 */
+	@Param({ "0", "3" })
+	public int errNo;
+
+	/**
+	 * The number of gids read per batch.
+	 */
+	@Param({ "1024" })
+	public int batchSize;
+
+	/**
+	 * The per-thread holder read into by {@link #readGroupQuotaInto(Holder)}.
+	 */
+	@State(Scope.Thread)
+	public static class Holder {
+
+		final MutableQuotaInfo info = new MutableQuotaInfo();
+	}
+
+	private PosixQuotaManager pqm;
+	private int[] gids;
+
+	@Setup
+	public void setUp() {
+
+		StubCLibrary.install(new StubCLibrary(errNo));
+		pqm = new PosixQuotaManager(QuotactlBinding.INTERFACE);
+		pqm.setGroupResolver(new GroupResolver(new GroupDatabase() {
+
+			@Override
+			public GroupEntry getGroupByName(String name) {
+				return GROUP.equals(name) ? new GroupEntry(GROUP, GID) : null;
+			}
+
+			@Override
+			public GroupEntry getGroupById(int gid) {
+				return gid == GID ? new GroupEntry(GROUP, GID) : null;
+			}
+
+			@Override
+			public List<GroupEntry> getAllGroups() {
+				return Collections.singletonList(new GroupEntry(GROUP, GID));
+			}
+		}));
+		gids = new int[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			gids[i] = GID + i;
+		}
+	}
+
+	/**
+	 * A single getGroupQuota(): a T_dqblk and a PosixQuotaInfo on success, a
+	 * formatted PosixQuotaException wrapping a LastErrorException on failure.
+	 */
+	@Benchmark
+	public Object getGroupQuota() {
+
+		try {
+			return pqm.getGroupQuota(BLOCKDEVICE, GID);
+		} catch (PosixQuotaException e) {
+			return e;
+		}
+	}
+
+	/**
+	 * A getGroupQuota() by group name: the cost of the cached name
+	 * resolution on top of {@link #getGroupQuota()}.
+	 */
+	@Benchmark
+	public Object getGroupQuotaByName() {
+
+		try {
+			return pqm.getGroupQuota(BLOCKDEVICE, GROUP);
+		} catch (PosixQuotaException e) {
+			return e;
+		}
+	}
+
+	/**
+	 * The getGroupQuota() failure path when the message is actually used.
+	 */
+	@Benchmark
+	public Object getGroupQuotaMessage() {
+
+		try {
+			PosixQuotaInfo pqi = pqm.getGroupQuota(BLOCKDEVICE, GID);
+			return pqi.getBlockUsage();
+		} catch (PosixQuotaException e) {
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * A readGroupQuota() of the block limits and usage into a reused holder:
+	 * no allocation on either outcome.
+	 */
+	@Benchmark
+	public int readGroupQuotaInto(Holder holder) {
+
+		return pqm.readGroupQuota(BLOCKDEVICE, GID, holder.info, PosixQuotaInfo.QIF_BLIMITS | PosixQuotaInfo.QIF_SPACE);
+	}
+
+	/**
+	 * A getGroupQuotas() of batchSize gids.
+	 */
+	@Benchmark
+	public PosixQuotaBatch getGroupQuotas() {
+
+		return pqm.getGroupQuotas(BLOCKDEVICE, gids);
+	}
+
+}
@@ -0,0 +1,75 @@
+package it.grid.storm.api.filesystem.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary.T_dqblk;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+
+/**
+ * Measure {@link PosixQuotaInfo#equals(Object)} and
+ * {@link PosixQuotaInfo#hashCode()}, which compare and hash the dqblk values
+ * held in primitive fields.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PosixQuotaInfoBenchmark {
+
+	private PosixQuotaInfo pqi;
+	private PosixQuotaInfo same;
+	private PosixQuotaInfo other;
+
+	private static PosixQuotaInfo newQuotaInfo(long curspace) {
+
+		T_dqblk dqblk = new T_dqblk();
+		dqblk.dqb_bhardlimit = StubCLibrary.BLOCKHARDLIMIT;
+		dqblk.dqb_curspace = curspace;
+		dqblk.dqb_valid = PosixQuotaInfo.QIF_ALL;
+		dqblk.write();
+		return new PosixQuotaInfo(dqblk);
+	}
+
+	@Setup
+	public void setUp() {
+
+		pqi = newQuotaInfo(StubCLibrary.CURSPACE);
+		same = newQuotaInfo(StubCLibrary.CURSPACE);
+		other = newQuotaInfo(StubCLibrary.CURSPACE + 1);
+	}
+
+	@Benchmark
+	public boolean equalsSame() {
+
+		return pqi.equals(same);
+	}
+
+	@Benchmark
+	public boolean equalsOther() {
+
+		return pqi.equals(other);
+	}
+
+	@Benchmark
+	public int hashCodeOf() {
+
+		return pqi.hashCode();
+	}
+
+}
@@ -0,0 +1,117 @@
+package it.grid.storm.api.filesystem.benchmarks;
+
+import java.lang.reflect.Field;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+
+/**
+ * A {@link CLibrary} which never enters the kernel: quotactl() either fills
+ * the dqblk structure with fixed values or fails with a fixed errno, so that
+ * the Java side of the quota read path can be measured without quota-enabled
+ * disks.
+ * <p>
+ * The stub is installed in place of {@link CLibrary#INSTANCE}, which is then
+ * used by {@link it.grid.storm.api.filesystem.quota.posix.QuotactlBinding#INTERFACE}.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+public class StubCLibrary implements CLibrary {
+
+	public static final long BLOCKHARDLIMIT = 10000;
+	public static final long CURSPACE = 4096;
+
+	private final int errNo;
+
+	/**
+	 * @param errNo
+	 *            The errno quotactl() fails with, or 0 to succeed.
+	 */
+	public StubCLibrary(int errNo) {
+		this.errNo = errNo;
+	}
+
+	private static void fill(Pointer p, int id) {
+		p.setLong(0, BLOCKHARDLIMIT);
+		p.setLong(8, BLOCKHARDLIMIT / 2);
+		p.setLong(16, CURSPACE + id);
+		p.setLong(24, 0);
+		p.setLong(32, 0);
+		p.setLong(40, 1);
+		p.setLong(48, 0);
+		p.setLong(56, 0);
+		p.setInt(64, PosixQuotaInfo.QIF_ALL);
+	}
+
+	@Override
+	public int quotactl(int cmd, String special, int id, Structure addr) throws LastErrorException {
+
+		if (errNo != 0) {
+			throw new LastErrorException(errNo);
+		}
+		/* the interface mapping reads back the structure after the call */
+		fill(addr.getPointer(), id);
+		addr.read();
+		return 0;
+	}
+
+	@Override
+	public int quotactl(int cmd, Pointer special, int id, Pointer addr) {
+
+		if (errNo != 0) {
+			/* the callers of this mapping read errno back */
+			Native.setLastError(errNo);
+			return -1;
+		}
+		fill(addr, id);
+		return 0;
+	}
+
+	/*
+	 * The project id lookup is not measured: the file calls fail at once.
+	 */
+
+	@Override
+	public int open(String pathname, int flags) throws LastErrorException {
+		throw new LastErrorException(ErrNo.ENOSYS);
+	}
+
+	@Override
+	public int ioctl(int fd, NativeLong request, Pointer argp) throws LastErrorException {
+		throw new LastErrorException(ErrNo.ENOSYS);
+	}
+
+	@Override
+	public int close(int fd) throws LastErrorException {
+		throw new LastErrorException(ErrNo.ENOSYS);
+	}
+
+	/**
+	 * Replace {@link CLibrary#INSTANCE}.
+	 * 
+	 * @param lib
+	 *            The new instance.
+	 */
+	public static void install(CLibrary lib) {
+
+		try {
+			Field field = CLibrary.class.getDeclaredField("INSTANCE");
+			Field unsafeField = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+			unsafeField.setAccessible(true);
+			sun.misc.Unsafe unsafe = (sun.misc.Unsafe) unsafeField.get(null);
+			/* a static final field can't be set through reflection on recent JDKs */
+			unsafe.putObject(unsafe.staticFieldBase(field), unsafe.staticFieldOffset(field), lib);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -6,6 +6,8 @@ import java.util.List;
 import com.sun.jna.LastErrorException;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 
 /**
@@ -33,6 +35,22 @@ public interface CLibrary extends Library {
 	 */
 	class T_dqblk extends Structure implements Structure.ByReference {
 
+		/**
+		 * The size in bytes of the native dqblk structure: eight 64-bit
+		 * fields followed by the 32-bit dqb_valid, padded to 8 bytes.
+		 */
+		static final int SIZE = 72;
+
+		/**
+		 * The number of 64-bit fields which precede dqb_valid.
+		 */
+		static final int LONG_FIELDS = 8;
+
+		/**
+		 * The offset in bytes of dqb_valid into the native dqblk structure.
+		 */
+		static final int DQB_VALID_OFFSET = 64;
+
 		/**
 		 * The absolute limit on disk quota blocks allocation.
 		 */
@@ -82,6 +100,41 @@ public interface CLibrary extends Library {
 					"dqb_isoftlimit", "dqb_curinodes", "dqb_btime", "dqb_itime", "dqb_valid" });
 		}
 
+		/**
+		 * Update the fields of this object from its native memory, reading
+		 * them at their fixed offsets. Unlike {@link #read()}, no reflection
+		 * over the field order is involved.
+		 */
+		void readFields() {
+			Pointer p = getPointer();
+			dqb_bhardlimit = p.getLong(0);
+			dqb_bsoftlimit = p.getLong(8);
+			dqb_curspace = p.getLong(16);
+			dqb_ihardlimit = p.getLong(24);
+			dqb_isoftlimit = p.getLong(32);
+			dqb_curinodes = p.getLong(40);
+			dqb_btime = p.getLong(48);
+			dqb_itime = p.getLong(56);
+			dqb_valid = p.getInt(DQB_VALID_OFFSET);
+		}
+
+		/**
+		 * Build a T_dqblk object from a copy of the native dqblk structure
+		 * pointed by the argument.
+		 * 
+		 * @param dqblk
+		 *            The native memory holding a dqblk, or a structure which
+		 *            starts with a dqblk
+		 * @return The T_dqblk object.
+		 */
+		static T_dqblk copyOf(Pointer dqblk) {
+			T_dqblk dablk = new T_dqblk();
+			byte[] data = dqblk.getByteArray(0, DQB_VALID_OFFSET + 4);
+			dablk.getPointer().write(0, data, 0, data.length);
+			dablk.readFields();
+			return dablk;
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -97,6 +150,56 @@ public interface CLibrary extends Library {
 
 	};
 
+	/**
+	 * T_nextdqblk is the correspondent of the if_nextdqblk structure defined in
+	 * linux/quota.h and returned by reference as addr field after quotactl()
+	 * call with Q_GETNEXTQUOTA. It's a dqblk followed by the id the returned
+	 * quota information belongs to.
+	 *
+	 * @author Enrico Vianello
+	 *
+	 */
+	class T_nextdqblk extends T_dqblk {
+
+		/**
+		 * The size in bytes of the native if_nextdqblk structure.
+		 */
+		static final int SIZE = 72;
+
+		/**
+		 * The offset in bytes of dqb_id into the native if_nextdqblk
+		 * structure.
+		 */
+		static final int DQB_ID_OFFSET = 68;
+
+		/**
+		 * The user or group id the quota information belongs to.
+		 */
+		public int dqb_id;
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sun.jna.Structure#getFieldOrder()
+		 */
+		@Override
+		protected List<String> getFieldOrder() {
+			return Arrays.asList(new String[] { "dqb_bhardlimit", "dqb_bsoftlimit", "dqb_curspace", "dqb_ihardlimit",
+					"dqb_isoftlimit", "dqb_curinodes", "dqb_btime", "dqb_itime", "dqb_valid", "dqb_id" });
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sun.jna.Structure#toString()
+		 */
+		@Override
+		public String toString() {
+			return "T_nextdqblk [dqb_id=" + Integer.toUnsignedString(dqb_id) + ", " + super.toString() + "]";
+		}
+
+	};
+
 	/**
 	 * The standard C library quotactl() method from sys/quota.h which manipulates disk quotas. 
 	 * <p>
@@ -137,4 +240,55 @@ public interface CLibrary extends Library {
 	 * @throws LastErrorException Exception representing a non-zero error code returned.
 	 */
 	int quotactl(int cmd, String special, int id, Structure addr) throws LastErrorException;
+
+	/**
+	 * The same standard C library quotactl() method, mapped with raw pointer
+	 * arguments so that the caller can reuse an already encoded special
+	 * pathname and a single native buffer across many calls.
+	 * <p>
+	 * No exception is thrown: a non-zero exit code is returned and the error
+	 * code can be retrieved with {@link Native#getLastError()}.
+	 * 
+	 * @param cmd An unique identifier of the pair (subcmd,type)
+	 * @param special A null-terminated C string with the pathname of the (mounted) block special device
+	 * @param id User or group id
+	 * @param addr The native memory the command-specific data structure is copied in or out
+	 * @return The exit code
+	 */
+	int quotactl(int cmd, Pointer special, int id, Pointer addr);
+
+	/**
+	 * The standard C library open() method from fcntl.h.
+	 * <p>
+	 * {@code int open(const char *pathname, int flags); }
+	 * 
+	 * @param pathname The pathname of the file or directory to open
+	 * @param flags The access mode and file creation flags, e.g. O_RDONLY
+	 * @return The new file descriptor
+	 * @throws LastErrorException Exception representing a non-zero error code returned.
+	 */
+	int open(String pathname, int flags) throws LastErrorException;
+
+	/**
+	 * The standard C library ioctl() method from sys/ioctl.h, with a pointer
+	 * argument.
+	 * <p>
+	 * {@code int ioctl(int fd, unsigned long request, ...); }
+	 * 
+	 * @param fd An open file descriptor
+	 * @param request The device-dependent request code
+	 * @param argp The native memory the request-specific data structure is copied in or out
+	 * @return The exit code
+	 * @throws LastErrorException Exception representing a non-zero error code returned.
+	 */
+	int ioctl(int fd, NativeLong request, Pointer argp) throws LastErrorException;
+
+	/**
+	 * The standard C library close() method from unistd.h.
+	 * 
+	 * @param fd An open file descriptor
+	 * @return The exit code
+	 * @throws LastErrorException Exception representing a non-zero error code returned.
+	 */
+	int close(int fd) throws LastErrorException;
 }
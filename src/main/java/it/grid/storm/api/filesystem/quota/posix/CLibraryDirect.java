@@ -0,0 +1,75 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * CLibraryDirect maps the standard C library quotactl() through JNA direct
+ * mapping.
+ * <p>
+ * Native methods are registered once with {@link Native#register(Class, String)}
+ * and called as plain static JNI methods: there is neither the reflective
+ * proxy dispatch of {@link CLibrary} nor the automatic write and read of the
+ * {@link com.sun.jna.Structure} arguments. Only primitive, String and
+ * {@link Pointer} arguments are used.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+final class CLibraryDirect {
+
+	private static final boolean AVAILABLE;
+
+	static {
+		boolean available;
+		try {
+			Native.register(CLibraryDirect.class, "c");
+			available = true;
+		} catch (UnsatisfiedLinkError e) {
+			available = false;
+		}
+		AVAILABLE = available;
+	}
+
+	private CLibraryDirect() {
+	}
+
+	/**
+	 * Check if the direct mapping has been successfully registered.
+	 * 
+	 * @return true if the native methods can be called, false otherwise.
+	 */
+	static boolean isAvailable() {
+		return AVAILABLE;
+	}
+
+	/**
+	 * The standard C library quotactl() method.
+	 * 
+	 * @see CLibrary#quotactl(int, String, int, com.sun.jna.Structure)
+	 * @param cmd An unique identifier of the pair (subcmd,type)
+	 * @param special The pathname of the (mounted) block special device for the filesystem being manipulated
+	 * @param id User or group id
+	 * @param addr The native memory the command-specific data structure is copied in or out
+	 * @return The exit code
+	 * @throws LastErrorException Exception representing a non-zero error code returned.
+	 */
+	static native int quotactl(int cmd, String special, int id, Pointer addr) throws LastErrorException;
+
+	/**
+	 * The standard C library quotactl() method, with an already encoded
+	 * special pathname. No exception is thrown: a non-zero exit code is
+	 * returned and the error code can be retrieved with
+	 * {@link Native#getLastError()}.
+	 * 
+	 * @see CLibrary#quotactl(int, Pointer, int, Pointer)
+	 * @param cmd An unique identifier of the pair (subcmd,type)
+	 * @param special A null-terminated C string with the pathname of the (mounted) block special device
+	 * @param id User or group id
+	 * @param addr The native memory the command-specific data structure is copied in or out
+	 * @return The exit code
+	 */
+	static native int quotactl(int cmd, Pointer special, int id, Pointer addr);
+
+}
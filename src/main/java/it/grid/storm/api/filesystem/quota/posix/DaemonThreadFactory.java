@@ -0,0 +1,40 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} of named daemon threads, used by the background
+ * workers of this library so that they never prevent the JVM from exiting.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * DaemonThreadFactory constructor.
+	 *
+	 * @param prefix
+	 *            The prefix of the thread names, followed by a sequence number
+	 */
+	public DaemonThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+	 */
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+}
@@ -14,12 +14,17 @@ public interface ErrNo {
 	public static int EPERM = 1;
 	public static int ENOENT = 2;
 	public static int ESRCH = 3;
+	public static int EINTR = 4;
 	public static int EIO = 5;
+	public static int EAGAIN = 11;
 	public static int EFAULT = 14;
 	public static int ENOTBLK = 15;
 	public static int ENODEV = 19;
 	public static int EINVAL = 22;
 	public static int EMFILE = 23;
+	public static int ENOTTY = 25;
+	public static int ERANGE = 34;
 	public static int ENOSYS = 78;
+	public static int ETIMEDOUT = 110;
 	
 }
\ No newline at end of file
@@ -0,0 +1,277 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import java.util.stream.Stream;
+
+import it.grid.storm.api.filesystem.quota.posix.mount.MountInfo;
+import it.grid.storm.api.filesystem.quota.posix.mount.MountResolver;
+
+/**
+ * A {@link PosixQuotaManager} which chooses the quotactl() commands from the
+ * type of the filesystem mounted on the block device.
+ * <p>
+ * On XFS all the reads, batch reads and enumerations go through the XFS
+ * specific commands, Q_XGETQUOTA and Q_XGETNEXTQUOTA, see
+ * {@link XfsQuotaManager}, and are converted to {@link PosixQuotaInfo}: XFS
+ * serves them directly, without the generic VFS quota translation layer. The
+ * ENOENT XFS reports for an id without quota information is turned into the
+ * ESRCH of the generic path, so that callers see a
+ * {@link PosixQuotaResult.Status#NO_QUOTA} whatever the filesystem. Any other
+ * filesystem, or a block device which is not in the mount table, goes through
+ * the generic commands of the backend.
+ * <p>
+ * The filesystem type is looked up by device in the current mount table of
+ * the {@link MountResolver}, so remounts are picked up as soon as the resolver
+ * reloads it.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class FilesystemAwarePosixQuotaManager extends PosixQuotaManager {
+
+	/**
+	 * The filesystem type reported into mountinfo for XFS.
+	 */
+	public static final String XFS = "xfs";
+
+	private final MountResolver mountResolver;
+	private final XfsQuotaManager xfs;
+
+	/**
+	 * The manager whose backend serves the generic commands through the XFS
+	 * specific ones.
+	 */
+	private final PosixQuotaManager xfsQuotas;
+
+	/**
+	 * Build a manager which reads the quotas of the filesystems other than
+	 * XFS through the default backend, see
+	 * {@link QuotactlBackends#getDefault()}, and calls quotactl() through the
+	 * default binding otherwise.
+	 *
+	 * @param mountResolver
+	 *            The resolver whose mount table gives the filesystem type of a
+	 *            block device
+	 */
+	public FilesystemAwarePosixQuotaManager(MountResolver mountResolver) {
+		this(QuotactlBackends.getDefault(), mountResolver);
+	}
+
+	/**
+	 * Build a manager which reads the quotas of the filesystems other than
+	 * XFS through the specified backend. The XFS specific commands go through
+	 * the JNA binding, which is the backend itself if it's a
+	 * {@link QuotactlBinding}, the default binding otherwise.
+	 *
+	 * @param backend
+	 *            The backend used to read and enumerate the quotas
+	 * @param mountResolver
+	 *            The resolver whose mount table gives the filesystem type of a
+	 *            block device
+	 */
+	public FilesystemAwarePosixQuotaManager(QuotactlBackend backend, MountResolver mountResolver) {
+		this(backend instanceof QuotactlBinding ? (QuotactlBinding) backend : QuotactlBinding.getDefault(), backend,
+				mountResolver);
+	}
+
+	/**
+	 * FilesystemAwarePosixQuotaManager constructor.
+	 *
+	 * @param binding
+	 *            The JNA binding used to call quotactl(), the XFS specific
+	 *            commands included
+	 * @param backend
+	 *            The backend used to read and enumerate the quotas of the
+	 *            filesystems other than XFS
+	 * @param mountResolver
+	 *            The resolver whose mount table gives the filesystem type of a
+	 *            block device
+	 */
+	public FilesystemAwarePosixQuotaManager(QuotactlBinding binding, QuotactlBackend backend,
+			MountResolver mountResolver) {
+
+		super(binding, backend);
+		this.mountResolver = mountResolver;
+		this.xfs = new XfsQuotaManager(binding);
+		this.xfsQuotas = new PosixQuotaManager(binding, new XfsQuotactlBackend(xfs));
+	}
+
+	/**
+	 * Get the type of the filesystem mounted on a block device.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The filesystem type, e.g. "xfs", or null if the device is not
+	 *         mounted.
+	 */
+	public String getFilesystemType(String blockDevice) {
+
+		MountInfo m = mountResolver.getMountTable().findByDevice(blockDevice);
+		return m == null ? null : m.getFilesystemType();
+	}
+
+	/**
+	 * Check if XFS is mounted on a block device.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return true if the XFS specific commands are used for the device.
+	 */
+	public boolean isXfs(String blockDevice) {
+		return XFS.equals(getFilesystemType(blockDevice));
+	}
+
+	/**
+	 * Get the manager of the XFS specific commands, e.g. to read the
+	 * real-time subvolume usage or the filesystem-wide quota state.
+	 *
+	 * @return The XFS quota manager.
+	 */
+	public XfsQuotaManager getXfsQuotaManager() {
+		return xfs;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaInfo getGroupQuota(String blockDevice, int gid) throws PosixQuotaException {
+
+		if (isXfs(blockDevice)) {
+			return xfsQuotas.getGroupQuota(blockDevice, gid);
+		}
+		return super.getGroupQuota(blockDevice, gid);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#readGroupQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+		if (isXfs(blockDevice)) {
+			return xfsQuotas.readGroupQuota(blockDevice, gid);
+		}
+		return super.readGroupQuota(blockDevice, gid);
+	}
+
+	/**
+	 * On XFS the fs_disk_quota structure is converted first, so the read
+	 * allocates, unlike on the other filesystems.
+	 *
+	 * @see PosixQuotaManager#readGroupQuota(String, int, MutableQuotaInfo, int)
+	 */
+	@Override
+	public int readGroupQuota(String blockDevice, int gid, MutableQuotaInfo holder, int fields) {
+
+		if (isXfs(blockDevice)) {
+			return xfsQuotas.readGroupQuota(blockDevice, gid, holder, fields);
+		}
+		return super.readGroupQuota(blockDevice, gid, holder, fields);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupQuotas(java.lang.String, int[])
+	 */
+	@Override
+	public PosixQuotaBatch getGroupQuotas(String blockDevice, int[] gids) {
+
+		if (isXfs(blockDevice)) {
+			return xfsQuotas.getGroupQuotas(blockDevice, gids);
+		}
+		return super.getGroupQuotas(blockDevice, gids);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#streamGroupQuotas(java.lang.String)
+	 */
+	@Override
+	public Stream<PosixQuotaEntry> streamGroupQuotas(String blockDevice) {
+
+		if (isXfs(blockDevice)) {
+			return xfsQuotas.streamGroupQuotas(blockDevice);
+		}
+		return super.streamGroupQuotas(blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#streamUserQuotas(java.lang.String)
+	 */
+	@Override
+	public Stream<PosixQuotaEntry> streamUserQuotas(String blockDevice) {
+
+		if (isXfs(blockDevice)) {
+			return xfsQuotas.streamUserQuotas(blockDevice);
+		}
+		return super.streamUserQuotas(blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#loadGroupQuotas(java.lang.String, it.grid.storm.api.filesystem.quota.posix.QuotaTable)
+	 */
+	@Override
+	public void loadGroupQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+
+		if (isXfs(blockDevice)) {
+			xfsQuotas.loadGroupQuotas(blockDevice, table);
+		} else {
+			super.loadGroupQuotas(blockDevice, table);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#loadUserQuotas(java.lang.String, it.grid.storm.api.filesystem.quota.posix.QuotaTable)
+	 */
+	@Override
+	public void loadUserQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+
+		if (isXfs(blockDevice)) {
+			xfsQuotas.loadUserQuotas(blockDevice, table);
+		} else {
+			super.loadUserQuotas(blockDevice, table);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#forEachGroupQuota(java.lang.String, it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo, it.grid.storm.api.filesystem.quota.posix.QuotaVisitor)
+	 */
+	@Override
+	public long forEachGroupQuota(String blockDevice, MutableQuotaInfo holder, QuotaVisitor visitor)
+			throws PosixQuotaException {
+
+		if (isXfs(blockDevice)) {
+			return xfsQuotas.forEachGroupQuota(blockDevice, holder, visitor);
+		}
+		return super.forEachGroupQuota(blockDevice, holder, visitor);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getProjectQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaInfo getProjectQuota(String blockDevice, int projid) throws PosixQuotaException {
+
+		if (isXfs(blockDevice)) {
+			return xfsQuotas.getProjectQuota(blockDevice, projid);
+		}
+		return super.getProjectQuota(blockDevice, projid);
+	}
+
+}
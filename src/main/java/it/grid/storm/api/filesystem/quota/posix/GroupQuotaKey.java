@@ -0,0 +1,90 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+/**
+ * The pair (block device, group id) which identifies the group quota
+ * information of a filesystem.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class GroupQuotaKey {
+
+	private final String blockDevice;
+	private final int gid;
+
+	/**
+	 * GroupQuotaKey constructor.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device
+	 * @param gid
+	 *            The group id
+	 */
+	public GroupQuotaKey(String blockDevice, int gid) {
+		if (blockDevice == null) {
+			throw new NullPointerException("blockDevice");
+		}
+		this.blockDevice = blockDevice;
+		this.gid = gid;
+	}
+
+	/**
+	 * Get the pathname of the block device.
+	 *
+	 * @return The pathname of the block device.
+	 */
+	public String getBlockDevice() {
+		return blockDevice;
+	}
+
+	/**
+	 * Get the group id.
+	 *
+	 * @return The group id.
+	 */
+	public int getGid() {
+		return gid;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + blockDevice.hashCode();
+		result = prime * result + gid;
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		GroupQuotaKey other = (GroupQuotaKey) obj;
+		return gid == other.gid && blockDevice.equals(other.blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "GroupQuotaKey [blockDevice=" + blockDevice + ", gid=" + gid + "]";
+	}
+
+}
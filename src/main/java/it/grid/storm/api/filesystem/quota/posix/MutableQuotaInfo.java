@@ -0,0 +1,376 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import com.sun.jna.Pointer;
+
+/**
+ * A reusable holder of the quota information of a group id, filled by
+ * {@link PosixQuotaManager#readGroupQuota(String, int, MutableQuotaInfo, int)}.
+ * <p>
+ * The caller owns the holder and passes it to each read: the steady-state
+ * read path allocates neither a {@link CLibrary.T_dqblk} nor a
+ * {@link PosixQuotaInfo}. Only the fields selected by the QIF_* mask passed
+ * to the read are copied; getting a field which has not been read throws
+ * {@link IllegalStateException}, rather than returning the value of a
+ * previous read.
+ * <p>
+ * A holder is not thread safe: it's meant to be confined to the thread
+ * which reads into it.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class MutableQuotaInfo {
+
+	private String blockDevice;
+	private int gid;
+	private int errNo;
+	private int fields;
+
+	private long bhardlimit;
+	private long bsoftlimit;
+	private long curspace;
+	private long ihardlimit;
+	private long isoftlimit;
+	private long curinodes;
+	private long btime;
+	private long itime;
+	private int valid;
+
+	/**
+	 * Start a read: record the pair and clear the previous outcome.
+	 */
+	void reset(String blockDevice, int gid) {
+		this.blockDevice = blockDevice;
+		this.gid = gid;
+		this.errNo = 0;
+		this.fields = 0;
+		this.valid = 0;
+	}
+
+	/**
+	 * Record the error code returned by quotactl().
+	 */
+	void setError(int errNo) {
+		this.errNo = errNo;
+	}
+
+	/**
+	 * Copy the selected fields of the native dqblk structure pointed by the
+	 * argument, reading them at their fixed offsets.
+	 */
+	void read(Pointer dqblk, int fields) {
+
+		if ((fields & PosixQuotaInfo.QIF_BLIMITS) != 0) {
+			bhardlimit = dqblk.getLong(0);
+			bsoftlimit = dqblk.getLong(8);
+		}
+		if ((fields & PosixQuotaInfo.QIF_SPACE) != 0) {
+			curspace = dqblk.getLong(16);
+		}
+		if ((fields & PosixQuotaInfo.QIF_ILIMITS) != 0) {
+			ihardlimit = dqblk.getLong(24);
+			isoftlimit = dqblk.getLong(32);
+		}
+		if ((fields & PosixQuotaInfo.QIF_INODES) != 0) {
+			curinodes = dqblk.getLong(40);
+		}
+		if ((fields & PosixQuotaInfo.QIF_BTIME) != 0) {
+			btime = dqblk.getLong(48);
+		}
+		if ((fields & PosixQuotaInfo.QIF_ITIME) != 0) {
+			itime = dqblk.getLong(56);
+		}
+		this.valid = dqblk.getInt(CLibrary.T_dqblk.DQB_VALID_OFFSET);
+		this.fields = fields;
+	}
+
+	/**
+	 * Copy the selected fields of the dqblk values filled by a
+	 * {@link QuotactlBackend}.
+	 */
+	void read(long[] dqblk, int fields) {
+
+		if ((fields & PosixQuotaInfo.QIF_BLIMITS) != 0) {
+			bhardlimit = dqblk[0];
+			bsoftlimit = dqblk[1];
+		}
+		if ((fields & PosixQuotaInfo.QIF_SPACE) != 0) {
+			curspace = dqblk[2];
+		}
+		if ((fields & PosixQuotaInfo.QIF_ILIMITS) != 0) {
+			ihardlimit = dqblk[3];
+			isoftlimit = dqblk[4];
+		}
+		if ((fields & PosixQuotaInfo.QIF_INODES) != 0) {
+			curinodes = dqblk[5];
+		}
+		if ((fields & PosixQuotaInfo.QIF_BTIME) != 0) {
+			btime = dqblk[6];
+		}
+		if ((fields & PosixQuotaInfo.QIF_ITIME) != 0) {
+			itime = dqblk[7];
+		}
+		this.valid = (int) dqblk[QuotactlBackend.DQB_VALID];
+		this.fields = fields;
+	}
+
+	/**
+	 * Fill the holder from a result, copying the selected fields of its quota
+	 * information. Used by the {@link PosixQuotaManager} decorators which
+	 * already hold a result, e.g. a cached one.
+	 *
+	 * @param result
+	 *            The result of a read of the same or another pair
+	 * @param fields
+	 *            The bit mask of QIF_* constants of the fields to copy
+	 */
+	public void set(PosixQuotaResult result, int fields) {
+
+		reset(result.getBlockDevice(), result.getGid());
+		if (!result.isOk()) {
+			errNo = result.getErrorCode();
+			return;
+		}
+		PosixQuotaInfo info = result.getQuotaInfo();
+		if ((fields & PosixQuotaInfo.QIF_BLIMITS) != 0) {
+			bhardlimit = info.getBlockHardLimit();
+			bsoftlimit = info.getBlockSoftLimit();
+		}
+		if ((fields & PosixQuotaInfo.QIF_SPACE) != 0) {
+			curspace = info.getBlockUsage();
+		}
+		if ((fields & PosixQuotaInfo.QIF_ILIMITS) != 0) {
+			ihardlimit = info.getINodesHardLimit();
+			isoftlimit = info.getINodesSoftLimit();
+		}
+		if ((fields & PosixQuotaInfo.QIF_INODES) != 0) {
+			curinodes = info.getINodesUsage();
+		}
+		if ((fields & PosixQuotaInfo.QIF_BTIME) != 0) {
+			btime = info.getBlockTimeLimit();
+		}
+		if ((fields & PosixQuotaInfo.QIF_ITIME) != 0) {
+			itime = info.getINodesTimeLimit();
+		}
+		this.valid = info.getValid();
+		this.fields = fields;
+	}
+
+	private void checkOk() {
+		if (errNo != 0) {
+			throw new IllegalStateException(
+					"The read of gid " + gid + " on " + blockDevice + " failed: [" + errNo + "]");
+		}
+	}
+
+	private void check(int field) {
+		checkOk();
+		if ((fields & field) == 0) {
+			throw new IllegalStateException(
+					"Field " + field + " has not been read for gid " + gid + " on " + blockDevice);
+		}
+	}
+
+	/**
+	 * @return The pathname of the block device of the last read.
+	 */
+	public String getBlockDevice() {
+		return blockDevice;
+	}
+
+	/**
+	 * @return The group id of the last read.
+	 */
+	public int getGid() {
+		return gid;
+	}
+
+	/**
+	 * @return The error code of the last read, 0 on success.
+	 */
+	public int getErrorCode() {
+		return errNo;
+	}
+
+	/**
+	 * @return true if the last read succeeded.
+	 */
+	public boolean isOk() {
+		return errNo == 0;
+	}
+
+	/**
+	 * @return true if the last read failed with ESRCH.
+	 */
+	public boolean isNoQuota() {
+		return errNo == ErrNo.ESRCH;
+	}
+
+	/**
+	 * Get the bit mask of QIF_* constants of the fields copied by the last
+	 * read.
+	 *
+	 * @return The fields read, 0 if the read failed.
+	 */
+	public int getFields() {
+		return fields;
+	}
+
+	/**
+	 * Get the current quota block count.
+	 *
+	 * @return The current quota block count.
+	 * @throws IllegalStateException
+	 *             if {@link PosixQuotaInfo#QIF_SPACE} has not been read.
+	 */
+	public long getBlockUsage() {
+		check(PosixQuotaInfo.QIF_SPACE);
+		return curspace;
+	}
+
+	/**
+	 * Get the absolute limit on disk quota blocks allocation, in
+	 * {@link PosixQuotaInfo#QIF_DQBLKSIZE} byte blocks.
+	 *
+	 * @return The block hard limit.
+	 * @throws IllegalStateException
+	 *             if {@link PosixQuotaInfo#QIF_BLIMITS} has not been read.
+	 */
+	public long getBlockHardLimit() {
+		check(PosixQuotaInfo.QIF_BLIMITS);
+		return bhardlimit;
+	}
+
+	/**
+	 * Get the preferred limit on disk quota blocks, in
+	 * {@link PosixQuotaInfo#QIF_DQBLKSIZE} byte blocks.
+	 *
+	 * @return The block soft limit.
+	 * @throws IllegalStateException
+	 *             if {@link PosixQuotaInfo#QIF_BLIMITS} has not been read.
+	 */
+	public long getBlockSoftLimit() {
+		check(PosixQuotaInfo.QIF_BLIMITS);
+		return bsoftlimit;
+	}
+
+	/**
+	 * Get the maximum number of allocated inodes.
+	 *
+	 * @return The inodes hard limit.
+	 * @throws IllegalStateException
+	 *             if {@link PosixQuotaInfo#QIF_ILIMITS} has not been read.
+	 */
+	public long getINodesHardLimit() {
+		check(PosixQuotaInfo.QIF_ILIMITS);
+		return ihardlimit;
+	}
+
+	/**
+	 * Get the preferred inode limit.
+	 *
+	 * @return The inodes soft limit.
+	 * @throws IllegalStateException
+	 *             if {@link PosixQuotaInfo#QIF_ILIMITS} has not been read.
+	 */
+	public long getINodesSoftLimit() {
+		check(PosixQuotaInfo.QIF_ILIMITS);
+		return isoftlimit;
+	}
+
+	/**
+	 * Get the current number of allocated inodes.
+	 *
+	 * @return The current number of allocated inodes.
+	 * @throws IllegalStateException
+	 *             if {@link PosixQuotaInfo#QIF_INODES} has not been read.
+	 */
+	public long getINodesUsage() {
+		check(PosixQuotaInfo.QIF_INODES);
+		return curinodes;
+	}
+
+	/**
+	 * Get the time limit for excessive disk use.
+	 *
+	 * @return The time limit for excessive disk use.
+	 * @throws IllegalStateException
+	 *             if {@link PosixQuotaInfo#QIF_BTIME} has not been read.
+	 */
+	public long getBlockTimeLimit() {
+		check(PosixQuotaInfo.QIF_BTIME);
+		return btime;
+	}
+
+	/**
+	 * Get the time limit for excessive files.
+	 *
+	 * @return The time limit for excessive files.
+	 * @throws IllegalStateException
+	 *             if {@link PosixQuotaInfo#QIF_ITIME} has not been read.
+	 */
+	public long getINodesTimeLimit() {
+		check(PosixQuotaInfo.QIF_ITIME);
+		return itime;
+	}
+
+	/**
+	 * Get the bit mask of QIF_* constants returned by the kernel into
+	 * dqb_valid, see {@link PosixQuotaInfo#getValid()}.
+	 *
+	 * @return the bit mask of QIF_* constants.
+	 */
+	public int getValid() {
+		checkOk();
+		return valid;
+	}
+
+	/**
+	 * Build an immutable copy of the fields read.
+	 *
+	 * @return The quota information, with the fields not read set to 0.
+	 * @throws IllegalStateException
+	 *             if the last read failed.
+	 */
+	public PosixQuotaInfo toQuotaInfo() {
+
+		checkOk();
+		long[] dqblk = new long[QuotactlBackend.DQBLK_VALUES];
+		if ((fields & PosixQuotaInfo.QIF_BLIMITS) != 0) {
+			dqblk[0] = bhardlimit;
+			dqblk[1] = bsoftlimit;
+		}
+		if ((fields & PosixQuotaInfo.QIF_SPACE) != 0) {
+			dqblk[2] = curspace;
+		}
+		if ((fields & PosixQuotaInfo.QIF_ILIMITS) != 0) {
+			dqblk[3] = ihardlimit;
+			dqblk[4] = isoftlimit;
+		}
+		if ((fields & PosixQuotaInfo.QIF_INODES) != 0) {
+			dqblk[5] = curinodes;
+		}
+		if ((fields & PosixQuotaInfo.QIF_BTIME) != 0) {
+			dqblk[6] = btime;
+		}
+		if ((fields & PosixQuotaInfo.QIF_ITIME) != 0) {
+			dqblk[7] = itime;
+		}
+		dqblk[QuotactlBackend.DQB_VALID] = valid;
+		return new PosixQuotaInfo(dqblk);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MutableQuotaInfo [blockDevice=" + blockDevice + ", gid=" + gid + ", errNo=" + errNo + ", fields="
+				+ fields + ", bhardlimit=" + bhardlimit + ", bsoftlimit=" + bsoftlimit + ", curspace=" + curspace
+				+ ", ihardlimit=" + ihardlimit + ", isoftlimit=" + isoftlimit + ", curinodes=" + curinodes
+				+ ", btime=" + btime + ", itime=" + itime + ", valid=" + valid + "]";
+	}
+
+}
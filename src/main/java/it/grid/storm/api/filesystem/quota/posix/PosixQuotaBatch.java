@@ -0,0 +1,246 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import java.util.Arrays;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Pointer;
+
+/**
+ * The quota information of a set of group ids read from the same block
+ * device, as returned by {@link PosixQuotaManager#getGroupQuotas(String, int[])}.
+ * <p>
+ * Values are kept into primitive arrays, one record per requested gid, in the
+ * same order of the request. A failure on a gid doesn't stop the batch: its
+ * error code is recorded and can be checked with {@link #isSuccess(int)} and
+ * {@link #getErrorCode(int)}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class PosixQuotaBatch {
+
+	/* Indexes of the 64-bit fields into a record, as laid out in dqblk */
+
+	private static final int BHARDLIMIT = 0;
+	private static final int BSOFTLIMIT = 1;
+	private static final int CURSPACE = 2;
+	private static final int IHARDLIMIT = 3;
+	private static final int ISOFTLIMIT = 4;
+	private static final int CURINODES = 5;
+	private static final int BTIME = 6;
+	private static final int ITIME = 7;
+
+	private final String blockDevice;
+	private final int[] gids;
+	private final long[] values;
+	private final int[] valid;
+	private final int[] errNo;
+
+	PosixQuotaBatch(String blockDevice, int[] gids) {
+		this.blockDevice = blockDevice;
+		this.gids = gids.clone();
+		this.values = new long[gids.length * CLibrary.T_dqblk.LONG_FIELDS];
+		this.valid = new int[gids.length];
+		this.errNo = new int[gids.length];
+	}
+
+	/**
+	 * Build a batch where all the gids failed with the same error code, as
+	 * when quotactl() couldn't be called at all.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gids
+	 *            The group ids
+	 * @param errNo
+	 *            The error code
+	 * @return The batch.
+	 */
+	public static PosixQuotaBatch failure(String blockDevice, int[] gids, int errNo) {
+
+		if (errNo == 0) {
+			throw new IllegalArgumentException("Error code of a failure can't be 0");
+		}
+		PosixQuotaBatch batch = new PosixQuotaBatch(blockDevice, gids);
+		Arrays.fill(batch.errNo, errNo);
+		return batch;
+	}
+
+	/**
+	 * Copy the content of a native dqblk structure as the i-th record.
+	 */
+	void set(int i, Pointer dqblk) {
+		dqblk.read(0, values, i * CLibrary.T_dqblk.LONG_FIELDS, CLibrary.T_dqblk.LONG_FIELDS);
+		valid[i] = dqblk.getInt(CLibrary.T_dqblk.DQB_VALID_OFFSET);
+		errNo[i] = 0;
+	}
+
+	/**
+	 * Copy the dqblk values filled by a {@link QuotactlBackend} as the i-th
+	 * record.
+	 */
+	void set(int i, long[] dqblk) {
+		System.arraycopy(dqblk, 0, values, i * CLibrary.T_dqblk.LONG_FIELDS, CLibrary.T_dqblk.LONG_FIELDS);
+		valid[i] = (int) dqblk[QuotactlBackend.DQB_VALID];
+		errNo[i] = 0;
+	}
+
+	/**
+	 * Record the error code returned by quotactl() for the i-th gid.
+	 */
+	void setError(int i, int errNo) {
+		this.errNo[i] = errNo;
+	}
+
+	private long get(int i, int field) {
+		return values[i * CLibrary.T_dqblk.LONG_FIELDS + field];
+	}
+
+	/**
+	 * Get the block device all the records have been read from.
+	 *
+	 * @return The pathname of the block device.
+	 */
+	public String getBlockDevice() {
+		return blockDevice;
+	}
+
+	/**
+	 * Get the number of records, that is the number of requested gids.
+	 *
+	 * @return The number of records.
+	 */
+	public int size() {
+		return gids.length;
+	}
+
+	/**
+	 * Get the group id of the i-th record.
+	 *
+	 * @param i
+	 *            The record index
+	 * @return The group id.
+	 */
+	public int getGid(int i) {
+		return gids[i];
+	}
+
+	/**
+	 * Check if the quota information of the i-th record has been successfully
+	 * read.
+	 *
+	 * @param i
+	 *            The record index
+	 * @return true if quotactl() succeeded for the i-th gid, false otherwise.
+	 */
+	public boolean isSuccess(int i) {
+		return errNo[i] == 0;
+	}
+
+	/**
+	 * Get the error code returned by quotactl() for the i-th gid.
+	 *
+	 * @param i
+	 *            The record index
+	 * @return The error code, or 0 if the record has been successfully read.
+	 */
+	public int getErrorCode(int i) {
+		return errNo[i];
+	}
+
+	/**
+	 * Build the exception that {@link PosixQuotaManager#getGroupQuota(String, int)}
+	 * would have thrown for the i-th gid.
+	 *
+	 * @param i
+	 *            The record index
+	 * @return The exception related to the i-th gid, or null if the record has
+	 *         been successfully read.
+	 */
+	public PosixQuotaException getException(int i) {
+		if (isSuccess(i)) {
+			return null;
+		}
+		return PosixQuotaManager.newQuotaException(blockDevice, gids[i], new LastErrorException(errNo[i]));
+	}
+
+	/**
+	 * Get the i-th record as a {@link PosixQuotaInfo} object.
+	 *
+	 * @param i
+	 *            The record index
+	 * @return The quota information of the i-th gid, or null if it has not
+	 *         been successfully read.
+	 */
+	public PosixQuotaInfo getQuotaInfo(int i) {
+		if (!isSuccess(i)) {
+			return null;
+		}
+		return new PosixQuotaInfo(new long[] { get(i, BHARDLIMIT), get(i, BSOFTLIMIT), get(i, CURSPACE),
+				get(i, IHARDLIMIT), get(i, ISOFTLIMIT), get(i, CURINODES), get(i, BTIME), get(i, ITIME), valid[i] });
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getBlockUsage()
+	 */
+	public long getBlockUsage(int i) {
+		return get(i, CURSPACE);
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getBlockHardLimit()
+	 */
+	public long getBlockHardLimit(int i) {
+		return get(i, BHARDLIMIT);
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getBlockSoftLimit()
+	 */
+	public long getBlockSoftLimit(int i) {
+		return get(i, BSOFTLIMIT);
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getINodesHardLimit()
+	 */
+	public long getINodesHardLimit(int i) {
+		return get(i, IHARDLIMIT);
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getINodesSoftLimit()
+	 */
+	public long getINodesSoftLimit(int i) {
+		return get(i, ISOFTLIMIT);
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getINodesUsage()
+	 */
+	public long getINodesUsage(int i) {
+		return get(i, CURINODES);
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getBlockTimeLimit()
+	 */
+	public long getBlockTimeLimit(int i) {
+		return get(i, BTIME);
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getINodesTimeLimit()
+	 */
+	public long getINodesTimeLimit(int i) {
+		return get(i, ITIME);
+	}
+
+	/**
+	 * @see PosixQuotaInfo#getValid()
+	 */
+	public int getValid(int i) {
+		return valid[i];
+	}
+
+}
@@ -0,0 +1,57 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+/**
+ * The quota information of a block device together with the user or group id
+ * it belongs to, as returned by the quota enumeration methods of
+ * {@link PosixQuotaManager}.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+public class PosixQuotaEntry {
+
+	private final int id;
+	private final PosixQuotaInfo info;
+
+	/**
+	 * PosixQuotaEntry constructor.
+	 * 
+	 * @param id
+	 *            The user or group id
+	 * @param info
+	 *            The quota information of the id
+	 */
+	public PosixQuotaEntry(int id, PosixQuotaInfo info) {
+		this.id = id;
+		this.info = info;
+	}
+
+	/**
+	 * Get the user or group id the quota information belongs to.
+	 * 
+	 * @return The user or group id.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Get the quota information.
+	 * 
+	 * @return The quota information of the id.
+	 */
+	public PosixQuotaInfo getQuotaInfo() {
+		return info;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PosixQuotaEntry [id=" + Integer.toUnsignedString(id) + ", info=" + info + "]";
+	}
+
+}
@@ -1,15 +1,23 @@
 package it.grid.storm.api.filesystem.quota.posix;
 
 /**
- * The quota information associated to a block device. It's a
- * {@link CLibrary.T_dqblk} object wrapper.
+ * The quota information associated to a block device. It's a copy of the
+ * values of a {@link CLibrary.T_dqblk} structure.
  * 
  * @author Enrico Vianello
  *
  */
 public class PosixQuotaInfo {
 
-	private final CLibrary.T_dqblk dablk;
+	private final long bhardlimit;
+	private final long bsoftlimit;
+	private final long curspace;
+	private final long ihardlimit;
+	private final long isoftlimit;
+	private final long curinodes;
+	private final long btime;
+	private final long itime;
+	private final int valid;
 
 	/*
 	 * Flags in dqb_valid that indicate which fields in dqblk structure are
@@ -66,6 +74,20 @@ public class PosixQuotaInfo {
 	 */
 	public static final short QIF_ALL = (QIF_LIMITS | QIF_USAGE | QIF_TIMES);
 
+	/**
+	 * The size in bytes of the disk quota blocks the block limits are
+	 * expressed in, while the current block usage is expressed in bytes.
+	 * <p>
+	 * 
+	 * <pre>
+	 * {@code
+	 * #define QIF_DQBLKSIZE_BITS 10
+	 * #define QIF_DQBLKSIZE (1 << QIF_DQBLKSIZE_BITS)
+	 * }
+	 * </pre>
+	 */
+	public static final int QIF_DQBLKSIZE = 1 << 10;
+
 	/**
 	 * The constructor builds the object information by copying them from the
 	 * {@link CLibrary.T_dqblk} object passed as argument.
@@ -75,7 +97,37 @@ public class PosixQuotaInfo {
 	 *            library quotactl() call.
 	 */
 	public PosixQuotaInfo(CLibrary.T_dqblk dablk) {
-		this.dablk = dablk;
+
+		this.bhardlimit = dablk.dqb_bhardlimit;
+		this.bsoftlimit = dablk.dqb_bsoftlimit;
+		this.curspace = dablk.dqb_curspace;
+		this.ihardlimit = dablk.dqb_ihardlimit;
+		this.isoftlimit = dablk.dqb_isoftlimit;
+		this.curinodes = dablk.dqb_curinodes;
+		this.btime = dablk.dqb_btime;
+		this.itime = dablk.dqb_itime;
+		this.valid = dablk.dqb_valid;
+	}
+
+	/**
+	 * Build the object information from the dqblk values filled by a
+	 * {@link QuotactlBackend}.
+	 * 
+	 * @param dqblk
+	 *            The {@value QuotactlBackend#DQBLK_VALUES} dqblk values, in the
+	 *            order of the {@link CLibrary.T_dqblk} fields
+	 */
+	public PosixQuotaInfo(long[] dqblk) {
+
+		this.bhardlimit = dqblk[0];
+		this.bsoftlimit = dqblk[1];
+		this.curspace = dqblk[2];
+		this.ihardlimit = dqblk[3];
+		this.isoftlimit = dqblk[4];
+		this.curinodes = dqblk[5];
+		this.btime = dqblk[6];
+		this.itime = dqblk[7];
+		this.valid = (int) dqblk[QuotactlBackend.DQB_VALID];
 	}
 
 	/**
@@ -84,7 +136,7 @@ public class PosixQuotaInfo {
 	 * @return The current quota block count.
 	 */
 	public long getBlockUsage() {
-		return dablk.dqb_curspace;
+		return curspace;
 	}
 
 	/**
@@ -96,7 +148,7 @@ public class PosixQuotaInfo {
 	 * @return the absolute limit on disk quota blocks allocation.
 	 */
 	public long getBlockHardLimit() {
-		return dablk.dqb_bhardlimit;
+		return bhardlimit;
 	}
 
 	/**
@@ -112,7 +164,7 @@ public class PosixQuotaInfo {
 	 * @return the preferred limit on disk quota blocks.
 	 */
 	public long getBlockSoftLimit() {
-		return dablk.dqb_bsoftlimit;
+		return bsoftlimit;
 	}
 
 	/**
@@ -127,7 +179,7 @@ public class PosixQuotaInfo {
 	 * @return the maximum number of allocated inodes.
 	 */
 	public long getINodesHardLimit() {
-		return dablk.dqb_ihardlimit;
+		return ihardlimit;
 	}
 
 	/**
@@ -143,7 +195,7 @@ public class PosixQuotaInfo {
 	 * @return the preferred inode limit.
 	 */
 	public long getINodesSoftLimit() {
-		return dablk.dqb_isoftlimit;
+		return isoftlimit;
 	}
 
 	/**
@@ -152,7 +204,7 @@ public class PosixQuotaInfo {
 	 * @return the current number of allocated inodes.
 	 */
 	public long getINodesUsage() {
-		return dablk.dqb_curinodes;
+		return curinodes;
 	}
 
 	/**
@@ -161,7 +213,7 @@ public class PosixQuotaInfo {
 	 * @return the time limit for excessive disk use.
 	 */
 	public long getBlockTimeLimit() {
-		return dablk.dqb_btime;
+		return btime;
 	}
 
 	/**
@@ -170,7 +222,7 @@ public class PosixQuotaInfo {
 	 * @return the time limit for excessive files.
 	 */
 	public long getINodesTimeLimit() {
-		return dablk.dqb_itime;
+		return itime;
 	}
 
 	/**
@@ -197,17 +249,21 @@ public class PosixQuotaInfo {
 	 * @return the bit mask of QIF_* constants.
 	 */
 	public int getValid() {
-		return dablk.dqb_valid;
+		return valid;
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * The format is the one of the JNA structure the values used to be held
+	 * in, which is parsed by existing consumers.
 	 * 
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString() {
-		return "PosixQuotaInfo [dablk=" + dablk + "]";
+		return "PosixQuotaInfo [dablk=T_dqblk [dqb_bhardlimit=" + bhardlimit + ", dqb_bsoftlimit=" + bsoftlimit
+				+ ", dqb_curspace=" + curspace + ", dqb_ihardlimit=" + ihardlimit + ", dqb_isoftlimit=" + isoftlimit
+				+ ", dqb_curinodes=" + curinodes + ", dqb_btime=" + btime + ", dqb_itime=" + itime + ", dqb_valid="
+				+ Integer.toBinaryString(valid) + "]]";
 	}
 
 	/*
@@ -219,7 +275,15 @@ public class PosixQuotaInfo {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((dablk == null) ? 0 : dablk.hashCode());
+		result = prime * result + (int) (bhardlimit ^ (bhardlimit >>> 32));
+		result = prime * result + (int) (bsoftlimit ^ (bsoftlimit >>> 32));
+		result = prime * result + (int) (curspace ^ (curspace >>> 32));
+		result = prime * result + (int) (ihardlimit ^ (ihardlimit >>> 32));
+		result = prime * result + (int) (isoftlimit ^ (isoftlimit >>> 32));
+		result = prime * result + (int) (curinodes ^ (curinodes >>> 32));
+		result = prime * result + (int) (btime ^ (btime >>> 32));
+		result = prime * result + (int) (itime ^ (itime >>> 32));
+		result = prime * result + valid;
 		return result;
 	}
 
@@ -237,12 +301,9 @@ public class PosixQuotaInfo {
 		if (getClass() != obj.getClass())
 			return false;
 		PosixQuotaInfo other = (PosixQuotaInfo) obj;
-		if (dablk == null) {
-			if (other.dablk != null)
-				return false;
-		} else if (!dablk.equals(other.dablk))
-			return false;
-		return true;
+		return bhardlimit == other.bhardlimit && bsoftlimit == other.bsoftlimit && curspace == other.curspace
+				&& ihardlimit == other.ihardlimit && isoftlimit == other.isoftlimit && curinodes == other.curinodes
+				&& btime == other.btime && itime == other.itime && valid == other.valid;
 	}
 
 };
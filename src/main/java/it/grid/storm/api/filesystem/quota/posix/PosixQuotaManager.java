@@ -1,8 +1,16 @@
 package it.grid.storm.api.filesystem.quota.posix;
 
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 
 import it.grid.storm.api.filesystem.quota.posix.CLibrary.T_dqblk;;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupResolver;
 
 /**
  * 
@@ -36,6 +44,180 @@ public class PosixQuotaManager {
 	 */
 	private static int GETGROUPQUOTA_CMD = 0x80000701;
 
+	/**
+	 * The result of the QCMD(subcmd, type) macro defined into sys/quota.h,
+	 * where type value is GRPQUOTA and subcmd value is Q_GETNEXTQUOTA.
+	 * <p>
+	 * 
+	 * <pre>
+	 * {@code
+	 * #define Q_GETNEXTQUOTA 0x800009
+	 * #define GRPQUOTA  1
+	 * }
+	 * </pre>
+	 */
+	private static int GETNEXTGROUPQUOTA_CMD = 0x80000901;
+
+	/**
+	 * The result of the QCMD(subcmd, type) macro defined into sys/quota.h,
+	 * where type value is USRQUOTA and subcmd value is Q_GETNEXTQUOTA.
+	 * <p>
+	 * 
+	 * <pre>
+	 * {@code
+	 * #define Q_GETNEXTQUOTA 0x800009
+	 * #define USRQUOTA  0
+	 * }
+	 * </pre>
+	 */
+	private static int GETNEXTUSERQUOTA_CMD = 0x80000900;
+
+	/**
+	 * The quotactl() command which gets the quota of a project id.
+	 */
+	private static int GETPROJECTQUOTA_CMD = QuotaCommand.qcmd(QuotaCommand.Q_GETQUOTA, QuotaCommand.PRJQUOTA);
+
+	/**
+	 * The FS_IOC_FSGETXATTR ioctl request defined into linux/fs.h, which
+	 * reads the extended attributes of a file into a struct fsxattr.
+	 * <p>
+	 * 
+	 * <pre>
+	 * {@code
+	 * #define FS_IOC_FSGETXATTR _IOR('X', 31, struct fsxattr)
+	 * }
+	 * </pre>
+	 */
+	private static final long FS_IOC_FSGETXATTR = 0x801c581fL;
+
+	/**
+	 * The size in bytes of struct fsxattr and the offset of its fsx_projid
+	 * field.
+	 */
+	private static final int FSXATTR_SIZE = 28;
+	private static final int FSX_PROJID_OFFSET = 12;
+
+	/**
+	 * The O_RDONLY flag of open().
+	 */
+	private static final int O_RDONLY = 0;
+
+	/**
+	 * Per-thread dqblk values filled by the backends, see
+	 * {@link #readGroupQuota(String, int)}.
+	 */
+	private static final ThreadLocal<long[]> SCRATCH_VALUES = new ThreadLocal<long[]>() {
+
+		@Override
+		protected long[] initialValue() {
+			return new long[QuotactlBackend.DQBLK_VALUES];
+		}
+	};
+
+	/**
+	 * The JNA binding used to call quotactl().
+	 */
+	private final QuotactlBinding binding;
+
+	/**
+	 * The backend used to read and enumerate the quotas.
+	 */
+	private final QuotactlBackend backend;
+
+	/**
+	 * The resolver of the group names, see
+	 * {@link #getGroupQuota(String, String)}.
+	 */
+	private volatile GroupResolver groupResolver = GroupResolver.getDefault();
+
+	/**
+	 * Build a PosixQuotaManager which reads and enumerates the quotas through
+	 * the default backend, see {@link QuotactlBackends#getDefault()}, and
+	 * calls quotactl() through the default binding otherwise, see
+	 * {@link QuotactlBinding#getDefault()}.
+	 */
+	public PosixQuotaManager() {
+		this(QuotactlBackends.getDefault());
+	}
+
+	/**
+	 * Build a PosixQuotaManager which calls quotactl() through the specified
+	 * binding.
+	 * 
+	 * @param binding
+	 *            The JNA binding used to call quotactl()
+	 */
+	public PosixQuotaManager(QuotactlBinding binding) {
+		this(binding, binding);
+	}
+
+	/**
+	 * Build a PosixQuotaManager which reads the quota of a single id through
+	 * the specified backend, also used by the batch reads and the
+	 * enumerations. The other calls go through the JNA binding, which is the
+	 * backend itself if it's a {@link QuotactlBinding}, the default binding
+	 * otherwise.
+	 * 
+	 * @param backend
+	 *            The backend used to read and enumerate the quotas
+	 */
+	public PosixQuotaManager(QuotactlBackend backend) {
+		this(backend instanceof QuotactlBinding ? (QuotactlBinding) backend : QuotactlBinding.getDefault(), backend);
+	}
+
+	/**
+	 * Build a PosixQuotaManager which reads and enumerates the quotas through
+	 * the specified backend and calls quotactl() through the specified
+	 * binding otherwise.
+	 * 
+	 * @param binding
+	 *            The JNA binding used to call quotactl()
+	 * @param backend
+	 *            The backend used to read and enumerate the quotas
+	 */
+	public PosixQuotaManager(QuotactlBinding binding, QuotactlBackend backend) {
+		this.binding = binding;
+		this.backend = backend;
+	}
+
+	/**
+	 * Get the JNA binding used to call quotactl().
+	 * 
+	 * @return The binding.
+	 */
+	public QuotactlBinding getBinding() {
+		return binding;
+	}
+
+	/**
+	 * Get the backend used to read and enumerate the quotas.
+	 * 
+	 * @return The backend.
+	 */
+	public QuotactlBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Get the resolver of the group names.
+	 * 
+	 * @return The resolver, {@link GroupResolver#getDefault()} unless set.
+	 */
+	public GroupResolver getGroupResolver() {
+		return groupResolver;
+	}
+
+	/**
+	 * Set the resolver of the group names, e.g. one with other time-to-lives
+	 * or group database.
+	 * 
+	 * @param groupResolver
+	 *            The resolver
+	 */
+	public void setGroupResolver(GroupResolver groupResolver) {
+		this.groupResolver = groupResolver;
+	}
+
 	/**
 	 * In case quotactl exits with a non-zero value, each error code has a
 	 * correspondent message, returned by this method.
@@ -44,7 +226,7 @@ public class PosixQuotaManager {
 	 *            The error code
 	 * @return The error message related to the errno specified.
 	 */
-	private String getErrnoMsg(int errNo) {
+	static String getErrnoMsg(int errNo) {
 
 		switch (errNo) {
 
@@ -68,6 +250,12 @@ public class PosixQuotaManager {
 			return "Too many open files: cannot open quota file.";
 		case ErrNo.ENODEV:
 			return "special cannot be found in the mount table.";
+		case ErrNo.EINTR:
+			return "Interrupted while waiting for the quotactl() call.";
+		case ErrNo.EAGAIN:
+			return "The quotactl() call was not attempted: the device is saturated or isolated after repeated failures.";
+		case ErrNo.ETIMEDOUT:
+			return "The quotactl() call did not complete in time.";
 		default:
 			return "Unrecognized error " + errNo + " !";
 		}
@@ -90,21 +278,439 @@ public class PosixQuotaManager {
 	 */
 	public PosixQuotaInfo getGroupQuota(String blockDevice, int gid) throws PosixQuotaException {
 
-		T_dqblk dablk = new T_dqblk();
+		return getQuota(GETGROUPQUOTA_CMD, blockDevice, "gid", gid);
+	}
 
-		try {
+	/**
+	 * Call quotactl() to retrieve disk quota limits and current usage for a
+	 * group name, e.g. the one of a VO.
+	 * <p>
+	 * The name is resolved to its gid through the {@link GroupResolver} of
+	 * this manager, which caches the answers of the Name Service Switch:
+	 * only the first lookup of a name, and the ones after its time-to-live,
+	 * reach sssd or LDAP.
+	 * 
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param groupName
+	 *            The group name
+	 * @return PosixQuotaInfo The disk quota limits and current usage for the
+	 *         specified group.
+	 * @throws PosixQuotaException
+	 *             Exception representing the problem occurred resolving the
+	 *             group name, with ENOENT as error code for an unknown group,
+	 *             or retrieving the quota information.
+	 */
+	public PosixQuotaInfo getGroupQuota(String blockDevice, String groupName) throws PosixQuotaException {
 
-			CLibrary.INSTANCE.quotactl(GETGROUPQUOTA_CMD, blockDevice, gid, dablk);
+		return getGroupQuota(blockDevice, getGroupResolver().getGid(groupName));
+	}
 
-		} catch (LastErrorException e) {
+	/**
+	 * Call quotactl() to retrieve disk quota limits and current usage for a
+	 * project id.
+	 * <p>
+	 * Project quotas account the disk usage of all the files tagged with the
+	 * project id, typically a whole directory tree, see
+	 * {@link #getProjectId(String)}. The filesystem must be mounted with
+	 * project quotas enabled (prjquota on XFS, the quota and project
+	 * features plus prjquota on ext4).
+	 * 
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param projid
+	 *            The project id
+	 * @return PosixQuotaInfo The disk quota limits and current usage for the
+	 *         specified project id.
+	 * @throws PosixQuotaException
+	 *             Exception representing the problem occurred retrieving the
+	 *             quota information.
+	 */
+	public PosixQuotaInfo getProjectQuota(String blockDevice, int projid) throws PosixQuotaException {
+
+		return getQuota(GETPROJECTQUOTA_CMD, blockDevice, "project id", projid);
+	}
+
+	/**
+	 * Read the quota of a single id. The JNA bindings raise the
+	 * LastErrorException themselves, the other backends return the error
+	 * code, which is wrapped into one.
+	 */
+	private PosixQuotaInfo getQuota(int cmd, String blockDevice, String idType, int id) throws PosixQuotaException {
+
+		if (backend == binding) {
+
+			T_dqblk dablk = new T_dqblk();
+
+			try {
+
+				binding.getQuota(cmd, blockDevice, id, dablk);
+
+			} catch (LastErrorException e) {
+
+				throw newQuotaException(blockDevice, idType, id, e);
+			}
+
+			return new PosixQuotaInfo(dablk);
+		}
+
+		long[] dqblk = SCRATCH_VALUES.get();
+		int errNo = backend.getQuota(cmd, blockDevice, id, dqblk);
+		if (errNo != 0) {
+			throw newQuotaException(blockDevice, idType, id, new LastErrorException(errNo));
+		}
+		return new PosixQuotaInfo(dqblk);
+	}
+
+	/**
+	 * Read the project id of a file or directory through the
+	 * FS_IOC_FSGETXATTR ioctl. New files and sub-directories of a directory
+	 * with the project inheritance flag get its project id.
+	 * 
+	 * @param path
+	 *            The pathname of the file or directory
+	 * @return The project id, 0 if none has been set.
+	 * @throws PosixQuotaException
+	 *             if the file can't be opened or the filesystem doesn't
+	 *             support the ioctl (ENOTTY).
+	 */
+	public static int getProjectId(String path) throws PosixQuotaException {
 
+		int fd;
+		try {
+			fd = CLibrary.INSTANCE.open(path, O_RDONLY);
+		} catch (LastErrorException e) {
+			throw new PosixQuotaException(String.format("Unable to open %s: [%d]", path, e.getErrorCode()), e);
+		}
+		try {
+			Memory fsxattr = new Memory(FSXATTR_SIZE);
+			fsxattr.clear();
+			CLibrary.INSTANCE.ioctl(fd, new NativeLong(FS_IOC_FSGETXATTR), fsxattr);
+			return fsxattr.getInt(FSX_PROJID_OFFSET);
+		} catch (LastErrorException e) {
 			throw new PosixQuotaException(
-					String.format("Unable to load quota information for device %s and gid %d: [%d] %s", blockDevice,
-							gid, e.getErrorCode(), getErrnoMsg(e.getErrorCode())),
-					e);
+					String.format("Unable to read the project id of %s: [%d]", path, e.getErrorCode()), e);
+		} finally {
+			try {
+				CLibrary.INSTANCE.close(fd);
+			} catch (LastErrorException e) {
+				/* nothing to do: the descriptor was only read */
+			}
+		}
+	}
+
+	/**
+	 * Call quotactl() to retrieve disk quota limits and current usage for a
+	 * group id, without raising exceptions.
+	 * <p>
+	 * Unlike {@link #getGroupQuota(String, int)}, a failure builds neither a
+	 * {@link PosixQuotaException} nor its message: the error code is just
+	 * returned into the result, whose status is
+	 * {@link PosixQuotaResult.Status#NO_QUOTA} for ESRCH. The backend fills a
+	 * per-thread array of dqblk values, the JNA bindings through a per-thread
+	 * native buffer, so a failure allocates nothing.
+	 * 
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param gid
+	 *            The group id
+	 * @return PosixQuotaResult The disk quota limits and current usage for the
+	 *         specified group id, or the error code.
+	 */
+	public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+		long[] dqblk = SCRATCH_VALUES.get();
+		int errNo = backend.getQuota(GETGROUPQUOTA_CMD, blockDevice, gid, dqblk);
+		if (errNo != 0) {
+			return PosixQuotaResult.failure(blockDevice, gid, errNo);
+		}
+		return PosixQuotaResult.ok(blockDevice, gid, new PosixQuotaInfo(dqblk));
+	}
+
+	/**
+	 * Call quotactl() to retrieve disk quota limits and current usage for a
+	 * group id into a caller-owned holder, without raising exceptions and
+	 * without allocating.
+	 * <p>
+	 * Only the fields selected by the {@code fields} mask are copied into the
+	 * holder: with the JNA binding they are read at their fixed offsets from
+	 * a per-thread native dqblk buffer, with no {@link CLibrary.T_dqblk} and no
+	 * {@link PosixQuotaInfo} built. The other backends fill a per-thread array
+	 * of dqblk values.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param gid
+	 *            The group id
+	 * @param holder
+	 *            The holder the quota information is copied into
+	 * @param fields
+	 *            The bit mask of QIF_* constants of the fields to copy, e.g.
+	 *            {@link PosixQuotaInfo#QIF_BLIMITS} |
+	 *            {@link PosixQuotaInfo#QIF_SPACE}
+	 * @return 0 on success, the error code otherwise, also recorded into the
+	 *         holder.
+	 */
+	public int readGroupQuota(String blockDevice, int gid, MutableQuotaInfo holder, int fields) {
+
+		holder.reset(blockDevice, gid);
+		int errNo;
+		if (backend == binding) {
+			errNo = binding.getQuota(GETGROUPQUOTA_CMD, blockDevice, gid, holder, fields);
+		} else {
+			long[] dqblk = SCRATCH_VALUES.get();
+			errNo = backend.getQuota(GETGROUPQUOTA_CMD, blockDevice, gid, dqblk);
+			if (errNo == 0) {
+				holder.read(dqblk, fields);
+			}
+		}
+		holder.setError(errNo);
+		return errNo;
+	}
+
+	/**
+	 * Call quotactl() to retrieve disk quota limits and current usage for a
+	 * set of group ids of the same block device.
+	 * <p>
+	 * A single native dqblk buffer and a single C copy of the block device
+	 * pathname are shared by all the quotactl() calls of the batch. A failure
+	 * on a gid doesn't stop the batch: its error code is recorded into the
+	 * returned {@link PosixQuotaBatch} and the next gid is processed. If the
+	 * backend is not the JNA binding, each gid is read through the backend.
+	 * 
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param gids
+	 *            The group ids
+	 * @return PosixQuotaBatch The disk quota limits and current usage for each
+	 *         of the specified group ids, in the same order.
+	 */
+	public PosixQuotaBatch getGroupQuotas(String blockDevice, int[] gids) {
+
+		PosixQuotaBatch batch = new PosixQuotaBatch(blockDevice, gids);
+
+		if (backend != binding) {
+
+			long[] dqblk = SCRATCH_VALUES.get();
+			for (int i = 0; i < gids.length; i++) {
+
+				int errNo = backend.getQuota(GETGROUPQUOTA_CMD, blockDevice, gids[i], dqblk);
+				if (errNo == 0) {
+					batch.set(i, dqblk);
+				} else {
+					batch.setError(i, errNo);
+				}
+			}
+			return batch;
+		}
+
+		Pointer special = special(blockDevice);
+		Memory dqblk = new Memory(T_dqblk.SIZE);
+
+		for (int i = 0; i < gids.length; i++) {
+
+			if (binding.quotactl(GETGROUPQUOTA_CMD, special, gids[i], dqblk) == 0) {
+				batch.set(i, dqblk);
+			} else {
+				batch.setError(i, Native.getLastError());
+			}
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Enumerate the quota information of all the group ids which have quota
+	 * information on a block device, in ascending gid order.
+	 * <p>
+	 * The stream is lazily populated through quotactl() calls with
+	 * Q_GETNEXTQUOTA, one per existing gid, made by the backend, see
+	 * {@link QuotactlBackend#getNextQuota(int, String, int, long[])}. The
+	 * kernel backends require Linux 4.6 or later.
+	 * An error other than ESRCH is raised while traversing the stream as an
+	 * {@link UncheckedPosixQuotaException}.
+	 * 
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @return The stream of the disk quota limits and current usage of each
+	 *         group id.
+	 */
+	public Stream<PosixQuotaEntry> streamGroupQuotas(String blockDevice) {
+
+		return StreamSupport.stream(new PosixQuotaSpliterator(backend, GETNEXTGROUPQUOTA_CMD, blockDevice), false);
+	}
+
+	/**
+	 * Enumerate the quota information of all the user ids which have quota
+	 * information on a block device, in ascending uid order.
+	 * 
+	 * @see #streamGroupQuotas(String)
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @return The stream of the disk quota limits and current usage of each
+	 *         user id.
+	 */
+	public Stream<PosixQuotaEntry> streamUserQuotas(String blockDevice) {
+
+		return StreamSupport.stream(new PosixQuotaSpliterator(backend, GETNEXTUSERQUOTA_CMD, blockDevice), false);
+	}
+
+	/**
+	 * Load into a {@link QuotaTable} the quota information of all the group
+	 * ids which have quota information on a block device.
+	 * <p>
+	 * As {@link #streamGroupQuotas(String)}, it's one quotactl() call with
+	 * Q_GETNEXTQUOTA per existing gid, but records are copied straight from
+	 * the buffer of the backend into the table columns: no object is built
+	 * per gid.
+	 * 
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param table
+	 *            The table to fill. Existing records of the same gids are
+	 *            replaced.
+	 * @throws PosixQuotaException
+	 *             Exception representing the problem occurred retrieving the
+	 *             quota information.
+	 */
+	public void loadGroupQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+
+		load(new PosixQuotaSpliterator(backend, GETNEXTGROUPQUOTA_CMD, blockDevice), table);
+	}
+
+	/**
+	 * Load into a {@link QuotaTable} the quota information of all the user ids
+	 * which have quota information on a block device.
+	 * 
+	 * @see #loadGroupQuotas(String, QuotaTable)
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param table
+	 *            The table to fill. Existing records of the same uids are
+	 *            replaced.
+	 * @throws PosixQuotaException
+	 *             Exception representing the problem occurred retrieving the
+	 *             quota information.
+	 */
+	public void loadUserQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+
+		load(new PosixQuotaSpliterator(backend, GETNEXTUSERQUOTA_CMD, blockDevice), table);
+	}
+
+	/**
+	 * Visit the quota information of all the group ids which have quota
+	 * information on a block device, in ascending gid order.
+	 * <p>
+	 * As {@link #loadGroupQuotas(String, QuotaTable)}, it's one quotactl()
+	 * call with Q_GETNEXTQUOTA per existing gid, but nothing is kept: each
+	 * record is copied from the buffer of the backend into the same holder
+	 * and handed to the visitor, so that a scan of any number of gids runs in
+	 * constant memory.
+	 * 
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param holder
+	 *            The holder filled with all the fields of each record
+	 * @param visitor
+	 *            The visitor called once per gid
+	 * @return The number of gids visited.
+	 * @throws PosixQuotaException
+	 *             Exception representing the problem occurred retrieving the
+	 *             quota information. The gids before the failure have already
+	 *             been visited.
+	 */
+	public long forEachGroupQuota(String blockDevice, MutableQuotaInfo holder, QuotaVisitor visitor)
+			throws PosixQuotaException {
+
+		PosixQuotaSpliterator records = new PosixQuotaSpliterator(backend, GETNEXTGROUPQUOTA_CMD, blockDevice);
+		long count = 0;
+		while (records.advance()) {
+			holder.reset(blockDevice, records.currentId());
+			records.readInto(holder);
+			count++;
+			if (!visitor.visit(holder)) {
+				break;
+			}
 		}
+		return count;
+	}
+
+	private static void load(PosixQuotaSpliterator records, QuotaTable table) throws PosixQuotaException {
+
+		while (records.advance()) {
+			records.putInto(table);
+		}
+	}
+
+	/**
+	 * Encode a string as a null-terminated C string into native memory.
+	 */
+	static Pointer toNativeString(String value) {
+
+		byte[] bytes = Native.toByteArray(value);
+		Memory m = new Memory(bytes.length);
+		m.write(0, bytes, 0, bytes.length);
+		return m;
+	}
+
+	/**
+	 * Get the C copy of a block device pathname, see
+	 * {@link QuotactlBinding#special(String)}.
+	 */
+	Pointer special(String blockDevice) {
+		return QuotactlBinding.special(blockDevice);
+	}
+
+	/**
+	 * Format the message of a quotactl() failure for a group id.
+	 */
+	static String formatErrorMessage(String blockDevice, int gid, int errNo) {
+
+		return formatErrorMessage(blockDevice, "gid", gid, errNo);
+	}
+
+	private static String formatErrorMessage(String blockDevice, String idType, int id, int errNo) {
+
+		return String.format("Unable to load quota information for device %s and %s %d: [%d] %s", blockDevice,
+				idType, id, errNo, getErrnoMsg(errNo));
+	}
+
+	/**
+	 * Build the exception raised when quotactl() fails for a group id.
+	 */
+	static PosixQuotaException newQuotaException(String blockDevice, int gid, LastErrorException e) {
+
+		return newQuotaException(blockDevice, "gid", gid, e);
+	}
+
+	/**
+	 * Build the exception raised when quotactl() fails for a user, group or
+	 * project id.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param idType
+	 *            The kind of id, as "uid", "gid" or "project id"
+	 * @param id
+	 *            The id
+	 * @param e
+	 *            The error, whose code is part of the message
+	 * @return The exception.
+	 */
+	public static PosixQuotaException newQuotaException(String blockDevice, String idType, int id,
+			LastErrorException e) {
 
-		return new PosixQuotaInfo(dablk);
+		return new PosixQuotaException(formatErrorMessage(blockDevice, idType, id, e.getErrorCode()), e);
 	}
 
 }
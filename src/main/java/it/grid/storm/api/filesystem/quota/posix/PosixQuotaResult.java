@@ -0,0 +1,202 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import com.sun.jna.LastErrorException;
+
+/**
+ * The outcome of a quotactl() call for a group id, as returned by
+ * {@link PosixQuotaManager#readGroupQuota(String, int)}: the quota information
+ * on success, the error code otherwise.
+ * <p>
+ * Building a result costs no exception and no string formatting: the error
+ * message and the {@link PosixQuotaException} are only built when
+ * {@link #getMessage()} or {@link #toException()} are called.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class PosixQuotaResult {
+
+	/**
+	 * The status of a quotactl() call.
+	 */
+	public enum Status {
+
+		/** The quota information has been read. */
+		OK,
+
+		/**
+		 * quotactl() failed with ESRCH: no disk quota is found for the id, or
+		 * quotas have not been turned on for the filesystem.
+		 */
+		NO_QUOTA,
+
+		/** quotactl() failed with any other error code. */
+		ERROR
+	}
+
+	private final String blockDevice;
+	private final int gid;
+	private final PosixQuotaInfo info;
+	private final int errNo;
+
+	private PosixQuotaResult(String blockDevice, int gid, PosixQuotaInfo info, int errNo) {
+		this.blockDevice = blockDevice;
+		this.gid = gid;
+		this.info = info;
+		this.errNo = errNo;
+	}
+
+	/**
+	 * Build a successful result.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @param info
+	 *            The quota information read
+	 * @return The result.
+	 */
+	public static PosixQuotaResult ok(String blockDevice, int gid, PosixQuotaInfo info) {
+
+		if (info == null) {
+			throw new IllegalArgumentException("Null quota information");
+		}
+		return new PosixQuotaResult(blockDevice, gid, info, 0);
+	}
+
+	/**
+	 * Build a failed result.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @param errNo
+	 *            The quotactl() error code
+	 * @return The result.
+	 */
+	public static PosixQuotaResult failure(String blockDevice, int gid, int errNo) {
+
+		if (errNo == 0) {
+			throw new IllegalArgumentException("Error code of a failure can't be 0");
+		}
+		return new PosixQuotaResult(blockDevice, gid, null, errNo);
+	}
+
+	/**
+	 * Get the status of the quotactl() call.
+	 *
+	 * @return The status.
+	 */
+	public Status getStatus() {
+
+		if (info != null) {
+			return Status.OK;
+		}
+		return errNo == ErrNo.ESRCH ? Status.NO_QUOTA : Status.ERROR;
+	}
+
+	/**
+	 * @return true if the quota information has been read, false otherwise.
+	 */
+	public boolean isOk() {
+		return info != null;
+	}
+
+	/**
+	 * @return true if quotactl() failed with ESRCH, false otherwise.
+	 */
+	public boolean isNoQuota() {
+		return errNo == ErrNo.ESRCH;
+	}
+
+	/**
+	 * @return The pathname of the block device.
+	 */
+	public String getBlockDevice() {
+		return blockDevice;
+	}
+
+	/**
+	 * @return The group id.
+	 */
+	public int getGid() {
+		return gid;
+	}
+
+	/**
+	 * Get the quotactl() error code.
+	 *
+	 * @return The error code, 0 if the quota information has been read.
+	 */
+	public int getErrorCode() {
+		return errNo;
+	}
+
+	/**
+	 * Get the quota information.
+	 *
+	 * @return The quota information, null if quotactl() failed.
+	 */
+	public PosixQuotaInfo getQuotaInfo() {
+		return info;
+	}
+
+	/**
+	 * Get the quota information or raise the failure as an exception, as
+	 * {@link PosixQuotaManager#getGroupQuota(String, int)} does.
+	 *
+	 * @return The quota information.
+	 * @throws PosixQuotaException
+	 *             if quotactl() failed.
+	 */
+	public PosixQuotaInfo getQuotaInfoOrThrow() throws PosixQuotaException {
+
+		if (info == null) {
+			throw toException();
+		}
+		return info;
+	}
+
+	/**
+	 * Format the error message. It's built on each call.
+	 *
+	 * @return The error message, null if the quota information has been read.
+	 */
+	public String getMessage() {
+
+		if (info != null) {
+			return null;
+		}
+		return PosixQuotaManager.formatErrorMessage(blockDevice, gid, errNo);
+	}
+
+	/**
+	 * Build the exception equivalent to the failure, whose cause is a
+	 * {@link LastErrorException} with the error code. It's built on each
+	 * call: a result may be shared, e.g. by a cache, and each throw needs its
+	 * own stack trace and suppressed exceptions.
+	 *
+	 * @return The exception, null if the quota information has been read.
+	 */
+	public PosixQuotaException toException() {
+
+		if (info != null) {
+			return null;
+		}
+		return PosixQuotaManager.newQuotaException(blockDevice, gid, new LastErrorException(errNo));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PosixQuotaResult [blockDevice=" + blockDevice + ", gid=" + Integer.toUnsignedString(gid)
+				+ ", status=" + getStatus() + ", errNo=" + errNo + ", info=" + info + "]";
+	}
+
+}
@@ -0,0 +1,159 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary.T_dqblk;
+import it.grid.storm.api.filesystem.quota.posix.CLibrary.T_nextdqblk;
+
+/**
+ * A {@link Spliterator} over all the ids which have quota information on a
+ * block device, in ascending id order.
+ * <p>
+ * Each step is a quotactl() call with Q_GETNEXTQUOTA, which returns the quota
+ * information of the first id greater than or equal to the requested one. A
+ * scan of the whole device costs then one call per existing id. The traversal
+ * ends when quotactl() fails with ESRCH; any other error is raised as an
+ * {@link UncheckedPosixQuotaException}.
+ * <p>
+ * With a JNA binding the records are read into a native buffer and copied
+ * straight from it; with any other {@link QuotactlBackend} they are read
+ * through {@link QuotactlBackend#getNextQuota(int, String, int, long[])} into
+ * an array of values.
+ *
+ * @author Enrico Vianello
+ *
+ */
+class PosixQuotaSpliterator extends Spliterators.AbstractSpliterator<PosixQuotaEntry> {
+
+	private final QuotactlBackend backend;
+	private final QuotactlBinding binding;
+	private final int cmd;
+	private final String blockDevice;
+	private final Pointer special;
+	private final Memory nextdqblk;
+	private final long[] values;
+
+	private int nextId = 0;
+	private boolean done = false;
+
+	PosixQuotaSpliterator(QuotactlBackend backend, int cmd, String blockDevice) {
+
+		super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+		this.backend = backend;
+		this.cmd = cmd;
+		this.blockDevice = blockDevice;
+		if (backend instanceof QuotactlBinding) {
+			this.binding = (QuotactlBinding) backend;
+			this.special = PosixQuotaManager.toNativeString(blockDevice);
+			this.nextdqblk = new Memory(T_nextdqblk.SIZE);
+			this.values = null;
+		} else {
+			this.binding = null;
+			this.special = null;
+			this.nextdqblk = null;
+			this.values = new long[QuotactlBackend.NEXTDQBLK_VALUES];
+		}
+	}
+
+	/**
+	 * Read the next quota information into the buffer, without building any
+	 * Java object.
+	 *
+	 * @return true if the buffer holds the next quota information, false if
+	 *         there are no more ids.
+	 * @throws PosixQuotaException
+	 *             if quotactl() fails with an error other than ESRCH.
+	 */
+	boolean advance() throws PosixQuotaException {
+
+		if (done) {
+			return false;
+		}
+
+		int errNo;
+		if (binding != null) {
+			errNo = binding.quotactl(cmd, special, nextId, nextdqblk) != 0 ? Native.getLastError() : 0;
+		} else {
+			errNo = backend.getNextQuota(cmd, blockDevice, nextId, values);
+		}
+		if (errNo != 0) {
+
+			done = true;
+			if (errNo == ErrNo.ESRCH) {
+				return false;
+			}
+			throw new PosixQuotaException(
+					String.format("Unable to load next quota information for device %s from id %s: [%d] %s",
+							blockDevice, Integer.toUnsignedString(nextId), errNo, PosixQuotaManager.getErrnoMsg(errNo)),
+					new LastErrorException(errNo));
+		}
+
+		int id = currentId();
+		/* the last id has been returned: no need to ask for another one */
+		done = id == -1;
+		nextId = id + 1;
+		return true;
+	}
+
+	/**
+	 * Get the id of the quota information read by the last {@link #advance()}.
+	 */
+	int currentId() {
+		return binding != null ? nextdqblk.getInt(T_nextdqblk.DQB_ID_OFFSET) : (int) values[QuotactlBackend.DQB_ID];
+	}
+
+	/**
+	 * Copy all the fields of the quota information read by the last
+	 * {@link #advance()} into a holder.
+	 */
+	void readInto(MutableQuotaInfo holder) {
+
+		if (binding != null) {
+			holder.read(nextdqblk, PosixQuotaInfo.QIF_ALL);
+		} else {
+			holder.read(values, PosixQuotaInfo.QIF_ALL);
+		}
+	}
+
+	/**
+	 * Copy the quota information read by the last {@link #advance()} into a
+	 * table, as the record of its id.
+	 */
+	void putInto(QuotaTable table) {
+
+		if (binding != null) {
+			table.put(currentId(), nextdqblk);
+		} else {
+			table.put(currentId(), values);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+	 */
+	@Override
+	public boolean tryAdvance(Consumer<? super PosixQuotaEntry> action) {
+
+		try {
+			if (!advance()) {
+				return false;
+			}
+		} catch (PosixQuotaException e) {
+			throw new UncheckedPosixQuotaException(e);
+		}
+		PosixQuotaInfo info = binding != null ? new PosixQuotaInfo(T_dqblk.copyOf(nextdqblk))
+				: new PosixQuotaInfo(values);
+		action.accept(new PosixQuotaEntry(currentId(), info));
+		return true;
+	}
+
+}
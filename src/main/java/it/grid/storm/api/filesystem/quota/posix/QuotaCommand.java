@@ -0,0 +1,89 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+/**
+ * QuotaCommand maps the quotactl() sub-commands and quota types defined into
+ * sys/quota.h and linux/quota.h, and encodes them as the cmd argument of
+ * quotactl().
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class QuotaCommand {
+
+	/* Quota types */
+
+	/**
+	 * User quotas.
+	 */
+	public static final int USRQUOTA = 0;
+
+	/**
+	 * Group quotas.
+	 */
+	public static final int GRPQUOTA = 1;
+
+	/**
+	 * Project quotas: disk usage of the files and directory trees tagged with
+	 * a project id. Supported by XFS, and by ext4 since Linux 4.5.
+	 */
+	public static final int PRJQUOTA = 2;
+
+	/* Sub-commands */
+
+	/**
+	 * Get disk quota limits and current usage for an id.
+	 */
+	public static final int Q_GETQUOTA = 0x800007;
+
+	/**
+	 * Get disk quota limits and current usage for the next id greater than or
+	 * equal to the specified one. Since Linux 4.6.
+	 */
+	public static final int Q_GETNEXTQUOTA = 0x800009;
+
+	/**
+	 * XFS: get disk quota limits and usage into a fs_disk_quota structure.
+	 * XQM_CMD(3), where {@code #define XQM_CMD(x) (('X'<<8)+(x))}.
+	 */
+	public static final int Q_XGETQUOTA = ('X' << 8) + 3;
+
+	/**
+	 * XFS: get the filesystem-wide quota state into a fs_quota_statv
+	 * structure. XQM_CMD(8).
+	 */
+	public static final int Q_XGETQSTATV = ('X' << 8) + 8;
+
+	/**
+	 * XFS: get disk quota limits and usage of the next id greater than or
+	 * equal to the specified one into a fs_disk_quota structure. XQM_CMD(9),
+	 * since Linux 4.6.
+	 */
+	public static final int Q_XGETNEXTQUOTA = ('X' << 8) + 9;
+
+	private static final int SUBCMDMASK = 0x00ff;
+	private static final int SUBCMDSHIFT = 8;
+
+	private QuotaCommand() {
+	}
+
+	/**
+	 * The QCMD(subcmd, type) macro defined into sys/quota.h.
+	 * <p>
+	 *
+	 * <pre>
+	 * {@code
+	 * #define QCMD(cmd, type)  (((cmd) << SUBCMDSHIFT) | ((type) & SUBCMDMASK))
+	 * }
+	 * </pre>
+	 *
+	 * @param subcmd
+	 *            The sub-command, e.g. {@link #Q_GETQUOTA}
+	 * @param type
+	 *            The quota type, e.g. {@link #PRJQUOTA}
+	 * @return The cmd argument of quotactl().
+	 */
+	public static int qcmd(int subcmd, int type) {
+		return (subcmd << SUBCMDSHIFT) | (type & SUBCMDMASK);
+	}
+
+}
@@ -0,0 +1,432 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import java.util.Arrays;
+
+import com.sun.jna.Pointer;
+
+/**
+ * A compact table of quota information indexed by user or group id.
+ * <p>
+ * Unlike a collection of {@link PosixQuotaInfo} objects, one per id, each
+ * with its own object header and boxed map entry, records are stored into
+ * primitive columns, one array per dqblk field, plus a primitive
+ * open-addressing index from id to row. A record takes about 90 bytes of
+ * heap and no native memory.
+ * <p>
+ * Records are read through a {@link Cursor}, a reusable flyweight whose
+ * getters match the {@link PosixQuotaInfo} ones, so that no object is built
+ * per record. A table is filled through
+ * {@link PosixQuotaManager#loadGroupQuotas(String, QuotaTable)}, from a
+ * {@link PosixQuotaBatch} or record by record.
+ * <p>
+ * This class is not thread safe: a table must be published safely once
+ * loaded, or externally synchronized.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotaTable {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private int size;
+	private int[] ids;
+	private long[] bhardlimit;
+	private long[] bsoftlimit;
+	private long[] curspace;
+	private long[] ihardlimit;
+	private long[] isoftlimit;
+	private long[] curinodes;
+	private long[] btime;
+	private long[] itime;
+	private int[] valid;
+
+	/* open-addressing index: row + 1 for each used slot, 0 for free ones */
+	private int[] slots;
+
+	/* scratch buffer used while copying a native dqblk */
+	private final long[] scratch = new long[CLibrary.T_dqblk.LONG_FIELDS];
+
+	/**
+	 * Build an empty table.
+	 */
+	public QuotaTable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Build an empty table sized for the specified number of records.
+	 *
+	 * @param initialCapacity
+	 *            The expected number of records
+	 */
+	public QuotaTable(int initialCapacity) {
+		allocate(Math.max(initialCapacity, 1));
+	}
+
+	private void allocate(int capacity) {
+
+		ids = new int[capacity];
+		bhardlimit = new long[capacity];
+		bsoftlimit = new long[capacity];
+		curspace = new long[capacity];
+		ihardlimit = new long[capacity];
+		isoftlimit = new long[capacity];
+		curinodes = new long[capacity];
+		btime = new long[capacity];
+		itime = new long[capacity];
+		valid = new int[capacity];
+		slots = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+	}
+
+	private void grow() {
+
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		bhardlimit = Arrays.copyOf(bhardlimit, capacity);
+		bsoftlimit = Arrays.copyOf(bsoftlimit, capacity);
+		curspace = Arrays.copyOf(curspace, capacity);
+		ihardlimit = Arrays.copyOf(ihardlimit, capacity);
+		isoftlimit = Arrays.copyOf(isoftlimit, capacity);
+		curinodes = Arrays.copyOf(curinodes, capacity);
+		btime = Arrays.copyOf(btime, capacity);
+		itime = Arrays.copyOf(itime, capacity);
+		valid = Arrays.copyOf(valid, capacity);
+
+		slots = new int[slots.length * 2];
+		for (int row = 0; row < size; row++) {
+			slots[freeSlot(ids[row])] = row + 1;
+		}
+	}
+
+	private static int hash(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int freeSlot(int id) {
+
+		int mask = slots.length - 1;
+		int i = hash(id) & mask;
+		while (slots[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Find the row of an id.
+	 *
+	 * @param id
+	 *            The user or group id
+	 * @return The row index, or -1 if the id is not in the table.
+	 */
+	public int find(int id) {
+
+		int mask = slots.length - 1;
+		for (int i = hash(id) & mask; slots[i] != 0; i = (i + 1) & mask) {
+			int row = slots[i] - 1;
+			if (ids[row] == id) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the row of an id, adding an empty record if it's missing.
+	 */
+	private int rowOf(int id) {
+
+		int row = find(id);
+		if (row >= 0) {
+			return row;
+		}
+		if (size == ids.length) {
+			grow();
+		}
+		row = size++;
+		ids[row] = id;
+		slots[freeSlot(id)] = row + 1;
+		return row;
+	}
+
+	/**
+	 * Add or replace the record of an id.
+	 *
+	 * @param id
+	 *            The user or group id
+	 * @param info
+	 *            The quota information of the id
+	 */
+	public void put(int id, PosixQuotaInfo info) {
+
+		int row = rowOf(id);
+		bhardlimit[row] = info.getBlockHardLimit();
+		bsoftlimit[row] = info.getBlockSoftLimit();
+		curspace[row] = info.getBlockUsage();
+		ihardlimit[row] = info.getINodesHardLimit();
+		isoftlimit[row] = info.getINodesSoftLimit();
+		curinodes[row] = info.getINodesUsage();
+		btime[row] = info.getBlockTimeLimit();
+		itime[row] = info.getINodesTimeLimit();
+		valid[row] = info.getValid();
+	}
+
+	/**
+	 * Add or replace the records of all the gids successfully read by a
+	 * batch. Failed gids are skipped.
+	 *
+	 * @param batch
+	 *            The batch of quota information
+	 */
+	public void putAll(PosixQuotaBatch batch) {
+
+		for (int i = 0; i < batch.size(); i++) {
+			if (!batch.isSuccess(i)) {
+				continue;
+			}
+			int row = rowOf(batch.getGid(i));
+			bhardlimit[row] = batch.getBlockHardLimit(i);
+			bsoftlimit[row] = batch.getBlockSoftLimit(i);
+			curspace[row] = batch.getBlockUsage(i);
+			ihardlimit[row] = batch.getINodesHardLimit(i);
+			isoftlimit[row] = batch.getINodesSoftLimit(i);
+			curinodes[row] = batch.getINodesUsage(i);
+			btime[row] = batch.getBlockTimeLimit(i);
+			itime[row] = batch.getINodesTimeLimit(i);
+			valid[row] = batch.getValid(i);
+		}
+	}
+
+	/**
+	 * Add or replace the record of an id, copying it from a native dqblk.
+	 */
+	void put(int id, Pointer dqblk) {
+
+		int row = rowOf(id);
+		dqblk.read(0, scratch, 0, scratch.length);
+		bhardlimit[row] = scratch[0];
+		bsoftlimit[row] = scratch[1];
+		curspace[row] = scratch[2];
+		ihardlimit[row] = scratch[3];
+		isoftlimit[row] = scratch[4];
+		curinodes[row] = scratch[5];
+		btime[row] = scratch[6];
+		itime[row] = scratch[7];
+		valid[row] = dqblk.getInt(CLibrary.T_dqblk.DQB_VALID_OFFSET);
+	}
+
+	/**
+	 * Add or replace the record of an id, copying it from the dqblk values
+	 * filled by a {@link QuotactlBackend}.
+	 */
+	void put(int id, long[] dqblk) {
+
+		int row = rowOf(id);
+		bhardlimit[row] = dqblk[0];
+		bsoftlimit[row] = dqblk[1];
+		curspace[row] = dqblk[2];
+		ihardlimit[row] = dqblk[3];
+		isoftlimit[row] = dqblk[4];
+		curinodes[row] = dqblk[5];
+		btime[row] = dqblk[6];
+		itime[row] = dqblk[7];
+		valid[row] = (int) dqblk[QuotactlBackend.DQB_VALID];
+	}
+
+	/**
+	 * Remove all the records. The allocated capacity is kept.
+	 */
+	public void clear() {
+		size = 0;
+		Arrays.fill(slots, 0);
+	}
+
+	/**
+	 * Get the number of records.
+	 *
+	 * @return The number of records.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Check if the table holds the record of an id.
+	 *
+	 * @param id
+	 *            The user or group id
+	 * @return true if the record exists, false otherwise.
+	 */
+	public boolean contains(int id) {
+		return find(id) >= 0;
+	}
+
+	/**
+	 * Get the id of a row. Rows are numbered from 0 to {@link #size()} - 1, in
+	 * insertion order.
+	 *
+	 * @param row
+	 *            The row index
+	 * @return The user or group id.
+	 */
+	public int getId(int row) {
+		checkRow(row);
+		return ids[row];
+	}
+
+	/**
+	 * Build a {@link PosixQuotaInfo} object with a copy of the record of an
+	 * id.
+	 *
+	 * @param id
+	 *            The user or group id
+	 * @return The quota information, or null if the id is not in the table.
+	 */
+	public PosixQuotaInfo getQuotaInfo(int id) {
+
+		int row = find(id);
+		if (row < 0) {
+			return null;
+		}
+		return new PosixQuotaInfo(new long[] { bhardlimit[row], bsoftlimit[row], curspace[row], ihardlimit[row],
+				isoftlimit[row], curinodes[row], btime[row], itime[row], valid[row] });
+	}
+
+	/**
+	 * Build a new cursor over this table, positioned on no record.
+	 *
+	 * @return The cursor.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QuotaTable [size=" + size + ", capacity=" + ids.length + "]";
+	}
+
+	/**
+	 * A reusable flyweight over a record of the table. Its getters read the
+	 * table columns directly and match the {@link PosixQuotaInfo} ones.
+	 *
+	 * @author Enrico Vianello
+	 *
+	 */
+	public class Cursor {
+
+		private int row = -1;
+
+		Cursor() {
+		}
+
+		/**
+		 * Position the cursor on the record of an id.
+		 *
+		 * @param id
+		 *            The user or group id
+		 * @return true if the record exists, false otherwise. In the latter
+		 *         case the cursor is positioned on no record.
+		 */
+		public boolean seek(int id) {
+			row = find(id);
+			return row >= 0;
+		}
+
+		/**
+		 * Position the cursor on a row.
+		 *
+		 * @param row
+		 *            The row index, from 0 to {@link QuotaTable#size()} - 1
+		 */
+		public void moveTo(int row) {
+			checkRow(row);
+			this.row = row;
+		}
+
+		/**
+		 * @return the user or group id of the current record.
+		 */
+		public int getId() {
+			return ids[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getBlockUsage()
+		 */
+		public long getBlockUsage() {
+			return curspace[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getBlockHardLimit()
+		 */
+		public long getBlockHardLimit() {
+			return bhardlimit[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getBlockSoftLimit()
+		 */
+		public long getBlockSoftLimit() {
+			return bsoftlimit[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getINodesHardLimit()
+		 */
+		public long getINodesHardLimit() {
+			return ihardlimit[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getINodesSoftLimit()
+		 */
+		public long getINodesSoftLimit() {
+			return isoftlimit[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getINodesUsage()
+		 */
+		public long getINodesUsage() {
+			return curinodes[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getBlockTimeLimit()
+		 */
+		public long getBlockTimeLimit() {
+			return btime[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getINodesTimeLimit()
+		 */
+		public long getINodesTimeLimit() {
+			return itime[row];
+		}
+
+		/**
+		 * @see PosixQuotaInfo#getValid()
+		 */
+		public int getValid() {
+			return valid[row];
+		}
+
+	}
+
+}
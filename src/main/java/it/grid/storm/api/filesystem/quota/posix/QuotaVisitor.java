@@ -0,0 +1,23 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+/**
+ * A callback of
+ * {@link PosixQuotaManager#forEachGroupQuota(String, MutableQuotaInfo, QuotaVisitor)},
+ * called once per group id with quota information on a block device.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public interface QuotaVisitor {
+
+	/**
+	 * Visit the quota information of a group id.
+	 *
+	 * @param info
+	 *            The holder filled with the quota information of the group id.
+	 *            It's reused for the next group id: copy what must be kept.
+	 * @return true to go on with the next group id, false to stop the scan.
+	 */
+	boolean visit(MutableQuotaInfo info);
+
+}
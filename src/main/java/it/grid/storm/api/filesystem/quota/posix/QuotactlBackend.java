@@ -0,0 +1,87 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+/**
+ * The native backend through which {@link PosixQuotaManager} calls
+ * quotactl(): it reads the dqblk structure of a single id with Q_GETQUOTA, and
+ * enumerates the ids which have quota information with Q_GETNEXTQUOTA.
+ * <p>
+ * The JNA bindings of {@link QuotactlBinding} are always available. On JDK 22
+ * and later a backend based on the Foreign Function &amp; Memory API is
+ * available too, see {@link QuotactlBackends#getDefault()}.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public interface QuotactlBackend {
+
+	/**
+	 * The number of values of the dqblk array filled by
+	 * {@link #getQuota(int, String, int, long[])}: the eight 64-bit fields of
+	 * the native structure, in declaration order, followed by dqb_valid.
+	 */
+	int DQBLK_VALUES = 9;
+
+	/**
+	 * The index of dqb_valid into the dqblk array.
+	 */
+	int DQB_VALID = 8;
+
+	/**
+	 * The number of values of the nextdqblk array filled by
+	 * {@link #getNextQuota(int, String, int, long[])}: the dqblk values
+	 * followed by the id the quota information belongs to.
+	 */
+	int NEXTDQBLK_VALUES = 10;
+
+	/**
+	 * The index of dqb_id into the nextdqblk array.
+	 */
+	int DQB_ID = 9;
+
+	/**
+	 * Get the name of the backend.
+	 *
+	 * @return The backend name.
+	 */
+	String getName();
+
+	/**
+	 * Call quotactl() with a command which returns a struct dqblk, without
+	 * raising exceptions.
+	 *
+	 * @param cmd
+	 *            The quotactl() command, see {@link QuotaCommand#qcmd(int, int)}
+	 * @param special
+	 *            The pathname of the (mounted) block special device
+	 * @param id
+	 *            The user, group or project id
+	 * @param dqblk
+	 *            The array of at least {@value #DQBLK_VALUES} values filled
+	 *            with the dqblk fields on success
+	 * @return 0 on success, the error code of quotactl() otherwise.
+	 */
+	int getQuota(int cmd, String special, int id, long[] dqblk);
+
+	/**
+	 * Call quotactl() with a command which returns a struct if_nextdqblk,
+	 * i.e. Q_GETNEXTQUOTA, without raising exceptions.
+	 *
+	 * @param cmd
+	 *            The quotactl() command, see {@link QuotaCommand#qcmd(int, int)}
+	 * @param special
+	 *            The pathname of the (mounted) block special device
+	 * @param id
+	 *            The first user, group or project id to look for
+	 * @param nextdqblk
+	 *            The array of at least {@value #NEXTDQBLK_VALUES} values filled
+	 *            on success with the dqblk fields of the first id greater than
+	 *            or equal to {@code id}, as unsigned, and with that id at
+	 *            {@value #DQB_ID}
+	 * @return 0 on success, ESRCH if there is no such id, the error code of
+	 *         quotactl() otherwise.
+	 */
+	int getNextQuota(int cmd, String special, int id, long[] nextdqblk);
+
+}
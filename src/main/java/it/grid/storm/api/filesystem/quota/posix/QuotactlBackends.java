@@ -0,0 +1,136 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import java.util.Locale;
+
+/**
+ * The selection of the {@link QuotactlBackend} used by
+ * {@link PosixQuotaManager}.
+ * <p>
+ * The default backend is read from the {@value #BACKEND_PROPERTY} system
+ * property, which accepts {@value #FOREIGN} or the name of a
+ * {@link QuotactlBinding} (case insensitive). If it's not set, the
+ * {@value #FOREIGN} backend is used when available, the default
+ * {@link QuotactlBinding} otherwise.
+ * <p>
+ * The {@value #FOREIGN} backend calls quotactl() through the Foreign Function
+ * &amp; Memory API, final since JDK 22. It's compiled only when building with
+ * JDK 22 or later, into the versioned section of the multi-release jar, and
+ * is loaded by reflection: on older JDKs, or if the native access is denied,
+ * the JNA bindings are used.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class QuotactlBackends {
+
+	/**
+	 * The system property used to choose the default backend.
+	 */
+	public static final String BACKEND_PROPERTY = "storm.quotactl.backend";
+
+	/**
+	 * The name of the Foreign Function &amp; Memory API backend.
+	 */
+	public static final String FOREIGN = "ffm";
+
+	/**
+	 * The first JDK feature release with the final Foreign Function &amp;
+	 * Memory API.
+	 */
+	private static final int FOREIGN_MIN_FEATURE = 22;
+
+	private static final String FOREIGN_CLASS_NAME = "it.grid.storm.api.filesystem.quota.posix.FfmQuotactlBackend";
+
+	private QuotactlBackends() {
+	}
+
+	/**
+	 * Lazily loaded Foreign Function &amp; Memory API backend.
+	 */
+	private static class ForeignHolder {
+
+		static final QuotactlBackend INSTANCE = loadForeign();
+	}
+
+	private static QuotactlBackend loadForeign() {
+
+		if (featureVersion() < FOREIGN_MIN_FEATURE) {
+			return null;
+		}
+		try {
+			return (QuotactlBackend) Class.forName(FOREIGN_CLASS_NAME).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The feature release of the running JDK: java.specification.version is
+	 * "1.8" up to JDK 8, then the bare feature number.
+	 */
+	private static int featureVersion() {
+
+		String version = System.getProperty("java.specification.version", "1.8");
+		if (version.startsWith("1.")) {
+			version = version.substring(2);
+		}
+		try {
+			return Integer.parseInt(version);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Check if the Foreign Function &amp; Memory API backend can be used.
+	 *
+	 * @return true if the running JDK and the jar support it.
+	 */
+	public static boolean isForeignAvailable() {
+		return ForeignHolder.INSTANCE != null;
+	}
+
+	/**
+	 * Get the Foreign Function &amp; Memory API backend.
+	 *
+	 * @return The backend.
+	 * @throws UnsupportedOperationException
+	 *             if it's not available, see {@link #isForeignAvailable()}.
+	 */
+	public static QuotactlBackend getForeign() {
+
+		if (ForeignHolder.INSTANCE == null) {
+			throw new UnsupportedOperationException(
+					"The " + FOREIGN + " quotactl backend requires JDK " + FOREIGN_MIN_FEATURE + " or later");
+		}
+		return ForeignHolder.INSTANCE;
+	}
+
+	/**
+	 * Get the default backend, as configured by the {@value #BACKEND_PROPERTY}
+	 * system property.
+	 *
+	 * @return The default backend.
+	 * @throws IllegalArgumentException
+	 *             if the system property names neither {@value #FOREIGN} nor
+	 *             a binding.
+	 * @throws UnsupportedOperationException
+	 *             if the system property asks for {@value #FOREIGN} and it's
+	 *             not available.
+	 */
+	public static QuotactlBackend getDefault() {
+
+		String name = System.getProperty(BACKEND_PROPERTY);
+		if (name == null) {
+			return isForeignAvailable() ? ForeignHolder.INSTANCE : QuotactlBinding.getDefault();
+		}
+		name = name.trim();
+		if (FOREIGN.equalsIgnoreCase(name)) {
+			return getForeign();
+		}
+		return QuotactlBinding.valueOf(name.toUpperCase(Locale.ROOT));
+	}
+
+}
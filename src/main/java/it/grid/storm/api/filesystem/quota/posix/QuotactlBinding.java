@@ -0,0 +1,221 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary.T_dqblk;
+import it.grid.storm.api.filesystem.quota.posix.CLibrary.T_nextdqblk;
+
+/**
+ * The JNA bindings through which {@link PosixQuotaManager} calls the standard
+ * C library quotactl().
+ * <p>
+ * The default binding is read from the {@value #BINDING_PROPERTY} system
+ * property, which accepts the names of the enum values (case insensitive). If
+ * it's not set, {@link #DIRECT} is used, unless the direct mapping cannot be
+ * registered on this platform.
+ * <p>
+ * Both bindings are also a {@link QuotactlBackend}, which reads the dqblk
+ * and if_nextdqblk structures into per-thread native buffers.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+public enum QuotactlBinding implements QuotactlBackend {
+
+	/**
+	 * JNA direct mapping: static native methods registered with
+	 * Native.register(), see {@link CLibraryDirect}.
+	 */
+	DIRECT {
+
+		@Override
+		void getQuota(int cmd, String special, int id, T_dqblk dqblk) throws LastErrorException {
+
+			CLibraryDirect.quotactl(cmd, special, id, dqblk.getPointer());
+			dqblk.readFields();
+		}
+
+		@Override
+		int quotactl(int cmd, Pointer special, int id, Pointer addr) {
+
+			return CLibraryDirect.quotactl(cmd, special, id, addr);
+		}
+	},
+
+	/**
+	 * JNA interface mapping: the {@link CLibrary#INSTANCE} proxy returned by
+	 * Native.loadLibrary().
+	 */
+	INTERFACE {
+
+		@Override
+		void getQuota(int cmd, String special, int id, T_dqblk dqblk) throws LastErrorException {
+
+			CLibrary.INSTANCE.quotactl(cmd, special, id, dqblk);
+		}
+
+		@Override
+		int quotactl(int cmd, Pointer special, int id, Pointer addr) {
+
+			return CLibrary.INSTANCE.quotactl(cmd, special, id, addr);
+		}
+	};
+
+	/**
+	 * The system property used to choose the default binding.
+	 */
+	public static final String BINDING_PROPERTY = "storm.quotactl.binding";
+
+	/**
+	 * The maximum number of block device pathnames kept encoded as C strings.
+	 */
+	private static final int MAX_SPECIALS = 64;
+
+	/**
+	 * Per-thread native dqblk buffer used by
+	 * {@link #getQuota(int, String, int, long[])} and
+	 * {@link #getQuota(int, String, int, MutableQuotaInfo, int)}.
+	 */
+	private static final ThreadLocal<Memory> SCRATCH_DQBLK = new ThreadLocal<Memory>() {
+
+		@Override
+		protected Memory initialValue() {
+			return new Memory(T_dqblk.SIZE);
+		}
+	};
+
+	/**
+	 * Per-thread native if_nextdqblk buffer used by
+	 * {@link #getNextQuota(int, String, int, long[])}.
+	 */
+	private static final ThreadLocal<Memory> SCRATCH_NEXTDQBLK = new ThreadLocal<Memory>() {
+
+		@Override
+		protected Memory initialValue() {
+			return new Memory(T_nextdqblk.SIZE);
+		}
+	};
+
+	/**
+	 * The C copies of the block device pathnames already used.
+	 */
+	private static final ConcurrentMap<String, Pointer> SPECIALS = new ConcurrentHashMap<String, Pointer>();
+
+	/**
+	 * Call quotactl() and fill the dqblk structure with the command result.
+	 */
+	abstract void getQuota(int cmd, String special, int id, T_dqblk dqblk) throws LastErrorException;
+
+	/**
+	 * Call quotactl() without raising exceptions: a non-zero exit code is
+	 * returned and the error code can be retrieved with
+	 * {@link com.sun.jna.Native#getLastError()}.
+	 */
+	abstract int quotactl(int cmd, Pointer special, int id, Pointer addr);
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getName()
+	 */
+	@Override
+	public String getName() {
+		return "jna-" + name().toLowerCase(Locale.ROOT);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getQuota(int, java.lang.String, int, long[])
+	 */
+	@Override
+	public int getQuota(int cmd, String special, int id, long[] dqblk) {
+
+		Memory buffer = SCRATCH_DQBLK.get();
+		if (quotactl(cmd, special(special), id, buffer) != 0) {
+			return Native.getLastError();
+		}
+		buffer.read(0, dqblk, 0, T_dqblk.LONG_FIELDS);
+		dqblk[DQB_VALID] = buffer.getInt(T_dqblk.DQB_VALID_OFFSET);
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getNextQuota(int, java.lang.String, int, long[])
+	 */
+	@Override
+	public int getNextQuota(int cmd, String special, int id, long[] nextdqblk) {
+
+		Memory buffer = SCRATCH_NEXTDQBLK.get();
+		if (quotactl(cmd, special(special), id, buffer) != 0) {
+			return Native.getLastError();
+		}
+		buffer.read(0, nextdqblk, 0, T_dqblk.LONG_FIELDS);
+		nextdqblk[DQB_VALID] = buffer.getInt(T_dqblk.DQB_VALID_OFFSET);
+		nextdqblk[DQB_ID] = buffer.getInt(T_nextdqblk.DQB_ID_OFFSET);
+		return 0;
+	}
+
+	/**
+	 * Call quotactl() into the per-thread native buffer and copy the selected
+	 * fields into the holder, reading them at their fixed offsets.
+	 *
+	 * @return 0 on success, the error code otherwise.
+	 */
+	int getQuota(int cmd, String special, int id, MutableQuotaInfo holder, int fields) {
+
+		Memory buffer = SCRATCH_DQBLK.get();
+		if (quotactl(cmd, special(special), id, buffer) != 0) {
+			return Native.getLastError();
+		}
+		holder.read(buffer, fields);
+		return 0;
+	}
+
+	/**
+	 * Get the C copy of a block device pathname. Up to {@value #MAX_SPECIALS}
+	 * pathnames are encoded once and shared by all the calls, the others are
+	 * encoded on each call.
+	 */
+	static Pointer special(String blockDevice) {
+
+		Pointer special = SPECIALS.get(blockDevice);
+		if (special == null) {
+			special = PosixQuotaManager.toNativeString(blockDevice);
+			if (SPECIALS.size() < MAX_SPECIALS) {
+				Pointer previous = SPECIALS.putIfAbsent(blockDevice, special);
+				if (previous != null) {
+					special = previous;
+				}
+			}
+		}
+		return special;
+	}
+
+	/**
+	 * Get the default binding, as configured by the {@value #BINDING_PROPERTY}
+	 * system property.
+	 * 
+	 * @return The default binding.
+	 * @throws IllegalArgumentException
+	 *             if the system property doesn't name a binding.
+	 */
+	public static QuotactlBinding getDefault() {
+
+		String name = System.getProperty(BINDING_PROPERTY);
+		if (name == null) {
+			return CLibraryDirect.isAvailable() ? DIRECT : INTERFACE;
+		}
+		return valueOf(name.trim().toUpperCase(Locale.ROOT));
+	}
+
+}
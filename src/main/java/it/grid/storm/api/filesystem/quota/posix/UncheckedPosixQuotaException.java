@@ -0,0 +1,35 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+/**
+ * Wraps a {@link PosixQuotaException} with an unchecked exception. It's raised
+ * where a checked exception cannot be thrown, for example while traversing a
+ * stream of quota information.
+ * 
+ * @author Enrico Vianello
+ *
+ */
+public class UncheckedPosixQuotaException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * UncheckedPosixQuotaException constructor.
+	 * 
+	 * @param cause
+	 *            The wrapped {@link PosixQuotaException}
+	 */
+	public UncheckedPosixQuotaException(PosixQuotaException cause) {
+		super(cause.getMessage(), cause);
+	}
+
+	/**
+	 * Get the wrapped exception.
+	 * 
+	 * @return The wrapped {@link PosixQuotaException}
+	 */
+	@Override
+	public PosixQuotaException getCause() {
+		return (PosixQuotaException) super.getCause();
+	}
+
+}
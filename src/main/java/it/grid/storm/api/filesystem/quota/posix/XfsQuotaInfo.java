@@ -0,0 +1,366 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import com.sun.jna.Pointer;
+
+/**
+ * The quota information of an id on an XFS filesystem, copied from the
+ * fs_disk_quota structure defined into linux/dqblk_xfs.h and returned by
+ * quotactl() with Q_XGETQUOTA.
+ * <p>
+ * Unlike the generic dqblk, block counts and limits are all expressed in
+ * 512 bytes basic blocks, see {@link #BBSIZE}, and real-time subvolume
+ * limits and usage are reported too.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class XfsQuotaInfo {
+
+	/**
+	 * The size in bytes of an XFS basic block.
+	 */
+	public static final int BBSIZE = 512;
+
+	/**
+	 * The size in bytes of the native fs_disk_quota structure.
+	 */
+	static final int SIZE = 112;
+
+	/*
+	 * Flags in d_fieldmask that indicate the values the structure carries.
+	 */
+
+	/**
+	 * Flag enabled if the inode soft limit is set.
+	 */
+	public static final int FS_DQ_ISOFT = 1 << 0;
+
+	/**
+	 * Flag enabled if the inode hard limit is set.
+	 */
+	public static final int FS_DQ_IHARD = 1 << 1;
+
+	/**
+	 * Flag enabled if the block soft limit is set.
+	 */
+	public static final int FS_DQ_BSOFT = 1 << 2;
+
+	/**
+	 * Flag enabled if the block hard limit is set.
+	 */
+	public static final int FS_DQ_BHARD = 1 << 3;
+
+	/**
+	 * Flag enabled if the block timer is set.
+	 */
+	public static final int FS_DQ_BTIMER = 1 << 6;
+
+	/**
+	 * Flag enabled if the inode timer is set.
+	 */
+	public static final int FS_DQ_ITIMER = 1 << 7;
+
+	/**
+	 * Flag enabled if the block count is set.
+	 */
+	public static final int FS_DQ_BCOUNT = 1 << 12;
+
+	/**
+	 * Flag enabled if the inode count is set.
+	 */
+	public static final int FS_DQ_ICOUNT = 1 << 13;
+
+	/**
+	 * Flag of d_fieldmask set if the timers are 40 bits wide, their upper 8
+	 * bits being into the *_hi fields.
+	 */
+	static final int FS_DQ_BIGTIME = 1 << 15;
+
+	/*
+	 * Flags in d_flags that indicate the quota type.
+	 */
+
+	/**
+	 * Flag enabled for user quotas.
+	 */
+	public static final int FS_USER_QUOTA = 1 << 0;
+
+	/**
+	 * Flag enabled for project quotas.
+	 */
+	public static final int FS_PROJ_QUOTA = 1 << 1;
+
+	/**
+	 * Flag enabled for group quotas.
+	 */
+	public static final int FS_GROUP_QUOTA = 1 << 2;
+
+	private final int flags;
+	private final int fieldmask;
+	private final int id;
+	private final long blkHardLimit;
+	private final long blkSoftLimit;
+	private final long inoHardLimit;
+	private final long inoSoftLimit;
+	private final long bcount;
+	private final long icount;
+	private final long itimer;
+	private final long btimer;
+	private final int iwarns;
+	private final int bwarns;
+	private final long rtbHardLimit;
+	private final long rtbSoftLimit;
+	private final long rtbcount;
+	private final long rtbtimer;
+	private final int rtbwarns;
+
+	/**
+	 * Build the object by copying the fields of a native fs_disk_quota
+	 * structure.
+	 *
+	 * @param p
+	 *            The native memory holding the structure
+	 */
+	XfsQuotaInfo(Pointer p) {
+
+		flags = p.getByte(1) & 0xff;
+		fieldmask = p.getShort(2) & 0xffff;
+		boolean bigtime = (fieldmask & FS_DQ_BIGTIME) != 0;
+		id = p.getInt(4);
+		blkHardLimit = p.getLong(8);
+		blkSoftLimit = p.getLong(16);
+		inoHardLimit = p.getLong(24);
+		inoSoftLimit = p.getLong(32);
+		bcount = p.getLong(40);
+		icount = p.getLong(48);
+		itimer = timer(p.getInt(56), p.getByte(68), bigtime);
+		btimer = timer(p.getInt(60), p.getByte(69), bigtime);
+		iwarns = p.getShort(64) & 0xffff;
+		bwarns = p.getShort(66) & 0xffff;
+		rtbHardLimit = p.getLong(72);
+		rtbSoftLimit = p.getLong(80);
+		rtbcount = p.getLong(88);
+		rtbtimer = timer(p.getInt(96), p.getByte(70), bigtime);
+		rtbwarns = p.getShort(100) & 0xffff;
+	}
+
+	private static long timer(int lo, byte hi, boolean bigtime) {
+		return bigtime ? ((long) (hi & 0xff) << 32) | (lo & 0xffffffffL) : lo;
+	}
+
+	/**
+	 * @return The quota type, one of the FS_*_QUOTA flags.
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return The FS_DQ_* flags of d_fieldmask.
+	 */
+	public int getFieldMask() {
+		return fieldmask;
+	}
+
+	/**
+	 * @return The user, group or project id.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return The absolute limit on disk blocks, in basic blocks.
+	 */
+	public long getBlockHardLimit() {
+		return blkHardLimit;
+	}
+
+	/**
+	 * @return The preferred limit on disk blocks, in basic blocks.
+	 */
+	public long getBlockSoftLimit() {
+		return blkSoftLimit;
+	}
+
+	/**
+	 * @return The maximum number of allocated inodes.
+	 */
+	public long getINodesHardLimit() {
+		return inoHardLimit;
+	}
+
+	/**
+	 * @return The preferred inode limit.
+	 */
+	public long getINodesSoftLimit() {
+		return inoSoftLimit;
+	}
+
+	/**
+	 * @return The number of disk blocks owned, in basic blocks.
+	 */
+	public long getBlockCount() {
+		return bcount;
+	}
+
+	/**
+	 * @return The number of disk bytes owned.
+	 */
+	public long getBlockUsage() {
+		return bcount * BBSIZE;
+	}
+
+	/**
+	 * @return The number of inodes owned.
+	 */
+	public long getINodesUsage() {
+		return icount;
+	}
+
+	/**
+	 * @return The time limit for excessive files, zero if within the inode
+	 *         limits.
+	 */
+	public long getINodesTimeLimit() {
+		return itimer;
+	}
+
+	/**
+	 * @return The time limit for excessive disk use, zero if within the block
+	 *         limits.
+	 */
+	public long getBlockTimeLimit() {
+		return btimer;
+	}
+
+	/**
+	 * @return The number of warnings issued for the number of inodes.
+	 */
+	public int getINodesWarnings() {
+		return iwarns;
+	}
+
+	/**
+	 * @return The number of warnings issued for the disk blocks.
+	 */
+	public int getBlockWarnings() {
+		return bwarns;
+	}
+
+	/**
+	 * @return The absolute limit on real-time blocks, in basic blocks.
+	 */
+	public long getRealtimeBlockHardLimit() {
+		return rtbHardLimit;
+	}
+
+	/**
+	 * @return The preferred limit on real-time blocks, in basic blocks.
+	 */
+	public long getRealtimeBlockSoftLimit() {
+		return rtbSoftLimit;
+	}
+
+	/**
+	 * @return The number of real-time blocks owned, in basic blocks.
+	 */
+	public long getRealtimeBlockCount() {
+		return rtbcount;
+	}
+
+	/**
+	 * @return The time limit for excessive real-time disk use, zero if within
+	 *         the real-time block limits.
+	 */
+	public long getRealtimeBlockTimeLimit() {
+		return rtbtimer;
+	}
+
+	/**
+	 * @return The number of warnings issued for the real-time blocks.
+	 */
+	public int getRealtimeBlockWarnings() {
+		return rtbwarns;
+	}
+
+	/**
+	 * Get the QIF_* flags of the generic values carried by the structure,
+	 * derived from d_fieldmask. Q_XGETQUOTA fills all the values but sets no
+	 * value flag into d_fieldmask, which is used by Q_XSETQLIM to select the
+	 * values to set: a mask without value flags means all the values.
+	 *
+	 * @return The bit mask of QIF_* constants.
+	 */
+	public int getValid() {
+
+		int valid = 0;
+		if ((fieldmask & (FS_DQ_BSOFT | FS_DQ_BHARD)) != 0) {
+			valid |= PosixQuotaInfo.QIF_BLIMITS;
+		}
+		if ((fieldmask & FS_DQ_BCOUNT) != 0) {
+			valid |= PosixQuotaInfo.QIF_SPACE;
+		}
+		if ((fieldmask & (FS_DQ_ISOFT | FS_DQ_IHARD)) != 0) {
+			valid |= PosixQuotaInfo.QIF_ILIMITS;
+		}
+		if ((fieldmask & FS_DQ_ICOUNT) != 0) {
+			valid |= PosixQuotaInfo.QIF_INODES;
+		}
+		if ((fieldmask & FS_DQ_BTIMER) != 0) {
+			valid |= PosixQuotaInfo.QIF_BTIME;
+		}
+		if ((fieldmask & FS_DQ_ITIMER) != 0) {
+			valid |= PosixQuotaInfo.QIF_ITIME;
+		}
+		return valid == 0 ? PosixQuotaInfo.QIF_ALL : valid;
+	}
+
+	/**
+	 * Copy the generic values into a dqblk array, see
+	 * {@link QuotactlBackend#getQuota(int, String, int, long[])}: block
+	 * limits in {@link PosixQuotaInfo#QIF_DQBLKSIZE} blocks and block usage in
+	 * bytes. Real-time values are left out.
+	 */
+	void copyTo(long[] dqblk) {
+
+		dqblk[0] = blkHardLimit * BBSIZE / PosixQuotaInfo.QIF_DQBLKSIZE;
+		dqblk[1] = blkSoftLimit * BBSIZE / PosixQuotaInfo.QIF_DQBLKSIZE;
+		dqblk[2] = getBlockUsage();
+		dqblk[3] = inoHardLimit;
+		dqblk[4] = inoSoftLimit;
+		dqblk[5] = icount;
+		dqblk[6] = btimer;
+		dqblk[7] = itimer;
+		dqblk[QuotactlBackend.DQB_VALID] = getValid();
+	}
+
+	/**
+	 * Convert to the generic quota information, as returned by
+	 * {@link PosixQuotaManager#getGroupQuota(String, int)}, see
+	 * {@link #copyTo(long[])}.
+	 *
+	 * @return The generic quota information.
+	 */
+	public PosixQuotaInfo toPosixQuotaInfo() {
+
+		long[] dqblk = new long[QuotactlBackend.DQBLK_VALUES];
+		copyTo(dqblk);
+		return new PosixQuotaInfo(dqblk);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "XfsQuotaInfo [flags=" + flags + ", fieldmask=" + fieldmask + ", id=" + Integer.toUnsignedString(id) + ", blkHardLimit="
+				+ blkHardLimit + ", blkSoftLimit=" + blkSoftLimit + ", inoHardLimit=" + inoHardLimit
+				+ ", inoSoftLimit=" + inoSoftLimit + ", bcount=" + bcount + ", icount=" + icount + ", itimer="
+				+ itimer + ", btimer=" + btimer + ", rtbHardLimit=" + rtbHardLimit + ", rtbSoftLimit="
+				+ rtbSoftLimit + ", rtbcount=" + rtbcount + ", rtbtimer=" + rtbtimer + "]";
+	}
+
+}
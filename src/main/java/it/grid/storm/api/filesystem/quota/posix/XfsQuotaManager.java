@@ -0,0 +1,169 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * XfsQuotaManager allows to access the quota information on an XFS filesystem
+ * through the XFS specific quotactl() commands, which are served by XFS
+ * directly instead of being translated by the generic VFS quota layer:
+ * <ul>
+ * <li>Q_XGETQUOTA returns limits and usage of an id, real-time subvolume
+ * included, in basic blocks, see {@link XfsQuotaInfo};</li>
+ * <li>Q_XGETQSTATV returns the filesystem-wide quota state, see
+ * {@link XfsQuotaState}.</li>
+ * </ul>
+ * Note that XFS reports ENOENT, not ESRCH, for an id without quota
+ * information.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class XfsQuotaManager {
+
+	/**
+	 * The JNA binding used to call quotactl().
+	 */
+	private final QuotactlBinding binding;
+
+	/**
+	 * Build an XfsQuotaManager which calls quotactl() through the default
+	 * binding, see {@link QuotactlBinding#getDefault()}.
+	 */
+	public XfsQuotaManager() {
+		this(QuotactlBinding.getDefault());
+	}
+
+	/**
+	 * Build an XfsQuotaManager which calls quotactl() through the specified
+	 * binding.
+	 *
+	 * @param binding
+	 *            The JNA binding used to call quotactl()
+	 */
+	public XfsQuotaManager(QuotactlBinding binding) {
+		this.binding = binding;
+	}
+
+	/**
+	 * Call quotactl() with Q_XGETQUOTA to retrieve disk quota limits and
+	 * current usage for an id.
+	 *
+	 * @param type
+	 *            The quota type, {@link QuotaCommand#USRQUOTA},
+	 *            {@link QuotaCommand#GRPQUOTA} or {@link QuotaCommand#PRJQUOTA}
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device of the XFS
+	 *            filesystem
+	 * @param id
+	 *            The user, group or project id
+	 * @return The disk quota limits and current usage of the id.
+	 * @throws PosixQuotaException
+	 *             Exception representing the problem occurred retrieving the
+	 *             quota information.
+	 */
+	public XfsQuotaInfo getQuota(int type, String blockDevice, int id) throws PosixQuotaException {
+
+		Memory fsDiskQuota = new Memory(XfsQuotaInfo.SIZE);
+		int errNo = getQuota(type, PosixQuotaManager.toNativeString(blockDevice), id, fsDiskQuota);
+		if (errNo != 0) {
+			throw PosixQuotaManager.newQuotaException(blockDevice, idType(type), id, new LastErrorException(errNo));
+		}
+		return new XfsQuotaInfo(fsDiskQuota);
+	}
+
+	/**
+	 * Call quotactl() with Q_XGETQUOTA without raising exceptions.
+	 *
+	 * @return 0 on success, the error code otherwise.
+	 */
+	int getQuota(int type, Pointer special, int id, Memory fsDiskQuota) {
+
+		fsDiskQuota.clear();
+		if (binding.quotactl(QuotaCommand.qcmd(QuotaCommand.Q_XGETQUOTA, type), special, id, fsDiskQuota) != 0) {
+			return Native.getLastError();
+		}
+		return 0;
+	}
+
+	/**
+	 * Call quotactl() with Q_XGETNEXTQUOTA, to retrieve disk quota limits and
+	 * current usage of the first id greater than or equal to the specified
+	 * one, without raising exceptions.
+	 *
+	 * @return 0 on success, ENOENT if there is no such id, the error code
+	 *         otherwise.
+	 */
+	int getNextQuota(int type, Pointer special, int id, Memory fsDiskQuota) {
+
+		fsDiskQuota.clear();
+		if (binding.quotactl(QuotaCommand.qcmd(QuotaCommand.Q_XGETNEXTQUOTA, type), special, id,
+				fsDiskQuota) != 0) {
+			return Native.getLastError();
+		}
+		return 0;
+	}
+
+	/**
+	 * @see #getQuota(int, String, int)
+	 */
+	public XfsQuotaInfo getUserQuota(String blockDevice, int uid) throws PosixQuotaException {
+		return getQuota(QuotaCommand.USRQUOTA, blockDevice, uid);
+	}
+
+	/**
+	 * @see #getQuota(int, String, int)
+	 */
+	public XfsQuotaInfo getGroupQuota(String blockDevice, int gid) throws PosixQuotaException {
+		return getQuota(QuotaCommand.GRPQUOTA, blockDevice, gid);
+	}
+
+	/**
+	 * @see #getQuota(int, String, int)
+	 */
+	public XfsQuotaInfo getProjectQuota(String blockDevice, int projid) throws PosixQuotaException {
+		return getQuota(QuotaCommand.PRJQUOTA, blockDevice, projid);
+	}
+
+	/**
+	 * Call quotactl() with Q_XGETQSTATV to retrieve the quota state of an XFS
+	 * filesystem.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device of the XFS
+	 *            filesystem
+	 * @return The filesystem-wide quota state.
+	 * @throws PosixQuotaException
+	 *             Exception representing the problem occurred retrieving the
+	 *             quota state.
+	 */
+	public XfsQuotaState getQuotaState(String blockDevice) throws PosixQuotaException {
+
+		Memory statv = new Memory(XfsQuotaState.SIZE);
+		statv.clear();
+		statv.setByte(0, XfsQuotaState.FS_QSTATV_VERSION1);
+		Pointer special = PosixQuotaManager.toNativeString(blockDevice);
+		if (binding.quotactl(QuotaCommand.qcmd(QuotaCommand.Q_XGETQSTATV, QuotaCommand.USRQUOTA), special, 0,
+				statv) != 0) {
+			int errNo = Native.getLastError();
+			throw new PosixQuotaException(String.format("Unable to load quota state for device %s: [%d] %s",
+					blockDevice, errNo, PosixQuotaManager.getErrnoMsg(errNo)), new LastErrorException(errNo));
+		}
+		return new XfsQuotaState(statv);
+	}
+
+	private static String idType(int type) {
+
+		switch (type) {
+		case QuotaCommand.USRQUOTA:
+			return "uid";
+		case QuotaCommand.GRPQUOTA:
+			return "gid";
+		default:
+			return "project id";
+		}
+	}
+
+}
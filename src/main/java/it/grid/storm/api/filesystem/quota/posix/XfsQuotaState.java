@@ -0,0 +1,225 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import com.sun.jna.Pointer;
+
+/**
+ * The filesystem-wide quota state of an XFS filesystem, copied from the
+ * fs_quota_statv structure defined into linux/dqblk_xfs.h and returned by
+ * quotactl() with Q_XGETQSTATV: which quota types are accounted and
+ * enforced, the quota files and the default grace periods.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class XfsQuotaState {
+
+	/**
+	 * The size in bytes of the native fs_quota_statv structure.
+	 */
+	static final int SIZE = 160;
+
+	/**
+	 * The version of fs_quota_statv set into qs_version before the call.
+	 */
+	static final byte FS_QSTATV_VERSION1 = 1;
+
+	/*
+	 * Flags in qs_flags.
+	 */
+
+	/**
+	 * Flag enabled if user quota accounting is on.
+	 */
+	public static final int FS_QUOTA_UDQ_ACCT = 1 << 0;
+
+	/**
+	 * Flag enabled if user quota limits are enforced.
+	 */
+	public static final int FS_QUOTA_UDQ_ENFD = 1 << 1;
+
+	/**
+	 * Flag enabled if group quota accounting is on.
+	 */
+	public static final int FS_QUOTA_GDQ_ACCT = 1 << 2;
+
+	/**
+	 * Flag enabled if group quota limits are enforced.
+	 */
+	public static final int FS_QUOTA_GDQ_ENFD = 1 << 3;
+
+	/**
+	 * Flag enabled if project quota accounting is on.
+	 */
+	public static final int FS_QUOTA_PDQ_ACCT = 1 << 4;
+
+	/**
+	 * Flag enabled if project quota limits are enforced.
+	 */
+	public static final int FS_QUOTA_PDQ_ENFD = 1 << 5;
+
+	/* offsets of the fs_qfilestatv structures, by quota type */
+	private static final int[] QFILE_OFFSETS = { 8, 32, 56 };
+
+	private final int version;
+	private final int flags;
+	private final long incoreDquots;
+	private final long[] qfileInode = new long[3];
+	private final long[] qfileBlocks = new long[3];
+	private final long[] qfileExtents = new long[3];
+	private final int blockTimeLimit;
+	private final int inodeTimeLimit;
+	private final int realtimeBlockTimeLimit;
+	private final int blockWarnLimit;
+	private final int inodeWarnLimit;
+
+	/**
+	 * Build the object by copying the fields of a native fs_quota_statv
+	 * structure.
+	 *
+	 * @param p
+	 *            The native memory holding the structure
+	 */
+	XfsQuotaState(Pointer p) {
+
+		version = p.getByte(0);
+		flags = p.getShort(2) & 0xffff;
+		incoreDquots = p.getInt(4) & 0xffffffffL;
+		for (int type = 0; type < QFILE_OFFSETS.length; type++) {
+			int offset = QFILE_OFFSETS[type];
+			qfileInode[type] = p.getLong(offset);
+			qfileBlocks[type] = p.getLong(offset + 8);
+			qfileExtents[type] = p.getInt(offset + 16) & 0xffffffffL;
+		}
+		blockTimeLimit = p.getInt(80);
+		inodeTimeLimit = p.getInt(84);
+		realtimeBlockTimeLimit = p.getInt(88);
+		blockWarnLimit = p.getShort(92) & 0xffff;
+		inodeWarnLimit = p.getShort(94) & 0xffff;
+	}
+
+	private static int checkType(int type) {
+		if (type < QuotaCommand.USRQUOTA || type > QuotaCommand.PRJQUOTA) {
+			throw new IllegalArgumentException("Invalid quota type " + type);
+		}
+		return type;
+	}
+
+	/**
+	 * @return The version of the structure returned by the kernel.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The bit mask of FS_QUOTA_* constants.
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Check if the usage of a quota type is accounted.
+	 *
+	 * @param type
+	 *            The quota type, {@link QuotaCommand#USRQUOTA},
+	 *            {@link QuotaCommand#GRPQUOTA} or {@link QuotaCommand#PRJQUOTA}
+	 * @return true if the usage is accounted, false otherwise.
+	 */
+	public boolean isAccounting(int type) {
+		return (flags & (FS_QUOTA_UDQ_ACCT << (2 * checkType(type)))) != 0;
+	}
+
+	/**
+	 * Check if the limits of a quota type are enforced.
+	 *
+	 * @param type
+	 *            The quota type
+	 * @return true if the limits are enforced, false otherwise.
+	 */
+	public boolean isEnforced(int type) {
+		return (flags & (FS_QUOTA_UDQ_ENFD << (2 * checkType(type)))) != 0;
+	}
+
+	/**
+	 * @return The number of dquots in core.
+	 */
+	public long getIncoreDquots() {
+		return incoreDquots;
+	}
+
+	/**
+	 * @param type
+	 *            The quota type
+	 * @return The inode number of the quota file of the type.
+	 */
+	public long getQuotaFileInode(int type) {
+		return qfileInode[checkType(type)];
+	}
+
+	/**
+	 * @param type
+	 *            The quota type
+	 * @return The size of the quota file of the type, in basic blocks.
+	 */
+	public long getQuotaFileBlocks(int type) {
+		return qfileBlocks[checkType(type)];
+	}
+
+	/**
+	 * @param type
+	 *            The quota type
+	 * @return The number of extents of the quota file of the type.
+	 */
+	public long getQuotaFileExtents(int type) {
+		return qfileExtents[checkType(type)];
+	}
+
+	/**
+	 * @return The default grace period for blocks, in seconds.
+	 */
+	public int getBlockTimeLimit() {
+		return blockTimeLimit;
+	}
+
+	/**
+	 * @return The default grace period for inodes, in seconds.
+	 */
+	public int getINodesTimeLimit() {
+		return inodeTimeLimit;
+	}
+
+	/**
+	 * @return The default grace period for real-time blocks, in seconds.
+	 */
+	public int getRealtimeBlockTimeLimit() {
+		return realtimeBlockTimeLimit;
+	}
+
+	/**
+	 * @return The maximum number of warnings for blocks.
+	 */
+	public int getBlockWarnLimit() {
+		return blockWarnLimit;
+	}
+
+	/**
+	 * @return The maximum number of warnings for inodes.
+	 */
+	public int getINodesWarnLimit() {
+		return inodeWarnLimit;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "XfsQuotaState [version=" + version + ", flags=" + Integer.toBinaryString(flags) + ", incoreDquots="
+				+ incoreDquots + ", blockTimeLimit=" + blockTimeLimit + ", inodeTimeLimit=" + inodeTimeLimit
+				+ ", realtimeBlockTimeLimit=" + realtimeBlockTimeLimit + "]";
+	}
+
+}
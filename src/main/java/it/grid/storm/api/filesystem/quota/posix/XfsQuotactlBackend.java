@@ -0,0 +1,98 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import com.sun.jna.Memory;
+
+/**
+ * A {@link QuotactlBackend} which serves the generic commands through the XFS
+ * specific ones of an {@link XfsQuotaManager}: Q_GETQUOTA through
+ * Q_XGETQUOTA and Q_GETNEXTQUOTA through Q_XGETNEXTQUOTA, for the quota type
+ * of the command. The fs_disk_quota structures are converted into dqblk
+ * values, see {@link XfsQuotaInfo#copyTo(long[])}, and the ENOENT XFS reports
+ * for an id without quota information into the ESRCH of the generic
+ * commands.
+ *
+ * @author Enrico Vianello
+ *
+ */
+class XfsQuotactlBackend implements QuotactlBackend {
+
+	/**
+	 * Per-thread native fs_disk_quota buffer.
+	 */
+	private static final ThreadLocal<Memory> SCRATCH_FS_DISK_QUOTA = new ThreadLocal<Memory>() {
+
+		@Override
+		protected Memory initialValue() {
+			return new Memory(XfsQuotaInfo.SIZE);
+		}
+	};
+
+	private static final int TYPEMASK = 0x00ff;
+
+	private final XfsQuotaManager xfs;
+
+	/**
+	 * XfsQuotactlBackend constructor.
+	 *
+	 * @param xfs
+	 *            The manager of the XFS specific commands
+	 */
+	XfsQuotactlBackend(XfsQuotaManager xfs) {
+		this.xfs = xfs;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getName()
+	 */
+	@Override
+	public String getName() {
+		return "xfs";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getQuota(int, java.lang.String, int, long[])
+	 */
+	@Override
+	public int getQuota(int cmd, String special, int id, long[] dqblk) {
+
+		Memory buffer = SCRATCH_FS_DISK_QUOTA.get();
+		int errNo = xfs.getQuota(cmd & TYPEMASK, QuotactlBinding.special(special), id, buffer);
+		if (errNo != 0) {
+			return toGenericErrNo(errNo);
+		}
+		new XfsQuotaInfo(buffer).copyTo(dqblk);
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getNextQuota(int, java.lang.String, int, long[])
+	 */
+	@Override
+	public int getNextQuota(int cmd, String special, int id, long[] nextdqblk) {
+
+		Memory buffer = SCRATCH_FS_DISK_QUOTA.get();
+		int errNo = xfs.getNextQuota(cmd & TYPEMASK, QuotactlBinding.special(special), id, buffer);
+		if (errNo != 0) {
+			return toGenericErrNo(errNo);
+		}
+		XfsQuotaInfo info = new XfsQuotaInfo(buffer);
+		info.copyTo(nextdqblk);
+		nextdqblk[DQB_ID] = info.getId();
+		return 0;
+	}
+
+	/**
+	 * XFS reports ENOENT where the generic commands report ESRCH: the id has
+	 * no quota information.
+	 */
+	private static int toGenericErrNo(int errNo) {
+		return errNo == ErrNo.ENOENT ? ErrNo.ESRCH : errNo;
+	}
+
+}
@@ -0,0 +1,182 @@
+package it.grid.storm.api.filesystem.quota.posix.aggregate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+
+/**
+ * The outcome of a {@link QuotaAggregator#aggregate(Collection)}: the batch
+ * read of each block device and the totals of each Virtual Organization.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class AggregatedQuota {
+
+	private final Map<String, PosixQuotaBatch> batches;
+	private final Map<String, Long> deviceNanos;
+	private final Map<String, Map<Integer, Integer>> indexes = new HashMap<String, Map<Integer, Integer>>();
+	private final Map<String, VoQuotaTotal> totals = new LinkedHashMap<String, VoQuotaTotal>();
+	private final long elapsedNanos;
+
+	AggregatedQuota(Map<String, PosixQuotaBatch> batches, Map<String, Long> deviceNanos,
+			Collection<StorageArea> areas, long elapsedNanos) {
+
+		this.batches = Collections.unmodifiableMap(batches);
+		this.deviceNanos = deviceNanos;
+		this.elapsedNanos = elapsedNanos;
+		for (PosixQuotaBatch batch : batches.values()) {
+			Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+			for (int i = 0; i < batch.size(); i++) {
+				index.put(batch.getGid(i), i);
+			}
+			indexes.put(batch.getBlockDevice(), index);
+		}
+
+		Map<String, Set<GroupQuotaKey>> counted = new HashMap<String, Set<GroupQuotaKey>>();
+		for (StorageArea area : areas) {
+			VoQuotaTotal total = totals.get(area.getVo());
+			if (total == null) {
+				total = new VoQuotaTotal(area.getVo());
+				totals.put(area.getVo(), total);
+				counted.put(area.getVo(), new HashSet<GroupQuotaKey>());
+			}
+			GroupQuotaKey key = area.getKey();
+			/* a pair shared by two areas of the same VO is counted once */
+			if (counted.get(area.getVo()).add(key)) {
+				total.add(batches.get(key.getBlockDevice()), index(key));
+			}
+		}
+	}
+
+	private int index(GroupQuotaKey key) {
+
+		Map<Integer, Integer> index = indexes.get(key.getBlockDevice());
+		Integer i = index == null ? null : index.get(key.getGid());
+		if (i == null) {
+			throw new IllegalArgumentException(key + " has not been aggregated");
+		}
+		return i;
+	}
+
+	/**
+	 * Get the block devices read.
+	 *
+	 * @return The block devices, in the order of their first storage area.
+	 */
+	public Set<String> getBlockDevices() {
+		return batches.keySet();
+	}
+
+	/**
+	 * Get the batch read of a block device, with one record per distinct gid
+	 * of its storage areas. The gids of a device which didn't answer in time
+	 * fail with ETIMEDOUT, the ones of a device whose worker was saturated
+	 * with EAGAIN.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The batch, or null if no storage area is on the device.
+	 */
+	public PosixQuotaBatch getBatch(String blockDevice) {
+		return batches.get(blockDevice);
+	}
+
+	/**
+	 * Get the time taken to read a block device, queue time excluded.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The time in nanoseconds, -1 if the read didn't complete in time.
+	 */
+	public long getDeviceElapsedNanos(String blockDevice) {
+
+		Long nanos = deviceNanos.get(blockDevice);
+		return nanos == null ? -1 : nanos;
+	}
+
+	/**
+	 * Get the error code of the read of a storage area.
+	 *
+	 * @param area
+	 *            A storage area of the aggregation
+	 * @return 0 on success, the error code otherwise.
+	 */
+	public int getErrorCode(StorageArea area) {
+		return batches.get(area.getBlockDevice()).getErrorCode(index(area.getKey()));
+	}
+
+	/**
+	 * Get the quota information of a storage area.
+	 *
+	 * @param area
+	 *            A storage area of the aggregation
+	 * @return The quota information, or null if its read failed.
+	 */
+	public PosixQuotaInfo getQuotaInfo(StorageArea area) {
+		return batches.get(area.getBlockDevice()).getQuotaInfo(index(area.getKey()));
+	}
+
+	/**
+	 * Get the totals of a Virtual Organization.
+	 *
+	 * @param vo
+	 *            The Virtual Organization
+	 * @return The totals, or null if no storage area belongs to the VO.
+	 */
+	public VoQuotaTotal getVoTotal(String vo) {
+		return totals.get(vo);
+	}
+
+	/**
+	 * Get the totals of all the Virtual Organizations.
+	 *
+	 * @return An unmodifiable map of the totals by VO.
+	 */
+	public Map<String, VoQuotaTotal> getVoTotals() {
+		return Collections.unmodifiableMap(totals);
+	}
+
+	/**
+	 * @return true if all the pairs have been read, or have no quota.
+	 */
+	public boolean isComplete() {
+
+		for (VoQuotaTotal total : totals.values()) {
+			if (!total.isComplete()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the wall-clock time of the aggregation: about the latency of the
+	 * slowest block device, not the sum of all of them.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "AggregatedQuota [devices=" + batches.keySet() + ", totals=" + totals.values() + ", elapsedNanos="
+				+ elapsedNanos + "]";
+	}
+
+}
@@ -0,0 +1,290 @@
+package it.grid.storm.api.filesystem.quota.posix.aggregate;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+
+/**
+ * Read the group quotas of many storage areas, spread over many block
+ * devices, and sum them by Virtual Organization.
+ * <p>
+ * The reads fan out across the block devices: each device has its own worker
+ * thread, which reads all the gids of the device with a single
+ * {@link PosixQuotaManager#getGroupQuotas(String, int[])} call, while the
+ * caller waits for all the devices at once. An aggregation takes about the
+ * latency of the slowest device rather than the sum of all of them, and the
+ * quota file of a device is never read by two threads of the aggregator.
+ * <p>
+ * The caller waits for at most {@code timeout}: the gids of a device which
+ * didn't answer in time fail with ETIMEDOUT, and the totals are computed
+ * from the other devices. A read stuck in the kernel keeps the worker of its
+ * device busy; once {@code queueCapacity} reads of the device are waiting
+ * behind it, the next ones fail at once with EAGAIN. A read which throws an
+ * unexpected exception fails the gids of its device with EIO, and doesn't
+ * affect the other devices.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotaAggregator {
+
+	/**
+	 * The default number of reads of a block device which can wait for its
+	 * worker.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+	/**
+	 * The batch read of a block device and its duration.
+	 */
+	private static final class DeviceRead {
+
+		final PosixQuotaBatch batch;
+		final long nanos;
+
+		DeviceRead(PosixQuotaBatch batch, long nanos) {
+			this.batch = batch;
+			this.nanos = nanos;
+		}
+	}
+
+	private final PosixQuotaManager pqm;
+	private final long timeoutNanos;
+	private final int queueCapacity;
+
+	private final ConcurrentMap<String, ThreadPoolExecutor> workers = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+
+	private final LongAdder aggregations = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * QuotaAggregator constructor.
+	 *
+	 * @param pqm
+	 *            The manager used to read the quota information
+	 * @param timeout
+	 *            The maximum time an aggregation waits for the block devices
+	 */
+	public QuotaAggregator(PosixQuotaManager pqm, Duration timeout) {
+		this(pqm, timeout, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * QuotaAggregator constructor.
+	 *
+	 * @param pqm
+	 *            The manager used to read the quota information
+	 * @param timeout
+	 *            The maximum time an aggregation waits for the block devices
+	 * @param queueCapacity
+	 *            The maximum number of reads of a block device waiting for its
+	 *            worker
+	 */
+	public QuotaAggregator(PosixQuotaManager pqm, Duration timeout, int queueCapacity) {
+
+		if (timeout.isNegative() || timeout.isZero()) {
+			throw new IllegalArgumentException("Invalid timeout " + timeout);
+		}
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("Invalid queue capacity " + queueCapacity);
+		}
+		this.pqm = pqm;
+		this.timeoutNanos = timeout.toNanos();
+		this.queueCapacity = queueCapacity;
+	}
+
+	private ThreadPoolExecutor worker(String blockDevice) {
+
+		ThreadPoolExecutor worker = workers.get(blockDevice);
+		if (worker == null) {
+			ThreadPoolExecutor created = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueCapacity),
+					new DaemonThreadFactory("quota-aggregator-" + blockDevice));
+			worker = workers.putIfAbsent(blockDevice, created);
+			if (worker == null) {
+				worker = created;
+			} else {
+				created.shutdown();
+			}
+		}
+		return worker;
+	}
+
+	/**
+	 * Read the group quotas of a set of storage areas, and sum them by
+	 * Virtual Organization.
+	 *
+	 * @param areas
+	 *            The storage areas
+	 * @return The batch read of each block device and the totals of each VO.
+	 */
+	public AggregatedQuota aggregate(Collection<StorageArea> areas) {
+
+		long start = System.nanoTime();
+		aggregations.increment();
+
+		Map<String, Set<Integer>> gidsByDevice = new LinkedHashMap<String, Set<Integer>>();
+		for (StorageArea area : areas) {
+			Set<Integer> gids = gidsByDevice.get(area.getBlockDevice());
+			if (gids == null) {
+				gids = new LinkedHashSet<Integer>();
+				gidsByDevice.put(area.getBlockDevice(), gids);
+			}
+			gids.add(area.getGid());
+		}
+
+		/* fork: one read per device */
+		Map<String, int[]> gidsOf = new LinkedHashMap<String, int[]>();
+		Map<String, Future<DeviceRead>> futures = new HashMap<String, Future<DeviceRead>>();
+		Map<String, PosixQuotaBatch> batches = new LinkedHashMap<String, PosixQuotaBatch>();
+		for (Map.Entry<String, Set<Integer>> e : gidsByDevice.entrySet()) {
+			final String blockDevice = e.getKey();
+			final int[] gids = toArray(e.getValue());
+			gidsOf.put(blockDevice, gids);
+			/* keeps the order of the devices */
+			batches.put(blockDevice, null);
+			try {
+				futures.put(blockDevice, worker(blockDevice).submit(new Callable<DeviceRead>() {
+
+					@Override
+					public DeviceRead call() {
+						long started = System.nanoTime();
+						PosixQuotaBatch batch = pqm.getGroupQuotas(blockDevice, gids);
+						return new DeviceRead(batch, System.nanoTime() - started);
+					}
+				}));
+			} catch (RejectedExecutionException ree) {
+				rejected.increment();
+				batches.put(blockDevice, PosixQuotaBatch.failure(blockDevice, gids, ErrNo.EAGAIN));
+			}
+		}
+
+		/* join: all the devices share the same deadline */
+		final long deadline = start + timeoutNanos;
+		Map<String, Long> deviceNanos = new HashMap<String, Long>();
+		for (Map.Entry<String, Future<DeviceRead>> e : futures.entrySet()) {
+			String blockDevice = e.getKey();
+			Future<DeviceRead> future = e.getValue();
+			try {
+				DeviceRead read = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				batches.put(blockDevice, read.batch);
+				deviceNanos.put(blockDevice, read.nanos);
+			} catch (TimeoutException te) {
+				/* only a read still waiting for the worker is dropped */
+				future.cancel(false);
+				timeouts.increment();
+				batches.put(blockDevice,
+						PosixQuotaBatch.failure(blockDevice, gidsOf.get(blockDevice), ErrNo.ETIMEDOUT));
+			} catch (InterruptedException ie) {
+				/* the devices not completed yet fail the same way */
+				future.cancel(false);
+				Thread.currentThread().interrupt();
+				batches.put(blockDevice, PosixQuotaBatch.failure(blockDevice, gidsOf.get(blockDevice), ErrNo.EINTR));
+			} catch (ExecutionException ee) {
+				failures.increment();
+				batches.put(blockDevice, PosixQuotaBatch.failure(blockDevice, gidsOf.get(blockDevice), ErrNo.EIO));
+			}
+		}
+		return new AggregatedQuota(batches, deviceNanos, areas, System.nanoTime() - start);
+	}
+
+	private static int[] toArray(Set<Integer> set) {
+
+		int[] array = new int[set.size()];
+		int i = 0;
+		for (Integer value : set) {
+			array[i++] = value;
+		}
+		return array;
+	}
+
+	/**
+	 * Stop the workers of all the block devices. Reads already running are
+	 * completed.
+	 */
+	public void shutdown() {
+
+		for (ThreadPoolExecutor worker : workers.values()) {
+			worker.shutdown();
+		}
+	}
+
+	/**
+	 * Get the number of reads of a block device running or waiting for its
+	 * worker.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The pending read count.
+	 */
+	public int getPendingCount(String blockDevice) {
+
+		ThreadPoolExecutor worker = workers.get(blockDevice);
+		return worker == null ? 0 : worker.getActiveCount() + worker.getQueue().size();
+	}
+
+	/**
+	 * @return The number of aggregations run so far.
+	 */
+	public long getAggregationCount() {
+		return aggregations.sum();
+	}
+
+	/**
+	 * @return The number of device reads which didn't complete in time.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return The number of device reads refused because the worker of the
+	 *         device was saturated.
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return The number of device reads which threw an unexpected
+	 *         exception.
+	 */
+	public long getFailureCount() {
+		return failures.sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QuotaAggregator [devices=" + workers.keySet() + ", aggregations=" + getAggregationCount()
+				+ ", timeouts=" + getTimeoutCount() + ", rejected=" + getRejectedCount() + ", failures="
+				+ getFailureCount() + "]";
+	}
+
+}
@@ -0,0 +1,118 @@
+package it.grid.storm.api.filesystem.quota.posix.aggregate;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+
+/**
+ * A storage area served by the node: the group quota of a gid on the block
+ * device of the area, accounted to a Virtual Organization.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class StorageArea {
+
+	private final String name;
+	private final String vo;
+	private final GroupQuotaKey key;
+
+	/**
+	 * StorageArea constructor.
+	 *
+	 * @param name
+	 *            The name of the storage area
+	 * @param vo
+	 *            The Virtual Organization the storage area belongs to
+	 * @param blockDevice
+	 *            The pathname of the block device of the storage area
+	 * @param gid
+	 *            The group id whose quota is the one of the storage area
+	 */
+	public StorageArea(String name, String vo, String blockDevice, int gid) {
+
+		if (name == null || vo == null || blockDevice == null) {
+			throw new IllegalArgumentException("Null name, VO or block device");
+		}
+		this.name = name;
+		this.vo = vo;
+		this.key = new GroupQuotaKey(blockDevice, gid);
+	}
+
+	/**
+	 * @return The name of the storage area.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The Virtual Organization the storage area belongs to.
+	 */
+	public String getVo() {
+		return vo;
+	}
+
+	/**
+	 * @return The pathname of the block device of the storage area.
+	 */
+	public String getBlockDevice() {
+		return key.getBlockDevice();
+	}
+
+	/**
+	 * @return The group id whose quota is the one of the storage area.
+	 */
+	public int getGid() {
+		return key.getGid();
+	}
+
+	/**
+	 * @return The (block device, gid) pair of the storage area.
+	 */
+	public GroupQuotaKey getKey() {
+		return key;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + name.hashCode();
+		result = prime * result + vo.hashCode();
+		result = prime * result + key.hashCode();
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof StorageArea)) {
+			return false;
+		}
+		StorageArea other = (StorageArea) obj;
+		return name.equals(other.name) && vo.equals(other.vo) && key.equals(other.key);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "StorageArea [name=" + name + ", vo=" + vo + ", blockDevice=" + key.getBlockDevice() + ", gid="
+				+ key.getGid() + "]";
+	}
+
+}
@@ -0,0 +1,149 @@
+package it.grid.storm.api.filesystem.quota.posix.aggregate;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+
+/**
+ * The quota of a Virtual Organization summed across its storage areas, and
+ * so across block devices. As in {@link PosixQuotaBatch} the block usage is
+ * in bytes and the block limits in
+ * {@link it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo#QIF_DQBLKSIZE}
+ * byte blocks.
+ * <p>
+ * A (block device, gid) pair shared by several storage areas of the VO is
+ * counted once. Pairs with no quota (ESRCH) add nothing to the totals; pairs
+ * which couldn't be read are only counted by {@link #getFailedCount()}, so
+ * the totals of an incomplete aggregation are lower bounds.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class VoQuotaTotal {
+
+	private final String vo;
+
+	private int pairs;
+	private int noQuota;
+	private int failed;
+	private long blockUsage;
+	private long blockHardLimit;
+	private long blockSoftLimit;
+	private long inodesUsage;
+	private long inodesHardLimit;
+	private long inodesSoftLimit;
+
+	VoQuotaTotal(String vo) {
+		this.vo = vo;
+	}
+
+	/**
+	 * Add the i-th record of a batch.
+	 */
+	void add(PosixQuotaBatch batch, int i) {
+
+		pairs++;
+		if (batch.isSuccess(i)) {
+			blockUsage += batch.getBlockUsage(i);
+			blockHardLimit += batch.getBlockHardLimit(i);
+			blockSoftLimit += batch.getBlockSoftLimit(i);
+			inodesUsage += batch.getINodesUsage(i);
+			inodesHardLimit += batch.getINodesHardLimit(i);
+			inodesSoftLimit += batch.getINodesSoftLimit(i);
+		} else if (batch.getErrorCode(i) == ErrNo.ESRCH) {
+			noQuota++;
+		} else {
+			failed++;
+		}
+	}
+
+	/**
+	 * @return The Virtual Organization.
+	 */
+	public String getVo() {
+		return vo;
+	}
+
+	/**
+	 * @return The number of distinct (block device, gid) pairs of the VO.
+	 */
+	public int getPairCount() {
+		return pairs;
+	}
+
+	/**
+	 * @return The number of pairs with no quota.
+	 */
+	public int getNoQuotaCount() {
+		return noQuota;
+	}
+
+	/**
+	 * @return The number of pairs which couldn't be read.
+	 */
+	public int getFailedCount() {
+		return failed;
+	}
+
+	/**
+	 * @return true if all the pairs have been read, or have no quota.
+	 */
+	public boolean isComplete() {
+		return failed == 0;
+	}
+
+	/**
+	 * @return The total block usage, in bytes.
+	 */
+	public long getBlockUsage() {
+		return blockUsage;
+	}
+
+	/**
+	 * @return The total block hard limit, in blocks.
+	 */
+	public long getBlockHardLimit() {
+		return blockHardLimit;
+	}
+
+	/**
+	 * @return The total block soft limit, in blocks.
+	 */
+	public long getBlockSoftLimit() {
+		return blockSoftLimit;
+	}
+
+	/**
+	 * @return The total number of allocated inodes.
+	 */
+	public long getINodesUsage() {
+		return inodesUsage;
+	}
+
+	/**
+	 * @return The total inodes hard limit.
+	 */
+	public long getINodesHardLimit() {
+		return inodesHardLimit;
+	}
+
+	/**
+	 * @return The total inodes soft limit.
+	 */
+	public long getINodesSoftLimit() {
+		return inodesSoftLimit;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "VoQuotaTotal [vo=" + vo + ", pairs=" + pairs + ", noQuota=" + noQuota + ", failed=" + failed
+				+ ", blockUsage=" + blockUsage + ", blockHardLimit=" + blockHardLimit + ", blockSoftLimit="
+				+ blockSoftLimit + ", inodesUsage=" + inodesUsage + ", inodesHardLimit=" + inodesHardLimit
+				+ ", inodesSoftLimit=" + inodesSoftLimit + "]";
+	}
+
+}
@@ -0,0 +1,227 @@
+package it.grid.storm.api.filesystem.quota.posix.async;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+
+/**
+ * An asynchronous front end of a {@link PosixQuotaManager}.
+ * <p>
+ * quotactl() is a blocking native call, which may stall on a busy quota file.
+ * Here it's run on a dedicated and bounded pool of platform threads, so that
+ * callers, virtual threads included, just wait for a
+ * {@link CompletableFuture}: a virtual thread waiting for it unmounts from its
+ * carrier, while it would pin the carrier for the whole native call otherwise.
+ * No lock is held around blocking calls.
+ * <p>
+ * Concurrent requests for the same (block device, gid) pair share a single
+ * in-flight quotactl() call: a request made while a call is running gets the
+ * outcome of that call. Once the call completes, the next request starts a
+ * new one. Each caller gets its own future, so cancelling it doesn't affect
+ * the other callers.
+ * <p>
+ * When all the workers are busy and the queue is full, the returned future
+ * fails with a {@link RejectedExecutionException}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class AsyncPosixQuotaManager {
+
+	private final PosixQuotaManager delegate;
+	private final ThreadPoolExecutor executor;
+
+	private final ConcurrentMap<GroupQuotaKey, CompletableFuture<PosixQuotaResult>> inFlight = new ConcurrentHashMap<GroupQuotaKey, CompletableFuture<PosixQuotaResult>>();
+
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * AsyncPosixQuotaManager constructor.
+	 *
+	 * @param delegate
+	 *            The manager which calls quotactl()
+	 * @param threads
+	 *            The number of worker threads
+	 * @param queueCapacity
+	 *            The maximum number of calls waiting for a worker
+	 */
+	public AsyncPosixQuotaManager(PosixQuotaManager delegate, int threads, int queueCapacity) {
+
+		if (threads <= 0 || queueCapacity <= 0) {
+			throw new IllegalArgumentException("Invalid threads " + threads + " or queue capacity " + queueCapacity);
+		}
+		this.delegate = delegate;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory("quotactl-async"));
+	}
+
+	/**
+	 * Retrieve asynchronously disk quota limits and current usage for a group
+	 * id.
+	 *
+	 * @see PosixQuotaManager#getGroupQuota(String, int)
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param gid
+	 *            The group id
+	 * @return The future quota information. It fails with a
+	 *         {@link PosixQuotaException} if quotactl() fails.
+	 */
+	public CompletableFuture<PosixQuotaInfo> getGroupQuotaAsync(String blockDevice, int gid) {
+
+		final CompletableFuture<PosixQuotaInfo> future = new CompletableFuture<PosixQuotaInfo>();
+		flight(blockDevice, gid).whenComplete(new BiConsumer<PosixQuotaResult, Throwable>() {
+
+			@Override
+			public void accept(PosixQuotaResult result, Throwable error) {
+				if (error != null) {
+					future.completeExceptionally(unwrap(error));
+				} else if (result.isOk()) {
+					future.complete(result.getQuotaInfo());
+				} else {
+					future.completeExceptionally(result.toException());
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Retrieve asynchronously disk quota limits and current usage for a group
+	 * id, without exceptions for quotactl() failures.
+	 *
+	 * @see PosixQuotaManager#readGroupQuota(String, int)
+	 * @param blockDevice
+	 *            The pathname of the (mounted) block special device for the
+	 *            filesystem being manipulated
+	 * @param gid
+	 *            The group id
+	 * @return The future result.
+	 */
+	public CompletableFuture<PosixQuotaResult> readGroupQuotaAsync(String blockDevice, int gid) {
+
+		return flight(blockDevice, gid).thenApply(Function.identity());
+	}
+
+	/**
+	 * Get the in-flight call of a (block device, gid) pair, starting it if
+	 * there's none.
+	 */
+	private CompletableFuture<PosixQuotaResult> flight(final String blockDevice, final int gid) {
+
+		final GroupQuotaKey key = new GroupQuotaKey(blockDevice, gid);
+		CompletableFuture<PosixQuotaResult> flight = inFlight.get(key);
+		if (flight != null) {
+			coalesced.increment();
+			return flight;
+		}
+
+		final CompletableFuture<PosixQuotaResult> started = new CompletableFuture<PosixQuotaResult>();
+		flight = inFlight.putIfAbsent(key, started);
+		if (flight != null) {
+			coalesced.increment();
+			return flight;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					calls.increment();
+					try {
+						PosixQuotaResult result = delegate.readGroupQuota(blockDevice, gid);
+						/* later requests must start a new call */
+						inFlight.remove(key, started);
+						started.complete(result);
+					} catch (RuntimeException | Error e) {
+						inFlight.remove(key, started);
+						started.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			inFlight.remove(key, started);
+			started.completeExceptionally(e);
+		}
+		return started;
+	}
+
+	private static Throwable unwrap(Throwable t) {
+		return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+	}
+
+	/**
+	 * Stop accepting requests. Calls already submitted are completed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Get the number of (block device, gid) pairs with a call in flight.
+	 *
+	 * @return The number of in-flight calls.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Get the number of quotactl() calls started.
+	 *
+	 * @return The call count.
+	 */
+	public long getCallCount() {
+		return calls.sum();
+	}
+
+	/**
+	 * Get the number of requests which joined a call already in flight.
+	 *
+	 * @return The coalesced request count.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Get the number of calls rejected because the queue was full.
+	 *
+	 * @return The rejected call count.
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "AsyncPosixQuotaManager [inFlight=" + getInFlightCount() + ", calls=" + getCallCount()
+				+ ", coalesced=" + getCoalescedCount() + ", rejected=" + getRejectedCount() + "]";
+	}
+
+}
@@ -0,0 +1,537 @@
+package it.grid.storm.api.filesystem.quota.posix.cache;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaEntry;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotaTable;
+import it.grid.storm.api.filesystem.quota.posix.QuotaVisitor;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupResolver;
+
+/**
+ * A {@link PosixQuotaManager} decorator which caches the group quota
+ * information by (block device, gid).
+ * <p>
+ * The outcome of a quotactl() call, quota information or ESRCH for a group
+ * without quota, is kept for a time-to-live and served by both
+ * {@link #getGroupQuota(String, int)} and {@link #readGroupQuota(String, int)}.
+ * Any other error, e.g. a transient EIO or ETIMEDOUT, is returned to the
+ * caller but not cached: the next lookup calls quotactl() again, and a
+ * background refresh which fails leaves the previous entry in place. The
+ * refresh of that entry is then retried at most once per
+ * {@code refreshAhead}, or per {@code ttl} without refresh ahead, so that a
+ * failing device isn't called on every hit. Then:
+ * <ul>
+ * <li>once an entry is older than {@code ttl - refreshAhead} it's still
+ * returned, and a refresh is started in background;</li>
+ * <li>once an entry is older than {@code ttl} it's stale: it's still returned
+ * for at most {@code staleWhileRevalidate} while a background refresh runs;</li>
+ * <li>an entry older than {@code ttl + staleWhileRevalidate} is expired and
+ * the caller reloads it synchronously.</li>
+ * </ul>
+ * At most one refresh per entry runs at a time, and concurrent lookups of a
+ * missing or expired entry share a single synchronous load. The cache holds at
+ * most
+ * {@code maximumSize} entries: when it's full, the oldest inserted entries are
+ * evicted first.
+ * <p>
+ * All the other methods are forwarded to the decorated manager.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class CachingPosixQuotaManager extends PosixQuotaManager {
+
+	/**
+	 * A cached quotactl() outcome.
+	 */
+	private static final class Entry {
+
+		final PosixQuotaResult result;
+		final long loadedAt;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+		/* when the last refresh got a failure, valid if refreshFailed */
+		volatile long refreshFailedAt;
+		volatile boolean refreshFailed;
+
+		Entry(PosixQuotaResult result, long loadedAt) {
+			this.result = result;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	private final PosixQuotaManager delegate;
+	private final long refreshAfterNanos;
+	private final long refreshRetryNanos;
+	private final long ttlNanos;
+	private final long expireAfterNanos;
+	private final int maximumSize;
+	private final ExecutorService refreshExecutor;
+	private final boolean ownedExecutor;
+
+	private final ConcurrentMap<GroupQuotaKey, Entry> entries = new ConcurrentHashMap<GroupQuotaKey, Entry>();
+	private final Queue<GroupQuotaKey> insertionOrder = new ConcurrentLinkedQueue<GroupQuotaKey>();
+	private final ConcurrentMap<GroupQuotaKey, CompletableFuture<PosixQuotaResult>> loading = new ConcurrentHashMap<GroupQuotaKey, CompletableFuture<PosixQuotaResult>>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Build a cache with no refresh ahead and no stale serving: entries are
+	 * reloaded synchronously once their time-to-live is over.
+	 *
+	 * @param delegate
+	 *            The decorated manager
+	 * @param ttl
+	 *            The time-to-live of the cached entries
+	 * @param maximumSize
+	 *            The maximum number of cached entries
+	 */
+	public CachingPosixQuotaManager(PosixQuotaManager delegate, Duration ttl, int maximumSize) {
+		this(delegate, ttl, Duration.ZERO, Duration.ZERO, maximumSize, null);
+	}
+
+	/**
+	 * CachingPosixQuotaManager constructor.
+	 *
+	 * @param delegate
+	 *            The decorated manager
+	 * @param ttl
+	 *            The time-to-live of the cached entries
+	 * @param refreshAhead
+	 *            How long before the end of the time-to-live a background
+	 *            refresh is started
+	 * @param staleWhileRevalidate
+	 *            How long after the end of the time-to-live the stale entry is
+	 *            returned while the background refresh runs
+	 * @param maximumSize
+	 *            The maximum number of cached entries
+	 * @param refreshExecutor
+	 *            The executor which runs background refreshes, or null to use
+	 *            a single daemon thread owned by this cache
+	 */
+	public CachingPosixQuotaManager(PosixQuotaManager delegate, Duration ttl, Duration refreshAhead,
+			Duration staleWhileRevalidate, int maximumSize, ExecutorService refreshExecutor) {
+
+		super(delegate.getBinding(), delegate.getBackend());
+		if (ttl.isNegative() || refreshAhead.isNegative() || staleWhileRevalidate.isNegative()
+				|| refreshAhead.compareTo(ttl) > 0) {
+			throw new IllegalArgumentException(
+					"Invalid durations: ttl " + ttl + ", refreshAhead " + refreshAhead + ", stale " + staleWhileRevalidate);
+		}
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("Invalid maximum size " + maximumSize);
+		}
+		this.delegate = delegate;
+		this.ttlNanos = ttl.toNanos();
+		this.refreshAfterNanos = ttlNanos - refreshAhead.toNanos();
+		this.refreshRetryNanos = refreshAhead.isZero() ? ttlNanos : refreshAhead.toNanos();
+		this.expireAfterNanos = ttlNanos + staleWhileRevalidate.toNanos();
+		this.maximumSize = maximumSize;
+		this.ownedExecutor = refreshExecutor == null;
+		this.refreshExecutor = ownedExecutor
+				? Executors.newSingleThreadExecutor(new DaemonThreadFactory("quota-cache-refresh"))
+				: refreshExecutor;
+	}
+
+	/**
+	 * Get the group quota information from the cache, loading it through the
+	 * decorated manager if it's missing or expired.
+	 *
+	 * @see PosixQuotaManager#getGroupQuota(String, int)
+	 */
+	@Override
+	public PosixQuotaInfo getGroupQuota(String blockDevice, int gid) throws PosixQuotaException {
+
+		return lookup(blockDevice, gid).getQuotaInfoOrThrow();
+	}
+
+	/**
+	 * Get the group quota information or error code from the cache, loading
+	 * it through the decorated manager if it's missing or expired.
+	 *
+	 * @see PosixQuotaManager#readGroupQuota(String, int)
+	 */
+	@Override
+	public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+		return lookup(blockDevice, gid);
+	}
+
+	/**
+	 * Copy the group quota information or error code from the cache into the
+	 * holder, loading it through the decorated manager if it's missing or
+	 * expired. A hit allocates only the {@link GroupQuotaKey} of the lookup,
+	 * which the JIT may scalar-replace; no quota information is copied into
+	 * a new object.
+	 *
+	 * @see PosixQuotaManager#readGroupQuota(String, int, MutableQuotaInfo, int)
+	 */
+	@Override
+	public int readGroupQuota(String blockDevice, int gid, MutableQuotaInfo holder, int fields) {
+
+		holder.set(lookup(blockDevice, gid), fields);
+		return holder.getErrorCode();
+	}
+
+	private PosixQuotaResult lookup(String blockDevice, int gid) {
+
+		GroupQuotaKey key = new GroupQuotaKey(blockDevice, gid);
+		Entry entry = entries.get(key);
+		long now = System.nanoTime();
+
+		if (entry != null) {
+
+			long age = now - entry.loadedAt;
+			if (age < expireAfterNanos) {
+
+				if (age < ttlNanos) {
+					hits.increment();
+				} else {
+					staleHits.increment();
+				}
+				if (age >= refreshAfterNanos) {
+					scheduleRefresh(key, entry);
+				}
+				return entry.result;
+			}
+		}
+
+		return loadOnce(key, entry);
+	}
+
+	/**
+	 * Load an entry synchronously, or wait for the load already started by
+	 * another caller.
+	 */
+	private PosixQuotaResult loadOnce(GroupQuotaKey key, Entry expired) {
+
+		CompletableFuture<PosixQuotaResult> started = new CompletableFuture<PosixQuotaResult>();
+		CompletableFuture<PosixQuotaResult> flight = loading.putIfAbsent(key, started);
+		if (flight != null) {
+			coalesced.increment();
+			try {
+				return flight.join();
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+		}
+		try {
+			/* another caller may have stored the entry since the lookup */
+			Entry entry = entries.get(key);
+			if (entry != null && entry != expired && System.nanoTime() - entry.loadedAt < expireAfterNanos) {
+				started.complete(entry.result);
+				return entry.result;
+			}
+			misses.increment();
+			Entry loaded = load(key);
+			if (isCacheable(loaded.result)) {
+				store(key, entry, loaded);
+			}
+			started.complete(loaded.result);
+			return loaded.result;
+		} catch (RuntimeException e) {
+			started.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key, started);
+		}
+	}
+
+	/**
+	 * Only the answers of the filesystem are cached, not the failures to get
+	 * one.
+	 */
+	private static boolean isCacheable(PosixQuotaResult result) {
+		return result.getStatus() != PosixQuotaResult.Status.ERROR;
+	}
+
+	private Entry load(GroupQuotaKey key) {
+
+		return new Entry(delegate.readGroupQuota(key.getBlockDevice(), key.getGid()), System.nanoTime());
+	}
+
+	private void store(GroupQuotaKey key, Entry previous, Entry loaded) {
+
+		if (previous != null) {
+			if (entries.replace(key, previous, loaded)) {
+				return;
+			}
+		}
+		if (entries.put(key, loaded) == null) {
+			insertionOrder.add(key);
+			evictIfNeeded();
+		}
+	}
+
+	private void evictIfNeeded() {
+
+		while (entries.size() > maximumSize) {
+			GroupQuotaKey eldest = insertionOrder.poll();
+			if (eldest == null) {
+				return;
+			}
+			if (entries.remove(eldest) != null) {
+				evictions.increment();
+			}
+		}
+	}
+
+	private void scheduleRefresh(final GroupQuotaKey key, final Entry entry) {
+
+		if (entry.refreshFailed && System.nanoTime() - entry.refreshFailedAt < refreshRetryNanos) {
+			return;
+		}
+		if (!entry.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			refreshExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					refreshes.increment();
+					Entry loaded = load(key);
+					if (!isCacheable(loaded.result)) {
+						/* back off before the next attempt */
+						entry.refreshFailedAt = loaded.loadedAt;
+						entry.refreshFailed = true;
+						entry.refreshing.set(false);
+					} else if (!entries.replace(key, entry, loaded)) {
+						/* the entry has been invalidated or evicted meanwhile */
+						entry.refreshing.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			entry.refreshing.set(false);
+		}
+	}
+
+	/**
+	 * Remove the cached information of a (block device, gid) pair.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 */
+	public void invalidate(String blockDevice, int gid) {
+		GroupQuotaKey key = new GroupQuotaKey(blockDevice, gid);
+		if (entries.remove(key) != null) {
+			insertionOrder.remove(key);
+		}
+	}
+
+	/**
+	 * Remove all the cached information.
+	 */
+	public void invalidateAll() {
+		entries.clear();
+		insertionOrder.clear();
+	}
+
+	/**
+	 * Stop the refresh executor, if it's owned by this cache. Cached entries
+	 * are still served but no longer refreshed in background.
+	 */
+	public void shutdown() {
+		if (ownedExecutor) {
+			refreshExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Get the number of cached entries.
+	 *
+	 * @return The number of cached entries.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of lookups answered with an entry within its
+	 * time-to-live.
+	 *
+	 * @return The hit count.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of lookups answered with a stale entry while it was
+	 * being refreshed.
+	 *
+	 * @return The stale hit count.
+	 */
+	public long getStaleHitCount() {
+		return staleHits.sum();
+	}
+
+	/**
+	 * Get the number of lookups which called the decorated manager
+	 * synchronously, because the entry was missing or expired.
+	 *
+	 * @return The miss count.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of lookups which waited for the synchronous load started
+	 * by another caller instead of calling the decorated manager.
+	 *
+	 * @return The coalesced lookup count.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Get the number of background refreshes.
+	 *
+	 * @return The refresh count.
+	 */
+	public long getRefreshCount() {
+		return refreshes.sum();
+	}
+
+	/**
+	 * Get the number of entries evicted because the cache was full.
+	 *
+	 * @return The eviction count.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getProjectQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaInfo getProjectQuota(String blockDevice, int projid) throws PosixQuotaException {
+		return delegate.getProjectQuota(blockDevice, projid);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupQuotas(java.lang.String, int[])
+	 */
+	@Override
+	public PosixQuotaBatch getGroupQuotas(String blockDevice, int[] gids) {
+		return delegate.getGroupQuotas(blockDevice, gids);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#streamGroupQuotas(java.lang.String)
+	 */
+	@Override
+	public Stream<PosixQuotaEntry> streamGroupQuotas(String blockDevice) {
+		return delegate.streamGroupQuotas(blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#streamUserQuotas(java.lang.String)
+	 */
+	@Override
+	public Stream<PosixQuotaEntry> streamUserQuotas(String blockDevice) {
+		return delegate.streamUserQuotas(blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#loadGroupQuotas(java.lang.String, it.grid.storm.api.filesystem.quota.posix.QuotaTable)
+	 */
+	@Override
+	public void loadGroupQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+		delegate.loadGroupQuotas(blockDevice, table);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#loadUserQuotas(java.lang.String, it.grid.storm.api.filesystem.quota.posix.QuotaTable)
+	 */
+	@Override
+	public void loadUserQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+		delegate.loadUserQuotas(blockDevice, table);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#forEachGroupQuota(java.lang.String, it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo, it.grid.storm.api.filesystem.quota.posix.QuotaVisitor)
+	 */
+	@Override
+	public long forEachGroupQuota(String blockDevice, MutableQuotaInfo holder, QuotaVisitor visitor)
+			throws PosixQuotaException {
+		return delegate.forEachGroupQuota(blockDevice, holder, visitor);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupResolver()
+	 */
+	@Override
+	public GroupResolver getGroupResolver() {
+		return delegate.getGroupResolver();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#setGroupResolver(it.grid.storm.api.filesystem.quota.posix.group.GroupResolver)
+	 */
+	@Override
+	public void setGroupResolver(GroupResolver groupResolver) {
+		delegate.setGroupResolver(groupResolver);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CachingPosixQuotaManager [size=" + size() + ", hits=" + getHitCount() + ", staleHits="
+				+ getStaleHitCount() + ", misses=" + getMissCount() + ", coalesced=" + getCoalescedCount()
+				+ ", refreshes=" + getRefreshCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+}
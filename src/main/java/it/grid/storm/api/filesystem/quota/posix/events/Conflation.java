@@ -0,0 +1,28 @@
+package it.grid.storm.api.filesystem.quota.posix.events;
+
+/**
+ * How the events not yet requested by a subscriber of a
+ * {@link QuotaChangePublisher} are buffered.
+ * <p>
+ * The buffer of each subscriber is bounded: when it's full, the oldest
+ * pending event is dropped and counted, so that a slow subscriber never
+ * blocks the publisher.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public enum Conflation {
+
+	/**
+	 * At most one pending event per (block device, gid) pair: a new event of a
+	 * pair already pending is merged into the pending one, which keeps its
+	 * place in the delivery order. A subscriber sees the net change since the
+	 * last event it received, whatever its pace.
+	 */
+	MERGE,
+
+	/**
+	 * Every event is buffered and delivered in order.
+	 */
+	NONE
+}
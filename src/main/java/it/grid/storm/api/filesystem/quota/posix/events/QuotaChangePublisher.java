@@ -0,0 +1,466 @@
+package it.grid.storm.api.filesystem.quota.posix.events;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+
+/**
+ * A {@link Flow.Publisher} of the changes of the quota information of (block
+ * device, gid) pairs.
+ * <p>
+ * Successive reads of each pair are passed to {@link #update(GroupQuotaKey,
+ * PosixQuotaInfo)}, e.g. by a
+ * {@link it.grid.storm.api.filesystem.quota.posix.poll.QuotaPoller}, which
+ * compares them with the previous read and emits a {@link QuotaEvent} only if
+ * something changed. Updates of the same pair are expected from one thread at
+ * a time.
+ * <p>
+ * Each subscriber has its own bounded buffer and its own demand: an update
+ * only appends the event to the buffers, and the events are delivered on the
+ * executor as the subscribers request them, one subscriber at a time per
+ * task. A slow subscriber never blocks the updates nor the other subscribers:
+ * its pending events are conflated per pair with {@link Conflation#MERGE}, and
+ * the oldest one is dropped when its buffer is full.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotaChangePublisher implements Flow.Publisher<QuotaEvent>, AutoCloseable {
+
+	/**
+	 * The default buffer capacity of a subscriber.
+	 */
+	public static final int DEFAULT_BUFFER_CAPACITY = 65536;
+
+	private final Executor executor;
+	private final Conflation conflation;
+	private final int bufferCapacity;
+
+	private final ConcurrentMap<GroupQuotaKey, PosixQuotaInfo> last = new ConcurrentHashMap<GroupQuotaKey, PosixQuotaInfo>();
+	private final CopyOnWriteArrayList<QuotaSubscription> subscriptions = new CopyOnWriteArrayList<QuotaSubscription>();
+	private volatile boolean closed;
+
+	private final LongAdder events = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Build a publisher which delivers the events on the common fork-join pool
+	 * and merges the pending events of each pair.
+	 */
+	public QuotaChangePublisher() {
+		this(ForkJoinPool.commonPool(), Conflation.MERGE, DEFAULT_BUFFER_CAPACITY);
+	}
+
+	/**
+	 * QuotaChangePublisher constructor.
+	 *
+	 * @param executor
+	 *            The executor which delivers the events to the subscribers
+	 * @param conflation
+	 *            The default conflation policy of the subscribers
+	 * @param bufferCapacity
+	 *            The default maximum number of pending events of a subscriber
+	 */
+	public QuotaChangePublisher(Executor executor, Conflation conflation, int bufferCapacity) {
+
+		if (executor == null || conflation == null) {
+			throw new NullPointerException("Null executor or conflation policy");
+		}
+		if (bufferCapacity <= 0) {
+			throw new IllegalArgumentException("Invalid buffer capacity " + bufferCapacity);
+		}
+		this.executor = executor;
+		this.conflation = conflation;
+		this.bufferCapacity = bufferCapacity;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super QuotaEvent> subscriber) {
+		subscribe(subscriber, conflation, bufferCapacity);
+	}
+
+	/**
+	 * Subscribe with its own conflation policy and buffer capacity.
+	 *
+	 * @param subscriber
+	 *            The subscriber
+	 * @param conflation
+	 *            The conflation policy of its pending events
+	 * @param bufferCapacity
+	 *            The maximum number of its pending events
+	 */
+	public void subscribe(Flow.Subscriber<? super QuotaEvent> subscriber, Conflation conflation, int bufferCapacity) {
+
+		if (subscriber == null || conflation == null) {
+			throw new NullPointerException("Null subscriber or conflation policy");
+		}
+		if (bufferCapacity <= 0) {
+			throw new IllegalArgumentException("Invalid buffer capacity " + bufferCapacity);
+		}
+		QuotaSubscription subscription = new QuotaSubscription(subscriber, conflation, bufferCapacity);
+		for (QuotaSubscription s : subscriptions) {
+			if (s.subscriber == subscriber) {
+				subscription.fail(new IllegalStateException("Already subscribed"));
+				return;
+			}
+		}
+		subscriptions.add(subscription);
+		if (closed) {
+			subscription.complete();
+		}
+		/* onSubscribe is signalled by the delivery task, before any other signal */
+		subscription.signal();
+	}
+
+	/**
+	 * Pass a new read of a pair.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @param info
+	 *            The quota information, null if the pair has no quota any
+	 *            more. A transient read failure must not be passed, or the
+	 *            subscribers would see the pair removed and added again
+	 * @return true if the read changed something, and an event was emitted.
+	 */
+	public boolean update(GroupQuotaKey key, PosixQuotaInfo info) {
+
+		PosixQuotaInfo previous = info == null ? last.remove(key) : last.put(key, info);
+		QuotaEvent event = QuotaEvent.diff(key, previous, info);
+		if (event == null) {
+			return false;
+		}
+		events.increment();
+		for (QuotaSubscription s : subscriptions) {
+			s.offer(event);
+		}
+		return true;
+	}
+
+	/**
+	 * Pass a new read of a pair.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @param info
+	 *            The quota information, null if the pair has no quota any
+	 *            more. A transient read failure must not be passed, or the
+	 *            subscribers would see the pair removed and added again
+	 * @return true if the read changed something, and an event was emitted.
+	 */
+	public boolean update(String blockDevice, int gid, PosixQuotaInfo info) {
+		return update(new GroupQuotaKey(blockDevice, gid), info);
+	}
+
+	/**
+	 * Get the last read of a pair.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @return The last quota information, or null if the pair has not been read
+	 *         or can't be read any more.
+	 */
+	public PosixQuotaInfo getLast(GroupQuotaKey key) {
+		return last.get(key);
+	}
+
+	/**
+	 * Complete all the subscribers, once they received their pending events,
+	 * and the ones which will subscribe.
+	 */
+	@Override
+	public void close() {
+
+		closed = true;
+		for (QuotaSubscription s : subscriptions) {
+			s.complete();
+		}
+	}
+
+	/**
+	 * @return true if the publisher has been closed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return The number of current subscribers.
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * @return The number of events emitted so far, before conflation.
+	 */
+	public long getEventCount() {
+		return events.sum();
+	}
+
+	/**
+	 * @return The number of pending events dropped so far because a buffer
+	 *         was full, over all the subscribers.
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * The subscription of a subscriber. Its buffer and its demand are guarded
+	 * by its monitor; the signals are serialized by the delivery task, which
+	 * runs for at most one thread at a time.
+	 */
+	private final class QuotaSubscription implements Flow.Subscription, Runnable {
+
+		final Flow.Subscriber<? super QuotaEvent> subscriber;
+		final Conflation conflation;
+		final int capacity;
+
+		final LinkedHashMap<GroupQuotaKey, QuotaEvent> pendingByKey;
+		final ArrayDeque<QuotaEvent> pending;
+		long demand;
+		boolean completed;
+		Throwable error;
+
+		final AtomicInteger wip = new AtomicInteger();
+		volatile boolean cancelled;
+		boolean subscribed;
+
+		QuotaSubscription(Flow.Subscriber<? super QuotaEvent> subscriber, Conflation conflation, int capacity) {
+
+			this.subscriber = subscriber;
+			this.conflation = conflation;
+			this.capacity = capacity;
+			if (conflation == Conflation.MERGE) {
+				pendingByKey = new LinkedHashMap<GroupQuotaKey, QuotaEvent>();
+				pending = null;
+			} else {
+				pendingByKey = null;
+				pending = new ArrayDeque<QuotaEvent>();
+			}
+		}
+
+		/**
+		 * Append an event to the buffer, and signal it if requested.
+		 */
+		void offer(QuotaEvent event) {
+
+			boolean requested;
+			synchronized (this) {
+				if (cancelled || completed) {
+					return;
+				}
+				if (conflation == Conflation.MERGE) {
+					QuotaEvent pendingEvent = pendingByKey.get(event.getKey());
+					if (pendingEvent != null) {
+						/* the key keeps its place in the iteration order */
+						pendingByKey.put(event.getKey(), pendingEvent.merge(event));
+					} else {
+						if (pendingByKey.size() >= capacity) {
+							Iterator<QuotaEvent> eldest = pendingByKey.values().iterator();
+							eldest.next();
+							eldest.remove();
+							dropped.increment();
+						}
+						pendingByKey.put(event.getKey(), event);
+					}
+				} else {
+					if (pending.size() >= capacity) {
+						pending.pollFirst();
+						dropped.increment();
+					}
+					pending.addLast(event);
+				}
+				requested = demand > 0;
+			}
+			if (requested) {
+				signal();
+			}
+		}
+
+		/**
+		 * Take the next event to deliver, if any and if requested.
+		 */
+		private QuotaEvent poll() {
+
+			if (demand == 0) {
+				return null;
+			}
+			QuotaEvent event;
+			if (conflation == Conflation.MERGE) {
+				if (pendingByKey.isEmpty()) {
+					return null;
+				}
+				Iterator<QuotaEvent> eldest = pendingByKey.values().iterator();
+				event = eldest.next();
+				eldest.remove();
+			} else {
+				event = pending.pollFirst();
+				if (event == null) {
+					return null;
+				}
+			}
+			if (demand != Long.MAX_VALUE) {
+				demand--;
+			}
+			return event;
+		}
+
+		private boolean isEmpty() {
+			return conflation == Conflation.MERGE ? pendingByKey.isEmpty() : pending.isEmpty();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.Flow.Subscription#request(long)
+		 */
+		@Override
+		public void request(long n) {
+
+			synchronized (this) {
+				if (n <= 0) {
+					error = new IllegalArgumentException("Non-positive request " + n);
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+			}
+			signal();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.Flow.Subscription#cancel()
+		 */
+		@Override
+		public void cancel() {
+
+			cancelled = true;
+			subscriptions.remove(this);
+			synchronized (this) {
+				if (pendingByKey != null) {
+					pendingByKey.clear();
+				} else {
+					pending.clear();
+				}
+			}
+		}
+
+		void complete() {
+
+			synchronized (this) {
+				completed = true;
+			}
+			signal();
+		}
+
+		void fail(Throwable t) {
+
+			synchronized (this) {
+				error = t;
+			}
+			signal();
+		}
+
+		/**
+		 * Schedule the delivery task, unless it's already running: the running
+		 * task sees the signal and loops once more.
+		 */
+		void signal() {
+
+			if (wip.getAndIncrement() == 0) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					cancel();
+				}
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+
+			int missed = 1;
+			for (;;) {
+				if (!subscribed && !cancelled) {
+					subscribed = true;
+					try {
+						subscriber.onSubscribe(this);
+					} catch (Throwable t) {
+						cancel();
+					}
+				}
+				deliver();
+				missed = wip.addAndGet(-missed);
+				if (missed == 0) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Signal the requested events, then the terminal signal once the
+		 * buffer is drained.
+		 */
+		private void deliver() {
+
+			while (!cancelled) {
+				QuotaEvent event;
+				Throwable failure;
+				boolean done;
+				synchronized (this) {
+					failure = error;
+					event = failure == null ? poll() : null;
+					done = failure == null && event == null && completed && isEmpty();
+				}
+				if (failure != null) {
+					cancel();
+					subscriber.onError(failure);
+					return;
+				}
+				if (done) {
+					cancel();
+					subscriber.onComplete();
+					return;
+				}
+				if (event == null) {
+					return;
+				}
+				try {
+					subscriber.onNext(event);
+				} catch (Throwable t) {
+					cancel();
+					subscriber.onError(t);
+					return;
+				}
+			}
+		}
+	}
+
+}
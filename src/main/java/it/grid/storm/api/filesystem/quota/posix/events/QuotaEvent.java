@@ -0,0 +1,228 @@
+package it.grid.storm.api.filesystem.quota.posix.events;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+
+/**
+ * A change of the quota information of a (block device, gid) pair, between
+ * two successive reads.
+ * <p>
+ * An event may carry several changes, e.g. a usage change which crossed the
+ * soft limit. When events are conflated for a slow subscriber, see
+ * {@link Conflation#MERGE}, the previous values are the ones before the
+ * first conflated event, the current values the ones after the last, and the
+ * changes are those of all the conflated events.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class QuotaEvent {
+
+	/**
+	 * The kind of a change.
+	 */
+	public enum Change {
+
+		/**
+		 * The pair has been read for the first time: there are no previous
+		 * values.
+		 */
+		ADDED,
+
+		/**
+		 * The pair can't be read any more: there are no current values.
+		 */
+		REMOVED,
+
+		/**
+		 * The block or inode usage changed.
+		 */
+		USAGE_CHANGED,
+
+		/**
+		 * A block or inode, soft or hard, limit has been edited.
+		 */
+		LIMITS_CHANGED,
+
+		/**
+		 * The block or inode usage went over its soft limit.
+		 */
+		SOFT_LIMIT_EXCEEDED,
+
+		/**
+		 * The block and inode usages went back under their soft limits.
+		 */
+		SOFT_LIMIT_CLEARED,
+
+		/**
+		 * The block or inode usage reached its hard limit.
+		 */
+		HARD_LIMIT_REACHED
+	}
+
+	private final GroupQuotaKey key;
+	private final PosixQuotaInfo previous;
+	private final PosixQuotaInfo current;
+	private final Set<Change> changes;
+	private final long timestamp;
+
+	QuotaEvent(GroupQuotaKey key, PosixQuotaInfo previous, PosixQuotaInfo current, Set<Change> changes,
+			long timestamp) {
+
+		this.key = key;
+		this.previous = previous;
+		this.current = current;
+		this.changes = Collections.unmodifiableSet(changes);
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Compare two successive reads of a pair.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @param previous
+	 *            The previous values, null if the pair had not been read
+	 * @param current
+	 *            The current values, null if the pair can't be read
+	 * @return The event, or null if nothing changed.
+	 */
+	static QuotaEvent diff(GroupQuotaKey key, PosixQuotaInfo previous, PosixQuotaInfo current) {
+
+		if (previous == null && current == null) {
+			return null;
+		}
+		EnumSet<Change> changes = EnumSet.noneOf(Change.class);
+		if (previous == null) {
+			changes.add(Change.ADDED);
+		} else if (current == null) {
+			changes.add(Change.REMOVED);
+		} else {
+			if (previous.getBlockUsage() != current.getBlockUsage()
+					|| previous.getINodesUsage() != current.getINodesUsage()) {
+				changes.add(Change.USAGE_CHANGED);
+			}
+			if (previous.getBlockSoftLimit() != current.getBlockSoftLimit()
+					|| previous.getBlockHardLimit() != current.getBlockHardLimit()
+					|| previous.getINodesSoftLimit() != current.getINodesSoftLimit()
+					|| previous.getINodesHardLimit() != current.getINodesHardLimit()) {
+				changes.add(Change.LIMITS_CHANGED);
+			}
+		}
+		boolean wasOverSoft = previous != null && isOverSoftLimit(previous);
+		boolean isOverSoft = current != null && isOverSoftLimit(current);
+		if (!wasOverSoft && isOverSoft) {
+			changes.add(Change.SOFT_LIMIT_EXCEEDED);
+		} else if (wasOverSoft && !isOverSoft && current != null) {
+			changes.add(Change.SOFT_LIMIT_CLEARED);
+		}
+		if (current != null && isAtHardLimit(current) && (previous == null || !isAtHardLimit(previous))) {
+			changes.add(Change.HARD_LIMIT_REACHED);
+		}
+		if (changes.isEmpty()) {
+			return null;
+		}
+		return new QuotaEvent(key, previous, current, changes, System.currentTimeMillis());
+	}
+
+	/**
+	 * Merge a later event of the same pair into this one.
+	 */
+	QuotaEvent merge(QuotaEvent later) {
+
+		EnumSet<Change> merged = EnumSet.copyOf(changes);
+		merged.addAll(later.changes);
+		return new QuotaEvent(key, previous, later.current, merged, later.timestamp);
+	}
+
+	/**
+	 * Check if the block or the inode usage is over its soft limit.
+	 *
+	 * @param info
+	 *            The quota information
+	 * @return true if a soft limit is set and exceeded.
+	 */
+	public static boolean isOverSoftLimit(PosixQuotaInfo info) {
+
+		return (info.getBlockSoftLimit() > 0
+				&& info.getBlockUsage() > info.getBlockSoftLimit() * PosixQuotaInfo.QIF_DQBLKSIZE)
+				|| (info.getINodesSoftLimit() > 0 && info.getINodesUsage() > info.getINodesSoftLimit());
+	}
+
+	/**
+	 * Check if the block or the inode usage reached its hard limit.
+	 *
+	 * @param info
+	 *            The quota information
+	 * @return true if a hard limit is set and reached.
+	 */
+	public static boolean isAtHardLimit(PosixQuotaInfo info) {
+
+		return (info.getBlockHardLimit() > 0
+				&& info.getBlockUsage() >= info.getBlockHardLimit() * PosixQuotaInfo.QIF_DQBLKSIZE)
+				|| (info.getINodesHardLimit() > 0 && info.getINodesUsage() >= info.getINodesHardLimit());
+	}
+
+	/**
+	 * @return The (block device, gid) pair.
+	 */
+	public GroupQuotaKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The previous values, null for {@link Change#ADDED}.
+	 */
+	public PosixQuotaInfo getPrevious() {
+		return previous;
+	}
+
+	/**
+	 * @return The current values, null for {@link Change#REMOVED}.
+	 */
+	public PosixQuotaInfo getCurrent() {
+		return current;
+	}
+
+	/**
+	 * @return The changes, never empty.
+	 */
+	public Set<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Check if the event carries a change.
+	 *
+	 * @param change
+	 *            The change
+	 * @return true if the event carries it.
+	 */
+	public boolean has(Change change) {
+		return changes.contains(change);
+	}
+
+	/**
+	 * @return The time of the read which produced the event, in milliseconds
+	 *         since the epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QuotaEvent [key=" + key + ", changes=" + changes + ", previous=" + previous + ", current=" + current
+				+ "]";
+	}
+
+}
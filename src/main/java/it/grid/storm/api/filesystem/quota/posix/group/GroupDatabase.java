@@ -0,0 +1,54 @@
+package it.grid.storm.api.filesystem.quota.posix.group;
+
+import java.util.List;
+
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+
+/**
+ * The source of the group name and group id pairs, usually the Name Service
+ * Switch of the host: /etc/group, sssd, LDAP...
+ * <p>
+ * A lookup may be slow, as it may go through the network: callers should go
+ * through a {@link GroupResolver}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public interface GroupDatabase {
+
+	/**
+	 * Look a group up by name.
+	 *
+	 * @param name
+	 *            The group name
+	 * @return The group, null if there's no group with that name.
+	 * @throws PosixQuotaException
+	 *             if the lookup failed. The cause is a
+	 *             {@link com.sun.jna.LastErrorException} with the error code.
+	 */
+	GroupEntry getGroupByName(String name) throws PosixQuotaException;
+
+	/**
+	 * Look a group up by id.
+	 *
+	 * @param gid
+	 *            The group id
+	 * @return The group, null if there's no group with that id.
+	 * @throws PosixQuotaException
+	 *             if the lookup failed. The cause is a
+	 *             {@link com.sun.jna.LastErrorException} with the error code.
+	 */
+	GroupEntry getGroupById(int gid) throws PosixQuotaException;
+
+	/**
+	 * Enumerate all the groups of the database. Some databases, e.g. sssd
+	 * with enumeration disabled, return only part of them.
+	 *
+	 * @return The groups.
+	 * @throws PosixQuotaException
+	 *             if the enumeration failed. The cause is a
+	 *             {@link com.sun.jna.LastErrorException} with the error code.
+	 */
+	List<GroupEntry> getAllGroups() throws PosixQuotaException;
+
+}
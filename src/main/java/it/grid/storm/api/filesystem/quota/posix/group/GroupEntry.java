@@ -0,0 +1,89 @@
+package it.grid.storm.api.filesystem.quota.posix.group;
+
+/**
+ * A group of the group database: its name and its id.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class GroupEntry {
+
+	private final String name;
+	private final int gid;
+
+	/**
+	 * GroupEntry constructor.
+	 *
+	 * @param name
+	 *            The group name
+	 * @param gid
+	 *            The group id
+	 */
+	public GroupEntry(String name, int gid) {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		this.name = name;
+		this.gid = gid;
+	}
+
+	/**
+	 * Get the group name.
+	 *
+	 * @return The group name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the group id.
+	 *
+	 * @return The group id.
+	 */
+	public int getGid() {
+		return gid;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + name.hashCode();
+		result = prime * result + gid;
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		GroupEntry other = (GroupEntry) obj;
+		return gid == other.gid && name.equals(other.name);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "GroupEntry [name=" + name + ", gid=" + Integer.toUnsignedString(gid) + "]";
+	}
+
+}
@@ -0,0 +1,334 @@
+package it.grid.storm.api.filesystem.quota.posix.group;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.jna.LastErrorException;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+
+/**
+ * Resolve group names to group ids and back through a {@link GroupDatabase},
+ * caching the answers in both directions.
+ * <p>
+ * A lookup by name also caches the reverse pair, and vice versa. The groups
+ * found are kept for {@code ttl}; the names and the ids which are not in the
+ * database are kept as negative entries for {@code negativeTtl}, so that
+ * repeated lookups of a mistyped VO group don't reach the directory service
+ * each time. {@link #preload()} fills the cache with all the groups the
+ * database can enumerate, e.g. at startup.
+ * <p>
+ * The cache holds at most {@code maximumSize} entries per direction: when
+ * it's full, the expired entries are dropped and, if none expired, the new
+ * answer is returned without being cached.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class GroupResolver {
+
+	/**
+	 * The default time-to-live of the groups found.
+	 */
+	public static final Duration DEFAULT_TTL = Duration.ofMinutes(10);
+
+	/**
+	 * The default time-to-live of the names and ids not found.
+	 */
+	public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofSeconds(30);
+
+	/**
+	 * The default maximum number of entries per direction.
+	 */
+	public static final int DEFAULT_MAXIMUM_SIZE = 65536;
+
+	private static volatile GroupResolver defaultResolver;
+
+	/**
+	 * A cached answer: the group, or null if it's not in the database.
+	 */
+	private static final class Entry {
+
+		final GroupEntry group;
+		final long expiresAt;
+
+		Entry(GroupEntry group, long expiresAt) {
+			this.group = group;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+	}
+
+	private final GroupDatabase database;
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+	private final int maximumSize;
+
+	private final ConcurrentMap<String, Entry> byName = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<Integer, Entry> byGid = new ConcurrentHashMap<Integer, Entry>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Get the resolver shared by the {@link it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager}
+	 * objects, which looks the groups up in the Name Service Switch of the host
+	 * with the default time-to-lives.
+	 *
+	 * @return The default resolver.
+	 */
+	public static GroupResolver getDefault() {
+
+		GroupResolver resolver = defaultResolver;
+		if (resolver == null) {
+			synchronized (GroupResolver.class) {
+				resolver = defaultResolver;
+				if (resolver == null) {
+					resolver = new GroupResolver(new NssGroupDatabase());
+					defaultResolver = resolver;
+				}
+			}
+		}
+		return resolver;
+	}
+
+	/**
+	 * Build a GroupResolver with the default time-to-lives and size.
+	 *
+	 * @param database
+	 *            The group database
+	 */
+	public GroupResolver(GroupDatabase database) {
+		this(database, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * GroupResolver constructor.
+	 *
+	 * @param database
+	 *            The group database
+	 * @param ttl
+	 *            How long a group found is cached
+	 * @param negativeTtl
+	 *            How long a name or an id not found is cached
+	 * @param maximumSize
+	 *            The maximum number of entries per direction
+	 */
+	public GroupResolver(GroupDatabase database, Duration ttl, Duration negativeTtl, int maximumSize) {
+
+		if (ttl.isNegative() || negativeTtl.isNegative()) {
+			throw new IllegalArgumentException("Invalid durations: ttl " + ttl + ", negativeTtl " + negativeTtl);
+		}
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("Invalid maximum size " + maximumSize);
+		}
+		this.database = database;
+		this.ttlNanos = ttl.toNanos();
+		this.negativeTtlNanos = negativeTtl.toNanos();
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * Get the database the groups are looked up in.
+	 *
+	 * @return The group database.
+	 */
+	public GroupDatabase getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Look a group up by name.
+	 *
+	 * @param name
+	 *            The group name
+	 * @return The group, null if there's no group with that name.
+	 * @throws PosixQuotaException
+	 *             if the group database failed.
+	 */
+	public GroupEntry getGroupByName(String name) throws PosixQuotaException {
+
+		long now = System.nanoTime();
+		Entry entry = byName.get(name);
+		if (entry != null && !entry.isExpired(now)) {
+			return hit(entry);
+		}
+		misses.increment();
+		GroupEntry group = database.getGroupByName(name);
+		if (group == null) {
+			put(byName, name, new Entry(null, now + negativeTtlNanos), now);
+		} else {
+			cache(group, now);
+		}
+		return group;
+	}
+
+	/**
+	 * Look a group up by id.
+	 *
+	 * @param gid
+	 *            The group id
+	 * @return The group, null if there's no group with that id.
+	 * @throws PosixQuotaException
+	 *             if the group database failed.
+	 */
+	public GroupEntry getGroupById(int gid) throws PosixQuotaException {
+
+		long now = System.nanoTime();
+		Entry entry = byGid.get(gid);
+		if (entry != null && !entry.isExpired(now)) {
+			return hit(entry);
+		}
+		misses.increment();
+		GroupEntry group = database.getGroupById(gid);
+		if (group == null) {
+			put(byGid, gid, new Entry(null, now + negativeTtlNanos), now);
+		} else {
+			cache(group, now);
+		}
+		return group;
+	}
+
+	/**
+	 * Get the id of a group.
+	 *
+	 * @param name
+	 *            The group name
+	 * @return The group id.
+	 * @throws PosixQuotaException
+	 *             if there's no group with that name, with ENOENT as error
+	 *             code, or if the group database failed.
+	 */
+	public int getGid(String name) throws PosixQuotaException {
+
+		GroupEntry group = getGroupByName(name);
+		if (group == null) {
+			throw new PosixQuotaException("Unknown group " + name, new LastErrorException(ErrNo.ENOENT));
+		}
+		return group.getGid();
+	}
+
+	/**
+	 * Get the name of a group.
+	 *
+	 * @param gid
+	 *            The group id
+	 * @return The group name, null if there's no group with that id.
+	 * @throws PosixQuotaException
+	 *             if the group database failed.
+	 */
+	public String getGroupName(int gid) throws PosixQuotaException {
+
+		GroupEntry group = getGroupById(gid);
+		return group == null ? null : group.getName();
+	}
+
+	/**
+	 * Cache all the groups the database can enumerate.
+	 *
+	 * @return The number of groups cached.
+	 * @throws PosixQuotaException
+	 *             if the enumeration failed.
+	 */
+	public int preload() throws PosixQuotaException {
+
+		List<GroupEntry> groups = database.getAllGroups();
+		long now = System.nanoTime();
+		for (GroupEntry group : groups) {
+			cache(group, now);
+		}
+		return groups.size();
+	}
+
+	private GroupEntry hit(Entry entry) {
+
+		if (entry.group == null) {
+			negativeHits.increment();
+		} else {
+			hits.increment();
+		}
+		return entry.group;
+	}
+
+	private void cache(GroupEntry group, long now) {
+
+		Entry entry = new Entry(group, now + ttlNanos);
+		put(byName, group.getName(), entry, now);
+		put(byGid, group.getGid(), entry, now);
+	}
+
+	private <K> void put(ConcurrentMap<K, Entry> map, K key, Entry entry, long now) {
+
+		if (map.size() >= maximumSize && !map.containsKey(key)) {
+			Iterator<Entry> it = map.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().isExpired(now)) {
+					it.remove();
+				}
+			}
+			if (map.size() >= maximumSize) {
+				return;
+			}
+		}
+		map.put(key, entry);
+	}
+
+	/**
+	 * Drop all the cached answers.
+	 */
+	public void invalidateAll() {
+
+		byName.clear();
+		byGid.clear();
+	}
+
+	/**
+	 * @return The number of cached names, including the negative entries.
+	 */
+	public int size() {
+		return byName.size();
+	}
+
+	/**
+	 * @return The number of lookups answered with a cached group.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of lookups answered with a cached negative entry.
+	 */
+	public long getNegativeHitCount() {
+		return negativeHits.sum();
+	}
+
+	/**
+	 * @return The number of lookups which went to the group database.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "GroupResolver [database=" + database + ", names=" + byName.size() + ", gids=" + byGid.size()
+				+ ", hits=" + getHitCount() + ", negativeHits=" + getNegativeHitCount() + ", misses="
+				+ getMissCount() + "]";
+	}
+
+}
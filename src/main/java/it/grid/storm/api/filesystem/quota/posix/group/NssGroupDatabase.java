@@ -0,0 +1,213 @@
+package it.grid.storm.api.filesystem.quota.posix.group;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+
+/**
+ * The {@link GroupDatabase} of the host, read through the reentrant
+ * getgrnam_r() and getgrgid_r() and the getgrent() enumeration of the
+ * standard C library, mapped with JNA direct mapping.
+ * <p>
+ * Each thread reuses its own native struct group and string buffer, which
+ * grows on ERANGE up to 16 MiB.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class NssGroupDatabase implements GroupDatabase {
+
+	/**
+	 * The initial size of the buffer of the strings of a group.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	/**
+	 * The largest buffer tried before giving up with ERANGE, enough for
+	 * groups with tens of thousands of members.
+	 */
+	private static final int MAXIMUM_BUFFER_SIZE = 1 << 24;
+
+	/**
+	 * The size of the native struct group: gr_name, gr_passwd, gr_gid padded
+	 * to a pointer and gr_mem.
+	 */
+	private static final int GROUP_SIZE = 4 * Pointer.SIZE;
+
+	/**
+	 * The offset of gr_gid into the native struct group.
+	 */
+	private static final int GR_GID_OFFSET = 2 * Pointer.SIZE;
+
+	/**
+	 * The direct mapping of the group database functions.
+	 */
+	private static final class Libc {
+
+		static final boolean AVAILABLE;
+
+		static {
+			boolean available;
+			try {
+				Native.register(Libc.class, "c");
+				available = true;
+			} catch (UnsatisfiedLinkError e) {
+				available = false;
+			}
+			AVAILABLE = available;
+		}
+
+		static native int getgrnam_r(String name, Pointer grp, Pointer buf, NativeLong buflen, Pointer result);
+
+		static native int getgrgid_r(int gid, Pointer grp, Pointer buf, NativeLong buflen, Pointer result);
+
+		static native void setgrent();
+
+		static native Pointer getgrent();
+
+		static native void endgrent();
+	}
+
+	/**
+	 * The native memory of the lookups of a thread.
+	 */
+	private static final class Buffers {
+
+		final Memory group = new Memory(GROUP_SIZE);
+		final Memory result = new Memory(Pointer.SIZE);
+		Memory strings = new Memory(INITIAL_BUFFER_SIZE);
+	}
+
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * getgrent() walks a process-wide cursor.
+	 */
+	private static final Object ENUMERATION_LOCK = new Object();
+
+	/**
+	 * Check if the group database functions of the standard C library could
+	 * be mapped.
+	 *
+	 * @return true if the lookups can be called, false otherwise.
+	 */
+	public static boolean isAvailable() {
+		return Libc.AVAILABLE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.group.GroupDatabase#getGroupByName(java.lang.String)
+	 */
+	@Override
+	public GroupEntry getGroupByName(String name) throws PosixQuotaException {
+
+		Buffers b = BUFFERS.get();
+		while (true) {
+			int errNo = Libc.getgrnam_r(name, b.group, b.strings, new NativeLong(b.strings.size()), b.result);
+			if (errNo != ErrNo.ERANGE || !grow(b)) {
+				return toEntry(b, errNo, "getgrnam_r", name);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.group.GroupDatabase#getGroupById(int)
+	 */
+	@Override
+	public GroupEntry getGroupById(int gid) throws PosixQuotaException {
+
+		Buffers b = BUFFERS.get();
+		while (true) {
+			int errNo = Libc.getgrgid_r(gid, b.group, b.strings, new NativeLong(b.strings.size()), b.result);
+			if (errNo != ErrNo.ERANGE || !grow(b)) {
+				return toEntry(b, errNo, "getgrgid_r", Integer.toUnsignedString(gid));
+			}
+		}
+	}
+
+	private static boolean grow(Buffers b) {
+
+		if (b.strings.size() >= MAXIMUM_BUFFER_SIZE) {
+			return false;
+		}
+		b.strings = new Memory(b.strings.size() * 2);
+		return true;
+	}
+
+	private static GroupEntry toEntry(Buffers b, int errNo, String function, String key)
+			throws PosixQuotaException {
+
+		/* a missing group is either a zero return or one of these errors */
+		if (errNo == 0 || errNo == ErrNo.ENOENT || errNo == ErrNo.ESRCH) {
+			Pointer group = b.result.getPointer(0);
+			return group == null ? null : toEntry(group);
+		}
+		throw new PosixQuotaException(String.format("Unable to look group %s up: %s() failed with [%d]", key,
+				function, errNo), new LastErrorException(errNo));
+	}
+
+	private static GroupEntry toEntry(Pointer group) {
+		return new GroupEntry(group.getPointer(0).getString(0), group.getInt(GR_GID_OFFSET));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.group.GroupDatabase#getAllGroups()
+	 */
+	@Override
+	public List<GroupEntry> getAllGroups() throws PosixQuotaException {
+
+		List<GroupEntry> groups = new ArrayList<GroupEntry>();
+		synchronized (ENUMERATION_LOCK) {
+			Libc.setgrent();
+			try {
+				while (true) {
+					Native.setLastError(0);
+					Pointer group = Libc.getgrent();
+					if (group == null) {
+						int errNo = Native.getLastError();
+						if (errNo != 0 && errNo != ErrNo.ENOENT) {
+							throw new PosixQuotaException(
+									String.format("Unable to enumerate the groups: getgrent() failed with [%d]", errNo),
+									new LastErrorException(errNo));
+						}
+						return groups;
+					}
+					groups.add(toEntry(group));
+				}
+			} finally {
+				Libc.endgrent();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "NssGroupDatabase [available=" + isAvailable() + "]";
+	}
+
+}
@@ -0,0 +1,27 @@
+package it.grid.storm.api.filesystem.quota.posix.history;
+
+/**
+ * How the samples of a time bucket are reduced to one by
+ * {@link UsageHistory#downsample}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public enum Aggregation {
+
+	/**
+	 * The last sample of the bucket: the usage at the end of the bucket.
+	 */
+	LAST,
+
+	/**
+	 * The maximum block usage and the maximum inode usage of the bucket.
+	 */
+	MAX,
+
+	/**
+	 * The mean block usage and the mean inode usage of the samples of the
+	 * bucket.
+	 */
+	MEAN
+}
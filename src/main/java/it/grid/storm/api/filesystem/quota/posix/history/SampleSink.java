@@ -0,0 +1,22 @@
+package it.grid.storm.api.filesystem.quota.posix.history;
+
+/**
+ * A consumer of usage samples, in time order.
+ *
+ * @author Enrico Vianello
+ *
+ */
+interface SampleSink {
+
+	/**
+	 * Consume a sample.
+	 *
+	 * @param timestamp
+	 *            The sample time, in milliseconds since the epoch
+	 * @param blockUsage
+	 *            The block usage, in bytes
+	 * @param iNodesUsage
+	 *            The number of allocated inodes
+	 */
+	void accept(long timestamp, long blockUsage, long iNodesUsage);
+}
@@ -0,0 +1,479 @@
+package it.grid.storm.api.filesystem.quota.posix.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+
+/**
+ * The usage history of (block device, gid) pairs: block usage and inode usage
+ * samples, for accounting and capacity planning.
+ * <p>
+ * The recent samples of each pair are kept into a primitive ring buffer, with
+ * no object per sample. Every {@code blockSamples} samples the ones not yet
+ * persisted are appended as one block to the log file of the pair, delta and
+ * varint encoded: see {@link UsageLog}. Samples older than the ring buffer are
+ * read back from the log, decoding only the blocks which overlap the queried
+ * range.
+ * <p>
+ * The log files are named after the URL-encoded block device and the gid, in
+ * one directory. Samples not yet persisted are lost if {@link #flush()} is not
+ * called before the JVM exits.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class UsageHistory implements Closeable {
+
+	/**
+	 * The default number of recent samples kept in memory per pair.
+	 */
+	public static final int DEFAULT_RING_CAPACITY = 1024;
+
+	/**
+	 * The default number of samples per log block.
+	 */
+	public static final int DEFAULT_BLOCK_SAMPLES = 256;
+
+	private static final String SUFFIX = ".usage";
+
+	private final Path directory;
+	private final int ringCapacity;
+	private final int blockSamples;
+
+	private final ConcurrentMap<GroupQuotaKey, Series> series = new ConcurrentHashMap<GroupQuotaKey, Series>();
+
+	private final LongAdder recorded = new LongAdder();
+	private final LongAdder lost = new LongAdder();
+
+	/**
+	 * Build a history with the default ring capacity and block size.
+	 *
+	 * @param directory
+	 *            The directory of the log files, created if missing
+	 * @throws IOException
+	 */
+	public UsageHistory(Path directory) throws IOException {
+		this(directory, DEFAULT_RING_CAPACITY, DEFAULT_BLOCK_SAMPLES);
+	}
+
+	/**
+	 * UsageHistory constructor.
+	 *
+	 * @param directory
+	 *            The directory of the log files, created if missing
+	 * @param ringCapacity
+	 *            The number of recent samples kept in memory per pair
+	 * @param blockSamples
+	 *            The number of samples per log block, at most
+	 *            {@code ringCapacity}
+	 * @throws IOException
+	 */
+	public UsageHistory(Path directory, int ringCapacity, int blockSamples) throws IOException {
+
+		if (blockSamples <= 0 || ringCapacity < blockSamples) {
+			throw new IllegalArgumentException(
+					"Invalid ring capacity " + ringCapacity + " or block samples " + blockSamples);
+		}
+		this.directory = Files.createDirectories(directory);
+		this.ringCapacity = ringCapacity;
+		this.blockSamples = blockSamples;
+	}
+
+	/**
+	 * Record a sample.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @param timestamp
+	 *            The sample time, in milliseconds since the epoch
+	 * @param blockUsage
+	 *            The block usage, in bytes
+	 * @param iNodesUsage
+	 *            The number of allocated inodes
+	 * @return false if the sample has been ignored because it's not later than
+	 *         the last sample of the pair.
+	 * @throws IOException
+	 *             If the samples to persist can't be appended to the log. They
+	 *             are kept in memory and appended with the next block.
+	 */
+	public boolean record(GroupQuotaKey key, long timestamp, long blockUsage, long iNodesUsage) throws IOException {
+
+		Series s = series(key);
+		synchronized (s) {
+			if (!s.add(timestamp, blockUsage, iNodesUsage)) {
+				return false;
+			}
+			recorded.increment();
+			if (s.pending >= blockSamples) {
+				s.persist();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Record a sample from quota information.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @param timestamp
+	 *            The read time, in milliseconds since the epoch
+	 * @param info
+	 *            The quota information
+	 * @return false if the sample has been ignored because it's not later than
+	 *         the last sample of the pair.
+	 * @throws IOException
+	 */
+	public boolean record(GroupQuotaKey key, long timestamp, PosixQuotaInfo info) throws IOException {
+		return record(key, timestamp, info.getBlockUsage(), info.getINodesUsage());
+	}
+
+	/**
+	 * Get the samples of a time range.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @param from
+	 *            The start of the range, inclusive, in milliseconds since the
+	 *            epoch
+	 * @param to
+	 *            The end of the range, inclusive, in milliseconds since the
+	 *            epoch
+	 * @return The samples, in time order.
+	 * @throws IOException
+	 */
+	public UsageSeries query(GroupQuotaKey key, long from, long to) throws IOException {
+
+		final UsageSeries result = new UsageSeries(64);
+		read(key, from, to, new SampleSink() {
+
+			@Override
+			public void accept(long timestamp, long blockUsage, long iNodesUsage) {
+				result.add(timestamp, blockUsage, iNodesUsage);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Get the samples of a time range, reduced to one per time bucket. The
+	 * samples are aggregated while they are decoded: no intermediate series
+	 * is built.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @param from
+	 *            The start of the range and of the first bucket, inclusive, in
+	 *            milliseconds since the epoch
+	 * @param to
+	 *            The end of the range, inclusive, in milliseconds since the
+	 *            epoch
+	 * @param step
+	 *            The bucket width, in milliseconds
+	 * @param aggregation
+	 *            How the samples of a bucket are reduced
+	 * @return One sample per non-empty bucket, timestamped with the bucket
+	 *         start.
+	 * @throws IOException
+	 */
+	public UsageSeries downsample(GroupQuotaKey key, long from, long to, long step, Aggregation aggregation)
+			throws IOException {
+
+		if (step <= 0) {
+			throw new IllegalArgumentException("Invalid step " + step);
+		}
+		Downsampler downsampler = new Downsampler(from, step, aggregation,
+				new UsageSeries((int) Math.min(1024, (to - from) / step + 1)));
+		read(key, from, to, downsampler);
+		return downsampler.finish();
+	}
+
+	private void read(GroupQuotaKey key, long from, long to, SampleSink sink) throws IOException {
+
+		if (from > to) {
+			return;
+		}
+		Series s = series(key);
+		synchronized (s) {
+			long ringStart = s.size > 0 ? s.timestamps[s.head] : Long.MAX_VALUE;
+			if (from < ringStart) {
+				s.log.read(from, Math.min(to, ringStart - 1), sink);
+			}
+			for (int n = 0; n < s.size; n++) {
+				int k = (s.head + n) % ringCapacity;
+				long t = s.timestamps[k];
+				if (t > to) {
+					break;
+				}
+				if (t >= from) {
+					sink.accept(t, s.blockUsages[k], s.iNodesUsages[k]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append to the logs all the samples not yet persisted.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+
+		IOException failure = null;
+		for (Series s : series.values()) {
+			synchronized (s) {
+				try {
+					s.persist();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Get the pairs with a history, in memory or on disk.
+	 *
+	 * @return The pairs.
+	 * @throws IOException
+	 */
+	public Set<GroupQuotaKey> getKeys() throws IOException {
+
+		Set<GroupQuotaKey> keys = new HashSet<GroupQuotaKey>(series.keySet());
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				GroupQuotaKey key = keyOf(file.getFileName().toString());
+				if (key != null) {
+					keys.add(key);
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Get the size of the log file of a pair.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @return The size of the log, in bytes.
+	 * @throws IOException
+	 */
+	public long getLogSize(GroupQuotaKey key) throws IOException {
+
+		Series s = series(key);
+		synchronized (s) {
+			return s.log.getSize();
+		}
+	}
+
+	/**
+	 * @return The number of samples recorded so far.
+	 */
+	public long getRecordedCount() {
+		return recorded.sum();
+	}
+
+	/**
+	 * @return The number of samples evicted from a ring buffer before they
+	 *         could be appended to the log, because of write failures.
+	 */
+	public long getLostCount() {
+		return lost.sum();
+	}
+
+	private Series series(GroupQuotaKey key) throws IOException {
+
+		Series s = series.get(key);
+		if (s == null) {
+			Series created = new Series(UsageLog.open(directory.resolve(fileName(key))));
+			s = series.putIfAbsent(key, created);
+			if (s == null) {
+				s = created;
+			}
+		}
+		return s;
+	}
+
+	static String fileName(GroupQuotaKey key) {
+
+		try {
+			return URLEncoder.encode(key.getBlockDevice(), "UTF-8") + "." + key.getGid() + SUFFIX;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static GroupQuotaKey keyOf(String fileName) {
+
+		int dot = fileName.lastIndexOf('.', fileName.length() - SUFFIX.length() - 1);
+		if (dot < 0) {
+			return null;
+		}
+		try {
+			String blockDevice = URLDecoder.decode(fileName.substring(0, dot), "UTF-8");
+			int gid = Integer.parseInt(fileName.substring(dot + 1, fileName.length() - SUFFIX.length()));
+			return new GroupQuotaKey(blockDevice, gid);
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reduce the samples, in time order, to one per time bucket.
+	 */
+	private static final class Downsampler implements SampleSink {
+
+		final long from;
+		final long step;
+		final Aggregation aggregation;
+		final UsageSeries result;
+
+		long bucket = -1;
+		long blocks;
+		long inodes;
+		long count;
+
+		Downsampler(long from, long step, Aggregation aggregation, UsageSeries result) {
+			this.from = from;
+			this.step = step;
+			this.aggregation = aggregation;
+			this.result = result;
+		}
+
+		@Override
+		public void accept(long timestamp, long blockUsage, long iNodesUsage) {
+
+			long b = (timestamp - from) / step;
+			if (b != bucket) {
+				emit();
+				bucket = b;
+				blocks = 0;
+				inodes = 0;
+				count = 0;
+			}
+			switch (aggregation) {
+			case LAST:
+				blocks = blockUsage;
+				inodes = iNodesUsage;
+				break;
+			case MAX:
+				blocks = Math.max(blocks, blockUsage);
+				inodes = Math.max(inodes, iNodesUsage);
+				break;
+			case MEAN:
+				blocks += blockUsage;
+				inodes += iNodesUsage;
+				break;
+			}
+			count++;
+		}
+
+		UsageSeries finish() {
+			emit();
+			count = 0;
+			return result;
+		}
+
+		private void emit() {
+
+			if (count == 0) {
+				return;
+			}
+			if (aggregation == Aggregation.MEAN) {
+				result.add(from + bucket * step, blocks / count, inodes / count);
+			} else {
+				result.add(from + bucket * step, blocks, inodes);
+			}
+		}
+	}
+
+	/**
+	 * The ring buffer and the log of a pair, guarded by its monitor.
+	 */
+	private final class Series {
+
+		final UsageLog log;
+		final long[] timestamps = new long[ringCapacity];
+		final long[] blockUsages = new long[ringCapacity];
+		final long[] iNodesUsages = new long[ringCapacity];
+		int head;
+		int size;
+		/* the newest samples which are not in the log yet */
+		int pending;
+		long lastTime;
+
+		Series(UsageLog log) {
+			this.log = log;
+			this.lastTime = log.getLastTime();
+		}
+
+		boolean add(long timestamp, long blockUsage, long iNodesUsage) {
+
+			if (timestamp <= lastTime) {
+				return false;
+			}
+			if (size == ringCapacity) {
+				if (pending == size) {
+					pending--;
+					lost.increment();
+				}
+				head = (head + 1) % ringCapacity;
+				size--;
+			}
+			int k = (head + size) % ringCapacity;
+			timestamps[k] = timestamp;
+			blockUsages[k] = blockUsage;
+			iNodesUsages[k] = iNodesUsage;
+			size++;
+			pending++;
+			lastTime = timestamp;
+			return true;
+		}
+
+		void persist() throws IOException {
+
+			if (pending == 0) {
+				return;
+			}
+			long[] t = new long[pending];
+			long[] b = new long[pending];
+			long[] i = new long[pending];
+			for (int n = 0; n < pending; n++) {
+				int k = (head + size - pending + n) % ringCapacity;
+				t[n] = timestamps[k];
+				b[n] = blockUsages[k];
+				i[n] = iNodesUsages[k];
+			}
+			log.append(t, b, i, pending);
+			pending = 0;
+		}
+	}
+
+}
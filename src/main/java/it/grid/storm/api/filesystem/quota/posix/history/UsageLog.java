@@ -0,0 +1,318 @@
+package it.grid.storm.api.filesystem.quota.posix.history;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only file of the usage samples of a (block device, gid) pair.
+ * <p>
+ * The file is a sequence of blocks, each one a fixed size header followed by
+ * its samples. The header holds the number of samples, the time range of the
+ * block, the payload length and its CRC-32. Each sample is encoded as the
+ * differences of its time, block usage and inode usage from the previous
+ * sample of the block (from zero for the first one), zigzag varint encoded.
+ * A steady group costs a few bytes per sample.
+ * <p>
+ * The block headers are indexed in memory when the file is opened, by
+ * skipping from header to header: a range query only reads and decodes the
+ * blocks which overlap the range. A block torn by a crash during an append
+ * is detected by its CRC and truncated.
+ *
+ * @author Enrico Vianello
+ *
+ */
+final class UsageLog {
+
+	static final int MAGIC = 0x55534731;
+	static final int HEADER_SIZE = 32;
+
+	private final Path path;
+
+	private long[] offsets = new long[16];
+	private long[] firstTimes = new long[16];
+	private long[] lastTimes = new long[16];
+	private int blocks;
+	private long size;
+	private long samples;
+
+	private UsageLog(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Open a log and index its blocks. A missing file is created by the first
+	 * append.
+	 *
+	 * @param path
+	 *            The log file
+	 * @return The log.
+	 * @throws IOException
+	 */
+	static UsageLog open(Path path) throws IOException {
+
+		UsageLog log = new UsageLog(path);
+		if (!Files.exists(path)) {
+			return log;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long fileSize = ch.size();
+			long offset = 0;
+			long lastOffset = -1;
+			int lastLength = 0;
+			int lastCrc = 0;
+			int lastCount = 0;
+			while (offset + HEADER_SIZE <= fileSize) {
+				header.clear();
+				readFully(ch, header, offset);
+				header.flip();
+				int magic = header.getInt();
+				int count = header.getInt();
+				long firstTime = header.getLong();
+				long lastTime = header.getLong();
+				int length = header.getInt();
+				int crc = header.getInt();
+				if (magic != MAGIC || count <= 0 || length <= 0 || offset + HEADER_SIZE + length > fileSize) {
+					break;
+				}
+				log.index(offset, firstTime, lastTime, count);
+				lastOffset = offset;
+				lastLength = length;
+				lastCrc = crc;
+				lastCount = count;
+				offset += HEADER_SIZE + length;
+			}
+			/* only the last block can be torn by a crash during an append */
+			if (lastOffset >= 0) {
+				ByteBuffer payload = ByteBuffer.allocate(lastLength);
+				readFully(ch, payload, lastOffset + HEADER_SIZE);
+				if (crc(payload.array(), lastLength) != lastCrc) {
+					log.blocks--;
+					log.samples -= lastCount;
+					offset = lastOffset;
+				}
+			}
+			log.size = offset;
+			if (offset < fileSize) {
+				ch.truncate(offset);
+			}
+		}
+		return log;
+	}
+
+	private void index(long offset, long firstTime, long lastTime, int count) {
+
+		if (blocks == offsets.length) {
+			offsets = Arrays.copyOf(offsets, blocks * 2);
+			firstTimes = Arrays.copyOf(firstTimes, blocks * 2);
+			lastTimes = Arrays.copyOf(lastTimes, blocks * 2);
+		}
+		offsets[blocks] = offset;
+		firstTimes[blocks] = firstTime;
+		lastTimes[blocks] = lastTime;
+		blocks++;
+		samples += count;
+	}
+
+	/**
+	 * Append a block of samples. The samples must follow, in time order, the
+	 * ones already in the log.
+	 *
+	 * @param timestamps
+	 *            The sample times
+	 * @param blockUsages
+	 *            The block usages
+	 * @param iNodesUsages
+	 *            The inode usages
+	 * @param count
+	 *            The number of samples
+	 * @throws IOException
+	 */
+	void append(long[] timestamps, long[] blockUsages, long[] iNodesUsages, int count) throws IOException {
+
+		if (count == 0) {
+			return;
+		}
+		/* at most 10 bytes per varint, 3 varints per sample */
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * 30);
+		buffer.position(HEADER_SIZE);
+		long t = 0, b = 0, i = 0;
+		for (int k = 0; k < count; k++) {
+			putVarLong(buffer, zigzag(timestamps[k] - t));
+			putVarLong(buffer, zigzag(blockUsages[k] - b));
+			putVarLong(buffer, zigzag(iNodesUsages[k] - i));
+			t = timestamps[k];
+			b = blockUsages[k];
+			i = iNodesUsages[k];
+		}
+		int length = buffer.position() - HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_SIZE, length);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, count);
+		buffer.putLong(8, timestamps[0]);
+		buffer.putLong(16, timestamps[count - 1]);
+		buffer.putInt(24, length);
+		buffer.putInt(28, (int) crc.getValue());
+		buffer.flip();
+
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			long offset = size;
+			while (buffer.hasRemaining()) {
+				offset += ch.write(buffer, offset);
+			}
+		}
+		index(size, timestamps[0], timestamps[count - 1], count);
+		size += HEADER_SIZE + length;
+	}
+
+	/**
+	 * Read the samples of a time range.
+	 *
+	 * @param from
+	 *            The start of the range, inclusive
+	 * @param to
+	 *            The end of the range, inclusive
+	 * @param sink
+	 *            The consumer of the samples
+	 * @throws IOException
+	 */
+	void read(long from, long to, SampleSink sink) throws IOException {
+
+		int first = firstBlockEndingAtOrAfter(from);
+		if (first == blocks || firstTimes[first] > to) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			for (int k = first; k < blocks && firstTimes[k] <= to; k++) {
+				long end = k + 1 < blocks ? offsets[k + 1] : size;
+				int length = (int) (end - offsets[k]);
+				if (buffer.capacity() < length) {
+					buffer = ByteBuffer.allocate(length);
+				}
+				buffer.clear().limit(length);
+				readFully(ch, buffer, offsets[k]);
+				buffer.flip();
+				buffer.position(4);
+				int count = buffer.getInt();
+				buffer.position(HEADER_SIZE);
+				long t = 0, b = 0, i = 0;
+				for (int n = 0; n < count; n++) {
+					t += unzigzag(getVarLong(buffer));
+					b += unzigzag(getVarLong(buffer));
+					i += unzigzag(getVarLong(buffer));
+					if (t > to) {
+						return;
+					}
+					if (t >= from) {
+						sink.accept(t, b, i);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Binary search of the first block whose last sample is not before a
+	 * time.
+	 */
+	private int firstBlockEndingAtOrAfter(long time) {
+
+		int lo = 0, hi = blocks;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (lastTimes[mid] < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return The time of the last sample, or Long.MIN_VALUE if the log is
+	 *         empty.
+	 */
+	long getLastTime() {
+		return blocks == 0 ? Long.MIN_VALUE : lastTimes[blocks - 1];
+	}
+
+	/**
+	 * @return The number of blocks.
+	 */
+	int getBlockCount() {
+		return blocks;
+	}
+
+	/**
+	 * @return The file size, in bytes.
+	 */
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of samples.
+	 */
+	long getSampleCount() {
+		return samples;
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static void putVarLong(ByteBuffer buffer, long v) {
+
+		while ((v & ~0x7FL) != 0) {
+			buffer.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	static long getVarLong(ByteBuffer buffer) {
+
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IllegalStateException("Malformed varint");
+	}
+
+	private static int crc(byte[] bytes, int length) {
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer buffer, long offset) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			int n = ch.read(buffer, offset);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of file at offset " + offset);
+			}
+			offset += n;
+		}
+	}
+
+}
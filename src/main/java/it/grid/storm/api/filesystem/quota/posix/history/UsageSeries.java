@@ -0,0 +1,111 @@
+package it.grid.storm.api.filesystem.quota.posix.history;
+
+import java.util.Arrays;
+
+/**
+ * A time series of usage samples of a (block device, gid) pair, in time order,
+ * stored into primitive columns.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class UsageSeries {
+
+	private long[] timestamps;
+	private long[] blockUsages;
+	private long[] iNodesUsages;
+	private int size;
+
+	UsageSeries(int capacity) {
+
+		timestamps = new long[Math.max(capacity, 8)];
+		blockUsages = new long[timestamps.length];
+		iNodesUsages = new long[timestamps.length];
+	}
+
+	void add(long timestamp, long blockUsage, long iNodesUsage) {
+
+		if (size == timestamps.length) {
+			int capacity = size * 2;
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			blockUsages = Arrays.copyOf(blockUsages, capacity);
+			iNodesUsages = Arrays.copyOf(iNodesUsages, capacity);
+		}
+		timestamps[size] = timestamp;
+		blockUsages[size] = blockUsage;
+		iNodesUsages[size] = iNodesUsage;
+		size++;
+	}
+
+	/**
+	 * @return The number of samples.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if there are no samples.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the time of a sample.
+	 *
+	 * @param i
+	 *            The sample index
+	 * @return The sample time, in milliseconds since the epoch.
+	 */
+	public long getTimestamp(int i) {
+		checkIndex(i);
+		return timestamps[i];
+	}
+
+	/**
+	 * Get the block usage of a sample.
+	 *
+	 * @param i
+	 *            The sample index
+	 * @return The block usage, in bytes.
+	 */
+	public long getBlockUsage(int i) {
+		checkIndex(i);
+		return blockUsages[i];
+	}
+
+	/**
+	 * Get the inode usage of a sample.
+	 *
+	 * @param i
+	 *            The sample index
+	 * @return The number of allocated inodes.
+	 */
+	public long getINodesUsage(int i) {
+		checkIndex(i);
+		return iNodesUsages[i];
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+
+		StringBuilder sb = new StringBuilder("UsageSeries [size=").append(size);
+		if (size > 0) {
+			sb.append(", from=").append(timestamps[0]).append(", to=").append(timestamps[size - 1]);
+		}
+		return sb.append("]").toString();
+	}
+
+}
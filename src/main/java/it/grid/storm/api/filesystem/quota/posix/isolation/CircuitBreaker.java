@@ -0,0 +1,146 @@
+package it.grid.storm.api.filesystem.quota.posix.isolation;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A circuit breaker which stops the calls to a failing resource.
+ * <ul>
+ * <li>{@link State#CLOSED}: calls are allowed. After
+ * {@code failureThreshold} consecutive failures the breaker opens.</li>
+ * <li>{@link State#OPEN}: calls are refused, with no attempt, for
+ * {@code openDuration}.</li>
+ * <li>{@link State#HALF_OPEN}: a single probe call is allowed, the other ones
+ * are refused. The breaker closes if the probe succeeds, and opens again if
+ * it fails.</li>
+ * </ul>
+ * Each allowed call must be followed by {@link #onSuccess()},
+ * {@link #onFailure()} or, if its outcome is unknown, {@link #onAbort()}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class CircuitBreaker {
+
+	/**
+	 * The state of a circuit breaker.
+	 */
+	public enum State {
+
+		/** Calls are allowed. */
+		CLOSED,
+
+		/** Calls are refused. */
+		OPEN,
+
+		/** A probe call is allowed. */
+		HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openNanos;
+
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile long openedAt;
+
+	/**
+	 * CircuitBreaker constructor.
+	 *
+	 * @param failureThreshold
+	 *            The number of consecutive failures which opens the breaker
+	 * @param openDuration
+	 *            How long the breaker stays open before a probe call
+	 */
+	public CircuitBreaker(int failureThreshold, Duration openDuration) {
+
+		if (failureThreshold <= 0 || openDuration.isNegative()) {
+			throw new IllegalArgumentException(
+					"Invalid failure threshold " + failureThreshold + " or open duration " + openDuration);
+		}
+		this.failureThreshold = failureThreshold;
+		this.openNanos = openDuration.toNanos();
+	}
+
+	/**
+	 * Check if a call is allowed.
+	 *
+	 * @return true if the call can be attempted.
+	 */
+	public boolean allow() {
+
+		switch (state.get()) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			/* the first caller after the open duration is the probe */
+			return System.nanoTime() - openedAt >= openNanos && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Record a successful call.
+	 */
+	public void onSuccess() {
+
+		failures.set(0);
+		if (state.get() != State.CLOSED) {
+			state.set(State.CLOSED);
+		}
+	}
+
+	/**
+	 * Record a failed call.
+	 */
+	public void onFailure() {
+
+		if (state.get() == State.HALF_OPEN) {
+			open();
+		} else if (failures.incrementAndGet() >= failureThreshold && state.get() == State.CLOSED) {
+			open();
+		}
+	}
+
+	/**
+	 * Record a call abandoned by its caller, e.g. on an interrupt, which says
+	 * nothing about the resource: it's not a failure. A probe is handed back,
+	 * so that the next call probes again.
+	 */
+	public void onAbort() {
+		/* openedAt is left as it is: the open duration has already elapsed */
+		state.compareAndSet(State.HALF_OPEN, State.OPEN);
+	}
+
+	private void open() {
+		openedAt = System.nanoTime();
+		state.set(State.OPEN);
+	}
+
+	/**
+	 * @return The current state.
+	 */
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * @return The number of consecutive failures.
+	 */
+	public int getFailureCount() {
+		return failures.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CircuitBreaker [state=" + state.get() + ", failures=" + failures.get() + "]";
+	}
+
+}
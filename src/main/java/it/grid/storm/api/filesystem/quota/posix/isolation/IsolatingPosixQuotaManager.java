@@ -0,0 +1,555 @@
+package it.grid.storm.api.filesystem.quota.posix.isolation;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import com.sun.jna.LastErrorException;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaEntry;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotaTable;
+import it.grid.storm.api.filesystem.quota.posix.QuotaVisitor;
+import it.grid.storm.api.filesystem.quota.posix.UncheckedPosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupResolver;
+import it.grid.storm.api.filesystem.quota.posix.isolation.CircuitBreaker.State;
+
+/**
+ * A {@link PosixQuotaManager} decorator which isolates the block devices from
+ * each other, so that a device with a hung or failing quota file can't take
+ * all the caller threads.
+ * <p>
+ * Each block device has its own bulkhead: the quota reads run on at most
+ * {@code maxConcurrent} dedicated worker threads, with at most
+ * {@code queueCapacity} reads waiting for a worker. The caller waits for at
+ * most {@code callTimeout}, queue time included. A call stuck in the kernel
+ * can't be interrupted: it keeps its worker busy until it returns, and once
+ * all the workers of the device are stuck its reads are refused at once.
+ * <p>
+ * Each block device has its own {@link CircuitBreaker}: timeouts, refused
+ * reads and quotactl() failures other than ESRCH are failures, while an
+ * interrupted caller is not. Once it's open
+ * the reads of the device fail immediately, until a probe read succeeds.
+ * <p>
+ * The failures of the isolation are reported as quotactl() failures, with no
+ * call made: EAGAIN when the read is refused by the bulkhead or the circuit
+ * breaker, ETIMEDOUT when it doesn't complete in time, EINTR when the caller
+ * is interrupted while waiting. The enumeration methods, which call quotactl()
+ * while the caller consumes the results, run on the caller thread and are
+ * only refused while the circuit breaker is open.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class IsolatingPosixQuotaManager extends PosixQuotaManager {
+
+	/**
+	 * The isolation of a read, as an error code. It carries no stack trace.
+	 */
+	private static final class IsolationException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		final int errNo;
+
+		IsolationException(int errNo) {
+			super(null, null, false, false);
+			this.errNo = errNo;
+		}
+	}
+
+	/**
+	 * The bulkhead and the circuit breaker of a block device.
+	 */
+	private final class Device {
+
+		final ThreadPoolExecutor executor;
+		final CircuitBreaker breaker;
+
+		Device(String blockDevice) {
+
+			BlockingQueue<Runnable> queue = queueCapacity == 0 ? new SynchronousQueue<Runnable>()
+					: new ArrayBlockingQueue<Runnable>(queueCapacity);
+			executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS, queue,
+					new DaemonThreadFactory("quotactl-" + blockDevice));
+			breaker = new CircuitBreaker(failureThreshold, openDuration);
+		}
+	}
+
+	private final PosixQuotaManager delegate;
+	private final int maxConcurrent;
+	private final int queueCapacity;
+	private final long callTimeoutNanos;
+	private final int failureThreshold;
+	private final Duration openDuration;
+
+	private final ConcurrentMap<String, Device> devices = new ConcurrentHashMap<String, Device>();
+
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder shortCircuited = new LongAdder();
+
+	/**
+	 * Build an isolating manager whose circuit breakers open after 5
+	 * consecutive failures, for 30 seconds.
+	 *
+	 * @param delegate
+	 *            The decorated manager
+	 * @param maxConcurrent
+	 *            The maximum number of concurrent reads per block device
+	 * @param callTimeout
+	 *            The maximum time a caller waits for a read
+	 */
+	public IsolatingPosixQuotaManager(PosixQuotaManager delegate, int maxConcurrent, Duration callTimeout) {
+		this(delegate, maxConcurrent, 4 * maxConcurrent, callTimeout, 5, Duration.ofSeconds(30));
+	}
+
+	/**
+	 * IsolatingPosixQuotaManager constructor.
+	 *
+	 * @param delegate
+	 *            The decorated manager
+	 * @param maxConcurrent
+	 *            The maximum number of concurrent reads per block device
+	 * @param queueCapacity
+	 *            The maximum number of reads waiting for a worker per block
+	 *            device, 0 for none
+	 * @param callTimeout
+	 *            The maximum time a caller waits for a read
+	 * @param failureThreshold
+	 *            The number of consecutive failures which opens the circuit
+	 *            breaker of a block device
+	 * @param openDuration
+	 *            How long a circuit breaker stays open before a probe read
+	 */
+	public IsolatingPosixQuotaManager(PosixQuotaManager delegate, int maxConcurrent, int queueCapacity,
+			Duration callTimeout, int failureThreshold, Duration openDuration) {
+
+		super(delegate.getBinding(), delegate.getBackend());
+		if (maxConcurrent <= 0 || queueCapacity < 0) {
+			throw new IllegalArgumentException(
+					"Invalid maximum concurrency " + maxConcurrent + " or queue capacity " + queueCapacity);
+		}
+		if (callTimeout.isNegative() || callTimeout.isZero()) {
+			throw new IllegalArgumentException("Invalid call timeout " + callTimeout);
+		}
+		if (failureThreshold <= 0 || openDuration.isNegative()) {
+			throw new IllegalArgumentException(
+					"Invalid failure threshold " + failureThreshold + " or open duration " + openDuration);
+		}
+		this.delegate = delegate;
+		this.maxConcurrent = maxConcurrent;
+		this.queueCapacity = queueCapacity;
+		this.callTimeoutNanos = callTimeout.toNanos();
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+
+	private Device device(String blockDevice) {
+
+		Device d = devices.get(blockDevice);
+		if (d == null) {
+			Device created = new Device(blockDevice);
+			d = devices.putIfAbsent(blockDevice, created);
+			if (d == null) {
+				d = created;
+			} else {
+				created.executor.shutdown();
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Run a read on the workers of a block device, within the call timeout.
+	 * The outcome of a completed read is left to the caller to record.
+	 */
+	private <T> T execute(Device d, Callable<T> read) throws IsolationException, ExecutionException {
+
+		if (!d.breaker.allow()) {
+			shortCircuited.increment();
+			throw new IsolationException(ErrNo.EAGAIN);
+		}
+		Future<T> future;
+		try {
+			future = d.executor.submit(read);
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			d.breaker.onFailure();
+			throw new IsolationException(ErrNo.EAGAIN);
+		}
+		try {
+			return future.get(callTimeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			/* a queued read is dropped, a running one can't be interrupted */
+			future.cancel(true);
+			timeouts.increment();
+			d.breaker.onFailure();
+			throw new IsolationException(ErrNo.ETIMEDOUT);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			/* not the device's fault, but a probe must not leave the breaker half open */
+			d.breaker.onAbort();
+			throw new IsolationException(ErrNo.EINTR);
+		} catch (ExecutionException e) {
+			if (!(e.getCause() instanceof PosixQuotaException)) {
+				d.breaker.onFailure();
+			}
+			throw e;
+		}
+	}
+
+	private static void record(CircuitBreaker breaker, int errNo) {
+
+		if (errNo == 0 || errNo == ErrNo.ESRCH) {
+			breaker.onSuccess();
+		} else {
+			breaker.onFailure();
+		}
+	}
+
+	private static int errNoOf(PosixQuotaException e) {
+
+		if (e.getCause() instanceof LastErrorException) {
+			return ((LastErrorException) e.getCause()).getErrorCode();
+		}
+		return ErrNo.EIO;
+	}
+
+	/**
+	 * Unwrap the failure of a read: a quota exception is recorded and
+	 * rethrown, anything else is rethrown unchecked.
+	 */
+	private static PosixQuotaException unwrap(CircuitBreaker breaker, ExecutionException e) {
+
+		Throwable cause = e.getCause();
+		if (cause instanceof PosixQuotaException) {
+			PosixQuotaException pqe = (PosixQuotaException) cause;
+			record(breaker, errNoOf(pqe));
+			return pqe;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		throw new IllegalStateException(cause);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaInfo getGroupQuota(final String blockDevice, final int gid) throws PosixQuotaException {
+
+		Device d = device(blockDevice);
+		try {
+			PosixQuotaInfo info = execute(d, new Callable<PosixQuotaInfo>() {
+
+				@Override
+				public PosixQuotaInfo call() throws PosixQuotaException {
+					return delegate.getGroupQuota(blockDevice, gid);
+				}
+			});
+			d.breaker.onSuccess();
+			return info;
+		} catch (IsolationException e) {
+			throw PosixQuotaResult.failure(blockDevice, gid, e.errNo).toException();
+		} catch (ExecutionException e) {
+			throw unwrap(d.breaker, e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#readGroupQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaResult readGroupQuota(final String blockDevice, final int gid) {
+
+		Device d = device(blockDevice);
+		try {
+			PosixQuotaResult result = execute(d, new Callable<PosixQuotaResult>() {
+
+				@Override
+				public PosixQuotaResult call() {
+					return delegate.readGroupQuota(blockDevice, gid);
+				}
+			});
+			record(d.breaker, result.getErrorCode());
+			return result;
+		} catch (IsolationException e) {
+			return PosixQuotaResult.failure(blockDevice, gid, e.errNo);
+		} catch (ExecutionException e) {
+			unwrap(d.breaker, e);
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Read the group quota on the worker of the block device, then copy it
+	 * into the holder on the calling thread: a worker which outlives the
+	 * timeout never writes into a holder its caller has already reused. The
+	 * read through the worker allocates, unlike the decorated method.
+	 *
+	 * @see PosixQuotaManager#readGroupQuota(String, int, MutableQuotaInfo, int)
+	 */
+	@Override
+	public int readGroupQuota(String blockDevice, int gid, MutableQuotaInfo holder, int fields) {
+
+		holder.set(readGroupQuota(blockDevice, gid), fields);
+		return holder.getErrorCode();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getProjectQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaInfo getProjectQuota(final String blockDevice, final int projid) throws PosixQuotaException {
+
+		Device d = device(blockDevice);
+		try {
+			PosixQuotaInfo info = execute(d, new Callable<PosixQuotaInfo>() {
+
+				@Override
+				public PosixQuotaInfo call() throws PosixQuotaException {
+					return delegate.getProjectQuota(blockDevice, projid);
+				}
+			});
+			d.breaker.onSuccess();
+			return info;
+		} catch (IsolationException e) {
+			throw newQuotaException(blockDevice, "project id", projid, new LastErrorException(e.errNo));
+		} catch (ExecutionException e) {
+			throw unwrap(d.breaker, e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupQuotas(java.lang.String, int[])
+	 */
+	@Override
+	public PosixQuotaBatch getGroupQuotas(final String blockDevice, final int[] gids) {
+
+		Device d = device(blockDevice);
+		try {
+			PosixQuotaBatch batch = execute(d, new Callable<PosixQuotaBatch>() {
+
+				@Override
+				public PosixQuotaBatch call() {
+					return delegate.getGroupQuotas(blockDevice, gids);
+				}
+			});
+			/* the device works if any gid has been read */
+			int errNo = batch.size() == 0 ? 0 : batch.getErrorCode(0);
+			for (int i = 1; i < batch.size() && errNo != 0 && errNo != ErrNo.ESRCH; i++) {
+				errNo = batch.getErrorCode(i);
+			}
+			record(d.breaker, errNo);
+			return batch;
+		} catch (IsolationException e) {
+			return PosixQuotaBatch.failure(blockDevice, gids, e.errNo);
+		} catch (ExecutionException e) {
+			unwrap(d.breaker, e);
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private void checkBreaker(String blockDevice) throws PosixQuotaException {
+
+		if (device(blockDevice).breaker.getState() == State.OPEN) {
+			shortCircuited.increment();
+			throw new PosixQuotaException("Unable to enumerate quota information for device " + blockDevice
+					+ ": circuit breaker open", new LastErrorException(ErrNo.EAGAIN));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#streamGroupQuotas(java.lang.String)
+	 */
+	@Override
+	public Stream<PosixQuotaEntry> streamGroupQuotas(String blockDevice) {
+
+		try {
+			checkBreaker(blockDevice);
+		} catch (PosixQuotaException e) {
+			throw new UncheckedPosixQuotaException(e);
+		}
+		return delegate.streamGroupQuotas(blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#streamUserQuotas(java.lang.String)
+	 */
+	@Override
+	public Stream<PosixQuotaEntry> streamUserQuotas(String blockDevice) {
+
+		try {
+			checkBreaker(blockDevice);
+		} catch (PosixQuotaException e) {
+			throw new UncheckedPosixQuotaException(e);
+		}
+		return delegate.streamUserQuotas(blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#loadGroupQuotas(java.lang.String, it.grid.storm.api.filesystem.quota.posix.QuotaTable)
+	 */
+	@Override
+	public void loadGroupQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+
+		checkBreaker(blockDevice);
+		delegate.loadGroupQuotas(blockDevice, table);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#loadUserQuotas(java.lang.String, it.grid.storm.api.filesystem.quota.posix.QuotaTable)
+	 */
+	@Override
+	public void loadUserQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+
+		checkBreaker(blockDevice);
+		delegate.loadUserQuotas(blockDevice, table);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#forEachGroupQuota(java.lang.String, it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo, it.grid.storm.api.filesystem.quota.posix.QuotaVisitor)
+	 */
+	@Override
+	public long forEachGroupQuota(String blockDevice, MutableQuotaInfo holder, QuotaVisitor visitor)
+			throws PosixQuotaException {
+
+		checkBreaker(blockDevice);
+		return delegate.forEachGroupQuota(blockDevice, holder, visitor);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupResolver()
+	 */
+	@Override
+	public GroupResolver getGroupResolver() {
+		return delegate.getGroupResolver();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#setGroupResolver(it.grid.storm.api.filesystem.quota.posix.group.GroupResolver)
+	 */
+	@Override
+	public void setGroupResolver(GroupResolver groupResolver) {
+		delegate.setGroupResolver(groupResolver);
+	}
+
+	/**
+	 * Stop the workers of all the block devices. Reads already running are
+	 * completed.
+	 */
+	public void shutdown() {
+
+		for (Device d : devices.values()) {
+			d.executor.shutdown();
+		}
+	}
+
+	/**
+	 * Get the circuit breaker state of a block device.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The state, {@link State#CLOSED} if the device has not been read.
+	 */
+	public State getCircuitState(String blockDevice) {
+
+		Device d = devices.get(blockDevice);
+		return d == null ? State.CLOSED : d.breaker.getState();
+	}
+
+	/**
+	 * Get the number of reads running or waiting for a worker on a block
+	 * device.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The number of reads.
+	 */
+	public int getPendingCount(String blockDevice) {
+
+		Device d = devices.get(blockDevice);
+		return d == null ? 0 : d.executor.getActiveCount() + d.executor.getQueue().size();
+	}
+
+	/**
+	 * @return The number of reads which didn't complete in time.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return The number of reads refused because the bulkhead was full.
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return The number of reads refused because the circuit breaker was
+	 *         open.
+	 */
+	public long getShortCircuitedCount() {
+		return shortCircuited.sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "IsolatingPosixQuotaManager [devices=" + devices.size() + ", timeouts=" + getTimeoutCount()
+				+ ", rejected=" + getRejectedCount() + ", shortCircuited=" + getShortCircuitedCount() + "]";
+	}
+
+}
@@ -0,0 +1,66 @@
+package it.grid.storm.api.filesystem.quota.posix.ledger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+
+/**
+ * Space reserved on the block quota of a (block device, gid) pair by
+ * {@link ReservationLedger#reserve(String, int, long)}, until it's committed
+ * or released.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class Reservation {
+
+	private final GroupQuotaKey key;
+	private final long bytes;
+	private final AtomicBoolean settled = new AtomicBoolean();
+
+	Reservation(GroupQuotaKey key, long bytes) {
+		this.key = key;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Mark the reservation as committed or released.
+	 *
+	 * @return false if it already was.
+	 */
+	boolean settle() {
+		return settled.compareAndSet(false, true);
+	}
+
+	/**
+	 * @return The (block device, gid) pair.
+	 */
+	public GroupQuotaKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The reserved bytes.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return true if the reservation has been committed or released.
+	 */
+	public boolean isSettled() {
+		return settled.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Reservation [key=" + key + ", bytes=" + bytes + ", settled=" + settled.get() + "]";
+	}
+
+}
@@ -0,0 +1,427 @@
+package it.grid.storm.api.filesystem.quota.posix.ledger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+
+/**
+ * An admission check of uploads against the block hard limit of a (block
+ * device, gid) pair, with no quotactl() call per check.
+ * <p>
+ * The ledger combines the last kernel reading of each pair with the space
+ * reserved by the uploads in progress and the space committed by the uploads
+ * completed since that reading, both kept in {@link LongAdder} counters.
+ * {@link #canAllocate(String, int, long)} is a map lookup and a few counter
+ * sums. {@link #reserve(String, int, long)} adds the reservation first and
+ * checks the limit afterwards, rolling back on failure: two concurrent
+ * reservations can't both exceed the limit, at worst both are refused.
+ * <p>
+ * The readings are re-synced every {@code resyncInterval} with one
+ * {@link PosixQuotaManager#getGroupQuotas(String, int[])} call per block
+ * device. The space committed before a re-sync started is then accounted by
+ * the kernel, and dropped from the ledger. While an upload is written the
+ * kernel accounts the bytes written, and its reservation all of them: the
+ * ledger errs on the side of refusing.
+ * <p>
+ * A pair is read synchronously the first time it's checked. Pairs with no
+ * quota (ESRCH) have no limit; pairs whose first read fails are refused,
+ * and the failure is kept for {@code failureTtl}: meanwhile they're refused
+ * with no quotactl() call, then read again at the next check.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class ReservationLedger {
+
+	/**
+	 * The default time-to-live of a failed first read.
+	 */
+	public static final Duration DEFAULT_FAILURE_TTL = Duration.ofSeconds(5);
+
+	/**
+	 * The ledger of a pair.
+	 */
+	private static final class Account {
+
+		final GroupQuotaKey key;
+		/* block usage in bytes at the last reading */
+		volatile long usage;
+		/* block hard limit in bytes, 0 for none */
+		volatile long limit;
+		final LongAdder reserved = new LongAdder();
+		final LongAdder committed = new LongAdder();
+
+		Account(GroupQuotaKey key) {
+			this.key = key;
+		}
+
+		void set(PosixQuotaInfo info) {
+			usage = info.getBlockUsage();
+			limit = info.getBlockHardLimit() * PosixQuotaInfo.QIF_DQBLKSIZE;
+		}
+
+		void setNoQuota() {
+			usage = 0;
+			limit = 0;
+		}
+
+		long used() {
+			return usage + committed.sum() + reserved.sum();
+		}
+	}
+
+	private final PosixQuotaManager pqm;
+	private final long resyncIntervalNanos;
+	private final long failureTtlNanos;
+
+	private final ConcurrentMap<GroupQuotaKey, Account> accounts = new ConcurrentHashMap<GroupQuotaKey, Account>();
+	/* the time until which the failed first read of a pair is kept */
+	private final ConcurrentMap<GroupQuotaKey, Long> failedUntil = new ConcurrentHashMap<GroupQuotaKey, Long>();
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor(new DaemonThreadFactory("quota-ledger"));
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder refused = new LongAdder();
+	private final LongAdder resyncs = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * Build a ledger which keeps the failed first reads for
+	 * {@link #DEFAULT_FAILURE_TTL}.
+	 *
+	 * @param pqm
+	 *            The manager used to read the quota information
+	 * @param resyncInterval
+	 *            The period of the re-syncs with the kernel readings
+	 */
+	public ReservationLedger(PosixQuotaManager pqm, Duration resyncInterval) {
+		this(pqm, resyncInterval, DEFAULT_FAILURE_TTL);
+	}
+
+	/**
+	 * ReservationLedger constructor.
+	 *
+	 * @param pqm
+	 *            The manager used to read the quota information
+	 * @param resyncInterval
+	 *            The period of the re-syncs with the kernel readings
+	 * @param failureTtl
+	 *            How long the pairs whose first read failed are refused
+	 *            before being read again
+	 */
+	public ReservationLedger(PosixQuotaManager pqm, Duration resyncInterval, Duration failureTtl) {
+
+		if (resyncInterval.isNegative() || resyncInterval.isZero()) {
+			throw new IllegalArgumentException("Invalid resync interval " + resyncInterval);
+		}
+		if (failureTtl.isNegative()) {
+			throw new IllegalArgumentException("Invalid failure ttl " + failureTtl);
+		}
+		this.pqm = pqm;
+		this.resyncIntervalNanos = resyncInterval.toNanos();
+		this.failureTtlNanos = failureTtl.toNanos();
+	}
+
+	/**
+	 * Start the periodic re-syncs.
+	 */
+	public void start() {
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					resync();
+				} catch (RuntimeException e) {
+					/* a failed re-sync must not cancel the next ones */
+					failures.increment();
+				}
+			}
+		}, resyncIntervalNanos, resyncIntervalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stop the periodic re-syncs. The ledger still answers, from the last
+	 * readings.
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Check if some bytes can be written without exceeding the block hard
+	 * limit. Nothing is reserved: see {@link #reserve(String, int, long)}.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @param bytes
+	 *            The bytes to write
+	 * @return true if they fit, or if the pair has no quota.
+	 */
+	public boolean canAllocate(String blockDevice, int gid, long bytes) {
+
+		Account a = account(blockDevice, gid);
+		if (a == null) {
+			return false;
+		}
+		long limit = a.limit;
+		return limit == 0 || a.used() + bytes <= limit;
+	}
+
+	/**
+	 * Reserve space for an upload, if it fits.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @param bytes
+	 *            The bytes to reserve
+	 * @return The reservation, to be committed or released, or null if the
+	 *         bytes don't fit.
+	 */
+	public Reservation reserve(String blockDevice, int gid, long bytes) {
+
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Negative reservation " + bytes);
+		}
+		Account a = account(blockDevice, gid);
+		if (a == null) {
+			refused.increment();
+			return null;
+		}
+		a.reserved.add(bytes);
+		long limit = a.limit;
+		if (limit != 0 && a.used() > limit) {
+			a.reserved.add(-bytes);
+			refused.increment();
+			return null;
+		}
+		admitted.increment();
+		return new Reservation(a.key, bytes);
+	}
+
+	/**
+	 * Commit a reservation: the upload completed and the bytes it wrote are
+	 * accounted by the ledger until the next re-sync.
+	 *
+	 * @param reservation
+	 *            The reservation
+	 * @param bytesWritten
+	 *            The bytes actually written, which may differ from the
+	 *            reserved ones
+	 */
+	public void commit(Reservation reservation, long bytesWritten) {
+
+		if (!reservation.settle()) {
+			throw new IllegalStateException("Already settled: " + reservation);
+		}
+		Account a = accounts.get(reservation.getKey());
+		a.reserved.add(-reservation.getBytes());
+		a.committed.add(bytesWritten);
+	}
+
+	/**
+	 * Commit a reservation whose bytes have all been written.
+	 *
+	 * @param reservation
+	 *            The reservation
+	 */
+	public void commit(Reservation reservation) {
+		commit(reservation, reservation.getBytes());
+	}
+
+	/**
+	 * Release a reservation: the upload failed or has been aborted, and wrote
+	 * nothing which is left on disk.
+	 *
+	 * @param reservation
+	 *            The reservation
+	 */
+	public void release(Reservation reservation) {
+
+		if (!reservation.settle()) {
+			throw new IllegalStateException("Already settled: " + reservation);
+		}
+		accounts.get(reservation.getKey()).reserved.add(-reservation.getBytes());
+	}
+
+	/**
+	 * Re-sync all the pairs with the kernel readings now.
+	 */
+	public void resync() {
+
+		Map<String, List<Account>> byDevice = new LinkedHashMap<String, List<Account>>();
+		for (Account a : accounts.values()) {
+			List<Account> list = byDevice.get(a.key.getBlockDevice());
+			if (list == null) {
+				list = new ArrayList<Account>();
+				byDevice.put(a.key.getBlockDevice(), list);
+			}
+			list.add(a);
+		}
+		for (Map.Entry<String, List<Account>> e : byDevice.entrySet()) {
+			resync(e.getKey(), e.getValue());
+		}
+		resyncs.increment();
+	}
+
+	private void resync(String blockDevice, List<Account> list) {
+
+		int[] gids = new int[list.size()];
+		long[] committedBefore = new long[gids.length];
+		for (int i = 0; i < gids.length; i++) {
+			gids[i] = list.get(i).key.getGid();
+			committedBefore[i] = list.get(i).committed.sum();
+		}
+
+		PosixQuotaBatch batch = pqm.getGroupQuotas(blockDevice, gids);
+
+		for (int i = 0; i < gids.length; i++) {
+			Account a = list.get(i);
+			if (batch.isSuccess(i)) {
+				a.set(batch.getQuotaInfo(i));
+			} else if (batch.getErrorCode(i) == ErrNo.ESRCH) {
+				a.setNoQuota();
+			} else {
+				failures.increment();
+				continue;
+			}
+			/* counted twice between the two writes: never under-counted */
+			a.committed.add(-committedBefore[i]);
+		}
+	}
+
+	/**
+	 * Get the account of a pair, reading it the first time, or null if the
+	 * read failed less than a failure time-to-live ago.
+	 */
+	private Account account(String blockDevice, int gid) {
+
+		GroupQuotaKey key = new GroupQuotaKey(blockDevice, gid);
+		Account a = accounts.get(key);
+		if (a != null) {
+			return a;
+		}
+		Long until = failedUntil.get(key);
+		if (until != null) {
+			if (System.nanoTime() - until < 0) {
+				return null;
+			}
+			failedUntil.remove(key, until);
+		}
+		PosixQuotaResult result = pqm.readGroupQuota(blockDevice, gid);
+		a = new Account(key);
+		if (result.isOk()) {
+			a.set(result.getQuotaInfo());
+		} else if (result.isNoQuota()) {
+			a.setNoQuota();
+		} else {
+			failures.increment();
+			failedUntil.put(key, System.nanoTime() + failureTtlNanos);
+			return null;
+		}
+		Account existing = accounts.putIfAbsent(key, a);
+		return existing == null ? a : existing;
+	}
+
+	/**
+	 * Get the bytes which can still be reserved.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @return The available bytes, Long.MAX_VALUE if the pair has no quota, 0
+	 *         if it can't be read.
+	 */
+	public long getAvailable(String blockDevice, int gid) {
+
+		Account a = account(blockDevice, gid);
+		if (a == null) {
+			return 0;
+		}
+		long limit = a.limit;
+		return limit == 0 ? Long.MAX_VALUE : Math.max(0, limit - a.used());
+	}
+
+	/**
+	 * Get the bytes reserved by the uploads in progress.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @return The reserved bytes.
+	 */
+	public long getReserved(String blockDevice, int gid) {
+
+		Account a = accounts.get(new GroupQuotaKey(blockDevice, gid));
+		return a == null ? 0 : a.reserved.sum();
+	}
+
+	/**
+	 * Get the bytes committed since the last re-sync.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @return The committed bytes.
+	 */
+	public long getCommitted(String blockDevice, int gid) {
+
+		Account a = accounts.get(new GroupQuotaKey(blockDevice, gid));
+		return a == null ? 0 : a.committed.sum();
+	}
+
+	/**
+	 * @return The number of reservations admitted so far.
+	 */
+	public long getAdmittedCount() {
+		return admitted.sum();
+	}
+
+	/**
+	 * @return The number of reservations refused so far.
+	 */
+	public long getRefusedCount() {
+		return refused.sum();
+	}
+
+	/**
+	 * @return The number of re-syncs run so far.
+	 */
+	public long getResyncCount() {
+		return resyncs.sum();
+	}
+
+	/**
+	 * @return The number of failed reads so far. A check refused because of
+	 *         a failure still kept doesn't count.
+	 */
+	public long getFailureCount() {
+		return failures.sum();
+	}
+
+}
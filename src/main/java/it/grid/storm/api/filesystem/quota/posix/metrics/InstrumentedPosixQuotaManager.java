@@ -0,0 +1,252 @@
+package it.grid.storm.api.filesystem.quota.posix.metrics;
+
+import java.util.stream.Stream;
+
+import com.sun.jna.LastErrorException;
+
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaEntry;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotaTable;
+import it.grid.storm.api.filesystem.quota.posix.QuotaVisitor;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupResolver;
+
+/**
+ * A {@link PosixQuotaManager} decorator which records the latency, the number
+ * of in-flight calls and the error codes of the quota reads into the
+ * {@link QuotactlMetrics} of the block device.
+ * <p>
+ * A batch read with {@link #getGroupQuotas(String, int[])} is recorded as
+ * one call per gid, whose latency is the mean one of the batch. The
+ * enumeration methods, whose calls are spread over the consumption of the
+ * stream or table, are forwarded without being recorded.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class InstrumentedPosixQuotaManager extends PosixQuotaManager {
+
+	/**
+	 * The error code recorded for failures which don't carry one.
+	 */
+	private static final int UNKNOWN_ERRNO = -1;
+
+	private final PosixQuotaManager delegate;
+	private final QuotactlMetricsRegistry registry;
+
+	/**
+	 * InstrumentedPosixQuotaManager constructor.
+	 *
+	 * @param delegate
+	 *            The decorated manager
+	 * @param registry
+	 *            The registry of the metrics of each block device
+	 */
+	public InstrumentedPosixQuotaManager(PosixQuotaManager delegate, QuotactlMetricsRegistry registry) {
+
+		super(delegate.getBinding(), delegate.getBackend());
+		this.delegate = delegate;
+		this.registry = registry;
+	}
+
+	/**
+	 * Get the registry of the metrics of each block device.
+	 *
+	 * @return The registry.
+	 */
+	public QuotactlMetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	private static int errNoOf(PosixQuotaException e) {
+
+		if (e.getCause() instanceof LastErrorException) {
+			return ((LastErrorException) e.getCause()).getErrorCode();
+		}
+		return UNKNOWN_ERRNO;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaInfo getGroupQuota(String blockDevice, int gid) throws PosixQuotaException {
+
+		QuotactlMetrics metrics = registry.forDevice(blockDevice);
+		long start = metrics.start();
+		int errNo = UNKNOWN_ERRNO;
+		try {
+			PosixQuotaInfo info = delegate.getGroupQuota(blockDevice, gid);
+			errNo = 0;
+			return info;
+		} catch (PosixQuotaException e) {
+			errNo = errNoOf(e);
+			throw e;
+		} finally {
+			metrics.stop(start, errNo);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#readGroupQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+		QuotactlMetrics metrics = registry.forDevice(blockDevice);
+		long start = metrics.start();
+		int errNo = UNKNOWN_ERRNO;
+		try {
+			PosixQuotaResult result = delegate.readGroupQuota(blockDevice, gid);
+			errNo = result.getErrorCode();
+			return result;
+		} finally {
+			metrics.stop(start, errNo);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#readGroupQuota(java.lang.String, int, it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo, int)
+	 */
+	@Override
+	public int readGroupQuota(String blockDevice, int gid, MutableQuotaInfo holder, int fields) {
+
+		QuotactlMetrics metrics = registry.forDevice(blockDevice);
+		long start = metrics.start();
+		int errNo = UNKNOWN_ERRNO;
+		try {
+			errNo = delegate.readGroupQuota(blockDevice, gid, holder, fields);
+			return errNo;
+		} finally {
+			metrics.stop(start, errNo);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getProjectQuota(java.lang.String, int)
+	 */
+	@Override
+	public PosixQuotaInfo getProjectQuota(String blockDevice, int projid) throws PosixQuotaException {
+
+		QuotactlMetrics metrics = registry.forDevice(blockDevice);
+		long start = metrics.start();
+		int errNo = UNKNOWN_ERRNO;
+		try {
+			PosixQuotaInfo info = delegate.getProjectQuota(blockDevice, projid);
+			errNo = 0;
+			return info;
+		} catch (PosixQuotaException e) {
+			errNo = errNoOf(e);
+			throw e;
+		} finally {
+			metrics.stop(start, errNo);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupQuotas(java.lang.String, int[])
+	 */
+	@Override
+	public PosixQuotaBatch getGroupQuotas(String blockDevice, int[] gids) {
+
+		QuotactlMetrics metrics = registry.forDevice(blockDevice);
+		long start = metrics.start();
+		PosixQuotaBatch batch = null;
+		try {
+			batch = delegate.getGroupQuotas(blockDevice, gids);
+			return batch;
+		} finally {
+			if (batch == null || gids.length == 0) {
+				metrics.stop(start, batch == null ? UNKNOWN_ERRNO : 0);
+			} else {
+				metrics.stopBatch(start, batch);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#streamGroupQuotas(java.lang.String)
+	 */
+	@Override
+	public Stream<PosixQuotaEntry> streamGroupQuotas(String blockDevice) {
+		return delegate.streamGroupQuotas(blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#streamUserQuotas(java.lang.String)
+	 */
+	@Override
+	public Stream<PosixQuotaEntry> streamUserQuotas(String blockDevice) {
+		return delegate.streamUserQuotas(blockDevice);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#loadGroupQuotas(java.lang.String, it.grid.storm.api.filesystem.quota.posix.QuotaTable)
+	 */
+	@Override
+	public void loadGroupQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+		delegate.loadGroupQuotas(blockDevice, table);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#loadUserQuotas(java.lang.String, it.grid.storm.api.filesystem.quota.posix.QuotaTable)
+	 */
+	@Override
+	public void loadUserQuotas(String blockDevice, QuotaTable table) throws PosixQuotaException {
+		delegate.loadUserQuotas(blockDevice, table);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#forEachGroupQuota(java.lang.String, it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo, it.grid.storm.api.filesystem.quota.posix.QuotaVisitor)
+	 */
+	@Override
+	public long forEachGroupQuota(String blockDevice, MutableQuotaInfo holder, QuotaVisitor visitor)
+			throws PosixQuotaException {
+		return delegate.forEachGroupQuota(blockDevice, holder, visitor);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#getGroupResolver()
+	 */
+	@Override
+	public GroupResolver getGroupResolver() {
+		return delegate.getGroupResolver();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager#setGroupResolver(it.grid.storm.api.filesystem.quota.posix.group.GroupResolver)
+	 */
+	@Override
+	public void setGroupResolver(GroupResolver groupResolver) {
+		delegate.setGroupResolver(groupResolver);
+	}
+
+}
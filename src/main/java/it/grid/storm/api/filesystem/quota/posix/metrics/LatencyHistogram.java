@@ -0,0 +1,160 @@
+package it.grid.storm.api.filesystem.quota.posix.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A concurrent histogram of latencies in nanoseconds, with log-linear
+ * buckets: each power of two is split into {@value #SUB_BUCKETS} linear
+ * buckets, so that the relative error of a recorded value is at most 12.5%
+ * over the whole range, from 1 nanosecond to about 18 minutes. Larger values
+ * are recorded into the last bucket.
+ * <p>
+ * Each bucket is a {@link LongAdder}, so that concurrent recordings from many
+ * threads don't contend on the same cache line. Percentiles are computed on a
+ * non-atomic snapshot of the buckets, which is good enough for monitoring.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+	/**
+	 * Build an empty histogram.
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	static int bucketOf(long nanos) {
+
+		if (nanos < 2 * SUB_BUCKETS) {
+			return nanos < 0 ? 0 : (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+	}
+
+	/**
+	 * The highest value recorded into a bucket.
+	 */
+	static long upperBoundOf(int bucket) {
+
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos
+	 *            The latency in nanoseconds
+	 */
+	public void record(long nanos) {
+
+		counts[bucketOf(nanos)].increment();
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * @return The number of recorded values.
+	 */
+	public long getCount() {
+
+		long count = 0;
+		for (LongAdder c : counts) {
+			count += c.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * @return The mean of the recorded values in nanoseconds, 0 if none has
+	 *         been recorded.
+	 */
+	public double getMean() {
+
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * @return The highest recorded value in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get a percentile of the recorded values.
+	 *
+	 * @param percentile
+	 *            The percentile, from 0 to 100
+	 * @return The upper bound of the bucket holding the percentile, in
+	 *         nanoseconds, or 0 if no value has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts[i].sum();
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return i == BUCKETS - 1 ? getMax() : Math.min(upperBoundOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Remove all the recorded values. Values recorded concurrently may be
+	 * partially kept.
+	 */
+	public void reset() {
+
+		for (LongAdder c : counts) {
+			c.reset();
+		}
+		sum.reset();
+		max.reset();
+	}
+
+}
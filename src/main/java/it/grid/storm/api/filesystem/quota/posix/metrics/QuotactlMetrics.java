@@ -0,0 +1,322 @@
+package it.grid.storm.api.filesystem.quota.posix.metrics;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+
+/**
+ * The quotactl() metrics of a block device: latency histogram, call rate,
+ * in-flight calls and failures by errno.
+ * <p>
+ * Recording a call is a couple of {@link LongAdder} increments plus a
+ * histogram update: no lock is taken and threads recording concurrently
+ * update different cells.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotactlMetrics implements QuotactlMetricsMXBean {
+
+	private static final int MAX_ERRNO = 133;
+	private static final String[] ERRNO_NAMES = errnoNames();
+
+	private static final long RATE_TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+	private static final double RATE_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private final String blockDevice;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder inFlight = new LongAdder();
+	private final LongAdder[] errors = new LongAdder[MAX_ERRNO + 2];
+
+	/* call rate state, only updated by readers */
+	private long lastTickNanos = System.nanoTime();
+	private long lastTickCalls;
+	private double rate;
+
+	/**
+	 * QuotactlMetrics constructor.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 */
+	public QuotactlMetrics(String blockDevice) {
+
+		this.blockDevice = blockDevice;
+		for (int i = 0; i < errors.length; i++) {
+			errors[i] = new LongAdder();
+		}
+	}
+
+	private static String[] errnoNames() {
+
+		String[] names = new String[MAX_ERRNO + 1];
+		for (Field f : ErrNo.class.getFields()) {
+			if (f.getType() == int.class && Modifier.isStatic(f.getModifiers())) {
+				try {
+					int errNo = f.getInt(null);
+					if (errNo > 0 && errNo <= MAX_ERRNO) {
+						names[errNo] = f.getName();
+					}
+				} catch (IllegalAccessException e) {
+					/* public fields of a public interface */
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Record the start of a call.
+	 *
+	 * @return The start time, to be passed to {@link #stop(long, int)}.
+	 */
+	public long start() {
+
+		inFlight.increment();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the end of a call.
+	 *
+	 * @param start
+	 *            The start time returned by {@link #start()}
+	 * @param errNo
+	 *            The error code of the call, 0 on success
+	 */
+	public void stop(long start, int errNo) {
+
+		latency.record(System.nanoTime() - start);
+		inFlight.decrement();
+		calls.increment();
+		if (errNo != 0) {
+			errors[slotOf(errNo)].increment();
+		}
+	}
+
+	/**
+	 * Record the end of a batch, as one call per gid with the mean latency.
+	 */
+	void stopBatch(long start, PosixQuotaBatch batch) {
+
+		int n = batch.size();
+		long mean = (System.nanoTime() - start) / n;
+		for (int i = 0; i < n; i++) {
+			latency.record(mean);
+			if (!batch.isSuccess(i)) {
+				errors[slotOf(batch.getErrorCode(i))].increment();
+			}
+		}
+		inFlight.decrement();
+		calls.add(n);
+	}
+
+	private static int slotOf(int errNo) {
+		return errNo > 0 && errNo <= MAX_ERRNO ? errNo : MAX_ERRNO + 1;
+	}
+
+	/**
+	 * @return The latency histogram, in nanoseconds.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getBlockDevice()
+	 */
+	@Override
+	public String getBlockDevice() {
+		return blockDevice;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getCallCount()
+	 */
+	@Override
+	public long getCallCount() {
+		return calls.sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getInFlight()
+	 */
+	@Override
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getCallsPerSecond()
+	 */
+	@Override
+	public synchronized double getCallsPerSecond() {
+
+		long now = System.nanoTime();
+		long elapsed = now - lastTickNanos;
+		if (elapsed >= RATE_TICK_NANOS) {
+			long count = calls.sum();
+			double instant = (count - lastTickCalls) * 1e9 / elapsed;
+			double alpha = 1 - Math.exp(-elapsed / RATE_WINDOW_NANOS);
+			rate += alpha * (instant - rate);
+			lastTickNanos = now;
+			lastTickCalls = count;
+		}
+		return rate;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getErrorCount()
+	 */
+	@Override
+	public long getErrorCount() {
+
+		long count = 0;
+		for (LongAdder e : errors) {
+			count += e.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of failed calls with an error code.
+	 *
+	 * @param errNo
+	 *            The error code
+	 * @return The number of failed calls.
+	 */
+	public long getErrorCount(int errNo) {
+		return errors[slotOf(errNo)].sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getErrorCounts()
+	 */
+	@Override
+	public Map<String, Long> getErrorCounts() {
+
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (int i = 1; i < errors.length; i++) {
+			long count = errors[i].sum();
+			if (count > 0) {
+				String name = i > MAX_ERRNO ? "other" : ERRNO_NAMES[i] != null ? ERRNO_NAMES[i] : "errno " + i;
+				counts.put(name, count);
+			}
+		}
+		return counts;
+	}
+
+	private static double toMicros(long nanos) {
+		return nanos / 1000.0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getLatencyMean()
+	 */
+	@Override
+	public double getLatencyMean() {
+		return latency.getMean() / 1000;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getLatency50thPercentile()
+	 */
+	@Override
+	public double getLatency50thPercentile() {
+		return toMicros(latency.getPercentile(50));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getLatency90thPercentile()
+	 */
+	@Override
+	public double getLatency90thPercentile() {
+		return toMicros(latency.getPercentile(90));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getLatency99thPercentile()
+	 */
+	@Override
+	public double getLatency99thPercentile() {
+		return toMicros(latency.getPercentile(99));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getLatency999thPercentile()
+	 */
+	@Override
+	public double getLatency999thPercentile() {
+		return toMicros(latency.getPercentile(99.9));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#getLatencyMax()
+	 */
+	@Override
+	public double getLatencyMax() {
+		return toMicros(latency.getMax());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsMXBean#reset()
+	 */
+	@Override
+	public synchronized void reset() {
+
+		latency.reset();
+		calls.reset();
+		for (LongAdder e : errors) {
+			e.reset();
+		}
+		lastTickNanos = System.nanoTime();
+		lastTickCalls = 0;
+		rate = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QuotactlMetrics [blockDevice=" + blockDevice + ", calls=" + getCallCount() + ", inFlight="
+				+ getInFlight() + ", errors=" + getErrorCounts() + ", p50=" + getLatency50thPercentile() + "us, p99="
+				+ getLatency99thPercentile() + "us, max=" + getLatencyMax() + "us]";
+	}
+
+}
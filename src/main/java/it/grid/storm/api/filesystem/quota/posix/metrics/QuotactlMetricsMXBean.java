@@ -0,0 +1,80 @@
+package it.grid.storm.api.filesystem.quota.posix.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX management interface of the quotactl() metrics of a block device.
+ * Latencies are in microseconds.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public interface QuotactlMetricsMXBean {
+
+	/**
+	 * @return The pathname of the block device.
+	 */
+	String getBlockDevice();
+
+	/**
+	 * @return The number of completed calls.
+	 */
+	long getCallCount();
+
+	/**
+	 * @return The number of calls currently running.
+	 */
+	long getInFlight();
+
+	/**
+	 * @return The calls per second, as a one minute exponentially weighted
+	 *         moving average.
+	 */
+	double getCallsPerSecond();
+
+	/**
+	 * @return The number of failed calls.
+	 */
+	long getErrorCount();
+
+	/**
+	 * @return The number of failed calls by errno name.
+	 */
+	Map<String, Long> getErrorCounts();
+
+	/**
+	 * @return The mean latency.
+	 */
+	double getLatencyMean();
+
+	/**
+	 * @return The median latency.
+	 */
+	double getLatency50thPercentile();
+
+	/**
+	 * @return The 90th percentile of the latency.
+	 */
+	double getLatency90thPercentile();
+
+	/**
+	 * @return The 99th percentile of the latency.
+	 */
+	double getLatency99thPercentile();
+
+	/**
+	 * @return The 99.9th percentile of the latency.
+	 */
+	double getLatency999thPercentile();
+
+	/**
+	 * @return The highest latency.
+	 */
+	double getLatencyMax();
+
+	/**
+	 * Reset the latency histogram and the counters.
+	 */
+	void reset();
+
+}
@@ -0,0 +1,126 @@
+package it.grid.storm.api.filesystem.quota.posix.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * The {@link QuotactlMetrics} of each block device, created on first use.
+ * <p>
+ * When enabled, the metrics of each device are published as an MXBean into
+ * the platform MBean server, named after {@link #objectNameOf(String)}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotactlMetricsRegistry {
+
+	/**
+	 * The JMX domain of the published MXBeans.
+	 */
+	public static final String JMX_DOMAIN = "it.grid.storm.quota";
+
+	private final ConcurrentMap<String, QuotactlMetrics> devices = new ConcurrentHashMap<String, QuotactlMetrics>();
+	private final MBeanServer mbeanServer;
+
+	/**
+	 * Build a registry which publishes the metrics into the platform MBean
+	 * server.
+	 */
+	public QuotactlMetricsRegistry() {
+		this(true);
+	}
+
+	/**
+	 * QuotactlMetricsRegistry constructor.
+	 *
+	 * @param publish
+	 *            true to publish the metrics into the platform MBean server
+	 */
+	public QuotactlMetricsRegistry(boolean publish) {
+		this.mbeanServer = publish ? ManagementFactory.getPlatformMBeanServer() : null;
+	}
+
+	/**
+	 * Get the name of the MXBean of a block device.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The object name.
+	 */
+	public static ObjectName objectNameOf(String blockDevice) {
+
+		try {
+			return new ObjectName(JMX_DOMAIN + ":type=Quotactl,device=" + ObjectName.quote(blockDevice));
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid block device " + blockDevice, e);
+		}
+	}
+
+	/**
+	 * Get the metrics of a block device, creating and publishing them if
+	 * missing.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The metrics.
+	 */
+	public QuotactlMetrics forDevice(String blockDevice) {
+
+		QuotactlMetrics metrics = devices.get(blockDevice);
+		if (metrics != null) {
+			return metrics;
+		}
+		QuotactlMetrics created = new QuotactlMetrics(blockDevice);
+		metrics = devices.putIfAbsent(blockDevice, created);
+		if (metrics != null) {
+			return metrics;
+		}
+		if (mbeanServer != null) {
+			try {
+				ObjectName name = objectNameOf(blockDevice);
+				if (mbeanServer.isRegistered(name)) {
+					mbeanServer.unregisterMBean(name);
+				}
+				mbeanServer.registerMBean(created, name);
+			} catch (JMException e) {
+				/* metrics are still recorded, just not published */
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Get the metrics of all the block devices used so far.
+	 *
+	 * @return An unmodifiable view of the metrics.
+	 */
+	public Collection<QuotactlMetrics> getAll() {
+		return Collections.unmodifiableCollection(devices.values());
+	}
+
+	/**
+	 * Remove the published MXBeans of this registry.
+	 */
+	public void unregisterAll() {
+
+		if (mbeanServer == null) {
+			return;
+		}
+		for (QuotactlMetrics metrics : devices.values()) {
+			try {
+				mbeanServer.unregisterMBean(objectNameOf(metrics.getBlockDevice()));
+			} catch (JMException e) {
+				/* already unregistered */
+			}
+		}
+	}
+
+}
@@ -0,0 +1,408 @@
+package it.grid.storm.api.filesystem.quota.posix.mmap;
+
+import static it.grid.storm.api.filesystem.quota.posix.mmap.SnapshotFormat.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackend;
+
+/**
+ * A reader of a quota snapshot file written by a {@link SnapshotFileWriter},
+ * possibly of another process.
+ * <p>
+ * The records are read in place from a read-only mapping of the file, under
+ * their sequence lock: a record is copied again if the writer updated it in
+ * the meantime, so a read never returns a mix of old and new values. The
+ * index of the records is rebuilt only when the writer commits new pairs, and
+ * the path is mapped again when the writer replaces the file.
+ * <p>
+ * A reader is thread safe.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class SnapshotFileReader implements Closeable {
+
+	/**
+	 * The number of attempts to read a record the writer keeps updating.
+	 */
+	private static final int MAX_ATTEMPTS = 1000;
+
+	/**
+	 * The slots of the records of a block device, sorted by gid.
+	 */
+	private static final class DeviceIndex {
+
+		final int[] gids;
+		final int[] slots;
+
+		DeviceIndex(int[] gids, int[] slots) {
+			this.gids = gids;
+			this.slots = slots;
+		}
+
+		int slotOf(int gid) {
+			int i = Arrays.binarySearch(gids, gid);
+			return i < 0 ? -1 : slots[i];
+		}
+	}
+
+	/**
+	 * A mapping of the file and the index of the records committed when it
+	 * was built.
+	 */
+	private static final class Mapping {
+
+		final MappedByteBuffer buffer;
+		final int capacity;
+		final int recordCount;
+		final Map<String, DeviceIndex> index;
+
+		Mapping(MappedByteBuffer buffer, int capacity, int recordCount, Map<String, DeviceIndex> index) {
+			this.buffer = buffer;
+			this.capacity = capacity;
+			this.recordCount = recordCount;
+			this.index = index;
+		}
+	}
+
+	private final Path file;
+	private final ThreadLocal<long[]> scratch = new ThreadLocal<long[]>() {
+
+		@Override
+		protected long[] initialValue() {
+			return new long[QuotactlBackend.DQBLK_VALUES];
+		}
+	};
+
+	private volatile Mapping mapping;
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder remaps = new LongAdder();
+
+	/**
+	 * Map a snapshot file for reading.
+	 *
+	 * @param file
+	 *            The path of the snapshot file
+	 * @throws IOException
+	 *             if the file can't be read, or isn't a snapshot file.
+	 */
+	public SnapshotFileReader(Path file) throws IOException {
+
+		this.file = file;
+		MappedByteBuffer buffer = map(file);
+		mapping = index(buffer, capacityOf(buffer));
+	}
+
+	private static MappedByteBuffer map(Path file) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.nativeOrder());
+			if (capacityOf(buffer) < 0) {
+				throw new IOException(file + " is not a quota snapshot file");
+			}
+			return buffer;
+		}
+	}
+
+	/**
+	 * Build the index of the records committed in a mapping.
+	 */
+	private static Mapping index(MappedByteBuffer buffer, int capacity) {
+
+		int recordCount = 0;
+		int deviceCount = 0;
+		/* a writer which crashed in a commit leaves the sequence odd */
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			long seq = (long) LONG.getAcquire(buffer, SEQUENCE_OFFSET);
+			recordCount = buffer.getInt(RECORD_COUNT_OFFSET);
+			deviceCount = buffer.getInt(DEVICE_COUNT_OFFSET);
+			VarHandle.loadLoadFence();
+			if ((seq & 1) == 0 && seq == (long) LONG.getOpaque(buffer, SEQUENCE_OFFSET)) {
+				break;
+			}
+			Thread.onSpinWait();
+		}
+
+		String[] devices = new String[deviceCount];
+		int[] sizes = new int[deviceCount];
+		for (int i = 0; i < deviceCount; i++) {
+			devices[i] = getDevice(buffer, i);
+		}
+		for (int slot = 0; slot < recordCount; slot++) {
+			sizes[buffer.getInt(recordOffset(slot) + R_DEVICE)]++;
+		}
+		int[][] gids = new int[deviceCount][];
+		int[][] slots = new int[deviceCount][];
+		for (int i = 0; i < deviceCount; i++) {
+			gids[i] = new int[sizes[i]];
+			slots[i] = new int[sizes[i]];
+			sizes[i] = 0;
+		}
+		for (int slot = 0; slot < recordCount; slot++) {
+			int offset = recordOffset(slot);
+			int device = buffer.getInt(offset + R_DEVICE);
+			gids[device][sizes[device]] = buffer.getInt(offset + R_GID);
+			slots[device][sizes[device]++] = slot;
+		}
+		Map<String, DeviceIndex> index = new HashMap<String, DeviceIndex>();
+		for (int i = 0; i < deviceCount; i++) {
+			sort(gids[i], slots[i]);
+			index.put(devices[i], new DeviceIndex(gids[i], slots[i]));
+		}
+		return new Mapping(buffer, capacity, recordCount, index);
+	}
+
+	private static void sort(int[] gids, int[] slots) {
+
+		/* the slots of a device are mostly in gid order already */
+		for (int i = 1; i < gids.length; i++) {
+			int gid = gids[i];
+			int slot = slots[i];
+			int j = i - 1;
+			while (j >= 0 && gids[j] > gid) {
+				gids[j + 1] = gids[j];
+				slots[j + 1] = slots[j];
+				j--;
+			}
+			gids[j + 1] = gid;
+			slots[j + 1] = slot;
+		}
+	}
+
+	/**
+	 * Pick up the pairs committed since the last refresh, and map the path
+	 * again if the writer replaced the file.
+	 *
+	 * @throws IOException
+	 *             if the replacement file can't be mapped.
+	 */
+	public synchronized void refresh() throws IOException {
+
+		Mapping current = mapping;
+		if ((int) INT.getAcquire(current.buffer, STATE_OFFSET) == STATE_SUPERSEDED) {
+			MappedByteBuffer buffer = map(file);
+			remaps.increment();
+			mapping = index(buffer, capacityOf(buffer));
+		} else if ((int) INT.getAcquire(current.buffer, RECORD_COUNT_OFFSET) != current.recordCount) {
+			mapping = index(current.buffer, current.capacity);
+		}
+	}
+
+	private Mapping current() {
+
+		Mapping current = mapping;
+		if ((int) INT.getAcquire(current.buffer, STATE_OFFSET) == STATE_SUPERSEDED) {
+			try {
+				refresh();
+			} catch (IOException e) {
+				/* keeps reading the old values until the new file is ready */
+				return current;
+			}
+			current = mapping;
+		}
+		return current;
+	}
+
+	/**
+	 * Copy the dqblk values of a pair, without allocating.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @param dqblk
+	 *            The array of at least {@value QuotactlBackend#DQBLK_VALUES}
+	 *            values filled in the order of the
+	 *            {@link it.grid.storm.api.filesystem.quota.posix.CLibrary.T_dqblk}
+	 *            fields
+	 * @return The time the values were read, in milliseconds since the epoch,
+	 *         or -1 if the file holds no quota of the pair, or the writer kept
+	 *         its record busy for too long.
+	 */
+	public long read(String blockDevice, int gid, long[] dqblk) {
+
+		Mapping current = current();
+		int slot = slotOf(current, blockDevice, gid);
+		if (slot < 0 && (int) INT.getAcquire(current.buffer, RECORD_COUNT_OFFSET) != current.recordCount) {
+			try {
+				refresh();
+			} catch (IOException e) {
+				return -1;
+			}
+			current = mapping;
+			slot = slotOf(current, blockDevice, gid);
+		}
+		return slot < 0 ? -1 : read(current.buffer, recordOffset(slot), dqblk);
+	}
+
+	private static int slotOf(Mapping mapping, String blockDevice, int gid) {
+
+		DeviceIndex device = mapping.index.get(blockDevice);
+		return device == null ? -1 : device.slotOf(gid);
+	}
+
+	/**
+	 * Copy a record under its sequence lock.
+	 */
+	private long read(MappedByteBuffer buffer, int offset, long[] dqblk) {
+
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			long seq = (long) LONG.getAcquire(buffer, offset + R_SEQUENCE);
+			if ((seq & 1) == 0) {
+				int flags = buffer.getInt(offset + R_FLAGS);
+				long timestamp = buffer.getLong(offset + R_TIMESTAMP);
+				getDqblk(buffer, offset, dqblk);
+				/* the copies can't move after the second read of the sequence */
+				VarHandle.loadLoadFence();
+				if (seq == (long) LONG.getOpaque(buffer, offset + R_SEQUENCE)) {
+					return (flags & FLAG_PRESENT) != 0 ? timestamp : -1;
+				}
+			}
+			retries.increment();
+			Thread.onSpinWait();
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the quota information of a pair.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @return The quota information, null if the file holds no quota of the
+	 *         pair.
+	 */
+	public PosixQuotaInfo get(String blockDevice, int gid) {
+
+		long[] dqblk = scratch.get();
+		return read(blockDevice, gid, dqblk) < 0 ? null : new PosixQuotaInfo(dqblk);
+	}
+
+	/**
+	 * Copy all the pairs of the file, e.g. to warm up a cache at startup.
+	 *
+	 * @return The quota information of each pair.
+	 */
+	public Map<GroupQuotaKey, PosixQuotaInfo> toMap() {
+
+		Map<GroupQuotaKey, PosixQuotaInfo> quotas = new LinkedHashMap<GroupQuotaKey, PosixQuotaInfo>();
+		try {
+			refresh();
+		} catch (IOException e) {
+			/* the pairs of the old file */
+		}
+		Mapping current = mapping;
+		long[] dqblk = scratch.get();
+		for (Map.Entry<String, DeviceIndex> e : current.index.entrySet()) {
+			DeviceIndex device = e.getValue();
+			for (int i = 0; i < device.gids.length; i++) {
+				if (read(current.buffer, recordOffset(device.slots[i]), dqblk) >= 0) {
+					quotas.put(new GroupQuotaKey(e.getKey(), device.gids[i]), new PosixQuotaInfo(dqblk));
+				}
+			}
+		}
+		return quotas;
+	}
+
+	private long readHeader(int offset) {
+
+		Mapping current = current();
+		long value = 0;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			long seq = (long) LONG.getAcquire(current.buffer, SEQUENCE_OFFSET);
+			value = current.buffer.getLong(offset);
+			VarHandle.loadLoadFence();
+			if ((seq & 1) == 0 && seq == (long) LONG.getOpaque(current.buffer, SEQUENCE_OFFSET)) {
+				break;
+			}
+			retries.increment();
+			Thread.onSpinWait();
+		}
+		/* a long is never torn: the last value read is a value of the writer */
+		return value;
+	}
+
+	/**
+	 * @return The number of commits of the file, 0 if nothing was committed.
+	 */
+	public long getGeneration() {
+		return readHeader(GENERATION_OFFSET);
+	}
+
+	/**
+	 * @return The time of the last commit, in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return readHeader(TIMESTAMP_OFFSET);
+	}
+
+	/**
+	 * @return The maximum number of pairs of the file.
+	 */
+	public int getCapacity() {
+		return mapping.capacity;
+	}
+
+	/**
+	 * @return The path of the snapshot file.
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The number of reads retried because the writer was updating
+	 *         the values.
+	 */
+	public long getRetryCount() {
+		return retries.sum();
+	}
+
+	/**
+	 * @return The number of times the file was mapped again after the writer
+	 *         replaced it.
+	 */
+	public long getRemapCount() {
+		return remaps.sum();
+	}
+
+	/**
+	 * Nothing to release: the mapping stays valid until it's garbage
+	 * collected, as for any {@link MappedByteBuffer}.
+	 */
+	@Override
+	public void close() {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		Mapping current = mapping;
+		return "SnapshotFileReader [file=" + file + ", capacity=" + current.capacity + ", records="
+				+ current.recordCount + ", retries=" + getRetryCount() + "]";
+	}
+
+}
@@ -0,0 +1,441 @@
+package it.grid.storm.api.filesystem.quota.posix.mmap;
+
+import static it.grid.storm.api.filesystem.quota.posix.mmap.SnapshotFormat.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackend;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaSnapshot;
+
+/**
+ * The single writer of a memory-mapped quota snapshot file, read by any
+ * number of processes through {@link SnapshotFileReader}.
+ * <p>
+ * The file holds up to {@code capacity} fixed-size records, one per (block
+ * device, gid) pair, with the dqblk values of the pair and the time they were
+ * read. Each record is updated in place under its own sequence lock, so a
+ * reader never sees a torn record. New pairs become visible, and the
+ * generation and timestamp of the file change, at each {@link #commit(long)}.
+ * <p>
+ * An existing snapshot file of the same capacity is reused as it is, so that
+ * the quotas survive a restart. Otherwise a new file is written aside and
+ * atomically renamed over the path, carrying over the pairs of the previous
+ * one with the time each of them was read, and the previous file is then
+ * marked as superseded for the readers still mapping it. An exclusive lock
+ * on a sidecar {@code .lock} file, taken before the snapshot file is even
+ * read, keeps a second writer out: the lock can't be on the snapshot file,
+ * which the rename replaces.
+ * <p>
+ * A removed pair keeps its record, which is written again in place if the
+ * pair comes back; the record is not reused for another pair, since the
+ * readers may still index it. The records of the removed pairs are reclaimed
+ * only when the file is created again with another capacity, which carries
+ * over the present pairs only.
+ * <p>
+ * A writer is not thread safe: it's meant to be used by a single thread, e.g.
+ * the one of a {@link it.grid.storm.api.filesystem.quota.posix.poll.QuotaPoller}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class SnapshotFileWriter implements Closeable {
+
+	private final Path file;
+	private final int capacity;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+
+	private final Map<GroupQuotaKey, Integer> slots = new HashMap<GroupQuotaKey, Integer>();
+	private final List<GroupQuotaKey> keys = new ArrayList<GroupQuotaKey>();
+	private final Map<String, Integer> devices = new HashMap<String, Integer>();
+	private final long[] dqblk = new long[QuotactlBackend.DQBLK_VALUES];
+
+	private int deviceCount;
+
+	/**
+	 * Open the snapshot file for writing, creating it if needed.
+	 *
+	 * @param file
+	 *            The path of the snapshot file
+	 * @param capacity
+	 *            The maximum number of (block device, gid) pairs
+	 * @throws IOException
+	 *             if the file can't be written, or another writer holds it.
+	 */
+	public SnapshotFileWriter(Path file, int capacity) throws IOException {
+
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		this.file = file;
+		this.capacity = capacity;
+
+		/* exclusive before the snapshot file is read or replaced */
+		lockChannel = FileChannel.open(lockFile(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lockChannel.close();
+			throw new IOException(file + " is already open by a writer of this process", e);
+		}
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException(file + " is already open by another writer");
+		}
+
+		Map<GroupQuotaKey, PosixQuotaInfo> carried = null;
+		Map<GroupQuotaKey, Long> readAt = new HashMap<GroupQuotaKey, Long>();
+		long timestamp = 0;
+		try {
+			long generation = 0;
+			if (Files.exists(file)) {
+				try (SnapshotFileReader previous = new SnapshotFileReader(file)) {
+					if (previous.getCapacity() != capacity) {
+						carried = new LinkedHashMap<GroupQuotaKey, PosixQuotaInfo>();
+						for (GroupQuotaKey key : previous.toMap().keySet()) {
+							long at = previous.read(key.getBlockDevice(), key.getGid(), dqblk);
+							if (at >= 0) {
+								carried.put(key, new PosixQuotaInfo(dqblk));
+								readAt.put(key, at);
+							}
+						}
+						generation = previous.getGeneration();
+						timestamp = previous.getTimestamp();
+					}
+				} catch (IOException e) {
+					/* not a snapshot file: replaced with an empty one */
+					carried = new HashMap<GroupQuotaKey, PosixQuotaInfo>();
+				}
+				if (carried != null) {
+					create(file, capacity, generation);
+				}
+			} else {
+				create(file, capacity, 0);
+			}
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException | RuntimeException e) {
+			lockChannel.close();
+			throw e;
+		}
+		buffer = channel.map(MapMode.READ_WRITE, 0, fileSize(capacity));
+		buffer.order(ByteOrder.nativeOrder());
+		recover();
+
+		if (carried != null && !carried.isEmpty()) {
+			/* the pairs keep the time they were read */
+			for (Map.Entry<GroupQuotaKey, PosixQuotaInfo> e : carried.entrySet()) {
+				put(e.getKey(), e.getValue(), readAt.get(e.getKey()));
+			}
+			commit(timestamp);
+		}
+	}
+
+	/**
+	 * The path of the sidecar file locked by the writer.
+	 */
+	private static Path lockFile(Path file) {
+		return file.resolveSibling(file.getFileName() + ".lock");
+	}
+
+	/**
+	 * Write an empty snapshot file aside, then rename it over the path. The
+	 * file it replaces, if any, is marked as superseded.
+	 */
+	private static void create(Path file, int capacity, long generation) throws IOException {
+
+		Path dir = file.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				MappedByteBuffer b = ch.map(MapMode.READ_WRITE, 0, fileSize(capacity));
+				b.order(ByteOrder.nativeOrder());
+				b.putInt(VERSION_OFFSET, VERSION);
+				b.putInt(CAPACITY_OFFSET, capacity);
+				b.putInt(DEVICE_SLOTS_OFFSET, DEVICE_SLOTS);
+				b.putLong(GENERATION_OFFSET, generation);
+				b.putInt(STATE_OFFSET, STATE_LIVE);
+				b.putInt(MAGIC_OFFSET, MAGIC);
+				b.force();
+			}
+			/* the replaced file is still open, to tell its readers once the path has changed */
+			MappedByteBuffer previous = null;
+			if (Files.exists(file) && Files.size(file) >= HEADER_SIZE) {
+				try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+					previous = ch.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+					previous.order(ByteOrder.nativeOrder());
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			if (previous != null && previous.getInt(MAGIC_OFFSET) == MAGIC) {
+				INT.setRelease(previous, STATE_OFFSET, STATE_SUPERSEDED);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Rebuild the index of the pairs, and drop the records a crashed writer
+	 * left half written.
+	 */
+	private void recover() {
+
+		long seq = (long) LONG.get(buffer, SEQUENCE_OFFSET);
+		if ((seq & 1) != 0) {
+			LONG.setRelease(buffer, SEQUENCE_OFFSET, seq + 1);
+		}
+		deviceCount = buffer.getInt(DEVICE_COUNT_OFFSET);
+		for (int i = 0; i < deviceCount; i++) {
+			devices.put(getDevice(buffer, i), i);
+		}
+		String[] names = new String[deviceCount];
+		for (Map.Entry<String, Integer> e : devices.entrySet()) {
+			names[e.getValue()] = e.getKey();
+		}
+		int recordCount = buffer.getInt(RECORD_COUNT_OFFSET);
+		for (int slot = 0; slot < recordCount; slot++) {
+			int offset = recordOffset(slot);
+			GroupQuotaKey key = new GroupQuotaKey(names[buffer.getInt(offset + R_DEVICE)],
+					buffer.getInt(offset + R_GID));
+			slots.put(key, slot);
+			keys.add(key);
+			long s = (long) LONG.get(buffer, offset + R_SEQUENCE);
+			if ((s & 1) != 0) {
+				buffer.putInt(offset + R_FLAGS, 0);
+				LONG.setRelease(buffer, offset + R_SEQUENCE, s + 1);
+			}
+		}
+	}
+
+	/**
+	 * Write the quota of a pair. A pair not in the file yet becomes visible
+	 * at the next {@link #commit(long)}.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @param info
+	 *            The quota information
+	 * @param timestamp
+	 *            The time the quota was read, in milliseconds since the epoch
+	 * @return false if the file is full, or has no room for another block
+	 *         device.
+	 */
+	public boolean put(GroupQuotaKey key, PosixQuotaInfo info, long timestamp) {
+
+		Integer slot = slots.get(key);
+		if (slot == null) {
+			if (keys.size() == capacity) {
+				return false;
+			}
+			Integer device = devices.get(key.getBlockDevice());
+			if (device == null) {
+				if (deviceCount == DEVICE_SLOTS) {
+					return false;
+				}
+				putDevice(buffer, deviceCount, key.getBlockDevice());
+				device = deviceCount++;
+				devices.put(key.getBlockDevice(), device);
+			}
+			slot = keys.size();
+			int offset = recordOffset(slot);
+			buffer.putInt(offset + R_DEVICE, device);
+			buffer.putInt(offset + R_GID, key.getGid());
+			slots.put(key, slot);
+			keys.add(key);
+		} else if (isPresent(slot) && sameValues(slot, info)) {
+			return true;
+		}
+
+		int offset = recordOffset(slot);
+		long seq = begin(offset + R_SEQUENCE);
+		buffer.putLong(offset + R_TIMESTAMP, timestamp);
+		buffer.putLong(offset + R_DQBLK, info.getBlockHardLimit());
+		buffer.putLong(offset + R_DQBLK + 8, info.getBlockSoftLimit());
+		buffer.putLong(offset + R_DQBLK + 16, info.getBlockUsage());
+		buffer.putLong(offset + R_DQBLK + 24, info.getINodesHardLimit());
+		buffer.putLong(offset + R_DQBLK + 32, info.getINodesSoftLimit());
+		buffer.putLong(offset + R_DQBLK + 40, info.getINodesUsage());
+		buffer.putLong(offset + R_DQBLK + 48, info.getBlockTimeLimit());
+		buffer.putLong(offset + R_DQBLK + 56, info.getINodesTimeLimit());
+		buffer.putInt(offset + R_VALID, info.getValid());
+		buffer.putInt(offset + R_FLAGS, FLAG_PRESENT);
+		end(offset + R_SEQUENCE, seq);
+		return true;
+	}
+
+	/**
+	 * Remove the quota of a pair. Its record is kept for a later
+	 * {@link #put(GroupQuotaKey, PosixQuotaInfo, long)}.
+	 *
+	 * @param key
+	 *            The (block device, gid) pair
+	 * @return true if the pair was in the file.
+	 */
+	public boolean remove(GroupQuotaKey key) {
+
+		Integer slot = slots.get(key);
+		if (slot == null || !isPresent(slot)) {
+			return false;
+		}
+		int offset = recordOffset(slot);
+		long seq = begin(offset + R_SEQUENCE);
+		buffer.putInt(offset + R_FLAGS, 0);
+		end(offset + R_SEQUENCE, seq);
+		return true;
+	}
+
+	/**
+	 * Publish the new pairs, and bump the generation of the file.
+	 *
+	 * @param timestamp
+	 *            The time of the snapshot, in milliseconds since the epoch
+	 */
+	public void commit(long timestamp) {
+
+		long seq = begin(SEQUENCE_OFFSET);
+		buffer.putLong(GENERATION_OFFSET, buffer.getLong(GENERATION_OFFSET) + 1);
+		buffer.putLong(TIMESTAMP_OFFSET, timestamp);
+		buffer.putInt(DEVICE_COUNT_OFFSET, deviceCount);
+		buffer.putInt(RECORD_COUNT_OFFSET, keys.size());
+		end(SEQUENCE_OFFSET, seq);
+	}
+
+	/**
+	 * Make the file match a snapshot polled by a
+	 * {@link it.grid.storm.api.filesystem.quota.posix.poll.QuotaPoller}, and
+	 * commit it. Only the records whose values changed are written.
+	 *
+	 * @param snapshot
+	 *            The snapshot
+	 * @return false if some pairs didn't fit in the file.
+	 */
+	public boolean write(QuotaSnapshot snapshot) {
+
+		boolean complete = true;
+		Map<GroupQuotaKey, PosixQuotaInfo> quotas = snapshot.asMap();
+		for (Map.Entry<GroupQuotaKey, PosixQuotaInfo> e : quotas.entrySet()) {
+			complete &= put(e.getKey(), e.getValue(), snapshot.getTimestamp());
+		}
+		for (GroupQuotaKey key : keys) {
+			if (!quotas.containsKey(key)) {
+				remove(key);
+			}
+		}
+		commit(snapshot.getTimestamp());
+		return complete;
+	}
+
+	/**
+	 * Flush the mapping to the storage device, for the snapshot to survive a
+	 * host crash. The other processes see the writes without it.
+	 */
+	public void force() {
+		buffer.force();
+	}
+
+	private long begin(int offset) {
+
+		long seq = (long) LONG.get(buffer, offset) + 1;
+		LONG.setOpaque(buffer, offset, seq);
+		/* the writes of the values can't move before the odd sequence */
+		VarHandle.storeStoreFence();
+		return seq;
+	}
+
+	private void end(int offset, long seq) {
+		LONG.setRelease(buffer, offset, seq + 1);
+	}
+
+	private boolean isPresent(int slot) {
+		return (buffer.getInt(recordOffset(slot) + R_FLAGS) & FLAG_PRESENT) != 0;
+	}
+
+	private boolean sameValues(int slot, PosixQuotaInfo info) {
+
+		getDqblk(buffer, recordOffset(slot), dqblk);
+		return dqblk[0] == info.getBlockHardLimit() && dqblk[1] == info.getBlockSoftLimit()
+				&& dqblk[2] == info.getBlockUsage() && dqblk[3] == info.getINodesHardLimit()
+				&& dqblk[4] == info.getINodesSoftLimit() && dqblk[5] == info.getINodesUsage()
+				&& dqblk[6] == info.getBlockTimeLimit() && dqblk[7] == info.getINodesTimeLimit()
+				&& dqblk[8] == info.getValid();
+	}
+
+	/**
+	 * @return The path of the snapshot file.
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The maximum number of pairs of the file.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return The number of pairs with a record, present or removed.
+	 */
+	public int getRecordCount() {
+		return keys.size();
+	}
+
+	/**
+	 * @return The number of commits of the file.
+	 */
+	public long getGeneration() {
+		return buffer.getLong(GENERATION_OFFSET);
+	}
+
+	/**
+	 * Release the lock of the file. The mapping stays valid until it's
+	 * garbage collected, as for any {@link MappedByteBuffer}.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		try {
+			channel.close();
+		} finally {
+			try {
+				lock.release();
+			} finally {
+				lockChannel.close();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SnapshotFileWriter [file=" + file + ", capacity=" + capacity + ", records=" + keys.size()
+				+ ", devices=" + deviceCount + "]";
+	}
+
+}
@@ -0,0 +1,151 @@
+package it.grid.storm.api.filesystem.quota.posix.mmap;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackend;
+
+/**
+ * The layout of a quota snapshot file, shared by {@link SnapshotFileWriter}
+ * and {@link SnapshotFileReader}. All the values are in the native byte
+ * order: the file is shared by the processes of a single host.
+ * <p>
+ *
+ * <pre>
+ * header, 64 bytes:
+ *   0 int   magic           4 int  version
+ *   8 int   capacity       12 int  device slots
+ *  16 long  sequence       24 long generation
+ *  32 long  timestamp      40 int  record count
+ *  44 int   device count   48 int  state
+ * device table, DEVICE_SLOTS * 256 bytes:
+ *   0 short UTF-8 length    2 UTF-8 pathname of the block device
+ * records, capacity * 96 bytes:
+ *   0 long  sequence        8 int  device index   12 int gid
+ *  16 long  timestamp      24 long[8] dqblk       88 int dqb_valid
+ *  92 int   flags
+ * </pre>
+ *
+ * The header and each record are guarded by their own sequence: odd while
+ * the single writer updates them, bumped to the next even value afterwards.
+ * A reader copies the values between two reads of the sequence and retries
+ * if it was odd or changed. The keys of a record and the device table entries
+ * are written before the record count and the device count which publish
+ * them, and never change afterwards.
+ *
+ * @author Enrico Vianello
+ *
+ */
+final class SnapshotFormat {
+
+	static final int MAGIC = 0x514e5350;
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+	static final int MAGIC_OFFSET = 0;
+	static final int VERSION_OFFSET = 4;
+	static final int CAPACITY_OFFSET = 8;
+	static final int DEVICE_SLOTS_OFFSET = 12;
+	static final int SEQUENCE_OFFSET = 16;
+	static final int GENERATION_OFFSET = 24;
+	static final int TIMESTAMP_OFFSET = 32;
+	static final int RECORD_COUNT_OFFSET = 40;
+	static final int DEVICE_COUNT_OFFSET = 44;
+	static final int STATE_OFFSET = 48;
+
+	/** The file is the current snapshot. */
+	static final int STATE_LIVE = 0;
+
+	/** The file has been replaced: readers must map the path again. */
+	static final int STATE_SUPERSEDED = 1;
+
+	static final int DEVICE_SLOTS = 64;
+	static final int DEVICE_SLOT_SIZE = 256;
+	static final int DEVICES_OFFSET = HEADER_SIZE;
+
+	static final int RECORD_SIZE = 96;
+	static final int RECORDS_OFFSET = DEVICES_OFFSET + DEVICE_SLOTS * DEVICE_SLOT_SIZE;
+	static final int R_SEQUENCE = 0;
+	static final int R_DEVICE = 8;
+	static final int R_GID = 12;
+	static final int R_TIMESTAMP = 16;
+	static final int R_DQBLK = 24;
+	static final int R_VALID = 88;
+	static final int R_FLAGS = 92;
+
+	/** The record holds the quota of its pair. */
+	static final int FLAG_PRESENT = 1;
+
+	/**
+	 * Atomic and ordered access to the sequences and counts, also across
+	 * processes sharing the mapping.
+	 */
+	static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private SnapshotFormat() {
+	}
+
+	static long fileSize(int capacity) {
+		return RECORDS_OFFSET + (long) capacity * RECORD_SIZE;
+	}
+
+	static int recordOffset(int slot) {
+		return RECORDS_OFFSET + slot * RECORD_SIZE;
+	}
+
+	/**
+	 * Check the header of a mapping.
+	 *
+	 * @return The capacity of the file, -1 if it's not a snapshot file of
+	 *         this version.
+	 */
+	static int capacityOf(ByteBuffer buffer) {
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC
+				|| buffer.getInt(VERSION_OFFSET) != VERSION || buffer.getInt(DEVICE_SLOTS_OFFSET) != DEVICE_SLOTS) {
+			return -1;
+		}
+		int capacity = buffer.getInt(CAPACITY_OFFSET);
+		return capacity >= 0 && buffer.capacity() >= fileSize(capacity) ? capacity : -1;
+	}
+
+	static void putDevice(ByteBuffer buffer, int index, String blockDevice) {
+
+		byte[] name = blockDevice.getBytes(StandardCharsets.UTF_8);
+		if (name.length > DEVICE_SLOT_SIZE - 2) {
+			throw new IllegalArgumentException("Block device pathname too long: " + blockDevice);
+		}
+		int offset = DEVICES_OFFSET + index * DEVICE_SLOT_SIZE;
+		buffer.putShort(offset, (short) name.length);
+		for (int i = 0; i < name.length; i++) {
+			buffer.put(offset + 2 + i, name[i]);
+		}
+	}
+
+	static String getDevice(ByteBuffer buffer, int index) {
+
+		int offset = DEVICES_OFFSET + index * DEVICE_SLOT_SIZE;
+		byte[] name = new byte[buffer.getShort(offset)];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = buffer.get(offset + 2 + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Copy the dqblk values of a record, in the layout of
+	 * {@link QuotactlBackend#getQuota(int, String, int, long[])}.
+	 */
+	static void getDqblk(ByteBuffer buffer, int offset, long[] dqblk) {
+
+		for (int i = 0; i < QuotactlBackend.DQB_VALID; i++) {
+			dqblk[i] = buffer.getLong(offset + R_DQBLK + i * 8);
+		}
+		dqblk[QuotactlBackend.DQB_VALID] = buffer.getInt(offset + R_VALID);
+	}
+
+}
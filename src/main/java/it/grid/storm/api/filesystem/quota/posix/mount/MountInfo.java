@@ -0,0 +1,201 @@
+package it.grid.storm.api.filesystem.quota.posix.mount;
+
+/**
+ * A mount of the mount table, as described by a line of
+ * /proc/self/mountinfo:
+ * <p>
+ * 
+ * <pre>
+ * {@code
+ * 36 35 98:0 /mnt1 /mnt2 rw,noatime master:1 - ext3 /dev/root rw,errors=continue
+ * (1)(2)(3)   (4)   (5)      (6)      (7)   (8) (9)   (10)         (11)
+ * }
+ * </pre>
+ * 
+ * where (1) is the mount id, (2) the parent mount id, (3) the major:minor of
+ * the device, (4) the root of the mount within the filesystem, (5) the mount
+ * point, (6) the per-mount options, (7) zero or more optional fields, (8) a
+ * separator, (9) the filesystem type, (10) the mount source, that is the block
+ * device for disk filesystems, and (11) the per-superblock options.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class MountInfo {
+
+	private final int mountId;
+	private final int parentId;
+	private final int major;
+	private final int minor;
+	private final String root;
+	private final String mountPoint;
+	private final String mountOptions;
+	private final String filesystemType;
+	private final String source;
+	private final String superOptions;
+
+	MountInfo(int mountId, int parentId, int major, int minor, String root, String mountPoint, String mountOptions,
+			String filesystemType, String source, String superOptions) {
+		this.mountId = mountId;
+		this.parentId = parentId;
+		this.major = major;
+		this.minor = minor;
+		this.root = root;
+		this.mountPoint = mountPoint;
+		this.mountOptions = mountOptions;
+		this.filesystemType = filesystemType;
+		this.source = source;
+		this.superOptions = superOptions;
+	}
+
+	/**
+	 * Parse a line of /proc/self/mountinfo.
+	 *
+	 * @param line
+	 *            The line to parse
+	 * @return The mount described by the line.
+	 * @throws IllegalArgumentException
+	 *             if the line is malformed.
+	 */
+	public static MountInfo parse(String line) {
+
+		String[] f = line.trim().split(" ");
+		int sep = 6;
+		while (sep < f.length && !f[sep].equals("-")) {
+			sep++;
+		}
+		if (sep + 2 >= f.length) {
+			throw new IllegalArgumentException("Malformed mountinfo line: " + line);
+		}
+		try {
+			int colon = f[2].indexOf(':');
+			return new MountInfo(Integer.parseInt(f[0]), Integer.parseInt(f[1]),
+					Integer.parseInt(f[2].substring(0, colon)), Integer.parseInt(f[2].substring(colon + 1)),
+					unescape(f[3]), unescape(f[4]), f[5], f[sep + 1], unescape(f[sep + 2]),
+					sep + 3 < f.length ? f[sep + 3] : "");
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Malformed mountinfo line: " + line, e);
+		}
+	}
+
+	/**
+	 * Decode the octal escapes (\040 for space, \011 for tab, \012 for
+	 * newline, \134 for backslash) the kernel uses in mountinfo paths.
+	 */
+	static String unescape(String s) {
+
+		int i = s.indexOf('\\');
+		if (i < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		sb.append(s, 0, i);
+		while (i < s.length()) {
+			char c = s.charAt(i);
+			if (c == '\\' && isOctal(s, i + 1)) {
+				sb.append((char) Integer.parseInt(s.substring(i + 1, i + 4), 8));
+				i += 4;
+			} else {
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean isOctal(String s, int from) {
+		for (int i = from; i < from + 3; i++) {
+			if (i >= s.length() || s.charAt(i) < '0' || s.charAt(i) > '7') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the unique id of the mount.
+	 */
+	public int getMountId() {
+		return mountId;
+	}
+
+	/**
+	 * @return the id of the parent mount.
+	 */
+	public int getParentId() {
+		return parentId;
+	}
+
+	/**
+	 * @return the major device number of the mounted filesystem.
+	 */
+	public int getMajor() {
+		return major;
+	}
+
+	/**
+	 * @return the minor device number of the mounted filesystem.
+	 */
+	public int getMinor() {
+		return minor;
+	}
+
+	/**
+	 * @return the directory of the filesystem which forms the root of the
+	 *         mount, "/" unless it's a bind mount.
+	 */
+	public String getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the mount point.
+	 */
+	public String getMountPoint() {
+		return mountPoint;
+	}
+
+	/**
+	 * @return the per-mount options.
+	 */
+	public String getMountOptions() {
+		return mountOptions;
+	}
+
+	/**
+	 * @return the filesystem type, for example ext4 or xfs.
+	 */
+	public String getFilesystemType() {
+		return filesystemType;
+	}
+
+	/**
+	 * Get the mount source. For a disk filesystem it's the pathname of the
+	 * block device to pass to the {@link it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager}
+	 * methods.
+	 * 
+	 * @return the mount source.
+	 */
+	public String getDevice() {
+		return source;
+	}
+
+	/**
+	 * @return the per-superblock options, where the quota options are.
+	 */
+	public String getSuperOptions() {
+		return superOptions;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MountInfo [mountPoint=" + mountPoint + ", device=" + source + ", filesystemType=" + filesystemType
+				+ ", root=" + root + ", dev=" + major + ":" + minor + "]";
+	}
+
+}
@@ -0,0 +1,161 @@
+package it.grid.storm.api.filesystem.quota.posix.mount;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+
+/**
+ * Resolve any path to its mount point, block device and filesystem type.
+ * <p>
+ * /proc/self/mountinfo is read and indexed into a {@link MountTable} once:
+ * resolving a path is then an in-memory lookup. A daemon thread re-reads the
+ * file every {@code checkInterval} and rebuilds the index only if the mount
+ * table changed, so mounts and unmounts are seen within that interval.
+ * {@link #refresh()} forces a check.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class MountResolver {
+
+	/**
+	 * The mount table of the calling process.
+	 */
+	public static final Path PROC_SELF_MOUNTINFO = Paths.get("/proc/self/mountinfo");
+
+	private final Path mountinfo;
+	private final ScheduledExecutorService watcher;
+
+	private volatile MountTable table;
+	private byte[] content;
+
+	private final LongAdder reloads = new LongAdder();
+
+	/**
+	 * Build a resolver of /proc/self/mountinfo which checks for changes every
+	 * second.
+	 *
+	 * @throws IOException
+	 *             if the mount table cannot be read.
+	 */
+	public MountResolver() throws IOException {
+		this(PROC_SELF_MOUNTINFO, Duration.ofSeconds(1));
+	}
+
+	/**
+	 * MountResolver constructor.
+	 *
+	 * @param mountinfo
+	 *            The file in mountinfo format to index
+	 * @param checkInterval
+	 *            How often the file is checked for changes, or
+	 *            {@link Duration#ZERO} to check only on {@link #refresh()}
+	 * @throws IOException
+	 *             if the mount table cannot be read.
+	 */
+	public MountResolver(Path mountinfo, Duration checkInterval) throws IOException {
+
+		this.mountinfo = mountinfo;
+		refresh();
+		if (checkInterval.isZero()) {
+			watcher = null;
+			return;
+		}
+		watcher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("mount-resolver"));
+		watcher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (IOException e) {
+					/* keep the last index and retry at the next check */
+				}
+			}
+		}, checkInterval.toNanos(), checkInterval.toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Re-read the mount table and rebuild the index if it changed.
+	 *
+	 * @return true if the index has been rebuilt, false otherwise.
+	 * @throws IOException
+	 *             if the mount table cannot be read.
+	 */
+	public synchronized boolean refresh() throws IOException {
+
+		/* procfs files report no size: read them whole */
+		byte[] current = Files.readAllBytes(mountinfo);
+		if (content != null && Arrays.equals(content, current)) {
+			return false;
+		}
+		table = MountTable.parse(Arrays.asList(new String(current, StandardCharsets.UTF_8).split("\n")));
+		content = current;
+		reloads.increment();
+		return true;
+	}
+
+	/**
+	 * Stop checking the mount table for changes.
+	 */
+	public void shutdown() {
+		if (watcher != null) {
+			watcher.shutdown();
+		}
+	}
+
+	/**
+	 * Resolve a path to the mount it belongs to.
+	 *
+	 * @see MountTable#find(String)
+	 * @param path
+	 *            An absolute path
+	 * @return The mount of the path, or null if there's no mount for the root.
+	 */
+	public MountInfo resolve(String path) {
+		return table.find(path);
+	}
+
+	/**
+	 * Resolve a path to the block device of the filesystem it belongs to.
+	 *
+	 * @param path
+	 *            An absolute path
+	 * @return The pathname of the block device, or null if there's no mount
+	 *         for the path.
+	 */
+	public String resolveDevice(String path) {
+
+		MountInfo m = resolve(path);
+		return m == null ? null : m.getDevice();
+	}
+
+	/**
+	 * Get the current index of the mount table.
+	 *
+	 * @return The mount table.
+	 */
+	public MountTable getMountTable() {
+		return table;
+	}
+
+	/**
+	 * Get the number of times the index has been built.
+	 *
+	 * @return The reload count.
+	 */
+	public long getReloadCount() {
+		return reloads.sum();
+	}
+
+}
@@ -0,0 +1,160 @@
+package it.grid.storm.api.filesystem.quota.posix.mount;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index of the mount table, which maps a path to the mount it
+ * belongs to.
+ * <p>
+ * Mounts are indexed by mount point, so a lookup is one hash lookup per
+ * component of the path, from the longest prefix to the root. When more
+ * mounts share the same mount point, the last one in mountinfo order, that is
+ * the visible one, wins.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class MountTable {
+
+	private final List<MountInfo> mounts;
+	private final Map<String, MountInfo> byMountPoint;
+	private final Map<String, MountInfo> byDevice;
+
+	/**
+	 * Build the index of a list of mounts.
+	 *
+	 * @param mounts
+	 *            The mounts, in mountinfo order
+	 */
+	public MountTable(List<MountInfo> mounts) {
+
+		this.mounts = Collections.unmodifiableList(new ArrayList<MountInfo>(mounts));
+		this.byMountPoint = new HashMap<String, MountInfo>(mounts.size() * 2);
+		this.byDevice = new HashMap<String, MountInfo>(mounts.size() * 2);
+		for (MountInfo m : mounts) {
+			byMountPoint.put(m.getMountPoint(), m);
+			if (!byDevice.containsKey(m.getDevice())) {
+				byDevice.put(m.getDevice(), m);
+			}
+		}
+	}
+
+	/**
+	 * Parse the content of /proc/self/mountinfo. Malformed lines are skipped.
+	 *
+	 * @param lines
+	 *            The lines of the file
+	 * @return The mount table.
+	 */
+	public static MountTable parse(List<String> lines) {
+
+		List<MountInfo> mounts = new ArrayList<MountInfo>(lines.size());
+		for (String line : lines) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			try {
+				mounts.add(MountInfo.parse(line));
+			} catch (IllegalArgumentException e) {
+				/* skip the line */
+			}
+		}
+		return new MountTable(mounts);
+	}
+
+	/**
+	 * Find the mount a path belongs to, by longest mount point prefix.
+	 * <p>
+	 * The path is normalized lexically ("." and ".." components, repeated
+	 * slashes): symbolic links are not resolved, so a path which crosses a
+	 * symbolic link should be resolved by the caller first.
+	 *
+	 * @param path
+	 *            An absolute path
+	 * @return The mount of the path, or null if there's no mount for the root.
+	 * @throws IllegalArgumentException
+	 *             if the path is not absolute.
+	 */
+	public MountInfo find(String path) {
+
+		String p = normalize(path);
+		while (true) {
+			MountInfo m = byMountPoint.get(p);
+			if (m != null) {
+				return m;
+			}
+			if (p.equals("/")) {
+				return null;
+			}
+			int slash = p.lastIndexOf('/');
+			p = slash == 0 ? "/" : p.substring(0, slash);
+		}
+	}
+
+	/**
+	 * Find a mount of a block device. When the device is mounted more times,
+	 * e.g. through bind mounts, the first one in mountinfo order is returned.
+	 *
+	 * @param device
+	 *            The pathname of the block device, as the mount source
+	 * @return A mount of the device, or null if it's not mounted.
+	 */
+	public MountInfo findByDevice(String device) {
+		return byDevice.get(device);
+	}
+
+	/**
+	 * Get all the mounts, in mountinfo order.
+	 *
+	 * @return An unmodifiable list of the mounts.
+	 */
+	public List<MountInfo> getMounts() {
+		return mounts;
+	}
+
+	static String normalize(String path) {
+
+		if (!path.startsWith("/")) {
+			throw new IllegalArgumentException("Not an absolute path: " + path);
+		}
+		if (path.indexOf("//") < 0 && path.indexOf("/.") < 0 && (path.length() == 1 || !path.endsWith("/"))) {
+			return path;
+		}
+		List<String> parts = new ArrayList<String>();
+		for (String part : path.split("/")) {
+			if (part.isEmpty() || part.equals(".")) {
+				continue;
+			}
+			if (part.equals("..")) {
+				if (!parts.isEmpty()) {
+					parts.remove(parts.size() - 1);
+				}
+				continue;
+			}
+			parts.add(part);
+		}
+		if (parts.isEmpty()) {
+			return "/";
+		}
+		StringBuilder sb = new StringBuilder(path.length());
+		for (String part : parts) {
+			sb.append('/').append(part);
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MountTable [mounts=" + mounts.size() + "]";
+	}
+
+}
@@ -0,0 +1,316 @@
+package it.grid.storm.api.filesystem.quota.posix.openmetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaSnapshot;
+
+/**
+ * The OpenMetrics text exposition of a {@link QuotaSnapshot}, rendered into a
+ * byte array which is reused by the following renderings and grows only when
+ * a snapshot doesn't fit.
+ * <p>
+ * A page is read by many scrapes at once and rendered again only when no
+ * scrape is reading it: {@link QuotaMetricsServer} keeps track of the readers
+ * with {@link #readers}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+final class OpenMetricsPage {
+
+	/**
+	 * The bytes reserved for each sample, enough for the labels of most block
+	 * device pathnames, used to size a page before a rendering.
+	 */
+	private static final int SAMPLE_SIZE = 112;
+
+	/**
+	 * The bytes reserved for the metadata of each family and for the end of
+	 * the exposition.
+	 */
+	private static final int FAMILY_SIZE = 192;
+
+	/**
+	 * The quota metric families, one sample per (block device, gid) pair of
+	 * the snapshot. A sample is left out if the quota information doesn't
+	 * carry a valid value.
+	 */
+	private enum Family {
+
+		BLOCK_USAGE("storm_quota_block_usage_bytes", "bytes", "Disk space used by the group.",
+				PosixQuotaInfo.QIF_SPACE) {
+
+			@Override
+			long value(PosixQuotaInfo info) {
+				return info.getBlockUsage();
+			}
+		},
+		BLOCK_SOFT_LIMIT("storm_quota_block_soft_limit_bytes", "bytes",
+				"Disk space soft limit of the group, 0 if unlimited.", PosixQuotaInfo.QIF_BLIMITS) {
+
+			@Override
+			long value(PosixQuotaInfo info) {
+				return info.getBlockSoftLimit() * PosixQuotaInfo.QIF_DQBLKSIZE;
+			}
+		},
+		BLOCK_HARD_LIMIT("storm_quota_block_hard_limit_bytes", "bytes",
+				"Disk space hard limit of the group, 0 if unlimited.", PosixQuotaInfo.QIF_BLIMITS) {
+
+			@Override
+			long value(PosixQuotaInfo info) {
+				return info.getBlockHardLimit() * PosixQuotaInfo.QIF_DQBLKSIZE;
+			}
+		},
+		BLOCK_GRACE("storm_quota_block_grace_timestamp_seconds", "seconds",
+				"Time the disk space soft limit is enforced, 0 if not over it.", PosixQuotaInfo.QIF_BTIME) {
+
+			@Override
+			long value(PosixQuotaInfo info) {
+				return info.getBlockTimeLimit();
+			}
+		},
+		INODES_USAGE("storm_quota_inodes_usage", null, "Inodes allocated by the group.", PosixQuotaInfo.QIF_INODES) {
+
+			@Override
+			long value(PosixQuotaInfo info) {
+				return info.getINodesUsage();
+			}
+		},
+		INODES_SOFT_LIMIT("storm_quota_inodes_soft_limit", null, "Inodes soft limit of the group, 0 if unlimited.",
+				PosixQuotaInfo.QIF_ILIMITS) {
+
+			@Override
+			long value(PosixQuotaInfo info) {
+				return info.getINodesSoftLimit();
+			}
+		},
+		INODES_HARD_LIMIT("storm_quota_inodes_hard_limit", null, "Inodes hard limit of the group, 0 if unlimited.",
+				PosixQuotaInfo.QIF_ILIMITS) {
+
+			@Override
+			long value(PosixQuotaInfo info) {
+				return info.getINodesHardLimit();
+			}
+		},
+		INODES_GRACE("storm_quota_inodes_grace_timestamp_seconds", "seconds",
+				"Time the inodes soft limit is enforced, 0 if not over it.", PosixQuotaInfo.QIF_ITIME) {
+
+			@Override
+			long value(PosixQuotaInfo info) {
+				return info.getINodesTimeLimit();
+			}
+		};
+
+		final byte[] name;
+		final byte[] metadata;
+		final int valid;
+
+		Family(String name, String unit, String help, int valid) {
+			this.name = ascii(name);
+			this.metadata = ascii(metadata(name, "gauge", unit, help));
+			this.valid = valid;
+		}
+
+		abstract long value(PosixQuotaInfo info);
+	}
+
+	private static final byte[] GENERATION = ascii(metadata("storm_quota_snapshot_generation", "gauge", null,
+			"Number of quota snapshots published before the exposed one.") + "storm_quota_snapshot_generation ");
+
+	private static final byte[] TIMESTAMP = ascii(metadata("storm_quota_snapshot_timestamp_seconds", "gauge",
+			"seconds", "Time the exposed quota snapshot has been published.")
+			+ "storm_quota_snapshot_timestamp_seconds ");
+
+	private static final byte[] DEVICE_LABEL = ascii("{device=\"");
+	private static final byte[] GID_LABEL = ascii("\",gid=\"");
+	private static final byte[] LABELS_END = ascii("\"} ");
+	private static final byte[] EOF = ascii("# EOF\n");
+
+	/**
+	 * The number of scrapes reading the page.
+	 */
+	final AtomicInteger readers = new AtomicInteger();
+
+	private byte[] bytes;
+	private int length;
+	private long generation = -1;
+
+	/**
+	 * OpenMetricsPage constructor.
+	 *
+	 * @param initialSize
+	 *            The initial size of the page in bytes
+	 */
+	OpenMetricsPage(int initialSize) {
+		this.bytes = new byte[initialSize];
+	}
+
+	private static String metadata(String name, String type, String unit, String help) {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		if (unit != null) {
+			sb.append("# UNIT ").append(name).append(' ').append(unit).append('\n');
+		}
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		return sb.toString();
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Render a snapshot into the page, replacing its content. The page must
+	 * have no readers.
+	 *
+	 * @param snapshot
+	 *            The snapshot to expose
+	 */
+	void render(QuotaSnapshot snapshot) {
+
+		Map<GroupQuotaKey, PosixQuotaInfo> quotas = snapshot.asMap();
+		int families = Family.values().length;
+		int estimate = (families + 2) * FAMILY_SIZE + quotas.size() * families * SAMPLE_SIZE;
+		if (estimate > bytes.length) {
+			bytes = new byte[estimate];
+		}
+		length = 0;
+		for (Family family : Family.values()) {
+			append(family.metadata);
+			for (Map.Entry<GroupQuotaKey, PosixQuotaInfo> e : quotas.entrySet()) {
+				PosixQuotaInfo info = e.getValue();
+				if ((info.getValid() & family.valid) != family.valid) {
+					continue;
+				}
+				GroupQuotaKey key = e.getKey();
+				append(family.name);
+				append(DEVICE_LABEL);
+				appendLabelValue(key.getBlockDevice());
+				append(GID_LABEL);
+				appendUnsigned(key.getGid() & 0xFFFFFFFFL, 1);
+				append(LABELS_END);
+				appendLong(family.value(info));
+				appendByte('\n');
+			}
+		}
+		append(GENERATION);
+		appendLong(snapshot.getGeneration());
+		appendByte('\n');
+		append(TIMESTAMP);
+		long timestamp = snapshot.getTimestamp();
+		appendUnsigned(timestamp / 1000, 1);
+		appendByte('.');
+		appendUnsigned(timestamp % 1000, 3);
+		appendByte('\n');
+		append(EOF);
+		generation = snapshot.getGeneration();
+	}
+
+	private void ensureCapacity(int used, int needed) {
+
+		if (used + needed > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(used + needed, bytes.length * 2));
+		}
+	}
+
+	private void append(byte[] b) {
+
+		ensureCapacity(length, b.length);
+		System.arraycopy(b, 0, bytes, length, b.length);
+		length += b.length;
+	}
+
+	private void appendByte(char c) {
+
+		ensureCapacity(length, 1);
+		bytes[length++] = (byte) c;
+	}
+
+	private void appendLong(long v) {
+
+		if (v < 0) {
+			appendByte('-');
+			if (v == Long.MIN_VALUE) {
+				append(ascii("9223372036854775808"));
+				return;
+			}
+			v = -v;
+		}
+		appendUnsigned(v, 1);
+	}
+
+	/**
+	 * Append a non-negative number, zero-padded to at least minDigits digits.
+	 */
+	private void appendUnsigned(long v, int minDigits) {
+
+		int digits = 1;
+		for (long t = v; t >= 10; t /= 10) {
+			digits++;
+		}
+		digits = Math.max(digits, minDigits);
+		ensureCapacity(length, digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			bytes[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		length += digits;
+	}
+
+	/**
+	 * Append a label value as UTF-8, escaping backslashes, double quotes and
+	 * line feeds.
+	 */
+	private void appendLabelValue(String value) {
+
+		byte[] b = value.getBytes(StandardCharsets.UTF_8);
+		ensureCapacity(length, 2 * b.length);
+		for (byte c : b) {
+			if (c == '\\' || c == '"') {
+				bytes[length++] = '\\';
+				bytes[length++] = c;
+			} else if (c == '\n') {
+				bytes[length++] = '\\';
+				bytes[length++] = 'n';
+			} else {
+				bytes[length++] = c;
+			}
+		}
+	}
+
+	/**
+	 * @return The bytes of the page, valid up to {@link #getLength()}.
+	 */
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The length of the rendered exposition.
+	 */
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return The generation of the snapshot rendered into the page, -1 if
+	 *         none has been.
+	 */
+	long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return The size of the page in bytes.
+	 */
+	int getCapacity() {
+		return bytes.length;
+	}
+
+}
@@ -0,0 +1,243 @@
+package it.grid.storm.api.filesystem.quota.posix.openmetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaPoller;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaSnapshot;
+
+/**
+ * An embedded HTTP endpoint, on the HTTP server of the JDK, which exposes the
+ * quota information of a {@link QuotaPoller} in the OpenMetrics text format
+ * at {@value #PATH}, for Prometheus and compatible scrapers.
+ * <p>
+ * A scrape never calls quotactl(): it's answered from the last snapshot
+ * published by the poller. The snapshot is rendered once per generation, by
+ * the first scrape which finds it changed, into one of two pages whose byte
+ * arrays are reused by the following renderings. The other scrapes of the
+ * same generation just write the rendered bytes, so the cost of a scrape
+ * doesn't depend on how often the endpoint is scraped. A page is rendered
+ * again only when no scrape is still writing it; if a slow scrape holds it, a
+ * new page is allocated instead.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotaMetricsServer {
+
+	/**
+	 * The path of the endpoint.
+	 */
+	public static final String PATH = "/metrics";
+
+	/**
+	 * The content type of the OpenMetrics text format.
+	 */
+	public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+	/**
+	 * The default number of threads serving the scrapes.
+	 */
+	public static final int DEFAULT_THREADS = 2;
+
+	/**
+	 * The default initial size of the pages in bytes.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+
+	private final QuotaPoller poller;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private final Object renderLock = new Object();
+	private volatile OpenMetricsPage current;
+	private OpenMetricsPage spare;
+
+	private final LongAdder scrapes = new LongAdder();
+	private final LongAdder renders = new LongAdder();
+
+	/**
+	 * Build a QuotaMetricsServer with the default number of threads and page
+	 * size.
+	 *
+	 * @param poller
+	 *            The poller whose snapshots are exposed
+	 * @param address
+	 *            The address to listen on, with port 0 for an ephemeral port
+	 * @throws IOException
+	 *             if the address can't be bound.
+	 */
+	public QuotaMetricsServer(QuotaPoller poller, InetSocketAddress address) throws IOException {
+		this(poller, address, DEFAULT_THREADS, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * QuotaMetricsServer constructor.
+	 *
+	 * @param poller
+	 *            The poller whose snapshots are exposed
+	 * @param address
+	 *            The address to listen on, with port 0 for an ephemeral port
+	 * @param threads
+	 *            The number of threads serving the scrapes
+	 * @param pageSize
+	 *            The initial size of the pages in bytes, which grow if a
+	 *            snapshot doesn't fit
+	 * @throws IOException
+	 *             if the address can't be bound.
+	 */
+	public QuotaMetricsServer(QuotaPoller poller, InetSocketAddress address, int threads, int pageSize)
+			throws IOException {
+
+		if (threads <= 0 || pageSize <= 0) {
+			throw new IllegalArgumentException("Invalid threads " + threads + " or page size " + pageSize);
+		}
+		this.poller = poller;
+		this.current = new OpenMetricsPage(pageSize);
+		this.spare = new OpenMetricsPage(pageSize);
+		this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("quota-metrics"));
+		this.server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext(PATH, new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				scrape(exchange);
+			}
+		});
+	}
+
+	/**
+	 * Start serving the scrapes.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop serving the scrapes, closing the open connections.
+	 */
+	public void shutdown() {
+
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Get the address the server listens on, with the actual port if it was
+	 * bound to an ephemeral one.
+	 *
+	 * @return The address of the server.
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	private void scrape(HttpExchange exchange) throws IOException {
+
+		try {
+			String method = exchange.getRequestMethod();
+			if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			OpenMetricsPage page = acquire();
+			try {
+				if ("HEAD".equals(method)) {
+					exchange.sendResponseHeaders(200, -1);
+				} else {
+					exchange.sendResponseHeaders(200, page.getLength());
+					exchange.getResponseBody().write(page.getBytes(), 0, page.getLength());
+				}
+			} finally {
+				page.readers.decrementAndGet();
+			}
+			scrapes.increment();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Get the page of the last published snapshot, rendering it if needed,
+	 * and register the caller as one of its readers.
+	 */
+	private OpenMetricsPage acquire() {
+
+		while (true) {
+			OpenMetricsPage page = current;
+			if (page.getGeneration() != poller.getSnapshot().getGeneration()) {
+				render();
+				continue;
+			}
+			page.readers.incrementAndGet();
+			/* the page may have been recycled by a rendering meanwhile */
+			if (page == current) {
+				return page;
+			}
+			page.readers.decrementAndGet();
+		}
+	}
+
+	private void render() {
+
+		synchronized (renderLock) {
+			QuotaSnapshot snapshot = poller.getSnapshot();
+			OpenMetricsPage page = current;
+			if (page.getGeneration() == snapshot.getGeneration()) {
+				return;
+			}
+			OpenMetricsPage target = spare;
+			if (target.readers.get() != 0) {
+				target = new OpenMetricsPage(target.getCapacity());
+			}
+			target.render(snapshot);
+			spare = page;
+			current = target;
+			renders.increment();
+		}
+	}
+
+	/**
+	 * @return The number of scrapes served.
+	 */
+	public long getScrapeCount() {
+		return scrapes.sum();
+	}
+
+	/**
+	 * @return The number of snapshots rendered.
+	 */
+	public long getRenderCount() {
+		return renders.sum();
+	}
+
+	/**
+	 * @return The size in bytes of the page of the last rendered snapshot.
+	 */
+	public int getPageSize() {
+		return current.getCapacity();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QuotaMetricsServer [address=" + getAddress() + ", scrapes=" + getScrapeCount() + ", renders="
+				+ getRenderCount() + "]";
+	}
+
+}
@@ -0,0 +1,450 @@
+package it.grid.storm.api.filesystem.quota.posix.poll;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.events.QuotaChangePublisher;
+
+/**
+ * A background poller which keeps the quota information of a set of
+ * registered (block device, gid) pairs current.
+ * <p>
+ * Polling rounds run on a single daemon thread every {@code minInterval}. Each
+ * round reads, with one {@link PosixQuotaManager#getGroupQuotas(String, int[])}
+ * call per block device, the pairs whose poll is due, and publishes a new
+ * immutable {@link QuotaSnapshot} with a single volatile write if anything
+ * changed. Readers of {@link #getSnapshot()} never block.
+ * <p>
+ * The poll interval of each pair adapts between {@code minInterval} and
+ * {@code maxInterval}:
+ * <ul>
+ * <li>it's halved when the block usage changed since the previous poll, and
+ * bounded to half of the estimated time to reach the block limit at the
+ * observed growth rate;</li>
+ * <li>it's doubled when the block usage didn't change;</li>
+ * <li>it's {@code minInterval} while the block usage is above
+ * {@code nearLimitRatio} of the block soft limit (or hard limit, if no soft
+ * limit is set).</li>
+ * </ul>
+ * A pair whose poll fails with ESRCH has no quota any more: it's removed from
+ * the snapshot. On any other error, e.g. a transient EIO or ETIMEDOUT, the
+ * last polled value is kept and nothing is published. Either way the pair is
+ * polled again after {@code maxInterval}. At most {@code maxPollsPerRound} pairs are read per
+ * round, the most overdue first, so the quotactl() load stays bounded whatever
+ * the number of registered pairs.
+ * <p>
+ * The reads of each round, successful or not, can be passed to a
+ * {@link QuotaChangePublisher}, which emits the changes to its subscribers.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotaPoller {
+
+	/**
+	 * The polling state of a registered pair. Apart from the volatile fields,
+	 * it's accessed by the polling thread only.
+	 */
+	private static final class PollState {
+
+		final GroupQuotaKey key;
+		volatile boolean registered = true;
+		volatile long intervalNanos;
+		long nextPollAt;
+		boolean polled;
+		long lastPollAt;
+		long lastUsage;
+
+		PollState(GroupQuotaKey key, long intervalNanos, long nextPollAt) {
+			this.key = key;
+			this.intervalNanos = intervalNanos;
+			this.nextPollAt = nextPollAt;
+		}
+	}
+
+	private final PosixQuotaManager pqm;
+	private final long minIntervalNanos;
+	private final long maxIntervalNanos;
+	private final double nearLimitRatio;
+	private final int maxPollsPerRound;
+
+	private final ConcurrentMap<GroupQuotaKey, PollState> states = new ConcurrentHashMap<GroupQuotaKey, PollState>();
+	private final Queue<PollState> registrations = new ConcurrentLinkedQueue<PollState>();
+	private final Queue<GroupQuotaKey> unregistrations = new ConcurrentLinkedQueue<GroupQuotaKey>();
+	private final PriorityQueue<PollState> schedule = new PriorityQueue<PollState>(16, new Comparator<PollState>() {
+
+		@Override
+		public int compare(PollState a, PollState b) {
+			return Long.compare(a.nextPollAt, b.nextPollAt);
+		}
+	});
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor(new DaemonThreadFactory("quota-poller"));
+
+	private volatile QuotaSnapshot snapshot = QuotaSnapshot.EMPTY;
+	private volatile QuotaChangePublisher changePublisher;
+
+	private final LongAdder polls = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder rounds = new LongAdder();
+
+	/**
+	 * Build a poller which reads at most 1024 pairs per round and polls at
+	 * the minimum interval the pairs which use more than 90% of their limit.
+	 *
+	 * @param pqm
+	 *            The manager used to read the quota information
+	 * @param minInterval
+	 *            The minimum poll interval, which is also the round period
+	 * @param maxInterval
+	 *            The maximum poll interval
+	 */
+	public QuotaPoller(PosixQuotaManager pqm, Duration minInterval, Duration maxInterval) {
+		this(pqm, minInterval, maxInterval, 0.9, 1024);
+	}
+
+	/**
+	 * QuotaPoller constructor.
+	 *
+	 * @param pqm
+	 *            The manager used to read the quota information
+	 * @param minInterval
+	 *            The minimum poll interval, which is also the round period
+	 * @param maxInterval
+	 *            The maximum poll interval
+	 * @param nearLimitRatio
+	 *            The block usage ratio over which a pair is polled at the
+	 *            minimum interval
+	 * @param maxPollsPerRound
+	 *            The maximum number of pairs read per round
+	 */
+	public QuotaPoller(PosixQuotaManager pqm, Duration minInterval, Duration maxInterval, double nearLimitRatio,
+			int maxPollsPerRound) {
+
+		if (minInterval.isNegative() || minInterval.isZero() || maxInterval.compareTo(minInterval) < 0) {
+			throw new IllegalArgumentException("Invalid intervals: min " + minInterval + ", max " + maxInterval);
+		}
+		if (maxPollsPerRound <= 0) {
+			throw new IllegalArgumentException("Invalid maximum polls per round " + maxPollsPerRound);
+		}
+		this.pqm = pqm;
+		this.minIntervalNanos = minInterval.toNanos();
+		this.maxIntervalNanos = maxInterval.toNanos();
+		this.nearLimitRatio = nearLimitRatio;
+		this.maxPollsPerRound = maxPollsPerRound;
+	}
+
+	/**
+	 * Start the polling rounds.
+	 */
+	public void start() {
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					poll();
+				} catch (RuntimeException e) {
+					/* a failed round must not cancel the next ones */
+					failures.increment();
+				}
+			}
+		}, 0, minIntervalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stop the polling rounds. The last published snapshot is still available.
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Register a (block device, gid) pair. It's polled at the next round.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 */
+	public void register(String blockDevice, int gid) {
+
+		GroupQuotaKey key = new GroupQuotaKey(blockDevice, gid);
+		PollState state = new PollState(key, minIntervalNanos, System.nanoTime());
+		if (states.putIfAbsent(key, state) == null) {
+			registrations.add(state);
+		}
+	}
+
+	/**
+	 * Unregister a (block device, gid) pair. It's removed from the snapshot at
+	 * the next round.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 */
+	public void unregister(String blockDevice, int gid) {
+
+		GroupQuotaKey key = new GroupQuotaKey(blockDevice, gid);
+		PollState state = states.remove(key);
+		if (state != null) {
+			state.registered = false;
+			unregistrations.add(key);
+		}
+	}
+
+	/**
+	 * Get the last published snapshot.
+	 *
+	 * @return The last published snapshot, never null.
+	 */
+	public QuotaSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Set the publisher the reads are passed to, from the next round.
+	 *
+	 * @param changePublisher
+	 *            The publisher of the quota changes, or null to stop passing
+	 *            them
+	 */
+	public void setChangePublisher(QuotaChangePublisher changePublisher) {
+		this.changePublisher = changePublisher;
+	}
+
+	/**
+	 * Get the publisher the reads are passed to.
+	 *
+	 * @return The publisher of the quota changes, or null if none is set.
+	 */
+	public QuotaChangePublisher getChangePublisher() {
+		return changePublisher;
+	}
+
+	/**
+	 * Get the current poll interval of a registered pair.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @return The poll interval, or null if the pair is not registered.
+	 */
+	public Duration getPollInterval(String blockDevice, int gid) {
+
+		PollState state = states.get(new GroupQuotaKey(blockDevice, gid));
+		return state == null ? null : Duration.ofNanos(state.intervalNanos);
+	}
+
+	/**
+	 * Get the number of pairs read so far.
+	 *
+	 * @return The poll count.
+	 */
+	public long getPollCount() {
+		return polls.sum();
+	}
+
+	/**
+	 * Get the number of polls which failed so far.
+	 *
+	 * @return The failure count.
+	 */
+	public long getFailureCount() {
+		return failures.sum();
+	}
+
+	/**
+	 * Get the number of polling rounds run so far.
+	 *
+	 * @return The round count.
+	 */
+	public long getRoundCount() {
+		return rounds.sum();
+	}
+
+	/**
+	 * Run a polling round.
+	 */
+	private void poll() {
+
+		rounds.increment();
+		long now = System.nanoTime();
+
+		for (PollState s; (s = registrations.poll()) != null;) {
+			schedule.add(s);
+		}
+
+		Map<String, List<PollState>> due = new LinkedHashMap<String, List<PollState>>();
+		int count = 0;
+		while (count < maxPollsPerRound && !schedule.isEmpty() && schedule.peek().nextPollAt - now <= 0) {
+			PollState s = schedule.poll();
+			if (!s.registered) {
+				continue;
+			}
+			List<PollState> list = due.get(s.key.getBlockDevice());
+			if (list == null) {
+				list = new ArrayList<PollState>();
+				due.put(s.key.getBlockDevice(), list);
+			}
+			list.add(s);
+			count++;
+		}
+
+		Map<GroupQuotaKey, PosixQuotaInfo> updates = new HashMap<GroupQuotaKey, PosixQuotaInfo>();
+		for (Map.Entry<String, List<PollState>> e : due.entrySet()) {
+			poll(e.getKey(), e.getValue(), now, updates);
+		}
+
+		publish(updates);
+	}
+
+	/**
+	 * Read the quota information of the due pairs of a block device, adapt
+	 * their poll intervals and reschedule them.
+	 */
+	private void poll(String blockDevice, List<PollState> due, long now, Map<GroupQuotaKey, PosixQuotaInfo> updates) {
+
+		int[] gids = new int[due.size()];
+		for (int i = 0; i < gids.length; i++) {
+			gids[i] = due.get(i).key.getGid();
+		}
+
+		PosixQuotaBatch batch = pqm.getGroupQuotas(blockDevice, gids);
+		polls.add(gids.length);
+
+		for (int i = 0; i < gids.length; i++) {
+
+			PollState s = due.get(i);
+			if (batch.isSuccess(i)) {
+				updates.put(s.key, batch.getQuotaInfo(i));
+				s.intervalNanos = adapt(s, batch, i, now);
+				s.polled = true;
+				s.lastPollAt = now;
+				s.lastUsage = batch.getBlockUsage(i);
+			} else {
+				failures.increment();
+				if (batch.getErrorCode(i) == ErrNo.ESRCH) {
+					updates.put(s.key, null);
+				}
+				s.intervalNanos = maxIntervalNanos;
+				s.polled = false;
+			}
+			s.nextPollAt = now + s.intervalNanos;
+			schedule.add(s);
+		}
+	}
+
+	/**
+	 * Compute the next poll interval of a pair from its last reading.
+	 */
+	private long adapt(PollState s, PosixQuotaBatch batch, int i, long now) {
+
+		long usage = batch.getBlockUsage(i);
+		long limit = batch.getBlockSoftLimit(i) > 0 ? batch.getBlockSoftLimit(i) : batch.getBlockHardLimit(i);
+		/* block limits are expressed in quota blocks, usage in bytes */
+		long limitBytes = limit * PosixQuotaInfo.QIF_DQBLKSIZE;
+		long interval = s.intervalNanos;
+
+		if (limit > 0 && usage >= nearLimitRatio * limitBytes) {
+			return minIntervalNanos;
+		}
+
+		if (!s.polled) {
+			interval = minIntervalNanos;
+		} else if (usage != s.lastUsage) {
+			interval /= 2;
+			long growth = usage - s.lastUsage;
+			if (growth > 0 && limit > 0) {
+				double timeToLimit = (double) (limitBytes - usage) * (now - s.lastPollAt) / growth;
+				interval = Math.min(interval, (long) (timeToLimit / 2));
+			}
+		} else {
+			interval = interval > maxIntervalNanos / 2 ? maxIntervalNanos : interval * 2;
+		}
+
+		return Math.max(minIntervalNanos, Math.min(maxIntervalNanos, interval));
+	}
+
+	/**
+	 * Publish a new snapshot if the polled values or the registered pairs
+	 * changed, then hand the updates to the change publisher: a subscriber
+	 * which gets an event already finds its value in {@link #getSnapshot()}.
+	 */
+	private void publish(Map<GroupQuotaKey, PosixQuotaInfo> updates) {
+
+		QuotaSnapshot current = snapshot;
+		Map<GroupQuotaKey, PosixQuotaInfo> quotas = current.asMap();
+		boolean changed = false;
+
+		for (GroupQuotaKey key; (key = unregistrations.poll()) != null;) {
+			if (!states.containsKey(key)) {
+				updates.put(key, null);
+			}
+		}
+
+		for (Map.Entry<GroupQuotaKey, PosixQuotaInfo> e : updates.entrySet()) {
+			if (!sameValues(quotas.get(e.getKey()), e.getValue())) {
+				changed = true;
+				break;
+			}
+		}
+
+		if (changed) {
+			HashMap<GroupQuotaKey, PosixQuotaInfo> next = new HashMap<GroupQuotaKey, PosixQuotaInfo>(quotas);
+			for (Map.Entry<GroupQuotaKey, PosixQuotaInfo> e : updates.entrySet()) {
+				if (e.getValue() == null) {
+					next.remove(e.getKey());
+				} else {
+					next.put(e.getKey(), e.getValue());
+				}
+			}
+			snapshot = new QuotaSnapshot(next, current.getGeneration() + 1, System.currentTimeMillis());
+		}
+
+		QuotaChangePublisher publisher = changePublisher;
+		if (publisher != null) {
+			for (Map.Entry<GroupQuotaKey, PosixQuotaInfo> e : updates.entrySet()) {
+				publisher.update(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private static boolean sameValues(PosixQuotaInfo a, PosixQuotaInfo b) {
+
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return a.getBlockUsage() == b.getBlockUsage() && a.getINodesUsage() == b.getINodesUsage()
+				&& a.getBlockHardLimit() == b.getBlockHardLimit() && a.getBlockSoftLimit() == b.getBlockSoftLimit()
+				&& a.getINodesHardLimit() == b.getINodesHardLimit() && a.getINodesSoftLimit() == b.getINodesSoftLimit()
+				&& a.getBlockTimeLimit() == b.getBlockTimeLimit() && a.getINodesTimeLimit() == b.getINodesTimeLimit()
+				&& a.getValid() == b.getValid();
+	}
+
+}
@@ -0,0 +1,88 @@
+package it.grid.storm.api.filesystem.quota.posix.poll;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+
+/**
+ * An immutable view of the group quota information last polled by a
+ * {@link QuotaPoller}. A new snapshot is published as a whole at the end of
+ * each polling round which changed something, so readers never block and
+ * never see a partially updated state.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public final class QuotaSnapshot {
+
+	/**
+	 * The snapshot published before the first polling round.
+	 */
+	public static final QuotaSnapshot EMPTY = new QuotaSnapshot(new HashMap<GroupQuotaKey, PosixQuotaInfo>(), 0, 0);
+
+	private final Map<GroupQuotaKey, PosixQuotaInfo> quotas;
+	private final long generation;
+	private final long timestamp;
+
+	QuotaSnapshot(HashMap<GroupQuotaKey, PosixQuotaInfo> quotas, long generation, long timestamp) {
+		this.quotas = Collections.unmodifiableMap(quotas);
+		this.generation = generation;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Get the quota information of a (block device, gid) pair.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gid
+	 *            The group id
+	 * @return The last polled quota information, or null if the pair is not
+	 *         registered or its last poll failed.
+	 */
+	public PosixQuotaInfo get(String blockDevice, int gid) {
+		return quotas.get(new GroupQuotaKey(blockDevice, gid));
+	}
+
+	/**
+	 * Get all the quota information of the snapshot.
+	 *
+	 * @return An unmodifiable map of the quota information.
+	 */
+	public Map<GroupQuotaKey, PosixQuotaInfo> asMap() {
+		return quotas;
+	}
+
+	/**
+	 * Get the number of published snapshots before this one.
+	 *
+	 * @return The generation of the snapshot.
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Get the time the snapshot has been published.
+	 *
+	 * @return The publication time in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QuotaSnapshot [generation=" + generation + ", timestamp=" + timestamp + ", size=" + quotas.size()
+				+ "]";
+	}
+
+}
@@ -0,0 +1,512 @@
+package it.grid.storm.api.filesystem.quota.posix.report;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotaVisitor;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupResolver;
+
+/**
+ * Write a repquota-like report of the group quotas of block devices to a
+ * channel, in CSV or JSON.
+ * <p>
+ * The records are scanned with
+ * {@link PosixQuotaManager#forEachGroupQuota(String, MutableQuotaInfo, QuotaVisitor)}
+ * and encoded straight into a direct buffer, which is written to the channel
+ * each time it fills up: the memory used doesn't depend on the number of
+ * gids, and no string is built per record. The limits are converted to bytes,
+ * as the block usage; the grace times are the epoch seconds the soft limits
+ * turn into hard ones, 0 if not running.
+ * <p>
+ * The {@link #main(String[])} method writes the report of the block devices
+ * passed on the command line.
+ * <p>
+ * An exporter runs one export at a time.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotaReportExporter {
+
+	/**
+	 * The default size in bytes of the buffer of the output.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The longest encoding of a number, a quote or a UTF-8 char: the buffer
+	 * must hold at least this many bytes.
+	 */
+	private static final int MIN_BUFFER_SIZE = 32;
+
+	private static final String[] FIELDS = { "space_used", "space_soft_limit", "space_hard_limit", "space_grace",
+			"inodes_used", "inodes_soft_limit", "inodes_hard_limit", "inodes_grace", "valid" };
+
+	private static final byte[] CSV_HEADER = ascii("device,gid,");
+	private static final byte[] CSV_GROUP_HEADER = ascii("group,");
+	private static final byte[][] JSON_KEYS = new byte[FIELDS.length][];
+	private static final byte[] JSON_DEVICE = ascii("{\"device\":");
+	private static final byte[] JSON_GID = ascii(",\"gid\":");
+	private static final byte[] JSON_GROUP = ascii(",\"group\":");
+	private static final byte[] JSON_NULL = ascii("null");
+	private static final byte[] JSON_END = ascii("\n]\n");
+	private static final byte[] HEX = ascii("0123456789abcdef");
+
+	static {
+		for (int i = 0; i < FIELDS.length; i++) {
+			JSON_KEYS[i] = ascii(",\"" + FIELDS[i] + "\":");
+		}
+	}
+
+	private final PosixQuotaManager pqm;
+	private final ReportFormat format;
+	private final Set<ReportFilter> filters;
+	private final boolean groupNames;
+	private final ByteBuffer buffer;
+
+	private final MutableQuotaInfo holder = new MutableQuotaInfo();
+	private final long[] values = new long[FIELDS.length];
+	private final byte[] digits = new byte[20];
+
+	/* the state of the running export */
+	private WritableByteChannel channel;
+	private String blockDevice;
+	private IOException failure;
+	private long scanned;
+	private long written;
+
+	private final QuotaVisitor visitor = new QuotaVisitor() {
+
+		@Override
+		public boolean visit(MutableQuotaInfo info) {
+
+			scanned++;
+			for (ReportFilter filter : filters) {
+				if (!filter.accept(info)) {
+					return true;
+				}
+			}
+			try {
+				writeRecord(info);
+			} catch (IOException e) {
+				failure = e;
+				return false;
+			}
+			written++;
+			return true;
+		}
+	};
+
+	/**
+	 * Build an exporter of all the records, without group names.
+	 *
+	 * @param pqm
+	 *            The manager used to scan the quota information
+	 * @param format
+	 *            The output format
+	 */
+	public QuotaReportExporter(PosixQuotaManager pqm, ReportFormat format) {
+		this(pqm, format, EnumSet.noneOf(ReportFilter.class), false, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * QuotaReportExporter constructor.
+	 *
+	 * @param pqm
+	 *            The manager used to scan the quota information
+	 * @param format
+	 *            The output format
+	 * @param filters
+	 *            The conditions all the written records must meet
+	 * @param groupNames
+	 *            Whether to write the name of each group, resolved through
+	 *            the {@link GroupResolver} of the manager
+	 * @param bufferSize
+	 *            The size in bytes of the buffer of the output
+	 */
+	public QuotaReportExporter(PosixQuotaManager pqm, ReportFormat format, Set<ReportFilter> filters,
+			boolean groupNames, int bufferSize) {
+
+		if (bufferSize < MIN_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+		}
+		this.pqm = pqm;
+		this.format = format;
+		this.filters = filters.isEmpty() ? EnumSet.noneOf(ReportFilter.class) : EnumSet.copyOf(filters);
+		this.groupNames = groupNames;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Write the report of a block device.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param out
+	 *            The channel the report is written to. It's not closed.
+	 * @return The number of records written.
+	 * @throws PosixQuotaException
+	 *             if the scan failed. The records before the failure have
+	 *             been written, the end of the report hasn't.
+	 * @throws IOException
+	 *             if the channel failed.
+	 */
+	public long export(String blockDevice, WritableByteChannel out) throws PosixQuotaException, IOException {
+		return export(Collections.singletonList(blockDevice), out);
+	}
+
+	/**
+	 * Write the report of a set of block devices, one after the other, as a
+	 * single CSV table or JSON array.
+	 *
+	 * @param blockDevices
+	 *            The pathnames of the block devices
+	 * @param out
+	 *            The channel the report is written to. It's not closed.
+	 * @return The number of records written.
+	 * @throws PosixQuotaException
+	 *             if the scan failed. The records before the failure have
+	 *             been written, the end of the report hasn't.
+	 * @throws IOException
+	 *             if the channel failed.
+	 */
+	public synchronized long export(Collection<String> blockDevices, WritableByteChannel out)
+			throws PosixQuotaException, IOException {
+
+		buffer.clear();
+		channel = out;
+		failure = null;
+		scanned = 0;
+		written = 0;
+		try {
+			writeHeader();
+			for (String device : blockDevices) {
+				blockDevice = device;
+				pqm.forEachGroupQuota(device, holder, visitor);
+				if (failure != null) {
+					throw failure;
+				}
+			}
+			writeFooter();
+			flush();
+		} catch (PosixQuotaException e) {
+			flush();
+			throw e;
+		} finally {
+			channel = null;
+			blockDevice = null;
+		}
+		return written;
+	}
+
+	private void writeHeader() throws IOException {
+
+		if (format == ReportFormat.JSON) {
+			put((byte) '[');
+			return;
+		}
+		put(CSV_HEADER);
+		if (groupNames) {
+			put(CSV_GROUP_HEADER);
+		}
+		for (int i = 0; i < FIELDS.length; i++) {
+			if (i > 0) {
+				put((byte) ',');
+			}
+			putText(FIELDS[i], false);
+		}
+		put((byte) '\n');
+	}
+
+	private void writeFooter() throws IOException {
+
+		if (format == ReportFormat.JSON) {
+			put(JSON_END);
+		}
+	}
+
+	private void writeRecord(MutableQuotaInfo info) throws IOException {
+
+		values[0] = info.getBlockUsage();
+		values[1] = info.getBlockSoftLimit() * PosixQuotaInfo.QIF_DQBLKSIZE;
+		values[2] = info.getBlockHardLimit() * PosixQuotaInfo.QIF_DQBLKSIZE;
+		values[3] = info.getBlockTimeLimit();
+		values[4] = info.getINodesUsage();
+		values[5] = info.getINodesSoftLimit();
+		values[6] = info.getINodesHardLimit();
+		values[7] = info.getINodesTimeLimit();
+		values[8] = info.getValid();
+		String group = groupNames ? groupName(info.getGid()) : null;
+
+		if (format == ReportFormat.JSON) {
+			if (written > 0) {
+				put((byte) ',');
+			}
+			put((byte) '\n');
+			put(JSON_DEVICE);
+			putText(blockDevice, true);
+			put(JSON_GID);
+			putLong(Integer.toUnsignedLong(info.getGid()));
+			if (groupNames) {
+				put(JSON_GROUP);
+				if (group == null) {
+					put(JSON_NULL);
+				} else {
+					putText(group, true);
+				}
+			}
+			for (int i = 0; i < FIELDS.length; i++) {
+				put(JSON_KEYS[i]);
+				putLong(values[i]);
+			}
+			put((byte) '}');
+			return;
+		}
+
+		putText(blockDevice, true);
+		put((byte) ',');
+		putLong(Integer.toUnsignedLong(info.getGid()));
+		put((byte) ',');
+		if (groupNames) {
+			if (group != null) {
+				putText(group, true);
+			}
+			put((byte) ',');
+		}
+		for (int i = 0; i < FIELDS.length; i++) {
+			if (i > 0) {
+				put((byte) ',');
+			}
+			putLong(values[i]);
+		}
+		put((byte) '\n');
+	}
+
+	private String groupName(int gid) {
+
+		try {
+			return pqm.getGroupResolver().getGroupName(gid);
+		} catch (PosixQuotaException e) {
+			/* the group database is down: the usage is still worth reporting */
+			return null;
+		}
+	}
+
+	private void ensure(int length) throws IOException {
+
+		if (buffer.remaining() < length) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void put(byte b) throws IOException {
+
+		ensure(1);
+		buffer.put(b);
+	}
+
+	private void put(byte[] bytes) throws IOException {
+
+		for (int offset = 0; offset < bytes.length;) {
+			ensure(1);
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	private void putLong(long value) throws IOException {
+
+		ensure(digits.length);
+		if (value < 0) {
+			buffer.put((byte) '-');
+			/* Long.MIN_VALUE stays negative: its digits are negated one by one */
+			int i = digits.length;
+			do {
+				digits[--i] = (byte) ('0' - value % 10);
+				value /= 10;
+			} while (value != 0);
+			buffer.put(digits, i, digits.length - i);
+			return;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		buffer.put(digits, i, digits.length - i);
+	}
+
+	/**
+	 * Write a text field, quoted and escaped as a JSON string or a CSV field,
+	 * encoded in UTF-8.
+	 */
+	private void putText(String text, boolean quoted) throws IOException {
+
+		boolean json = format == ReportFormat.JSON;
+		if (quoted) {
+			put((byte) '"');
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			ensure(MIN_BUFFER_SIZE);
+			if (c == '"') {
+				buffer.put(json ? (byte) '\\' : (byte) '"').put((byte) '"');
+			} else if (json && c == '\\') {
+				buffer.put((byte) '\\').put((byte) '\\');
+			} else if (json && c < 0x20) {
+				buffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0').put(HEX[c >> 4])
+						.put(HEX[c & 0xf]);
+			} else if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				buffer.put((byte) (0xf0 | (cp >> 18))).put((byte) (0x80 | ((cp >> 12) & 0x3f)))
+						.put((byte) (0x80 | ((cp >> 6) & 0x3f))).put((byte) (0x80 | (cp & 0x3f)));
+			} else {
+				buffer.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f)))
+						.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+		if (quoted) {
+			put((byte) '"');
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return The number of records scanned by the last export, written or
+	 *         filtered out.
+	 */
+	public synchronized long getScannedCount() {
+		return scanned;
+	}
+
+	/**
+	 * @return The number of records written by the last export.
+	 */
+	public synchronized long getWrittenCount() {
+		return written;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QuotaReportExporter [format=" + format + ", filters=" + filters + ", groupNames=" + groupNames
+				+ ", bufferSize=" + buffer.capacity() + "]";
+	}
+
+	private static void usage() {
+
+		System.err.println("Usage: QuotaReportExporter [--format csv|json] [--over-soft-limit] [--valid-usage]"
+				+ " [--group-names] [--output FILE] BLOCKDEVICE...");
+		System.exit(2);
+	}
+
+	/**
+	 * Write the report of the group quotas of one or more block devices to
+	 * the standard output, or to a file.
+	 * <p>
+	 * The options are the format ({@code --format csv} or {@code json}, CSV
+	 * by default), the filters ({@code --over-soft-limit},
+	 * {@code --valid-usage}), {@code --group-names} to resolve the name of
+	 * each group, after a preload of the whole group database, and
+	 * {@code --output FILE}.
+	 *
+	 * @param args
+	 *            The command line arguments
+	 * @throws IOException
+	 *             if the output can't be written.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		ReportFormat format = ReportFormat.CSV;
+		Set<ReportFilter> filters = EnumSet.noneOf(ReportFilter.class);
+		boolean groupNames = false;
+		String output = null;
+		List<String> blockDevices = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++) {
+			if ("--format".equals(args[i]) && i + 1 < args.length) {
+				try {
+					format = ReportFormat.valueOf(args[++i].toUpperCase());
+				} catch (IllegalArgumentException e) {
+					usage();
+				}
+			} else if ("--over-soft-limit".equals(args[i])) {
+				filters.add(ReportFilter.OVER_SOFT_LIMIT);
+			} else if ("--valid-usage".equals(args[i])) {
+				filters.add(ReportFilter.VALID_USAGE);
+			} else if ("--group-names".equals(args[i])) {
+				groupNames = true;
+			} else if ("--output".equals(args[i]) && i + 1 < args.length) {
+				output = args[++i];
+			} else if (args[i].startsWith("--")) {
+				usage();
+			} else {
+				blockDevices.add(args[i]);
+			}
+		}
+		if (blockDevices.isEmpty()) {
+			usage();
+		}
+
+		PosixQuotaManager pqm = new PosixQuotaManager();
+		if (groupNames) {
+			try {
+				pqm.getGroupResolver().preload();
+			} catch (PosixQuotaException e) {
+				/* the names are then looked up one by one */
+				System.err.println(e.getMessage());
+			}
+		}
+		QuotaReportExporter exporter = new QuotaReportExporter(pqm, format, filters, groupNames,
+				DEFAULT_BUFFER_SIZE);
+
+		try (FileChannel out = output == null ? new FileOutputStream(FileDescriptor.out).getChannel()
+				: FileChannel.open(Paths.get(output), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			exporter.export(blockDevices, out);
+		} catch (PosixQuotaException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+}
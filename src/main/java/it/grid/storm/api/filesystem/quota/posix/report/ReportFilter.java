@@ -0,0 +1,52 @@
+package it.grid.storm.api.filesystem.quota.posix.report;
+
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+
+/**
+ * A condition the records of a {@link QuotaReportExporter} must meet to be
+ * written.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public enum ReportFilter {
+
+	/**
+	 * The block usage or the inode usage reached its soft limit, as flagged
+	 * with a '+' by repquota. A soft limit of 0 means no limit.
+	 */
+	OVER_SOFT_LIMIT {
+
+		@Override
+		boolean accept(MutableQuotaInfo info) {
+
+			/* the block usage is rounded up to whole blocks, as repquota does */
+			long blocks = (info.getBlockUsage() + PosixQuotaInfo.QIF_DQBLKSIZE - 1) / PosixQuotaInfo.QIF_DQBLKSIZE;
+			return (info.getBlockSoftLimit() != 0 && blocks >= info.getBlockSoftLimit())
+					|| (info.getINodesSoftLimit() != 0 && info.getINodesUsage() >= info.getINodesSoftLimit());
+		}
+	},
+
+	/**
+	 * Both the block usage and the inode usage are valid, see
+	 * {@link PosixQuotaInfo#QIF_USAGE}.
+	 */
+	VALID_USAGE {
+
+		@Override
+		boolean accept(MutableQuotaInfo info) {
+			return (info.getValid() & PosixQuotaInfo.QIF_USAGE) == PosixQuotaInfo.QIF_USAGE;
+		}
+	};
+
+	/**
+	 * Check a record.
+	 *
+	 * @param info
+	 *            The record, with all its fields read
+	 * @return true if the record meets the condition.
+	 */
+	abstract boolean accept(MutableQuotaInfo info);
+
+}
@@ -0,0 +1,21 @@
+package it.grid.storm.api.filesystem.quota.posix.report;
+
+/**
+ * The output format of a {@link QuotaReportExporter}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public enum ReportFormat {
+
+	/**
+	 * One header line, then one line per record. Text fields are always
+	 * double-quoted.
+	 */
+	CSV,
+
+	/**
+	 * A JSON array with one object per record, one record per line.
+	 */
+	JSON
+}
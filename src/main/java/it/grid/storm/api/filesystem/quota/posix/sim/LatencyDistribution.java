@@ -0,0 +1,182 @@
+package it.grid.storm.api.filesystem.quota.posix.sim;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The distribution of the latencies of the simulated quotactl() calls.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public interface LatencyDistribution {
+
+	/**
+	 * Draw a latency.
+	 *
+	 * @return The latency in nanoseconds, never negative.
+	 */
+	long nextNanos();
+
+	/**
+	 * No latency at all.
+	 *
+	 * @return The distribution.
+	 */
+	static LatencyDistribution none() {
+
+		return new LatencyDistribution() {
+
+			@Override
+			public long nextNanos() {
+				return 0;
+			}
+
+			@Override
+			public String toString() {
+				return "none";
+			}
+		};
+	}
+
+	/**
+	 * A constant latency.
+	 *
+	 * @param latency
+	 *            The latency
+	 * @return The distribution.
+	 */
+	static LatencyDistribution fixed(Duration latency) {
+
+		final long nanos = latency.toNanos();
+		return new LatencyDistribution() {
+
+			@Override
+			public long nextNanos() {
+				return nanos;
+			}
+
+			@Override
+			public String toString() {
+				return "fixed(" + nanos + "ns)";
+			}
+		};
+	}
+
+	/**
+	 * A latency uniformly distributed between two bounds.
+	 *
+	 * @param min
+	 *            The lower bound, inclusive
+	 * @param max
+	 *            The upper bound, exclusive
+	 * @return The distribution.
+	 */
+	static LatencyDistribution uniform(Duration min, Duration max) {
+
+		final long minNanos = min.toNanos();
+		final long maxNanos = max.toNanos();
+		if (maxNanos <= minNanos) {
+			throw new IllegalArgumentException("Empty range [" + min + ", " + max + ")");
+		}
+		return new LatencyDistribution() {
+
+			@Override
+			public long nextNanos() {
+				return ThreadLocalRandom.current().nextLong(minNanos, maxNanos);
+			}
+
+			@Override
+			public String toString() {
+				return "uniform(" + minNanos + "ns, " + maxNanos + "ns)";
+			}
+		};
+	}
+
+	/**
+	 * An exponentially distributed latency, as the service time of a single
+	 * server queue.
+	 *
+	 * @param mean
+	 *            The mean latency
+	 * @return The distribution.
+	 */
+	static LatencyDistribution exponential(Duration mean) {
+
+		final double meanNanos = mean.toNanos();
+		return new LatencyDistribution() {
+
+			@Override
+			public long nextNanos() {
+				return (long) (-meanNanos * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+			}
+
+			@Override
+			public String toString() {
+				return "exponential(" + (long) meanNanos + "ns)";
+			}
+		};
+	}
+
+	/**
+	 * A log-normally distributed latency, with the long right tail of the
+	 * latencies of a real disk.
+	 *
+	 * @param median
+	 *            The median latency
+	 * @param sigma
+	 *            The standard deviation of the logarithm of the latency: 0.5
+	 *            gives a 99th percentile about 3.2 times the median
+	 * @return The distribution.
+	 */
+	static LatencyDistribution logNormal(Duration median, final double sigma) {
+
+		final double mu = Math.log(median.toNanos());
+		return new LatencyDistribution() {
+
+			@Override
+			public long nextNanos() {
+				return (long) Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+			}
+
+			@Override
+			public String toString() {
+				return "logNormal(" + Math.round(Math.exp(mu)) + "ns, " + sigma + ")";
+			}
+		};
+	}
+
+	/**
+	 * A latency drawn from a base distribution, replaced by an outlier with
+	 * some probability, as a call stuck behind a journal commit.
+	 *
+	 * @param base
+	 *            The distribution of the regular latencies
+	 * @param probability
+	 *            The probability of an outlier, from 0 to 1
+	 * @param outlier
+	 *            The latency of an outlier
+	 * @return The distribution.
+	 */
+	static LatencyDistribution withOutliers(final LatencyDistribution base, final double probability,
+			Duration outlier) {
+
+		final long outlierNanos = outlier.toNanos();
+		return new LatencyDistribution() {
+
+			@Override
+			public long nextNanos() {
+				if (ThreadLocalRandom.current().nextDouble() < probability) {
+					return outlierNanos;
+				}
+				return base.nextNanos();
+			}
+
+			@Override
+			public String toString() {
+				return base + " with " + probability + " outliers of " + outlierNanos + "ns";
+			}
+		};
+	}
+
+}
@@ -0,0 +1,112 @@
+package it.grid.storm.api.filesystem.quota.posix.sim;
+
+import java.time.Duration;
+
+import it.grid.storm.api.filesystem.quota.posix.metrics.LatencyHistogram;
+
+/**
+ * The outcome of a {@link QuotaLoadGenerator} run.
+ * <p>
+ * Two latencies are recorded for each operation:
+ * <ul>
+ * <li>the <em>service time</em>, from the actual start of the operation to
+ * its end;</li>
+ * <li>the <em>response time</em>, from the time the operation was scheduled
+ * to start to its end. When the system under test stalls, the operations
+ * which should have started meanwhile are delayed, and their response time
+ * accounts for the delay: this is the latency seen by clients arriving at the
+ * target rate, corrected for coordinated omission.</li>
+ * </ul>
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class LoadReport {
+
+	private final double targetRate;
+	private final long operations;
+	private final long errors;
+	private final long elapsedNanos;
+	private final LatencyHistogram serviceTime;
+	private final LatencyHistogram responseTime;
+
+	LoadReport(double targetRate, long operations, long errors, long elapsedNanos, LatencyHistogram serviceTime,
+			LatencyHistogram responseTime) {
+
+		this.targetRate = targetRate;
+		this.operations = operations;
+		this.errors = errors;
+		this.elapsedNanos = elapsedNanos;
+		this.serviceTime = serviceTime;
+		this.responseTime = responseTime;
+	}
+
+	/**
+	 * @return The target rate, in operations per second.
+	 */
+	public double getTargetRate() {
+		return targetRate;
+	}
+
+	/**
+	 * @return The number of completed operations.
+	 */
+	public long getOperations() {
+		return operations;
+	}
+
+	/**
+	 * @return The number of failed operations.
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return The time from the start of the run to the end of the last
+	 *         operation.
+	 */
+	public Duration getElapsed() {
+		return Duration.ofNanos(elapsedNanos);
+	}
+
+	/**
+	 * @return The achieved throughput, in operations per second.
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @return The histogram of the service times, in nanoseconds.
+	 */
+	public LatencyHistogram getServiceTime() {
+		return serviceTime;
+	}
+
+	/**
+	 * @return The histogram of the response times corrected for coordinated
+	 *         omission, in nanoseconds.
+	 */
+	public LatencyHistogram getResponseTime() {
+		return responseTime;
+	}
+
+	private static String format(LatencyHistogram h) {
+		return String.format("p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", h.getPercentile(50) / 1e3,
+				h.getPercentile(90) / 1e3, h.getPercentile(99) / 1e3, h.getPercentile(99.9) / 1e3, h.getMax() / 1e3);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("%d operations, %d errors in %.3fs: %.1f ops/s (target %.1f ops/s)%n" + "service time:  %s%n"
+				+ "response time: %s", operations, errors, elapsedNanos / 1e9, getThroughput(), targetRate,
+				format(serviceTime), format(responseTime));
+	}
+
+}
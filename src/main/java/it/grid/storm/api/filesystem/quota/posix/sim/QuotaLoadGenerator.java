@@ -0,0 +1,212 @@
+package it.grid.storm.api.filesystem.quota.posix.sim;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.grid.storm.api.filesystem.quota.posix.DaemonThreadFactory;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.cache.CachingPosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.metrics.LatencyHistogram;
+
+/**
+ * An open-loop load generator: operations are started at a constant target
+ * rate, spread over a number of threads, whatever the time the previous ones
+ * took.
+ * <p>
+ * The n-th operation is scheduled at {@code n / rate} seconds from the start
+ * of the run and is executed by thread {@code n % threads}. A thread late on
+ * its schedule runs its next operations back to back, without skipping them,
+ * and measures their latency from the scheduled start: the
+ * {@link LoadReport#getResponseTime() response time} so includes the time
+ * spent waiting for a stalled system, which a closed-loop benchmark would
+ * omit.
+ * <p>
+ * The {@link #main(String[])} method runs the generator against a
+ * {@link SimulatedQuotactlBackend}, optionally behind a
+ * {@link CachingPosixQuotaManager}.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class QuotaLoadGenerator {
+
+	/**
+	 * An operation under test.
+	 */
+	public interface Operation {
+
+		/**
+		 * Run the operation.
+		 *
+		 * @param sequence
+		 *            The sequence number of the operation into the run
+		 * @return 0 on success, an error code otherwise.
+		 */
+		int call(long sequence);
+	}
+
+	/**
+	 * The error code recorded when an operation raises an exception.
+	 */
+	private static final int EXCEPTION_ERRNO = -1;
+
+	private final Operation operation;
+	private final double ratePerSecond;
+	private final int threads;
+	private final ThreadFactory threadFactory = new DaemonThreadFactory("quota-load");
+
+	/**
+	 * QuotaLoadGenerator constructor.
+	 *
+	 * @param operation
+	 *            The operation under test
+	 * @param ratePerSecond
+	 *            The target rate, in operations per second
+	 * @param threads
+	 *            The number of threads which run the operations
+	 */
+	public QuotaLoadGenerator(Operation operation, double ratePerSecond, int threads) {
+
+		if (ratePerSecond <= 0 || threads <= 0) {
+			throw new IllegalArgumentException("Invalid rate " + ratePerSecond + " or threads " + threads);
+		}
+		this.operation = operation;
+		this.ratePerSecond = ratePerSecond;
+		this.threads = threads;
+	}
+
+	/**
+	 * An operation which reads the group quota of the gids in turn with
+	 * {@link PosixQuotaManager#readGroupQuota(String, int)}.
+	 *
+	 * @param pqm
+	 *            The manager under test
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @param gids
+	 *            The group ids
+	 * @return The operation.
+	 */
+	public static Operation readGroupQuota(final PosixQuotaManager pqm, final String blockDevice, final int[] gids) {
+
+		return new Operation() {
+
+			@Override
+			public int call(long sequence) {
+				return pqm.readGroupQuota(blockDevice, gids[(int) (sequence % gids.length)]).getErrorCode();
+			}
+		};
+	}
+
+	/**
+	 * Run the operations at the target rate.
+	 *
+	 * @param duration
+	 *            The time during which operations are started
+	 * @return The report of the run, once all the started operations are
+	 *         completed.
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             run to complete.
+	 */
+	public LoadReport run(Duration duration) throws InterruptedException {
+
+		final LatencyHistogram serviceTime = new LatencyHistogram();
+		final LatencyHistogram responseTime = new LatencyHistogram();
+		final LongAdder operations = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final long total = (long) (duration.toNanos() / 1e9 * ratePerSecond);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+
+		for (int t = 0; t < threads; t++) {
+
+			final int first = t;
+			threadFactory.newThread(new Runnable() {
+
+				@Override
+				public void run() {
+
+					try {
+						for (long n = first; n < total; n += threads) {
+
+							long scheduled = start + (long) (n * 1e9 / ratePerSecond);
+							SimulatedQuotactlBackend.parkUntil(scheduled);
+							long begin = System.nanoTime();
+							int errNo;
+							try {
+								errNo = operation.call(n);
+							} catch (RuntimeException e) {
+								errNo = EXCEPTION_ERRNO;
+							}
+							long end = System.nanoTime();
+							serviceTime.record(end - begin);
+							responseTime.record(end - scheduled);
+							operations.increment();
+							if (errNo != 0) {
+								errors.increment();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		done.await();
+		return new LoadReport(ratePerSecond, operations.sum(), errors.sum(), System.nanoTime() - start, serviceTime,
+				responseTime);
+	}
+
+	/**
+	 * Capacity test a {@link PosixQuotaManager} on a simulated device with
+	 * log-normal latencies.
+	 * <p>
+	 * Arguments, all optional: the target rate (10000 ops/s), the duration in
+	 * seconds (10), the number of threads (4), the number of gids (1000), the
+	 * median quotactl() latency in microseconds (500) and the time-to-live in
+	 * milliseconds of a {@link CachingPosixQuotaManager} in front of the
+	 * manager (0, no cache).
+	 *
+	 * @param args
+	 *            The command line arguments
+	 * @throws InterruptedException
+	 *             if interrupted while running.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+
+		double rate = args.length > 0 ? Double.parseDouble(args[0]) : 10000;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		int groups = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		long latencyMicros = args.length > 4 ? Long.parseLong(args[4]) : 500;
+		long ttlMillis = args.length > 5 ? Long.parseLong(args[5]) : 0;
+
+		String blockDevice = "/dev/simulated";
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(blockDevice);
+		device.setLatency(LatencyDistribution.logNormal(Duration.ofNanos(latencyMicros * 1000), 0.5));
+		int[] gids = new int[groups];
+		for (int i = 0; i < groups; i++) {
+			gids[i] = 1000 + i;
+			device.addGroup(gids[i], 1L << 30, 0, 1L << 20);
+		}
+
+		PosixQuotaManager pqm = new PosixQuotaManager(backend);
+		if (ttlMillis > 0) {
+			pqm = new CachingPosixQuotaManager(pqm, Duration.ofMillis(ttlMillis), groups);
+		}
+
+		System.out.println("Running " + rate + " ops/s for " + seconds + "s on " + threads + " threads, " + groups
+				+ " gids, " + device.getLatency() + (ttlMillis > 0 ? ", cached for " + ttlMillis + "ms" : ""));
+		LoadReport report = new QuotaLoadGenerator(readGroupQuota(pqm, blockDevice, gids), rate, threads)
+				.run(Duration.ofSeconds(seconds));
+		System.out.println(report);
+		System.out.println(backend.getCallCount() + " quotactl() calls");
+	}
+
+}
@@ -0,0 +1,213 @@
+package it.grid.storm.api.filesystem.quota.posix.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A simulated quota-enabled block device of a
+ * {@link SimulatedQuotactlBackend}: its group quotas, the latency of its
+ * quotactl() calls and the errors injected into them.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class SimulatedDevice {
+
+	/**
+	 * An error injected with a probability.
+	 */
+	private static final class InjectedError {
+
+		final int errNo;
+		final double probability;
+
+		InjectedError(int errNo, double probability) {
+			this.errNo = errNo;
+			this.probability = probability;
+		}
+	}
+
+	private static final InjectedError[] NO_ERRORS = new InjectedError[0];
+
+	/**
+	 * Group ids are unsigned, as Q_GETNEXTQUOTA enumerates them.
+	 */
+	private static final Comparator<Integer> UNSIGNED = new Comparator<Integer>() {
+
+		@Override
+		public int compare(Integer a, Integer b) {
+			return Integer.compareUnsigned(a, b);
+		}
+	};
+
+	private final SimulatedQuotactlBackend backend;
+	private final String blockDevice;
+	private final ConcurrentNavigableMap<Integer, SimulatedGroup> groups = new ConcurrentSkipListMap<Integer, SimulatedGroup>(
+			UNSIGNED);
+
+	private volatile LatencyDistribution latency = LatencyDistribution.none();
+	private volatile InjectedError[] errors = NO_ERRORS;
+
+	SimulatedDevice(SimulatedQuotactlBackend backend, String blockDevice) {
+
+		this.backend = backend;
+		this.blockDevice = blockDevice;
+	}
+
+	/**
+	 * @return The pathname of the block device.
+	 */
+	public String getBlockDevice() {
+		return blockDevice;
+	}
+
+	/**
+	 * Add the quota of a group id, or replace it.
+	 *
+	 * @param gid
+	 *            The group id
+	 * @param blockHardLimit
+	 *            The block hard limit, in 1 KiB blocks, 0 for no limit
+	 * @param blockUsage
+	 *            The current block usage, in bytes
+	 * @param growthPerSecond
+	 *            The growth of the block usage, in bytes per second of
+	 *            simulated time
+	 * @return The simulated quota, whose other settings can be changed.
+	 */
+	public SimulatedGroup addGroup(int gid, long blockHardLimit, long blockUsage, long growthPerSecond) {
+
+		SimulatedGroup group = new SimulatedGroup(backend, gid, blockHardLimit, blockUsage, growthPerSecond);
+		groups.put(gid, group);
+		return group;
+	}
+
+	/**
+	 * Get the quota of a group id.
+	 *
+	 * @param gid
+	 *            The group id
+	 * @return The simulated quota, or null if the group has none.
+	 */
+	public SimulatedGroup getGroup(int gid) {
+		return groups.get(gid);
+	}
+
+	/**
+	 * Get the quota of the first group id greater than or equal to another,
+	 * as Q_GETNEXTQUOTA does.
+	 *
+	 * @param gid
+	 *            The first group id to look for
+	 * @return The simulated quota, or null if no such group has one.
+	 */
+	SimulatedGroup nextGroup(int gid) {
+
+		Map.Entry<Integer, SimulatedGroup> entry = groups.ceilingEntry(gid);
+		return entry != null ? entry.getValue() : null;
+	}
+
+	/**
+	 * @return The simulated quotas of all the group ids, in ascending order.
+	 */
+	public Collection<SimulatedGroup> getGroups() {
+		return groups.values();
+	}
+
+	/**
+	 * Remove the quota of a group id, whose reads then fail with ESRCH.
+	 *
+	 * @param gid
+	 *            The group id
+	 * @return The removed quota, or null if the group had none.
+	 */
+	public SimulatedGroup removeGroup(int gid) {
+		return groups.remove(gid);
+	}
+
+	/**
+	 * Set the latency of the quotactl() calls on this device.
+	 *
+	 * @param latency
+	 *            The latency distribution
+	 */
+	public void setLatency(LatencyDistribution latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * @return The latency distribution of the quotactl() calls.
+	 */
+	public LatencyDistribution getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Make a fraction of the quotactl() calls on this device fail. Errors are
+	 * drawn independently, in the order they have been injected.
+	 *
+	 * @param errNo
+	 *            The error code, e.g. EIO
+	 * @param probability
+	 *            The probability of the error, from 0 to 1
+	 */
+	public synchronized void injectError(int errNo, double probability) {
+
+		if (probability < 0 || probability > 1) {
+			throw new IllegalArgumentException("Invalid probability " + probability);
+		}
+		List<InjectedError> injected = new ArrayList<InjectedError>();
+		for (InjectedError e : errors) {
+			if (e.errNo != errNo) {
+				injected.add(e);
+			}
+		}
+		injected.add(new InjectedError(errNo, probability));
+		errors = injected.toArray(new InjectedError[injected.size()]);
+	}
+
+	/**
+	 * Remove all the injected errors.
+	 */
+	public synchronized void clearErrors() {
+		errors = NO_ERRORS;
+	}
+
+	/**
+	 * Draw the injected error of a call.
+	 *
+	 * @return The error code, 0 if none.
+	 */
+	int drawError() {
+
+		InjectedError[] current = errors;
+		if (current.length == 0) {
+			return 0;
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (InjectedError e : current) {
+			if (random.nextDouble() < e.probability) {
+				return e.errNo;
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SimulatedDevice [blockDevice=" + blockDevice + ", groups=" + groups.size() + ", latency=" + latency
+				+ ", errors=" + errors.length + "]";
+	}
+
+}
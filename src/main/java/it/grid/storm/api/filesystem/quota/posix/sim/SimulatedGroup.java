@@ -0,0 +1,174 @@
+package it.grid.storm.api.filesystem.quota.posix.sim;
+
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackend;
+
+/**
+ * The simulated quota of a group id on a {@link SimulatedDevice}.
+ * <p>
+ * The block usage grows linearly with the simulated time, from the usage set
+ * by {@link #setBlockUsage(long)}, up to the block hard limit if any. All
+ * the settings can be changed while the simulation runs.
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class SimulatedGroup {
+
+	private final SimulatedQuotactlBackend backend;
+	private final int gid;
+
+	private volatile long blockHardLimit;
+	private volatile long blockSoftLimit;
+	private volatile long inodesHardLimit;
+	private volatile long inodesSoftLimit;
+	private volatile long inodesUsage;
+	private volatile int errNo;
+	private volatile Growth growth;
+
+	/**
+	 * The linear growth of the block usage, replaced as a whole so that
+	 * readers never see the usage of a growth with the origin of another.
+	 */
+	private static final class Growth {
+
+		final long baseUsage;
+		final long baseNanos;
+		final long perSecond;
+
+		Growth(long baseUsage, long baseNanos, long perSecond) {
+			this.baseUsage = baseUsage;
+			this.baseNanos = baseNanos;
+			this.perSecond = perSecond;
+		}
+
+		long usageAt(long nowNanos) {
+			return baseUsage + (long) ((nowNanos - baseNanos) / 1e9 * perSecond);
+		}
+	}
+
+	SimulatedGroup(SimulatedQuotactlBackend backend, int gid, long blockHardLimit, long blockUsage,
+			long growthPerSecond) {
+
+		this.backend = backend;
+		this.gid = gid;
+		this.blockHardLimit = blockHardLimit;
+		this.growth = new Growth(blockUsage, backend.nowNanos(), growthPerSecond);
+	}
+
+	/**
+	 * @return The group id.
+	 */
+	public int getGid() {
+		return gid;
+	}
+
+	/**
+	 * @param blockHardLimit
+	 *            The block hard limit, in 1 KiB blocks, 0 for no limit
+	 */
+	public void setBlockHardLimit(long blockHardLimit) {
+		this.blockHardLimit = blockHardLimit;
+	}
+
+	/**
+	 * @param blockSoftLimit
+	 *            The block soft limit, in 1 KiB blocks, 0 for no limit
+	 */
+	public void setBlockSoftLimit(long blockSoftLimit) {
+		this.blockSoftLimit = blockSoftLimit;
+	}
+
+	/**
+	 * @param inodesHardLimit
+	 *            The inode hard limit, 0 for no limit
+	 * @param inodesSoftLimit
+	 *            The inode soft limit, 0 for no limit
+	 * @param inodesUsage
+	 *            The number of allocated inodes
+	 */
+	public void setINodes(long inodesHardLimit, long inodesSoftLimit, long inodesUsage) {
+
+		this.inodesHardLimit = inodesHardLimit;
+		this.inodesSoftLimit = inodesSoftLimit;
+		this.inodesUsage = inodesUsage;
+	}
+
+	/**
+	 * Set the current block usage, from which the growth restarts.
+	 *
+	 * @param blockUsage
+	 *            The block usage, in bytes
+	 */
+	public synchronized void setBlockUsage(long blockUsage) {
+		growth = new Growth(blockUsage, backend.nowNanos(), growth.perSecond);
+	}
+
+	/**
+	 * Set the growth of the block usage, from the current usage on.
+	 *
+	 * @param growthPerSecond
+	 *            The growth in bytes per second of simulated time, negative
+	 *            to shrink
+	 */
+	public synchronized void setGrowthPerSecond(long growthPerSecond) {
+
+		long now = backend.nowNanos();
+		growth = new Growth(getBlockUsage(now), now, growthPerSecond);
+	}
+
+	/**
+	 * Make every read of this group fail.
+	 *
+	 * @param errNo
+	 *            The error code, 0 to read successfully
+	 */
+	public void setErrNo(int errNo) {
+		this.errNo = errNo;
+	}
+
+	int getErrNo() {
+		return errNo;
+	}
+
+	/**
+	 * Get the block usage at a simulated time.
+	 */
+	long getBlockUsage(long nowNanos) {
+
+		long usage = growth.usageAt(nowNanos);
+		long limit = blockHardLimit * PosixQuotaInfo.QIF_DQBLKSIZE;
+		if (limit > 0 && usage > limit) {
+			return limit;
+		}
+		return Math.max(0, usage);
+	}
+
+	/**
+	 * Fill the dqblk values of a {@link QuotactlBackend} at a simulated time.
+	 */
+	void fill(long[] dqblk, long nowNanos) {
+
+		dqblk[0] = blockHardLimit;
+		dqblk[1] = blockSoftLimit;
+		dqblk[2] = getBlockUsage(nowNanos);
+		dqblk[3] = inodesHardLimit;
+		dqblk[4] = inodesSoftLimit;
+		dqblk[5] = inodesUsage;
+		dqblk[6] = 0;
+		dqblk[7] = 0;
+		dqblk[QuotactlBackend.DQB_VALID] = PosixQuotaInfo.QIF_ALL;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SimulatedGroup [gid=" + gid + ", blockHardLimit=" + blockHardLimit + ", blockUsage="
+				+ getBlockUsage(backend.nowNanos()) + ", growthPerSecond=" + growth.perSecond + ", errNo=" + errNo + "]";
+	}
+
+}
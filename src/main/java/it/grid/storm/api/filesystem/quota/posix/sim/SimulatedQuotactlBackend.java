@@ -0,0 +1,250 @@
+package it.grid.storm.api.filesystem.quota.posix.sim;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.QuotaCommand;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackend;
+
+/**
+ * A {@link QuotactlBackend} which never enters the kernel: it answers
+ * Q_GETQUOTA and Q_GETNEXTQUOTA for group ids from a set of {@link SimulatedDevice}s held in
+ * memory, so that caches, pollers and their callers can be exercised and
+ * capacity tested on any machine, with no quota-enabled disk and no
+ * privilege.
+ * <p>
+ * A call behaves as quotactl() would:
+ * <ul>
+ * <li>an unknown block device fails with ENOENT;</li>
+ * <li>a command other than Q_GETQUOTA, or Q_GETNEXTQUOTA for
+ * {@link #getNextQuota(int, String, int, long[])}, fails with EINVAL;</li>
+ * <li>an id with no simulated quota, or of a type other than GRPQUOTA, fails
+ * with ESRCH, as does Q_GETNEXTQUOTA past the greatest group id;</li>
+ * <li>otherwise the call lasts a latency drawn from the device distribution,
+ * fails with the injected errors, if drawn, or returns the simulated quota
+ * at the current simulated time.</li>
+ * </ul>
+ * The simulated time is the JVM monotonic time plus the offset set by
+ * {@link #advance(Duration)}, so that the usage growth can be fast-forwarded.
+ *
+ * <pre>
+ * {@code
+ * SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+ * SimulatedDevice sdb = backend.addDevice("/dev/sdb");
+ * sdb.addGroup(1003, 1024 * 1024, 0, 1024);
+ * sdb.setLatency(LatencyDistribution.logNormal(Duration.ofMillis(2), 0.5));
+ * sdb.injectError(ErrNo.EIO, 0.001);
+ * PosixQuotaManager pqm = new PosixQuotaManager(backend);
+ * }
+ * </pre>
+ *
+ * @author Enrico Vianello
+ *
+ */
+public class SimulatedQuotactlBackend implements QuotactlBackend {
+
+	/**
+	 * Latencies shorter than this are busy-waited, since parking has a
+	 * granularity of tens of microseconds.
+	 */
+	private static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private static final int GETGROUPQUOTA_CMD = QuotaCommand.qcmd(QuotaCommand.Q_GETQUOTA, QuotaCommand.GRPQUOTA);
+
+	private static final int GETNEXTGROUPQUOTA_CMD = QuotaCommand.qcmd(QuotaCommand.Q_GETNEXTQUOTA,
+			QuotaCommand.GRPQUOTA);
+
+	private final ConcurrentMap<String, SimulatedDevice> devices = new ConcurrentHashMap<String, SimulatedDevice>();
+	private final AtomicLong offsetNanos = new AtomicLong();
+	private final LongAdder calls = new LongAdder();
+
+	/**
+	 * Add a block device with no group quotas, or get the existing one.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The simulated device.
+	 */
+	public SimulatedDevice addDevice(String blockDevice) {
+
+		SimulatedDevice device = devices.get(blockDevice);
+		if (device == null) {
+			SimulatedDevice added = new SimulatedDevice(this, blockDevice);
+			device = devices.putIfAbsent(blockDevice, added);
+			if (device == null) {
+				device = added;
+			}
+		}
+		return device;
+	}
+
+	/**
+	 * Get a block device.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The simulated device, or null if it has not been added.
+	 */
+	public SimulatedDevice getDevice(String blockDevice) {
+		return devices.get(blockDevice);
+	}
+
+	/**
+	 * @return All the simulated devices.
+	 */
+	public Collection<SimulatedDevice> getDevices() {
+		return devices.values();
+	}
+
+	/**
+	 * Remove a block device, whose reads then fail with ENOENT.
+	 *
+	 * @param blockDevice
+	 *            The pathname of the block device
+	 * @return The removed device, or null if it had not been added.
+	 */
+	public SimulatedDevice removeDevice(String blockDevice) {
+		return devices.remove(blockDevice);
+	}
+
+	/**
+	 * Move the simulated time forward, as if the time had passed for the
+	 * usage growth.
+	 *
+	 * @param duration
+	 *            The time to skip
+	 */
+	public void advance(Duration duration) {
+		offsetNanos.addAndGet(duration.toNanos());
+	}
+
+	/**
+	 * @return The current simulated time, in nanoseconds.
+	 */
+	long nowNanos() {
+		return System.nanoTime() + offsetNanos.get();
+	}
+
+	/**
+	 * @return The number of quotactl() calls simulated so far.
+	 */
+	public long getCallCount() {
+		return calls.sum();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getName()
+	 */
+	@Override
+	public String getName() {
+		return "simulated";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getQuota(int, java.lang.String, int, long[])
+	 */
+	@Override
+	public int getQuota(int cmd, String special, int id, long[] dqblk) {
+
+		SimulatedDevice device = devices.get(special);
+		int errNo = enter(device, cmd, QuotaCommand.Q_GETQUOTA);
+		if (errNo != 0) {
+			return errNo;
+		}
+		SimulatedGroup group = cmd == GETGROUPQUOTA_CMD ? device.getGroup(id) : null;
+		return fill(group, dqblk);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getNextQuota(int, java.lang.String, int, long[])
+	 */
+	@Override
+	public int getNextQuota(int cmd, String special, int id, long[] nextdqblk) {
+
+		SimulatedDevice device = devices.get(special);
+		int errNo = enter(device, cmd, QuotaCommand.Q_GETNEXTQUOTA);
+		if (errNo != 0) {
+			return errNo;
+		}
+		SimulatedGroup group = cmd == GETNEXTGROUPQUOTA_CMD ? device.nextGroup(id) : null;
+		errNo = fill(group, nextdqblk);
+		if (errNo == 0) {
+			nextdqblk[DQB_ID] = group.getGid();
+		}
+		return errNo;
+	}
+
+	/**
+	 * Count a call, check its device and command, then hold it for the
+	 * latency drawn and draw its injected error.
+	 *
+	 * @return 0 if the call goes on, its error code otherwise.
+	 */
+	private int enter(SimulatedDevice device, int cmd, int subcmd) {
+
+		calls.increment();
+		if (device == null) {
+			return ErrNo.ENOENT;
+		}
+		if ((cmd >>> 8) != subcmd) {
+			return ErrNo.EINVAL;
+		}
+		long latency = device.getLatency().nextNanos();
+		if (latency > 0) {
+			parkUntil(System.nanoTime() + latency);
+		}
+		return device.drawError();
+	}
+
+	private int fill(SimulatedGroup group, long[] dqblk) {
+
+		if (group == null) {
+			return ErrNo.ESRCH;
+		}
+		if (group.getErrNo() != 0) {
+			return group.getErrNo();
+		}
+		group.fill(dqblk, nowNanos());
+		return 0;
+	}
+
+	/**
+	 * Hold the calling thread until a deadline of {@link System#nanoTime()},
+	 * as a blocking system call would.
+	 */
+	static void parkUntil(long deadline) {
+
+		long remaining = deadline - System.nanoTime();
+		while (remaining > SPIN_THRESHOLD_NANOS) {
+			LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+			remaining = deadline - System.nanoTime();
+		}
+		while (deadline - System.nanoTime() > 0) {
+			/* busy wait */
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SimulatedQuotactlBackend [devices=" + devices.values() + ", calls=" + getCallCount() + "]";
+	}
+
+}
@@ -0,0 +1,244 @@
+package it.grid.storm.api.filesystem.quota.posix;
+
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.MethodHandle;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link QuotactlBackend} which calls quotactl() through the Foreign
+ * Function &amp; Memory API, with no JNA marshalling: the dqblk and
+ * if_nextdqblk structures are described by fixed {@link MemoryLayout}s and
+ * read at the offsets they compute, errno is captured by the linker right
+ * after the call.
+ * <p>
+ * Each thread reuses the same dqblk, if_nextdqblk and errno segments, allocated once into
+ * an automatic arena, and the block device pathnames are encoded once into
+ * the global arena, so a call allocates no native memory.
+ * <p>
+ * Downcall handles are restricted methods: run with
+ * {@code --enable-native-access=ALL-UNNAMED} to avoid the warning printed by
+ * the JDK at the first use.
+ *
+ * @author Enrico Vianello
+ *
+ */
+final class FfmQuotactlBackend implements QuotactlBackend {
+
+	/**
+	 * The struct if_dqblk defined into linux/quota.h.
+	 * <p>
+	 *
+	 * <pre>
+	 * {@code
+	 * struct if_dqblk {
+	 *   __u64 dqb_bhardlimit;
+	 *   __u64 dqb_bsoftlimit;
+	 *   __u64 dqb_curspace;
+	 *   __u64 dqb_ihardlimit;
+	 *   __u64 dqb_isoftlimit;
+	 *   __u64 dqb_curinodes;
+	 *   __u64 dqb_btime;
+	 *   __u64 dqb_itime;
+	 *   __u32 dqb_valid;
+	 * };
+	 * }
+	 * </pre>
+	 */
+	static final StructLayout DQBLK_LAYOUT = MemoryLayout.structLayout(JAVA_LONG.withName("dqb_bhardlimit"),
+			JAVA_LONG.withName("dqb_bsoftlimit"), JAVA_LONG.withName("dqb_curspace"),
+			JAVA_LONG.withName("dqb_ihardlimit"), JAVA_LONG.withName("dqb_isoftlimit"),
+			JAVA_LONG.withName("dqb_curinodes"), JAVA_LONG.withName("dqb_btime"), JAVA_LONG.withName("dqb_itime"),
+			JAVA_INT.withName("dqb_valid"), MemoryLayout.paddingLayout(4));
+
+	private static final long DQB_VALID_OFFSET = DQBLK_LAYOUT.byteOffset(groupElement("dqb_valid"));
+
+	/**
+	 * The struct if_nextdqblk defined into linux/quota.h: the fields of
+	 * if_dqblk followed by the id they belong to.
+	 */
+	static final StructLayout NEXTDQBLK_LAYOUT = MemoryLayout.structLayout(JAVA_LONG.withName("dqb_bhardlimit"),
+			JAVA_LONG.withName("dqb_bsoftlimit"), JAVA_LONG.withName("dqb_curspace"),
+			JAVA_LONG.withName("dqb_ihardlimit"), JAVA_LONG.withName("dqb_isoftlimit"),
+			JAVA_LONG.withName("dqb_curinodes"), JAVA_LONG.withName("dqb_btime"), JAVA_LONG.withName("dqb_itime"),
+			JAVA_INT.withName("dqb_valid"), JAVA_INT.withName("dqb_id"));
+
+	private static final long DQB_ID_OFFSET = NEXTDQBLK_LAYOUT.byteOffset(groupElement("dqb_id"));
+
+	private static final StructLayout CAPTURE_LAYOUT = Linker.Option.captureStateLayout();
+
+	private static final long ERRNO_OFFSET = CAPTURE_LAYOUT.byteOffset(groupElement("errno"));
+
+	/**
+	 * The maximum number of block device pathnames kept encoded as C strings.
+	 */
+	private static final int MAX_SPECIALS = 64;
+
+	/**
+	 * The per-thread native segments of a call.
+	 */
+	private static final class Scratch {
+
+		final MemorySegment dqblk;
+		final MemorySegment nextdqblk;
+		final MemorySegment capture;
+
+		Scratch(Arena arena) {
+			dqblk = arena.allocate(DQBLK_LAYOUT);
+			nextdqblk = arena.allocate(NEXTDQBLK_LAYOUT);
+			capture = arena.allocate(CAPTURE_LAYOUT);
+		}
+	}
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(Arena.ofAuto());
+		}
+	};
+
+	/**
+	 * int quotactl(int cmd, const char *special, int id, caddr_t addr);
+	 */
+	private final MethodHandle quotactl;
+
+	/**
+	 * The C copies of the block device pathnames already used.
+	 */
+	private final ConcurrentMap<String, MemorySegment> specials = new ConcurrentHashMap<String, MemorySegment>();
+
+	/**
+	 * Look up quotactl() into the standard C library.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the symbol is not found.
+	 */
+	FfmQuotactlBackend() {
+
+		Linker linker = Linker.nativeLinker();
+		Optional<MemorySegment> symbol = linker.defaultLookup().find("quotactl");
+		if (!symbol.isPresent()) {
+			throw new UnsupportedOperationException("quotactl() not found");
+		}
+		quotactl = linker.downcallHandle(symbol.get(),
+				FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS),
+				Linker.Option.captureCallState("errno"));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getName()
+	 */
+	@Override
+	public String getName() {
+		return QuotactlBackends.FOREIGN;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getQuota(int, java.lang.String, int, long[])
+	 */
+	@Override
+	public int getQuota(int cmd, String special, int id, long[] dqblk) {
+
+		Scratch scratch = SCRATCH.get();
+		if (call(scratch, cmd, special, id, scratch.dqblk) != 0) {
+			return scratch.capture.get(JAVA_INT, ERRNO_OFFSET);
+		}
+		for (int i = 0; i < DQB_VALID; i++) {
+			dqblk[i] = scratch.dqblk.getAtIndex(JAVA_LONG, i);
+		}
+		dqblk[DQB_VALID] = scratch.dqblk.get(JAVA_INT, DQB_VALID_OFFSET);
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see it.grid.storm.api.filesystem.quota.posix.QuotactlBackend#getNextQuota(int, java.lang.String, int, long[])
+	 */
+	@Override
+	public int getNextQuota(int cmd, String special, int id, long[] nextdqblk) {
+
+		Scratch scratch = SCRATCH.get();
+		if (call(scratch, cmd, special, id, scratch.nextdqblk) != 0) {
+			return scratch.capture.get(JAVA_INT, ERRNO_OFFSET);
+		}
+		for (int i = 0; i < DQB_VALID; i++) {
+			nextdqblk[i] = scratch.nextdqblk.getAtIndex(JAVA_LONG, i);
+		}
+		nextdqblk[DQB_VALID] = scratch.nextdqblk.get(JAVA_INT, DQB_VALID_OFFSET);
+		nextdqblk[DQB_ID] = scratch.nextdqblk.get(JAVA_INT, DQB_ID_OFFSET);
+		return 0;
+	}
+
+	/**
+	 * Call quotactl() on the C copy of a block device pathname, encoding it
+	 * once if there's still room for it.
+	 */
+	private int call(Scratch scratch, int cmd, String special, int id, MemorySegment addr) {
+
+		MemorySegment cached = specials.get(special);
+		if (cached != null) {
+			return call(scratch, cmd, cached, id, addr);
+		}
+		if (specials.size() < MAX_SPECIALS) {
+			MemorySegment encoded = encode(Arena.global(), special);
+			cached = specials.putIfAbsent(special, encoded);
+			return call(scratch, cmd, cached != null ? cached : encoded, id, addr);
+		}
+		try (Arena arena = Arena.ofConfined()) {
+			return call(scratch, cmd, encode(arena, special), id, addr);
+		}
+	}
+
+	private int call(Scratch scratch, int cmd, MemorySegment special, int id, MemorySegment addr) {
+
+		try {
+			return (int) quotactl.invokeExact(scratch.capture, cmd, special, id, addr);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	/**
+	 * Encode a string as a null-terminated C string, with the platform
+	 * charset as JNA does.
+	 */
+	private static MemorySegment encode(Arena arena, String value) {
+
+		byte[] bytes = value.getBytes();
+		MemorySegment segment = arena.allocate(bytes.length + 1);
+		MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 0, bytes.length);
+		segment.set(JAVA_BYTE, bytes.length, (byte) 0);
+		return segment;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "FfmQuotactlBackend [specials=" + specials.keySet() + "]";
+	}
+
+}
@@ -0,0 +1,145 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.async.AsyncPosixQuotaManager;
+
+public class AsyncPosixQuotaManagerMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(AsyncPosixQuotaManagerMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+
+	/**
+	 * A manager which never calls quotactl() and blocks each call until it's
+	 * released: the block usage of the returned quota information is the
+	 * number of calls done so far.
+	 */
+	static class BlockingPosixQuotaManager extends PosixQuotaManager {
+
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		BlockingPosixQuotaManager() {
+			super(QuotactlBinding.INTERFACE);
+		}
+
+		@Override
+		public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+			int n = calls.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (gid == NO_QUOTA_GID) {
+				return PosixQuotaResult.failure(blockDevice, gid, ErrNo.ESRCH);
+			}
+			CLibrary.T_dqblk dqblk = new CLibrary.T_dqblk();
+			dqblk.dqb_curspace = n;
+			return PosixQuotaResult.ok(blockDevice, gid, new PosixQuotaInfo(dqblk));
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testConcurrentRequestsShareOneCall() throws Exception {
+
+		BlockingPosixQuotaManager delegate = new BlockingPosixQuotaManager();
+		AsyncPosixQuotaManager async = new AsyncPosixQuotaManager(delegate, 2, 10);
+
+		List<CompletableFuture<PosixQuotaInfo>> futures = new ArrayList<CompletableFuture<PosixQuotaInfo>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(async.getGroupQuotaAsync(FAKE_BLOCKDEVICE, FAKE_GID));
+		}
+		delegate.started.await();
+		assertEquals(1, async.getInFlightCount());
+
+		/* cancelling a caller's future doesn't affect the others */
+		futures.get(0).cancel(false);
+
+		delegate.release.countDown();
+		for (int i = 1; i < futures.size(); i++) {
+			assertEquals(1, futures.get(i).get().getBlockUsage());
+		}
+		log.debug("{}", async);
+		assertEquals(1, delegate.calls.get());
+		assertEquals(1, async.getCallCount());
+		assertEquals(9, async.getCoalescedCount());
+
+		/* once completed, a new request starts a new call */
+		assertEquals(2, async.getGroupQuotaAsync(FAKE_BLOCKDEVICE, FAKE_GID).get().getBlockUsage());
+		assertEquals(0, async.getInFlightCount());
+		async.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testFailure() throws Exception {
+
+		BlockingPosixQuotaManager delegate = new BlockingPosixQuotaManager();
+		delegate.release.countDown();
+		AsyncPosixQuotaManager async = new AsyncPosixQuotaManager(delegate, 1, 10);
+
+		try {
+			async.getGroupQuotaAsync(FAKE_BLOCKDEVICE, NO_QUOTA_GID).get();
+			fail("Error " + ErrNo.ESRCH + " not raised!");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof PosixQuotaException);
+		}
+		assertTrue(async.readGroupQuotaAsync(FAKE_BLOCKDEVICE, NO_QUOTA_GID).get().isNoQuota());
+		async.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testRejectedWhenQueueIsFull() throws Exception {
+
+		BlockingPosixQuotaManager delegate = new BlockingPosixQuotaManager();
+		AsyncPosixQuotaManager async = new AsyncPosixQuotaManager(delegate, 1, 1);
+
+		CompletableFuture<PosixQuotaResult> running = async.readGroupQuotaAsync(FAKE_BLOCKDEVICE, 1);
+		delegate.started.await();
+		CompletableFuture<PosixQuotaResult> queued = async.readGroupQuotaAsync(FAKE_BLOCKDEVICE, 2);
+		CompletableFuture<PosixQuotaResult> rejected = async.readGroupQuotaAsync(FAKE_BLOCKDEVICE, 3);
+
+		try {
+			rejected.get();
+			fail("Request not rejected!");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals(1, async.getRejectedCount());
+
+		delegate.release.countDown();
+		assertTrue(running.get().isOk());
+		assertTrue(queued.get().isOk());
+		async.shutdown();
+	}
+
+}
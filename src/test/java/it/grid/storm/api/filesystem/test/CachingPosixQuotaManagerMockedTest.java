@@ -0,0 +1,273 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.LastErrorException;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.cache.CachingPosixQuotaManager;
+
+public class CachingPosixQuotaManagerMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(CachingPosixQuotaManagerMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+	private static int EIO_GID = 1002;
+
+	/**
+	 * A manager which never calls quotactl(): the block usage of the returned
+	 * quota information is the number of calls done so far. NO_QUOTA_GID fails
+	 * with ESRCH, EIO_GID with EIO.
+	 */
+	static class CountingPosixQuotaManager extends PosixQuotaManager {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		CountingPosixQuotaManager() {
+			super(QuotactlBinding.INTERFACE);
+		}
+
+		@Override
+		public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+			int n = calls.incrementAndGet();
+			if (gid == NO_QUOTA_GID) {
+				return PosixQuotaResult.failure(blockDevice, gid, ErrNo.ESRCH);
+			}
+			if (gid == EIO_GID) {
+				return PosixQuotaResult.failure(blockDevice, gid, ErrNo.EIO);
+			}
+			CLibrary.T_dqblk dqblk = new CLibrary.T_dqblk();
+			dqblk.dqb_curspace = n;
+			return PosixQuotaResult.ok(blockDevice, gid, new PosixQuotaInfo(dqblk));
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testHitWithinTtl() throws PosixQuotaException {
+
+		CountingPosixQuotaManager delegate = new CountingPosixQuotaManager();
+		CachingPosixQuotaManager cache = new CachingPosixQuotaManager(delegate, Duration.ofMinutes(1), 10);
+
+		assertEquals(1, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		assertEquals(1, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		log.debug("{}", cache);
+
+		assertEquals(1, delegate.calls.get());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+
+		cache.invalidate(FAKE_BLOCKDEVICE, FAKE_GID);
+		assertEquals(2, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		cache.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testFailureIsCached() {
+
+		CountingPosixQuotaManager delegate = new CountingPosixQuotaManager();
+		CachingPosixQuotaManager cache = new CachingPosixQuotaManager(delegate, Duration.ofMinutes(1), 10);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.getGroupQuota(FAKE_BLOCKDEVICE, NO_QUOTA_GID);
+				fail("Error " + ErrNo.ESRCH + " not raised!");
+			} catch (PosixQuotaException pqe) {
+				assertEquals(ErrNo.ESRCH, ((LastErrorException) pqe.getCause()).getErrorCode());
+			}
+		}
+		assertTrue(cache.readGroupQuota(FAKE_BLOCKDEVICE, NO_QUOTA_GID).isNoQuota());
+		assertEquals(1, delegate.calls.get());
+		cache.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testTransientFailureIsNotCached() {
+
+		CountingPosixQuotaManager delegate = new CountingPosixQuotaManager();
+		CachingPosixQuotaManager cache = new CachingPosixQuotaManager(delegate, Duration.ofMinutes(1), 10);
+
+		PosixQuotaException first = null;
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.getGroupQuota(FAKE_BLOCKDEVICE, EIO_GID);
+				fail("Error " + ErrNo.EIO + " not raised!");
+			} catch (PosixQuotaException pqe) {
+				assertEquals(ErrNo.EIO, ((LastErrorException) pqe.getCause()).getErrorCode());
+				/* each caller gets its own exception */
+				assertNotSame(first, pqe);
+				first = pqe;
+			}
+		}
+		assertEquals(2, delegate.calls.get());
+		assertEquals(0, cache.size());
+		cache.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testFailedRefreshBackOff() throws Exception {
+
+		final AtomicBoolean failing = new AtomicBoolean();
+		CountingPosixQuotaManager delegate = new CountingPosixQuotaManager() {
+
+			@Override
+			public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+				PosixQuotaResult result = super.readGroupQuota(blockDevice, gid);
+				return failing.get() ? PosixQuotaResult.failure(blockDevice, gid, ErrNo.EIO) : result;
+			}
+		};
+		CachingPosixQuotaManager cache = new CachingPosixQuotaManager(delegate, Duration.ofMillis(200),
+				Duration.ZERO, Duration.ofMinutes(1), 10, null);
+
+		assertEquals(1, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		failing.set(true);
+		Thread.sleep(250);
+
+		/* the stale value is served and the refresh fails */
+		assertEquals(1, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (delegate.calls.get() < 2) {
+			assertTrue("Refresh not started", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+
+		/* no other refresh before a ttl has elapsed */
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		}
+		assertEquals(2, delegate.calls.get());
+		assertEquals(1, cache.getRefreshCount());
+
+		Thread.sleep(250);
+		assertEquals(1, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		while (delegate.calls.get() < 3) {
+			assertTrue("Refresh not retried", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertEquals(2, cache.getRefreshCount());
+		cache.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testSingleFlightMiss() throws Exception {
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		CountingPosixQuotaManager delegate = new CountingPosixQuotaManager() {
+
+			@Override
+			public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.readGroupQuota(blockDevice, gid);
+			}
+		};
+		final CachingPosixQuotaManager cache = new CachingPosixQuotaManager(delegate, Duration.ofMinutes(1), 10);
+
+		int callers = 4;
+		final AtomicInteger blockUsage = new AtomicInteger();
+		Thread[] threads = new Thread[callers];
+		for (int i = 0; i < callers; i++) {
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					blockUsage.addAndGet((int) cache.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getQuotaInfo()
+							.getBlockUsage());
+				}
+			});
+			threads[i].start();
+		}
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (cache.getCoalescedCount() < callers - 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		release.countDown();
+		for (Thread t : threads) {
+			t.join(5000);
+		}
+		log.debug("{}", cache);
+		assertEquals(1, delegate.calls.get());
+		assertEquals(callers - 1, cache.getCoalescedCount());
+		assertEquals(callers, blockUsage.get());
+		cache.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testEviction() throws PosixQuotaException {
+
+		CountingPosixQuotaManager delegate = new CountingPosixQuotaManager();
+		CachingPosixQuotaManager cache = new CachingPosixQuotaManager(delegate, Duration.ofMinutes(1), 2);
+
+		for (int gid = 0; gid < 3; gid++) {
+			cache.getGroupQuota(FAKE_BLOCKDEVICE, gid);
+		}
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+
+		/* the eldest entry has been evicted */
+		cache.getGroupQuota(FAKE_BLOCKDEVICE, 0);
+		assertEquals(4, cache.getMissCount());
+		cache.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testStaleWhileRevalidate() throws Exception {
+
+		CountingPosixQuotaManager delegate = new CountingPosixQuotaManager();
+		CachingPosixQuotaManager cache = new CachingPosixQuotaManager(delegate, Duration.ofMillis(50),
+				Duration.ZERO, Duration.ofMinutes(1), 10, null);
+
+		assertEquals(1, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		Thread.sleep(100);
+
+		/* the stale value is returned while the refresh runs */
+		assertEquals(1, cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		assertEquals(1, cache.getStaleHitCount());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (cache.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getBlockUsage() != 2) {
+			assertTrue("Refresh not completed", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		log.debug("{}", cache);
+		assertEquals(1, cache.getMissCount());
+		assertTrue(cache.getRefreshCount() >= 1);
+		cache.shutdown();
+	}
+
+}
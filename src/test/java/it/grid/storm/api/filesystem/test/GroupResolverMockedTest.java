@@ -0,0 +1,129 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.LastErrorException;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.cache.CachingPosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupDatabase;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupEntry;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupResolver;
+import it.grid.storm.api.filesystem.quota.posix.group.NssGroupDatabase;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class GroupResolverMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(GroupResolverMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/sim1";
+	private static String GROUP = "test.vo";
+	private static int GID = 1003;
+	private static String UNKNOWN_GROUP = "unknown.vo";
+
+	@Test
+	@Category(MockedTests.class)
+	public void testBidirectionalCache() throws Exception {
+
+		GroupDatabase db = mock(GroupDatabase.class);
+		when(db.getGroupByName(GROUP)).thenReturn(new GroupEntry(GROUP, GID));
+		GroupResolver resolver = new GroupResolver(db);
+
+		assertEquals(GID, resolver.getGid(GROUP));
+		assertEquals(GID, resolver.getGid(GROUP));
+		/* the reverse pair was cached by the lookup by name */
+		assertEquals(GROUP, resolver.getGroupName(GID));
+		verify(db, times(1)).getGroupByName(GROUP);
+		verify(db, never()).getGroupById(anyInt());
+		assertEquals(2, resolver.getHitCount());
+		assertEquals(1, resolver.getMissCount());
+		log.debug("{}", resolver);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testNegativeCache() throws Exception {
+
+		GroupDatabase db = mock(GroupDatabase.class);
+		/* long enough not to expire while the mock warms up */
+		GroupResolver resolver = new GroupResolver(db, Duration.ofMinutes(1), Duration.ofMillis(500), 16);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				resolver.getGid(UNKNOWN_GROUP);
+				fail("Unknown group resolved");
+			} catch (PosixQuotaException e) {
+				assertEquals(ErrNo.ENOENT, ((LastErrorException) e.getCause()).getErrorCode());
+			}
+		}
+		assertNull(resolver.getGroupName(GID));
+		assertNull(resolver.getGroupName(GID));
+		verify(db, times(1)).getGroupByName(UNKNOWN_GROUP);
+		verify(db, times(1)).getGroupById(GID);
+		assertEquals(2, resolver.getNegativeHitCount());
+
+		/* the negative entries expire sooner */
+		Thread.sleep(600);
+		assertNull(resolver.getGroupByName(UNKNOWN_GROUP));
+		verify(db, times(2)).getGroupByName(UNKNOWN_GROUP);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testPreload() throws Exception {
+
+		GroupDatabase db = mock(GroupDatabase.class);
+		when(db.getAllGroups()).thenReturn(Arrays.asList(new GroupEntry(GROUP, GID), new GroupEntry("cms", 1004)));
+		GroupResolver resolver = new GroupResolver(db);
+
+		assertEquals(2, resolver.preload());
+		assertEquals(1004, resolver.getGid("cms"));
+		assertEquals(GROUP, resolver.getGroupName(GID));
+		verify(db, never()).getGroupByName(anyString());
+		verify(db, never()).getGroupById(anyInt());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testGroupQuotaByName() throws Exception {
+
+		GroupDatabase db = mock(GroupDatabase.class);
+		when(db.getGroupByName(GROUP)).thenReturn(new GroupEntry(GROUP, GID));
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		backend.addDevice(FAKE_BLOCKDEVICE).addGroup(GID, 100, 1000, 0);
+
+		PosixQuotaManager pqm = new CachingPosixQuotaManager(new PosixQuotaManager(backend), Duration.ofMinutes(1),
+				16);
+		pqm.setGroupResolver(new GroupResolver(db));
+		assertEquals(1000, pqm.getGroupQuota(FAKE_BLOCKDEVICE, GROUP).getBlockUsage());
+		assertEquals(1000, pqm.getGroupQuota(FAKE_BLOCKDEVICE, GROUP).getBlockUsage());
+		assertEquals(1, backend.getCallCount());
+		verify(db, times(1)).getGroupByName(GROUP);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testNssGroupDatabase() throws Exception {
+
+		Assume.assumeTrue(NssGroupDatabase.isAvailable());
+		NssGroupDatabase db = new NssGroupDatabase();
+		GroupEntry root = db.getGroupById(0);
+		Assume.assumeNotNull(root);
+		assertEquals(root, db.getGroupByName(root.getName()));
+		assertNull(db.getGroupByName(UNKNOWN_GROUP));
+		assertTrue(db.getAllGroups().contains(root));
+	}
+
+}
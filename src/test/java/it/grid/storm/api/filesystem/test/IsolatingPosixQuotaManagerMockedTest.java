@@ -0,0 +1,162 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import com.sun.jna.LastErrorException;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotaVisitor;
+import it.grid.storm.api.filesystem.quota.posix.isolation.CircuitBreaker.State;
+import it.grid.storm.api.filesystem.quota.posix.isolation.IsolatingPosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.sim.LatencyDistribution;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedDevice;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedGroup;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class IsolatingPosixQuotaManagerMockedTest {
+
+	private static String HUNG_BLOCKDEVICE = "/dev/hung";
+	private static String SIM_BLOCKDEVICE = "/dev/sim";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+
+	@Test
+	@Category(MockedTests.class)
+	public void testHungDevice() throws PosixQuotaException, InterruptedException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice hung = backend.addDevice(HUNG_BLOCKDEVICE);
+		hung.addGroup(FAKE_GID, 0, 0, 0);
+		hung.setLatency(LatencyDistribution.fixed(Duration.ofMillis(300)));
+		backend.addDevice(SIM_BLOCKDEVICE).addGroup(FAKE_GID, 0, 0, 0);
+		IsolatingPosixQuotaManager pqm = new IsolatingPosixQuotaManager(new PosixQuotaManager(backend), 1, 0,
+				Duration.ofMillis(50), 2, Duration.ofMillis(100));
+
+		long start = System.nanoTime();
+		assertEquals(ErrNo.ETIMEDOUT, pqm.readGroupQuota(HUNG_BLOCKDEVICE, FAKE_GID).getErrorCode());
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+		/* the only worker is still stuck in the first call */
+		assertEquals(ErrNo.EAGAIN, pqm.readGroupQuota(HUNG_BLOCKDEVICE, FAKE_GID).getErrorCode());
+		assertEquals(State.OPEN, pqm.getCircuitState(HUNG_BLOCKDEVICE));
+		PosixQuotaBatch batch = pqm.getGroupQuotas(HUNG_BLOCKDEVICE, new int[] { FAKE_GID, NO_QUOTA_GID });
+		assertEquals(ErrNo.EAGAIN, batch.getErrorCode(1));
+		assertEquals(1, pqm.getTimeoutCount());
+		assertEquals(1, pqm.getRejectedCount());
+		assertEquals(1, pqm.getShortCircuitedCount());
+
+		/* the other devices are not affected */
+		assertTrue(pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).isOk());
+		assertEquals(State.CLOSED, pqm.getCircuitState(SIM_BLOCKDEVICE));
+
+		/* the device recovers: the probe succeeds once the stuck call returned */
+		hung.setLatency(LatencyDistribution.none());
+		Thread.sleep(400);
+		assertEquals(0, pqm.getPendingCount(HUNG_BLOCKDEVICE));
+		assertNotNull(pqm.getGroupQuota(HUNG_BLOCKDEVICE, FAKE_GID));
+		assertEquals(State.CLOSED, pqm.getCircuitState(HUNG_BLOCKDEVICE));
+		assertEquals(3, backend.getCallCount());
+		pqm.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testInterruptedCaller() throws InterruptedException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		device.addGroup(FAKE_GID, 0, 0, 0);
+		/* slow enough for the caller to be waiting when it's interrupted */
+		device.setLatency(LatencyDistribution.fixed(Duration.ofMillis(50)));
+		IsolatingPosixQuotaManager pqm = new IsolatingPosixQuotaManager(new PosixQuotaManager(backend), 2, 2,
+				Duration.ofSeconds(1), 1, Duration.ofMillis(100));
+
+		/* an interrupted caller is not a failure of the device */
+		Thread.currentThread().interrupt();
+		assertEquals(ErrNo.EINTR, pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).getErrorCode());
+		assertTrue(Thread.interrupted());
+		assertEquals(State.CLOSED, pqm.getCircuitState(SIM_BLOCKDEVICE));
+
+		device.injectError(ErrNo.EIO, 1);
+		assertEquals(ErrNo.EIO, pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).getErrorCode());
+		assertEquals(State.OPEN, pqm.getCircuitState(SIM_BLOCKDEVICE));
+		device.clearErrors();
+
+		/* an interrupted probe is handed back: the next call probes at once */
+		Thread.sleep(150);
+		Thread.currentThread().interrupt();
+		assertEquals(ErrNo.EINTR, pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).getErrorCode());
+		assertTrue(Thread.interrupted());
+		assertEquals(State.OPEN, pqm.getCircuitState(SIM_BLOCKDEVICE));
+		assertTrue(pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).isOk());
+		assertEquals(State.CLOSED, pqm.getCircuitState(SIM_BLOCKDEVICE));
+		pqm.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testFailingDevice() throws InterruptedException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		SimulatedGroup group = device.addGroup(FAKE_GID, 0, 0, 0);
+		IsolatingPosixQuotaManager pqm = new IsolatingPosixQuotaManager(new PosixQuotaManager(backend), 2, 2,
+				Duration.ofSeconds(1), 3, Duration.ofMillis(100));
+
+		/* groups with no quota are not failures */
+		for (int i = 0; i < 5; i++) {
+			assertTrue(pqm.readGroupQuota(SIM_BLOCKDEVICE, NO_QUOTA_GID).isNoQuota());
+		}
+		assertEquals(State.CLOSED, pqm.getCircuitState(SIM_BLOCKDEVICE));
+
+		group.setErrNo(ErrNo.EIO);
+		for (int i = 0; i < 3; i++) {
+			try {
+				pqm.getGroupQuota(SIM_BLOCKDEVICE, FAKE_GID);
+				fail("EIO expected");
+			} catch (PosixQuotaException e) {
+				assertEquals(ErrNo.EIO, ((LastErrorException) e.getCause()).getErrorCode());
+			}
+		}
+		assertEquals(State.OPEN, pqm.getCircuitState(SIM_BLOCKDEVICE));
+		try {
+			pqm.getProjectQuota(SIM_BLOCKDEVICE, FAKE_GID);
+			fail("EAGAIN expected");
+		} catch (PosixQuotaException e) {
+			assertEquals(ErrNo.EAGAIN, ((LastErrorException) e.getCause()).getErrorCode());
+		}
+		try {
+			pqm.forEachGroupQuota(SIM_BLOCKDEVICE, new MutableQuotaInfo(), new QuotaVisitor() {
+
+				@Override
+				public boolean visit(MutableQuotaInfo info) {
+					return true;
+				}
+			});
+			fail("EAGAIN expected");
+		} catch (PosixQuotaException e) {
+			assertEquals(ErrNo.EAGAIN, ((LastErrorException) e.getCause()).getErrorCode());
+		}
+		assertEquals(8, backend.getCallCount());
+
+		/* a failed probe opens the breaker again */
+		Thread.sleep(150);
+		assertEquals(ErrNo.EIO, pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).getErrorCode());
+		assertEquals(State.OPEN, pqm.getCircuitState(SIM_BLOCKDEVICE));
+		group.setErrNo(0);
+		Thread.sleep(150);
+		assertTrue(pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).isOk());
+		assertEquals(State.CLOSED, pqm.getCircuitState(SIM_BLOCKDEVICE));
+		pqm.shutdown();
+	}
+
+}
@@ -0,0 +1,68 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.grid.storm.api.filesystem.quota.posix.mount.MountInfo;
+import it.grid.storm.api.filesystem.quota.posix.mount.MountResolver;
+
+public class MountResolverMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(MountResolverMockedTest.class);
+
+	private static String ROOT = "22 1 253:0 / / rw,relatime shared:1 - xfs /dev/mapper/root rw,attr2,noquota";
+	private static String STORAGE = "36 22 8:16 / /storage/test.vo rw,relatime shared:2 - ext4 /dev/sdb rw,grpjquota=aquota.group,jqfmt=vfsv0";
+	private static String ESCAPED = "37 22 8:32 / /storage/with\\040space rw - xfs /dev/sdc rw,grpquota";
+
+	@Test
+	@Category(MockedTests.class)
+	public void testResolve() throws Exception {
+
+		File f = File.createTempFile("mountinfo", null);
+		f.deleteOnExit();
+		Files.write(f.toPath(), Arrays.asList(ROOT, STORAGE, ESCAPED), StandardCharsets.UTF_8);
+
+		MountResolver resolver = new MountResolver(f.toPath(), Duration.ofMillis(10));
+		log.debug("{}", resolver.getMountTable());
+
+		MountInfo m = resolver.resolve("/storage/test.vo/dir/../file.txt");
+		assertEquals("/storage/test.vo", m.getMountPoint());
+		assertEquals("/dev/sdb", m.getDevice());
+		assertEquals("ext4", m.getFilesystemType());
+		assertEquals(8, m.getMajor());
+		assertEquals(16, m.getMinor());
+
+		assertEquals("/dev/sdb", resolver.resolveDevice("/storage/test.vo"));
+		assertEquals("/dev/mapper/root", resolver.resolveDevice("/storage/test.vo2"));
+		assertEquals("/dev/mapper/root", resolver.resolveDevice("/"));
+		assertEquals("/dev/sdc", resolver.resolveDevice("/storage/with space/a"));
+
+		/*
+		 * umount /storage/test.vo: the file is replaced atomically, as the
+		 * background reader must never see it half written
+		 */
+		File tmp = File.createTempFile("mountinfo", null, f.getParentFile());
+		Files.write(tmp.toPath(), Arrays.asList(ROOT, ESCAPED), StandardCharsets.UTF_8);
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!"/dev/mapper/root".equals(resolver.resolveDevice("/storage/test.vo/file.txt"))) {
+			assertTrue("Mount table change not detected", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertEquals(2, resolver.getReloadCount());
+		assertFalse(resolver.refresh());
+		resolver.shutdown();
+	}
+
+}
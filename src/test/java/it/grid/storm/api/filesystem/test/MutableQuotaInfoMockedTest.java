@@ -0,0 +1,178 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackend;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.cache.CachingPosixQuotaManager;
+
+public class MutableQuotaInfoMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(MutableQuotaInfoMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+
+		PosixQuotaManagerMockedTest.restoreCLibrary();
+	}
+
+	/**
+	 * Mock a CLibrary which fills every dqblk field with gid*10 plus its
+	 * index, and fails with ESRCH for NO_QUOTA_GID.
+	 */
+	private static void initMockedCLibrary() {
+
+		CLibrary mockedCLib = mock(CLibrary.class);
+		when(mockedCLib.quotactl(anyInt(), any(Pointer.class), anyInt(), any(Pointer.class)))
+				.thenAnswer(new Answer<Integer>() {
+
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+						Object[] args = invocation.getArguments();
+						int gid = (Integer) args[2];
+						Pointer dqblk = (Pointer) args[3];
+						if (gid == NO_QUOTA_GID) {
+							Native.setLastError(ErrNo.ESRCH);
+							return -1;
+						}
+						for (int i = 0; i < 8; i++) {
+							dqblk.setLong(i * 8, gid * 10 + i);
+						}
+						dqblk.setInt(64, PosixQuotaInfo.QIF_ALL);
+						return 0;
+					}
+				});
+		try {
+			PosixQuotaManagerMockedTest.setFinalStatic(CLibrary.class.getDeclaredField("INSTANCE"), mockedCLib);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testSelectedFields() {
+
+		initMockedCLibrary();
+		PosixQuotaManager pqm = new PosixQuotaManager(QuotactlBinding.INTERFACE);
+		MutableQuotaInfo holder = new MutableQuotaInfo();
+
+		assertEquals(0, pqm.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID, holder,
+				PosixQuotaInfo.QIF_BLIMITS | PosixQuotaInfo.QIF_SPACE));
+		log.debug("{}", holder);
+		assertTrue(holder.isOk());
+		assertEquals(FAKE_GID * 10, holder.getBlockHardLimit());
+		assertEquals(FAKE_GID * 10 + 1, holder.getBlockSoftLimit());
+		assertEquals(FAKE_GID * 10 + 2, holder.getBlockUsage());
+		assertEquals(PosixQuotaInfo.QIF_ALL, holder.getValid());
+		try {
+			holder.getINodesUsage();
+			fail("The inodes usage has not been read");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+
+		/* the same holder, all the fields: equal to the allocating read */
+		pqm.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID, holder, PosixQuotaInfo.QIF_ALL);
+		assertEquals(pqm.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getQuotaInfo(), holder.toQuotaInfo());
+		assertEquals(FAKE_GID * 10 + 7, holder.getINodesTimeLimit());
+
+		assertEquals(ErrNo.ESRCH, pqm.readGroupQuota(FAKE_BLOCKDEVICE, NO_QUOTA_GID, holder, PosixQuotaInfo.QIF_ALL));
+		assertTrue(holder.isNoQuota());
+		assertEquals(NO_QUOTA_GID, holder.getGid());
+		try {
+			holder.getBlockUsage();
+			fail("The read failed");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+
+		/* a cache hit is copied into the holder */
+		CachingPosixQuotaManager cache = new CachingPosixQuotaManager(pqm, Duration.ofMinutes(1), 16);
+		cache.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID, holder, PosixQuotaInfo.QIF_INODES);
+		cache.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID, holder, PosixQuotaInfo.QIF_INODES);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(FAKE_GID * 10 + 5, holder.getINodesUsage());
+		assertEquals(PosixQuotaInfo.QIF_INODES, holder.getFields());
+		cache.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testNoAllocation() {
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		/* a backend which allocates nothing itself */
+		PosixQuotaManager pqm = new PosixQuotaManager(new QuotactlBackend() {
+
+			@Override
+			public String getName() {
+				return "constant";
+			}
+
+			@Override
+			public int getQuota(int cmd, String special, int id, long[] dqblk) {
+				dqblk[0] = id;
+				dqblk[2] = id * 2L;
+				dqblk[QuotactlBackend.DQB_VALID] = PosixQuotaInfo.QIF_ALL;
+				return 0;
+			}
+
+			@Override
+			public int getNextQuota(int cmd, String special, int id, long[] nextdqblk) {
+				return ErrNo.ESRCH;
+			}
+		});
+		MutableQuotaInfo holder = new MutableQuotaInfo();
+		int fields = PosixQuotaInfo.QIF_BLIMITS | PosixQuotaInfo.QIF_SPACE;
+		long sum = 0;
+		for (int i = 0; i < 20000; i++) {
+			pqm.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID, holder, fields);
+			sum += holder.getBlockUsage();
+		}
+
+		long tid = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(tid);
+		for (int i = 0; i < 100000; i++) {
+			pqm.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID, holder, fields);
+			sum += holder.getBlockUsage();
+		}
+		long allocated = threads.getThreadAllocatedBytes(tid) - before;
+		log.debug("{} bytes allocated by 100000 reads ({})", allocated, sum);
+		/* a few bytes of noise from the measurement itself */
+		assertTrue(allocated < 10000);
+		assertEquals(FAKE_GID * 2L, holder.getBlockUsage());
+	}
+
+}
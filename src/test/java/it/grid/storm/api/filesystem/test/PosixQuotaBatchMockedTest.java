@@ -0,0 +1,118 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+
+public class PosixQuotaBatchMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(PosixQuotaBatchMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static int[] FAKE_GIDS = { 1000, 1001, 1002 };
+	private static int NO_QUOTA_GID = 1001;
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+
+		PosixQuotaManagerMockedTest.restoreCLibrary();
+	}
+
+	/**
+	 * Mock a CLibrary which fills dqblk with a block hard limit equal to
+	 * gid*10 and fails with ESRCH for NO_QUOTA_GID.
+	 */
+	private static Set<Pointer> initMockedCLibrary() {
+
+		final Set<Pointer> specials = new HashSet<Pointer>();
+		CLibrary mockedCLib = mock(CLibrary.class);
+		when(mockedCLib.quotactl(anyInt(), any(Pointer.class), anyInt(), any(Pointer.class)))
+				.thenAnswer(new Answer<Integer>() {
+
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+						Object[] args = invocation.getArguments();
+						int gid = (Integer) args[2];
+						Pointer dqblk = (Pointer) args[3];
+						specials.add((Pointer) args[1]);
+						if (gid == NO_QUOTA_GID) {
+							Native.setLastError(ErrNo.ESRCH);
+							return -1;
+						}
+						dqblk.setLong(0, gid * 10);
+						dqblk.setLong(16, gid);
+						dqblk.setInt(64, PosixQuotaInfo.QIF_ALL);
+						return 0;
+					}
+				});
+		try {
+			PosixQuotaManagerMockedTest.setFinalStatic(CLibrary.class.getDeclaredField("INSTANCE"), mockedCLib);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+		return specials;
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testBatchReportsFailuresWithoutStopping() {
+
+		Set<Pointer> specials = initMockedCLibrary();
+		PosixQuotaBatch batch = new PosixQuotaManager(QuotactlBinding.INTERFACE).getGroupQuotas(FAKE_BLOCKDEVICE, FAKE_GIDS);
+
+		assertEquals(FAKE_GIDS.length, batch.size());
+		assertEquals(1, specials.size());
+
+		for (int i = 0; i < batch.size(); i++) {
+
+			log.debug("gid {} errno {}", batch.getGid(i), batch.getErrorCode(i));
+			assertEquals(FAKE_GIDS[i], batch.getGid(i));
+
+			if (batch.getGid(i) == NO_QUOTA_GID) {
+
+				assertFalse(batch.isSuccess(i));
+				assertEquals(ErrNo.ESRCH, batch.getErrorCode(i));
+				assertNull(batch.getQuotaInfo(i));
+				PosixQuotaException pqe = batch.getException(i);
+				assertTrue(pqe.getCause() instanceof LastErrorException);
+				assertEquals(ErrNo.ESRCH, ((LastErrorException) pqe.getCause()).getErrorCode());
+
+			} else {
+
+				assertTrue(batch.isSuccess(i));
+				assertNull(batch.getException(i));
+				assertEquals(FAKE_GIDS[i] * 10, batch.getBlockHardLimit(i));
+				assertEquals(FAKE_GIDS[i], batch.getBlockUsage(i));
+				assertEquals(PosixQuotaInfo.QIF_ALL, batch.getValid(i));
+				PosixQuotaInfo pqi = batch.getQuotaInfo(i);
+				assertEquals(FAKE_GIDS[i] * 10, pqi.getBlockHardLimit());
+				assertEquals(FAKE_GIDS[i], pqi.getBlockUsage());
+			}
+		}
+	}
+
+}
@@ -89,6 +89,19 @@ public class PosixQuotaManagerLocalTest {
 		assertTrue(pqi.getValid() == PosixQuotaInfo.QIF_ALL);
 	}
 
+	@Test
+	@Category(LocalTests.class)
+	public void testLocalSuccessByGroupName() throws Exception {
+
+		log.debug("TEST: {}", "testLocalSuccessByGroupName");
+
+		PosixQuotaInfo pqi = pqm.getGroupQuota(BLOCKDEVICE, GROUP);
+		log.debug("Quota info: {}", pqi);
+
+		assertTrue(pqi.getBlockHardLimit() == BLOCKHARDLIMIT);
+		assertTrue(pqm.getGroupResolver().getGroupName(GID).equals(GROUP));
+	}
+
 	@Test
 	@Category(LocalTests.class)
 	public void testLocalFailureEPERM() throws NoSuchFieldException, SecurityException, Exception {
@@ -20,6 +20,7 @@ import com.sun.jna.Structure;
 import it.grid.storm.api.filesystem.quota.posix.CLibrary;
 import it.grid.storm.api.filesystem.quota.posix.ErrNo;
 import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
 import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
 
 public class PosixQuotaManagerMockedTest {
@@ -72,7 +73,7 @@ public class PosixQuotaManagerMockedTest {
 
 	private void checkQuotactlFailWith(String blockDevice, int gid, int errNo) {
 
-		PosixQuotaManager pqm = new PosixQuotaManager();
+		PosixQuotaManager pqm = new PosixQuotaManager(QuotactlBinding.INTERFACE);
 		initMockedCLibraryFailsWith(errNo);
 		
 		try {
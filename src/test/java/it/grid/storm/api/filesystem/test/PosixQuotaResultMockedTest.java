@@ -0,0 +1,140 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+
+public class PosixQuotaResultMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(PosixQuotaResultMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+	private static int NO_PERM_GID = 1002;
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+
+		PosixQuotaManagerMockedTest.restoreCLibrary();
+	}
+
+	/**
+	 * Mock a CLibrary which fills dqblk with a block hard limit equal to
+	 * gid*10, fails with ESRCH for NO_QUOTA_GID and with EPERM for
+	 * NO_PERM_GID.
+	 */
+	private static Set<Pointer> initMockedCLibrary() {
+
+		final Set<Pointer> specials = new HashSet<Pointer>();
+		CLibrary mockedCLib = mock(CLibrary.class);
+		when(mockedCLib.quotactl(anyInt(), any(Pointer.class), anyInt(), any(Pointer.class)))
+				.thenAnswer(new Answer<Integer>() {
+
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+						Object[] args = invocation.getArguments();
+						int gid = (Integer) args[2];
+						Pointer dqblk = (Pointer) args[3];
+						specials.add((Pointer) args[1]);
+						if (gid == NO_QUOTA_GID) {
+							Native.setLastError(ErrNo.ESRCH);
+							return -1;
+						}
+						if (gid == NO_PERM_GID) {
+							Native.setLastError(ErrNo.EPERM);
+							return -1;
+						}
+						dqblk.setLong(0, gid * 10);
+						dqblk.setLong(16, gid);
+						dqblk.setInt(64, PosixQuotaInfo.QIF_ALL);
+						return 0;
+					}
+				});
+		try {
+			PosixQuotaManagerMockedTest.setFinalStatic(CLibrary.class.getDeclaredField("INSTANCE"), mockedCLib);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+		return specials;
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testReadGroupQuota() throws PosixQuotaException {
+
+		Set<Pointer> specials = initMockedCLibrary();
+		PosixQuotaManager pqm = new PosixQuotaManager(QuotactlBinding.INTERFACE);
+
+		PosixQuotaResult result = pqm.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID);
+		log.debug("{}", result);
+		assertEquals(PosixQuotaResult.Status.OK, result.getStatus());
+		assertEquals(0, result.getErrorCode());
+		assertNull(result.getMessage());
+		assertNull(result.toException());
+		assertEquals(FAKE_GID * 10, result.getQuotaInfo().getBlockHardLimit());
+		assertEquals(FAKE_GID, result.getQuotaInfoOrThrow().getBlockUsage());
+
+		/* the C copy of the block device pathname is reused */
+		pqm.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID);
+		assertEquals(1, specials.size());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testReadGroupQuotaFailures() {
+
+		initMockedCLibrary();
+		PosixQuotaManager pqm = new PosixQuotaManager(QuotactlBinding.INTERFACE);
+
+		PosixQuotaResult noQuota = pqm.readGroupQuota(FAKE_BLOCKDEVICE, NO_QUOTA_GID);
+		log.debug("{}", noQuota);
+		assertEquals(PosixQuotaResult.Status.NO_QUOTA, noQuota.getStatus());
+		assertTrue(noQuota.isNoQuota());
+		assertNull(noQuota.getQuotaInfo());
+		assertEquals(ErrNo.ESRCH, noQuota.getErrorCode());
+
+		PosixQuotaResult noPerm = pqm.readGroupQuota(FAKE_BLOCKDEVICE, NO_PERM_GID);
+		assertEquals(PosixQuotaResult.Status.ERROR, noPerm.getStatus());
+		assertFalse(noPerm.isOk());
+		assertTrue(noPerm.getMessage().contains("[" + ErrNo.EPERM + "]"));
+
+		PosixQuotaException pqe = noPerm.toException();
+		/* each throw gets its own exception */
+		assertNotSame(pqe, noPerm.toException());
+		assertEquals(noPerm.getMessage(), pqe.getMessage());
+		assertEquals(ErrNo.EPERM, ((LastErrorException) pqe.getCause()).getErrorCode());
+		try {
+			noPerm.getQuotaInfoOrThrow();
+			fail("Error " + ErrNo.EPERM + " not raised!");
+		} catch (PosixQuotaException e) {
+			assertNotSame(pqe, e);
+			assertEquals(pqe.getMessage(), e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaEntry;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotaTable;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.UncheckedPosixQuotaException;
+
+public class PosixQuotaStreamMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(PosixQuotaStreamMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static int[] QUOTA_GIDS = { 0, 1003, 1500 };
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+
+		PosixQuotaManagerMockedTest.restoreCLibrary();
+	}
+
+	/**
+	 * Mock a Q_GETNEXTQUOTA which returns the first of QUOTA_GIDS greater or
+	 * equal to the requested id, and fails with errNo once they are over.
+	 */
+	private static AtomicInteger initMockedCLibrary(final int errNo) {
+
+		final AtomicInteger calls = new AtomicInteger();
+		CLibrary mockedCLib = mock(CLibrary.class);
+		when(mockedCLib.quotactl(anyInt(), any(Pointer.class), anyInt(), any(Pointer.class)))
+				.thenAnswer(new Answer<Integer>() {
+
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+						calls.incrementAndGet();
+						Object[] args = invocation.getArguments();
+						int id = (Integer) args[2];
+						Pointer nextdqblk = (Pointer) args[3];
+						for (int gid : QUOTA_GIDS) {
+							if (gid >= id) {
+								nextdqblk.setLong(16, gid * 4096);
+								nextdqblk.setInt(68, gid);
+								return 0;
+							}
+						}
+						Native.setLastError(errNo);
+						return -1;
+					}
+				});
+		try {
+			PosixQuotaManagerMockedTest.setFinalStatic(CLibrary.class.getDeclaredField("INSTANCE"), mockedCLib);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+		return calls;
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testStreamGroupQuotas() {
+
+		AtomicInteger calls = initMockedCLibrary(ErrNo.ESRCH);
+
+		List<PosixQuotaEntry> entries = new PosixQuotaManager(QuotactlBinding.INTERFACE).streamGroupQuotas(FAKE_BLOCKDEVICE)
+				.collect(Collectors.toList());
+		log.debug("Entries: {}", entries);
+
+		assertEquals(QUOTA_GIDS.length, entries.size());
+		for (int i = 0; i < QUOTA_GIDS.length; i++) {
+			assertEquals(QUOTA_GIDS[i], entries.get(i).getId());
+			assertEquals(QUOTA_GIDS[i] * 4096, entries.get(i).getQuotaInfo().getBlockUsage());
+		}
+		/* one call per existing id plus the one which ends the scan */
+		assertEquals(QUOTA_GIDS.length + 1, calls.get());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testLoadGroupQuotas() throws PosixQuotaException {
+
+		AtomicInteger calls = initMockedCLibrary(ErrNo.ESRCH);
+
+		QuotaTable table = new QuotaTable(1);
+		new PosixQuotaManager(QuotactlBinding.INTERFACE).loadGroupQuotas(FAKE_BLOCKDEVICE, table);
+		log.debug("Table: {}", table);
+
+		assertEquals(QUOTA_GIDS.length, table.size());
+		assertEquals(QUOTA_GIDS.length + 1, calls.get());
+		QuotaTable.Cursor cursor = table.cursor();
+		for (int gid : QUOTA_GIDS) {
+			assertTrue(cursor.seek(gid));
+			assertEquals(gid, cursor.getId());
+			assertEquals(gid * 4096, cursor.getBlockUsage());
+		}
+		assertFalse(cursor.seek(QUOTA_GIDS[1] + 1));
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testStreamGroupQuotasFailure() {
+
+		initMockedCLibrary(ErrNo.EIO);
+
+		try {
+
+			new PosixQuotaManager(QuotactlBinding.INTERFACE).streamGroupQuotas(FAKE_BLOCKDEVICE).count();
+			fail("Error " + ErrNo.EIO + " not raised!");
+
+		} catch (UncheckedPosixQuotaException e) {
+
+			log.debug("UncheckedPosixQuotaException: {}", e.getMessage());
+			assertNotNull(e.getCause());
+		}
+	}
+
+}
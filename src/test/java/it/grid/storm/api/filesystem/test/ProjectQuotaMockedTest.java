@@ -0,0 +1,135 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotaCommand;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+
+public class ProjectQuotaMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(ProjectQuotaMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static String FAKE_DIRECTORY = "/storage/test.vo";
+	private static String NOT_SUPPORTED_DIRECTORY = "/tmp";
+	private static int FAKE_FD = 42;
+	private static int FAKE_PROJID = 7;
+	private static int PRJQUOTA_CMD = 0x80000702;
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+
+		PosixQuotaManagerMockedTest.restoreCLibrary();
+	}
+
+	/**
+	 * Mock a CLibrary which answers Q_GETQUOTA on project quotas only, with a
+	 * block usage equal to the project id, and where FAKE_DIRECTORY has
+	 * FAKE_PROJID as project id while NOT_SUPPORTED_DIRECTORY fails with
+	 * ENOTTY.
+	 */
+	private static CLibrary initMockedCLibrary() {
+
+		CLibrary mockedCLib = mock(CLibrary.class);
+		when(mockedCLib.quotactl(anyInt(), anyString(), anyInt(), any(Structure.class)))
+				.thenAnswer(new Answer<Integer>() {
+
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+						Object[] args = invocation.getArguments();
+						if ((Integer) args[0] != PRJQUOTA_CMD) {
+							throw new LastErrorException(ErrNo.EINVAL);
+						}
+						CLibrary.T_dqblk dqblk = (CLibrary.T_dqblk) args[3];
+						dqblk.dqb_curspace = (Integer) args[2];
+						return 0;
+					}
+				});
+		when(mockedCLib.open(FAKE_DIRECTORY, 0)).thenReturn(FAKE_FD);
+		when(mockedCLib.open(NOT_SUPPORTED_DIRECTORY, 0)).thenReturn(FAKE_FD + 1);
+		when(mockedCLib.ioctl(anyInt(), any(NativeLong.class), any(Pointer.class))).thenAnswer(new Answer<Integer>() {
+
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+				Object[] args = invocation.getArguments();
+				assertEquals(0x801c581fL, ((NativeLong) args[1]).longValue());
+				if ((Integer) args[0] != FAKE_FD) {
+					throw new LastErrorException(ErrNo.ENOTTY);
+				}
+				((Pointer) args[2]).setInt(12, FAKE_PROJID);
+				return 0;
+			}
+		});
+		try {
+			PosixQuotaManagerMockedTest.setFinalStatic(CLibrary.class.getDeclaredField("INSTANCE"), mockedCLib);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+		return mockedCLib;
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testQcmd() {
+
+		assertEquals(0x80000701, QuotaCommand.qcmd(QuotaCommand.Q_GETQUOTA, QuotaCommand.GRPQUOTA));
+		assertEquals(0x80000900, QuotaCommand.qcmd(QuotaCommand.Q_GETNEXTQUOTA, QuotaCommand.USRQUOTA));
+		assertEquals(PRJQUOTA_CMD, QuotaCommand.qcmd(QuotaCommand.Q_GETQUOTA, QuotaCommand.PRJQUOTA));
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testDirectoryUsage() throws PosixQuotaException {
+
+		CLibrary mockedCLib = initMockedCLibrary();
+
+		int projid = PosixQuotaManager.getProjectId(FAKE_DIRECTORY);
+		assertEquals(FAKE_PROJID, projid);
+		verify(mockedCLib).close(FAKE_FD);
+
+		PosixQuotaInfo pqi = new PosixQuotaManager(QuotactlBinding.INTERFACE).getProjectQuota(FAKE_BLOCKDEVICE,
+				projid);
+		log.debug("{}", pqi);
+		assertEquals(FAKE_PROJID, pqi.getBlockUsage());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testProjectIdNotSupported() {
+
+		CLibrary mockedCLib = initMockedCLibrary();
+
+		try {
+			PosixQuotaManager.getProjectId(NOT_SUPPORTED_DIRECTORY);
+			fail("Error " + ErrNo.ENOTTY + " not raised!");
+		} catch (PosixQuotaException pqe) {
+			log.info(pqe.getMessage());
+			assertEquals(ErrNo.ENOTTY, ((LastErrorException) pqe.getCause()).getErrorCode());
+		}
+		/* the descriptor is closed on failure too */
+		verify(mockedCLib).close(FAKE_FD + 1);
+	}
+
+}
@@ -0,0 +1,144 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.aggregate.AggregatedQuota;
+import it.grid.storm.api.filesystem.quota.posix.aggregate.QuotaAggregator;
+import it.grid.storm.api.filesystem.quota.posix.aggregate.StorageArea;
+import it.grid.storm.api.filesystem.quota.posix.aggregate.VoQuotaTotal;
+import it.grid.storm.api.filesystem.quota.posix.sim.LatencyDistribution;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class QuotaAggregatorMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(QuotaAggregatorMockedTest.class);
+
+	private static String FIRST_BLOCKDEVICE = "/dev/sim1";
+	private static String SECOND_BLOCKDEVICE = "/dev/sim2";
+	private static String HUNG_BLOCKDEVICE = "/dev/hung";
+	private static int ATLAS_GID = 1000;
+	private static int CMS_GID = 1001;
+	private static int NO_QUOTA_GID = 1002;
+
+	@Test
+	@Category(MockedTests.class)
+	public void testAggregate() {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		backend.addDevice(FIRST_BLOCKDEVICE).addGroup(ATLAS_GID, 100, 1000, 0);
+		backend.addDevice(SECOND_BLOCKDEVICE).addGroup(ATLAS_GID, 200, 2000, 0);
+		backend.getDevice(SECOND_BLOCKDEVICE).addGroup(CMS_GID, 50, 500, 0);
+		backend.getDevice(FIRST_BLOCKDEVICE).setLatency(LatencyDistribution.fixed(Duration.ofMillis(300)));
+		backend.getDevice(SECOND_BLOCKDEVICE).setLatency(LatencyDistribution.fixed(Duration.ofMillis(50)));
+		QuotaAggregator aggregator = new QuotaAggregator(new PosixQuotaManager(backend), Duration.ofSeconds(2));
+
+		StorageArea atlasDisk = new StorageArea("atlas-disk", "atlas", FIRST_BLOCKDEVICE, ATLAS_GID);
+		StorageArea cmsTape = new StorageArea("cms-tape", "cms", SECOND_BLOCKDEVICE, CMS_GID);
+		List<StorageArea> areas = Arrays.asList(atlasDisk,
+				new StorageArea("atlas-scratch", "atlas", SECOND_BLOCKDEVICE, ATLAS_GID),
+				/* same pair of the scratch area: not counted twice */
+				new StorageArea("atlas-user", "atlas", SECOND_BLOCKDEVICE, ATLAS_GID), cmsTape,
+				new StorageArea("cms-disk", "cms", SECOND_BLOCKDEVICE, NO_QUOTA_GID));
+
+		AggregatedQuota aggregated = aggregator.aggregate(areas);
+		log.debug("{}", aggregated);
+		/* the devices are read in parallel: 300ms + 3 * 50ms in sequence */
+		assertTrue(aggregated.getElapsedNanos() < TimeUnit.MILLISECONDS.toNanos(420));
+		assertTrue(aggregated.isComplete());
+		assertEquals(Arrays.asList(FIRST_BLOCKDEVICE, SECOND_BLOCKDEVICE),
+				Arrays.asList(aggregated.getBlockDevices().toArray()));
+		assertEquals(3, aggregated.getBatch(SECOND_BLOCKDEVICE).size());
+		assertTrue(aggregated.getDeviceElapsedNanos(FIRST_BLOCKDEVICE) >= TimeUnit.MILLISECONDS.toNanos(300));
+
+		VoQuotaTotal atlas = aggregated.getVoTotal("atlas");
+		assertEquals(2, atlas.getPairCount());
+		assertEquals(3000, atlas.getBlockUsage());
+		assertEquals(300, atlas.getBlockHardLimit());
+		VoQuotaTotal cms = aggregated.getVoTotal("cms");
+		assertEquals(500, cms.getBlockUsage());
+		assertEquals(1, cms.getNoQuotaCount());
+		assertEquals(1000, aggregated.getQuotaInfo(atlasDisk).getBlockUsage());
+		assertEquals(0, aggregated.getErrorCode(cmsTape));
+		assertEquals(2, aggregated.getVoTotals().size());
+		aggregator.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testHungDevice() {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		backend.addDevice(FIRST_BLOCKDEVICE).addGroup(ATLAS_GID, 100, 1000, 0);
+		backend.addDevice(HUNG_BLOCKDEVICE).addGroup(CMS_GID, 100, 1000, 0);
+		PosixQuotaManager pqm = new PosixQuotaManager(backend);
+		/* loads the classes of the read path before the deadlines start */
+		assertTrue(pqm.readGroupQuota(HUNG_BLOCKDEVICE, CMS_GID).isOk());
+		backend.getDevice(HUNG_BLOCKDEVICE).setLatency(LatencyDistribution.fixed(Duration.ofMillis(800)));
+		QuotaAggregator aggregator = new QuotaAggregator(pqm, Duration.ofMillis(200), 1);
+
+		StorageArea atlas = new StorageArea("atlas", "atlas", FIRST_BLOCKDEVICE, ATLAS_GID);
+		StorageArea cms = new StorageArea("cms", "cms", HUNG_BLOCKDEVICE, CMS_GID);
+		List<StorageArea> areas = Arrays.asList(atlas, cms);
+
+		AggregatedQuota first = aggregator.aggregate(areas);
+		assertTrue(first.getElapsedNanos() < TimeUnit.MILLISECONDS.toNanos(600));
+		assertFalse(first.isComplete());
+		assertEquals(ErrNo.ETIMEDOUT, first.getErrorCode(cms));
+		assertEquals(-1, first.getDeviceElapsedNanos(HUNG_BLOCKDEVICE));
+		assertEquals(1, first.getVoTotal("cms").getFailedCount());
+		assertEquals(1000, first.getVoTotal("atlas").getBlockUsage());
+
+		/* the worker is still stuck: one read may wait, the next is refused */
+		aggregator.aggregate(areas);
+		AggregatedQuota third = aggregator.aggregate(areas);
+		assertEquals(ErrNo.EAGAIN, third.getErrorCode(cms));
+		assertEquals(0, third.getErrorCode(atlas));
+		assertEquals(2, aggregator.getTimeoutCount());
+		assertEquals(1, aggregator.getRejectedCount());
+		aggregator.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testFailingDevice() {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		backend.addDevice(FIRST_BLOCKDEVICE).addGroup(ATLAS_GID, 100, 1000, 0);
+		backend.addDevice(SECOND_BLOCKDEVICE).addGroup(CMS_GID, 100, 1000, 0);
+		PosixQuotaManager pqm = new PosixQuotaManager(backend) {
+
+			@Override
+			public PosixQuotaBatch getGroupQuotas(String blockDevice, int[] gids) {
+				if (SECOND_BLOCKDEVICE.equals(blockDevice)) {
+					throw new IllegalStateException("broken device");
+				}
+				return super.getGroupQuotas(blockDevice, gids);
+			}
+		};
+		QuotaAggregator aggregator = new QuotaAggregator(pqm, Duration.ofSeconds(2));
+
+		StorageArea atlas = new StorageArea("atlas", "atlas", FIRST_BLOCKDEVICE, ATLAS_GID);
+		StorageArea cms = new StorageArea("cms", "cms", SECOND_BLOCKDEVICE, CMS_GID);
+		AggregatedQuota aggregated = aggregator.aggregate(Arrays.asList(atlas, cms));
+		assertFalse(aggregated.isComplete());
+		assertEquals(ErrNo.EIO, aggregated.getErrorCode(cms));
+		assertEquals(1, aggregated.getVoTotal("cms").getFailedCount());
+		assertEquals(1000, aggregated.getVoTotal("atlas").getBlockUsage());
+		assertEquals(1, aggregator.getFailureCount());
+		aggregator.shutdown();
+	}
+
+}
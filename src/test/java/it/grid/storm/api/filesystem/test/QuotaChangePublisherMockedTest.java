@@ -0,0 +1,297 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.events.Conflation;
+import it.grid.storm.api.filesystem.quota.posix.events.QuotaChangePublisher;
+import it.grid.storm.api.filesystem.quota.posix.events.QuotaEvent;
+import it.grid.storm.api.filesystem.quota.posix.events.QuotaEvent.Change;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaPoller;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedDevice;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedGroup;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class QuotaChangePublisherMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(QuotaChangePublisherMockedTest.class);
+
+	private static String SIM_BLOCKDEVICE = "/dev/sim";
+	private static int FAKE_GID = 1000;
+	private static int OTHER_GID = 1001;
+
+	private static final Executor DIRECT = new Executor() {
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * A subscriber which requests events only when asked to.
+	 */
+	private static class RecordingSubscriber implements Flow.Subscriber<QuotaEvent> {
+
+		final List<QuotaEvent> events = new CopyOnWriteArrayList<QuotaEvent>();
+		final CountDownLatch completed = new CountDownLatch(1);
+		volatile Flow.Subscription subscription;
+		volatile Throwable error;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(QuotaEvent item) {
+			events.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			completed.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			completed.countDown();
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testChanges() throws PosixQuotaException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		SimulatedGroup group = device.addGroup(FAKE_GID, 100, 0, 0);
+		group.setBlockSoftLimit(50);
+		PosixQuotaManager pqm = new PosixQuotaManager(backend);
+
+		QuotaChangePublisher publisher = new QuotaChangePublisher(DIRECT, Conflation.NONE, 16);
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		GroupQuotaKey key = new GroupQuotaKey(SIM_BLOCKDEVICE, FAKE_GID);
+
+		assertTrue(publisher.update(key, pqm.getGroupQuota(SIM_BLOCKDEVICE, FAKE_GID)));
+		assertFalse(publisher.update(key, pqm.getGroupQuota(SIM_BLOCKDEVICE, FAKE_GID)));
+		group.setBlockUsage(60 * 1024);
+		assertTrue(publisher.update(key, pqm.getGroupQuota(SIM_BLOCKDEVICE, FAKE_GID)));
+		group.setBlockUsage(100 * 1024);
+		assertTrue(publisher.update(key, pqm.getGroupQuota(SIM_BLOCKDEVICE, FAKE_GID)));
+		group.setBlockHardLimit(200);
+		group.setBlockSoftLimit(150);
+		assertTrue(publisher.update(key, pqm.getGroupQuota(SIM_BLOCKDEVICE, FAKE_GID)));
+		assertTrue(publisher.update(key, null));
+		log.debug("{}", subscriber.events);
+
+		assertEquals(5, subscriber.events.size());
+		assertEquals(5, publisher.getEventCount());
+		assertTrue(subscriber.events.get(0).has(Change.ADDED));
+		assertNull(subscriber.events.get(0).getPrevious());
+		assertTrue(subscriber.events.get(1).has(Change.USAGE_CHANGED));
+		assertTrue(subscriber.events.get(1).has(Change.SOFT_LIMIT_EXCEEDED));
+		assertTrue(subscriber.events.get(2).has(Change.HARD_LIMIT_REACHED));
+		assertFalse(subscriber.events.get(2).has(Change.SOFT_LIMIT_EXCEEDED));
+		assertTrue(subscriber.events.get(3).has(Change.LIMITS_CHANGED));
+		assertTrue(subscriber.events.get(3).has(Change.SOFT_LIMIT_CLEARED));
+		assertFalse(subscriber.events.get(3).has(Change.USAGE_CHANGED));
+		assertTrue(subscriber.events.get(4).has(Change.REMOVED));
+		assertNull(subscriber.events.get(4).getCurrent());
+		assertNull(publisher.getLast(key));
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testBackpressureAndConflation() throws InterruptedException {
+
+		QuotaChangePublisher publisher = new QuotaChangePublisher(DIRECT, Conflation.MERGE, 16);
+		RecordingSubscriber merging = new RecordingSubscriber();
+		RecordingSubscriber bounded = new RecordingSubscriber();
+		publisher.subscribe(merging);
+		publisher.subscribe(bounded, Conflation.NONE, 2);
+		assertEquals(2, publisher.getSubscriberCount());
+
+		for (long usage = 1; usage <= 5; usage++) {
+			publisher.update(SIM_BLOCKDEVICE, FAKE_GID, info(usage * 1024, 4));
+		}
+		publisher.update(SIM_BLOCKDEVICE, OTHER_GID, info(0, 0));
+		assertTrue(merging.events.isEmpty());
+		assertTrue(bounded.events.isEmpty());
+		/* the bounded subscriber kept the two latest events only */
+		assertEquals(4, publisher.getDroppedCount());
+
+		merging.subscription.request(1);
+		assertEquals(1, merging.events.size());
+		QuotaEvent merged = merging.events.get(0);
+		assertNull(merged.getPrevious());
+		assertEquals(5 * 1024, merged.getCurrent().getBlockUsage());
+		assertTrue(merged.has(Change.ADDED));
+		assertTrue(merged.has(Change.USAGE_CHANGED));
+		assertTrue(merged.has(Change.SOFT_LIMIT_EXCEEDED));
+		assertTrue(merged.has(Change.HARD_LIMIT_REACHED));
+
+		merging.subscription.request(10);
+		assertEquals(2, merging.events.size());
+		assertEquals(OTHER_GID, merging.events.get(1).getKey().getGid());
+
+		bounded.subscription.request(10);
+		assertEquals(2, bounded.events.size());
+		assertEquals(5 * 1024, bounded.events.get(0).getCurrent().getBlockUsage());
+		assertEquals(OTHER_GID, bounded.events.get(1).getKey().getGid());
+
+		bounded.subscription.cancel();
+		assertEquals(1, publisher.getSubscriberCount());
+		publisher.update(SIM_BLOCKDEVICE, OTHER_GID, info(1024, 0));
+		assertEquals(3, merging.events.size());
+		assertEquals(2, bounded.events.size());
+
+		merging.subscription.request(-1);
+		assertTrue(merging.error instanceof IllegalArgumentException);
+		assertEquals(0, publisher.getSubscriberCount());
+
+		RecordingSubscriber late = new RecordingSubscriber();
+		publisher.close();
+		publisher.subscribe(late);
+		assertTrue(late.completed.await(1, TimeUnit.SECONDS));
+		assertNull(late.error);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testPollerChanges() throws InterruptedException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		SimulatedGroup group = device.addGroup(FAKE_GID, 1000, 0, 0);
+		group.setBlockSoftLimit(10);
+
+		QuotaChangePublisher publisher = new QuotaChangePublisher();
+		final CountDownLatch exceeded = new CountDownLatch(1);
+		final RecordingSubscriber subscriber = new RecordingSubscriber() {
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				super.onSubscribe(subscription);
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(QuotaEvent item) {
+				super.onNext(item);
+				if (item.has(Change.SOFT_LIMIT_EXCEEDED)) {
+					exceeded.countDown();
+				}
+			}
+		};
+		publisher.subscribe(subscriber);
+
+		QuotaPoller poller = new QuotaPoller(new PosixQuotaManager(backend), Duration.ofMillis(5), Duration.ofMillis(5));
+		poller.setChangePublisher(publisher);
+		poller.register(SIM_BLOCKDEVICE, FAKE_GID);
+		poller.start();
+		try {
+			group.setBlockUsage(20 * 1024);
+			assertTrue(exceeded.await(5, TimeUnit.SECONDS));
+		} finally {
+			poller.shutdown();
+			publisher.close();
+		}
+		assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+		log.debug("{}", subscriber.events);
+		assertTrue(subscriber.events.get(0).has(Change.ADDED));
+		/* unchanged polls emit nothing */
+		assertTrue(subscriber.events.size() <= 2);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testPollerFailures() throws InterruptedException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		device.addGroup(FAKE_GID, 1000, 0, 0);
+
+		/* events are delivered on the poller thread, right after the snapshot */
+		QuotaChangePublisher publisher = new QuotaChangePublisher(DIRECT, Conflation.NONE, 16);
+		final CountDownLatch added = new CountDownLatch(1);
+		final CountDownLatch removed = new CountDownLatch(1);
+		final RecordingSubscriber subscriber = new RecordingSubscriber() {
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				super.onSubscribe(subscription);
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(QuotaEvent item) {
+				super.onNext(item);
+				added.countDown();
+				if (item.has(Change.REMOVED)) {
+					removed.countDown();
+				}
+			}
+		};
+		publisher.subscribe(subscriber);
+
+		QuotaPoller poller = new QuotaPoller(new PosixQuotaManager(backend), Duration.ofMillis(5), Duration.ofMillis(5));
+		poller.setChangePublisher(publisher);
+		poller.register(SIM_BLOCKDEVICE, FAKE_GID);
+		poller.start();
+		try {
+			assertTrue(added.await(5, TimeUnit.SECONDS));
+			assertNotNull(poller.getSnapshot().get(SIM_BLOCKDEVICE, FAKE_GID));
+			long deadline = System.currentTimeMillis() + 5000;
+			/* a transient error keeps the last value and emits nothing */
+			device.injectError(ErrNo.EIO, 1);
+			while (poller.getFailureCount() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertNotNull(poller.getSnapshot().get(SIM_BLOCKDEVICE, FAKE_GID));
+			device.clearErrors();
+			assertEquals(1, subscriber.events.size());
+
+			/* a pair without quota is removed */
+			device.removeGroup(FAKE_GID);
+			assertTrue(removed.await(5, TimeUnit.SECONDS));
+			assertNull(poller.getSnapshot().get(SIM_BLOCKDEVICE, FAKE_GID));
+		} finally {
+			poller.shutdown();
+			publisher.close();
+		}
+		log.debug("{}", subscriber.events);
+		assertEquals(2, subscriber.events.size());
+	}
+
+	private static PosixQuotaInfo info(long blockUsage, long blockHardLimit) {
+
+		CLibrary.T_dqblk dqblk = new CLibrary.T_dqblk();
+		dqblk.dqb_bhardlimit = blockHardLimit;
+		dqblk.dqb_bsoftlimit = blockHardLimit / 2;
+		dqblk.dqb_curspace = blockUsage;
+		return new PosixQuotaInfo(dqblk);
+	}
+
+}
@@ -0,0 +1,108 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.openmetrics.QuotaMetricsServer;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaPoller;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class QuotaMetricsServerMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(QuotaMetricsServerMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/sim1";
+	private static int ATLAS_GID = 1003;
+	private static int CMS_GID = 1004;
+
+	private static HttpURLConnection open(QuotaMetricsServer server, String method) throws Exception {
+
+		URL url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(),
+				QuotaMetricsServer.PATH);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+		return connection;
+	}
+
+	private static String scrape(QuotaMetricsServer server) throws Exception {
+
+		HttpURLConnection connection = open(server, "GET");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(QuotaMetricsServer.CONTENT_TYPE, connection.getContentType());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = connection.getInputStream()) {
+			byte[] b = new byte[4096];
+			for (int n; (n = in.read(b)) != -1;) {
+				out.write(b, 0, n);
+			}
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testScrape() throws Exception {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		backend.addDevice(FAKE_BLOCKDEVICE).addGroup(ATLAS_GID, 100, 1000, 0);
+		backend.getDevice(FAKE_BLOCKDEVICE).addGroup(CMS_GID, 200, 2000, 0);
+		QuotaPoller poller = new QuotaPoller(new PosixQuotaManager(backend), Duration.ofMillis(10),
+				Duration.ofSeconds(1));
+		poller.register(FAKE_BLOCKDEVICE, ATLAS_GID);
+		poller.register(FAKE_BLOCKDEVICE, CMS_GID);
+		poller.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (poller.getSnapshot().asMap().size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		poller.shutdown();
+		long calls = backend.getCallCount();
+
+		/* a page smaller than the exposition: it grows once */
+		QuotaMetricsServer server = new QuotaMetricsServer(poller,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 64);
+		server.start();
+		try {
+			String metrics = scrape(server);
+			log.debug("Metrics:\n{}", metrics);
+			assertTrue(metrics.contains("# TYPE storm_quota_block_usage_bytes gauge\n"
+					+ "# UNIT storm_quota_block_usage_bytes bytes\n"));
+			assertTrue(metrics.contains("storm_quota_block_usage_bytes{device=\"/dev/sim1\",gid=\"1003\"} 1000\n"));
+			assertTrue(
+					metrics.contains("storm_quota_block_hard_limit_bytes{device=\"/dev/sim1\",gid=\"1004\"} 204800\n"));
+			assertTrue(metrics.contains("storm_quota_snapshot_generation " + poller.getSnapshot().getGeneration()));
+			assertTrue(metrics.endsWith("# EOF\n"));
+
+			/* the following scrapes reuse the rendered page */
+			for (int i = 0; i < 10; i++) {
+				assertEquals(metrics, scrape(server));
+			}
+			assertEquals(11, server.getScrapeCount());
+			assertEquals(1, server.getRenderCount());
+			assertEquals(calls, backend.getCallCount());
+
+			HttpURLConnection connection = open(server, "HEAD");
+			assertEquals(200, connection.getResponseCode());
+			connection = open(server, "POST");
+			assertEquals(405, connection.getResponseCode());
+			log.debug("{}", server);
+		} finally {
+			server.shutdown();
+		}
+	}
+
+}
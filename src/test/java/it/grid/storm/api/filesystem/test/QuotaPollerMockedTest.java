@@ -0,0 +1,124 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaPoller;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaSnapshot;
+
+public class QuotaPollerMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(QuotaPollerMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static int GROWING_GID = 1000;
+	private static int IDLE_GID = 1001;
+	private static int NEAR_LIMIT_GID = 1002;
+	private static int NO_QUOTA_GID = 1003;
+
+	private static Duration MIN_INTERVAL = Duration.ofMillis(10);
+	private static Duration MAX_INTERVAL = Duration.ofSeconds(1);
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+
+		PosixQuotaManagerMockedTest.restoreCLibrary();
+	}
+
+	/**
+	 * Mock a CLibrary where GROWING_GID usage grows at each call, IDLE_GID
+	 * usage never changes, NEAR_LIMIT_GID is over its hard limit and
+	 * NO_QUOTA_GID fails with ESRCH.
+	 */
+	private static void initMockedCLibrary() {
+
+		final AtomicLong growing = new AtomicLong();
+		CLibrary mockedCLib = mock(CLibrary.class);
+		when(mockedCLib.quotactl(anyInt(), any(Pointer.class), anyInt(), any(Pointer.class)))
+				.thenAnswer(new Answer<Integer>() {
+
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+						Object[] args = invocation.getArguments();
+						int gid = (Integer) args[2];
+						Pointer dqblk = (Pointer) args[3];
+						dqblk.clear(72);
+						if (gid == NO_QUOTA_GID) {
+							Native.setLastError(ErrNo.ESRCH);
+							return -1;
+						}
+						/* 1GB hard limit */
+						dqblk.setLong(0, 1024 * 1024);
+						if (gid == GROWING_GID) {
+							dqblk.setLong(16, growing.addAndGet(4096));
+						} else if (gid == NEAR_LIMIT_GID) {
+							dqblk.setLong(16, 1024L * 1024 * 1024);
+						} else {
+							dqblk.setLong(16, 4096);
+						}
+						return 0;
+					}
+				});
+		try {
+			PosixQuotaManagerMockedTest.setFinalStatic(CLibrary.class.getDeclaredField("INSTANCE"), mockedCLib);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testAdaptivePolling() throws Exception {
+
+		initMockedCLibrary();
+		QuotaPoller poller = new QuotaPoller(new PosixQuotaManager(QuotactlBinding.INTERFACE), MIN_INTERVAL,
+				MAX_INTERVAL);
+		poller.register(FAKE_BLOCKDEVICE, GROWING_GID);
+		poller.register(FAKE_BLOCKDEVICE, IDLE_GID);
+		poller.register(FAKE_BLOCKDEVICE, NEAR_LIMIT_GID);
+		poller.register(FAKE_BLOCKDEVICE, NO_QUOTA_GID);
+		poller.start();
+
+		Thread.sleep(500);
+		QuotaSnapshot snapshot = poller.getSnapshot();
+		log.debug("{} after {} polls", snapshot, poller.getPollCount());
+
+		assertTrue(snapshot.getGeneration() > 1);
+		assertNotNull(snapshot.get(FAKE_BLOCKDEVICE, GROWING_GID));
+		assertNotNull(snapshot.get(FAKE_BLOCKDEVICE, IDLE_GID));
+		assertNull(snapshot.get(FAKE_BLOCKDEVICE, NO_QUOTA_GID));
+
+		assertEquals(MIN_INTERVAL, poller.getPollInterval(FAKE_BLOCKDEVICE, GROWING_GID));
+		assertEquals(MIN_INTERVAL, poller.getPollInterval(FAKE_BLOCKDEVICE, NEAR_LIMIT_GID));
+		assertTrue(poller.getPollInterval(FAKE_BLOCKDEVICE, IDLE_GID).compareTo(MIN_INTERVAL) > 0);
+		assertEquals(MAX_INTERVAL, poller.getPollInterval(FAKE_BLOCKDEVICE, NO_QUOTA_GID));
+
+		poller.unregister(FAKE_BLOCKDEVICE, GROWING_GID);
+		Thread.sleep(100);
+		assertNull(poller.getSnapshot().get(FAKE_BLOCKDEVICE, GROWING_GID));
+		assertNull(poller.getPollInterval(FAKE_BLOCKDEVICE, GROWING_GID));
+
+		poller.shutdown();
+	}
+
+}
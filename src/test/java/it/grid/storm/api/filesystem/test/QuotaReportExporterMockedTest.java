@@ -0,0 +1,162 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupDatabase;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupEntry;
+import it.grid.storm.api.filesystem.quota.posix.group.GroupResolver;
+import it.grid.storm.api.filesystem.quota.posix.report.QuotaReportExporter;
+import it.grid.storm.api.filesystem.quota.posix.report.ReportFilter;
+import it.grid.storm.api.filesystem.quota.posix.report.ReportFormat;
+
+public class QuotaReportExporterMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(QuotaReportExporterMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+
+	/* gid, block usage in bytes, block soft limit, valid */
+	private static long[][] RECORDS = { { 0, 4096, 0, PosixQuotaInfo.QIF_ALL },
+			{ 1003, 2048 * 1024, 1000, PosixQuotaInfo.QIF_ALL },
+			{ 1500, 100, 1, PosixQuotaInfo.QIF_LIMITS } };
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+
+		PosixQuotaManagerMockedTest.restoreCLibrary();
+	}
+
+	/**
+	 * Mock a Q_GETNEXTQUOTA which returns the first of RECORDS with a gid
+	 * greater or equal to the requested id, and fails with errNo once they
+	 * are over.
+	 */
+	private static void initMockedCLibrary(final int errNo) {
+
+		CLibrary mockedCLib = mock(CLibrary.class);
+		when(mockedCLib.quotactl(anyInt(), any(Pointer.class), anyInt(), any(Pointer.class)))
+				.thenAnswer(new Answer<Integer>() {
+
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+						Object[] args = invocation.getArguments();
+						int id = (Integer) args[2];
+						Pointer nextdqblk = (Pointer) args[3];
+						for (long[] record : RECORDS) {
+							if (record[0] >= id) {
+								nextdqblk.clear(72);
+								nextdqblk.setLong(8, record[2]);
+								nextdqblk.setLong(16, record[1]);
+								nextdqblk.setInt(64, (int) record[3]);
+								nextdqblk.setInt(68, (int) record[0]);
+								return 0;
+							}
+						}
+						Native.setLastError(errNo);
+						return -1;
+					}
+				});
+		try {
+			PosixQuotaManagerMockedTest.setFinalStatic(CLibrary.class.getDeclaredField("INSTANCE"), mockedCLib);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	private static String export(QuotaReportExporter exporter, String... blockDevices) throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		exporter.export(Arrays.asList(blockDevices), Channels.newChannel(out));
+		String report = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		log.debug("Report:\n{}", report);
+		return report;
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testCsv() throws Exception {
+
+		initMockedCLibrary(ErrNo.ESRCH);
+		PosixQuotaManager pqm = new PosixQuotaManager(QuotactlBinding.INTERFACE);
+		/* a buffer smaller than the report: written in many chunks */
+		QuotaReportExporter exporter = new QuotaReportExporter(pqm, ReportFormat.CSV,
+				EnumSet.noneOf(ReportFilter.class), false, 32);
+
+		String[] lines = export(exporter, FAKE_BLOCKDEVICE).split("\n");
+		assertEquals(RECORDS.length + 1, lines.length);
+		assertEquals("device,gid,space_used,space_soft_limit,space_hard_limit,space_grace,inodes_used,"
+				+ "inodes_soft_limit,inodes_hard_limit,inodes_grace,valid", lines[0]);
+		assertEquals("\"/dev/fake\",1003,2097152,1024000,0,0,0,0,0,0,63", lines[2]);
+		assertEquals(3, exporter.getWrittenCount());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testJsonFilters() throws Exception {
+
+		initMockedCLibrary(ErrNo.ESRCH);
+		GroupDatabase db = mock(GroupDatabase.class);
+		when(db.getGroupById(1003)).thenReturn(new GroupEntry("test.\"vo\"", 1003));
+		PosixQuotaManager pqm = new PosixQuotaManager(QuotactlBinding.INTERFACE);
+		pqm.setGroupResolver(new GroupResolver(db));
+
+		QuotaReportExporter exporter = new QuotaReportExporter(pqm, ReportFormat.JSON,
+				EnumSet.of(ReportFilter.OVER_SOFT_LIMIT, ReportFilter.VALID_USAGE), true,
+				QuotaReportExporter.DEFAULT_BUFFER_SIZE);
+		String report = export(exporter, FAKE_BLOCKDEVICE);
+		assertEquals("[\n{\"device\":\"/dev/fake\",\"gid\":1003,\"group\":\"test.\\\"vo\\\"\",\"space_used\":2097152,"
+				+ "\"space_soft_limit\":1024000,\"space_hard_limit\":0,\"space_grace\":0,\"inodes_used\":0,"
+				+ "\"inodes_soft_limit\":0,\"inodes_hard_limit\":0,\"inodes_grace\":0,\"valid\":63}\n]\n", report);
+		assertEquals(3, exporter.getScannedCount());
+		assertEquals(1, exporter.getWrittenCount());
+
+		/* no record: still a valid document */
+		exporter = new QuotaReportExporter(pqm, ReportFormat.JSON);
+		assertEquals("[\n]\n", export(exporter));
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testScanFailure() throws Exception {
+
+		initMockedCLibrary(ErrNo.EIO);
+		QuotaReportExporter exporter = new QuotaReportExporter(new PosixQuotaManager(QuotactlBinding.INTERFACE),
+				ReportFormat.CSV);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			exporter.export(FAKE_BLOCKDEVICE, Channels.newChannel(out));
+			fail("Error " + ErrNo.EIO + " not raised!");
+		} catch (PosixQuotaException e) {
+			log.debug("PosixQuotaException: {}", e.getMessage());
+		}
+		/* the records before the failure are written */
+		assertEquals(RECORDS.length + 1, new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n").length);
+	}
+
+}
@@ -0,0 +1,60 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.QuotaTable;
+
+public class QuotaTableMockedTest {
+
+	private static int RECORDS = 100000;
+
+	private static PosixQuotaInfo newQuotaInfo(int id) {
+
+		CLibrary.T_dqblk dqblk = new CLibrary.T_dqblk();
+		dqblk.dqb_bhardlimit = id * 2L;
+		dqblk.dqb_curspace = id;
+		dqblk.dqb_curinodes = id % 7;
+		dqblk.dqb_valid = PosixQuotaInfo.QIF_ALL;
+		return new PosixQuotaInfo(dqblk);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testPutAndSeek() {
+
+		QuotaTable table = new QuotaTable();
+		PosixQuotaInfo pqi = newQuotaInfo(1);
+		/* sparse and negative (large unsigned) ids */
+		for (int i = 0; i < RECORDS; i++) {
+			table.put(i * 7919 - RECORDS, newQuotaInfo(i));
+		}
+		table.put(-RECORDS, pqi);
+		assertEquals(RECORDS, table.size());
+
+		QuotaTable.Cursor cursor = table.cursor();
+		for (int i = 1; i < RECORDS; i++) {
+			assertTrue(cursor.seek(i * 7919 - RECORDS));
+			assertEquals(i, cursor.getBlockUsage());
+			assertEquals(i * 2L, cursor.getBlockHardLimit());
+			assertEquals(i % 7, cursor.getINodesUsage());
+			assertEquals(PosixQuotaInfo.QIF_ALL, cursor.getValid());
+		}
+		assertTrue(cursor.seek(-RECORDS));
+		assertEquals(pqi.getBlockUsage(), cursor.getBlockUsage());
+		assertFalse(table.contains(1));
+
+		cursor.moveTo(RECORDS - 1);
+		assertEquals((RECORDS - 1) * 7919 - RECORDS, cursor.getId());
+		assertEquals(RECORDS - 1, table.getQuotaInfo(cursor.getId()).getBlockUsage());
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertFalse(cursor.seek(-RECORDS));
+	}
+
+}
@@ -0,0 +1,169 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.LastErrorException;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotaCommand;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackend;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackends;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+
+public class QuotactlBackendMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(QuotactlBackendMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static String MISSING_BLOCKDEVICE = "/dev/storm-quotactl-missing";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+	private static int FAKE_PROJID = 42;
+
+	/**
+	 * A backend which never calls quotactl(): the block usage is id*10 and
+	 * NO_QUOTA_GID fails with ESRCH.
+	 */
+	static class FakeQuotactlBackend implements QuotactlBackend {
+
+		final AtomicInteger calls = new AtomicInteger();
+		volatile int lastCmd;
+
+		@Override
+		public String getName() {
+			return "fake";
+		}
+
+		@Override
+		public int getQuota(int cmd, String special, int id, long[] dqblk) {
+
+			calls.incrementAndGet();
+			lastCmd = cmd;
+			if (id == NO_QUOTA_GID) {
+				return ErrNo.ESRCH;
+			}
+			dqblk[2] = id * 10L;
+			dqblk[DQB_VALID] = PosixQuotaInfo.QIF_ALL;
+			return 0;
+		}
+
+		@Override
+		public int getNextQuota(int cmd, String special, int id, long[] nextdqblk) {
+			return ErrNo.ESRCH;
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testDefaultBackend() {
+
+		log.debug("default backend: {}", QuotactlBackends.getDefault().getName());
+		if (!QuotactlBackends.isForeignAvailable()) {
+			assertTrue(QuotactlBackends.getDefault() instanceof QuotactlBinding);
+		}
+		try {
+			System.setProperty(QuotactlBackends.BACKEND_PROPERTY, "interface");
+			assertSame(QuotactlBinding.INTERFACE, QuotactlBackends.getDefault());
+			System.setProperty(QuotactlBackends.BACKEND_PROPERTY, QuotactlBackends.FOREIGN);
+			try {
+				assertEquals(QuotactlBackends.FOREIGN, QuotactlBackends.getDefault().getName());
+				assertTrue(QuotactlBackends.isForeignAvailable());
+			} catch (UnsupportedOperationException e) {
+				assertFalse(QuotactlBackends.isForeignAvailable());
+			}
+		} finally {
+			System.clearProperty(QuotactlBackends.BACKEND_PROPERTY);
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testDirectBinding() throws PosixQuotaException {
+
+		try {
+			System.setProperty(QuotactlBinding.BINDING_PROPERTY, " Interface ");
+			assertSame(QuotactlBinding.INTERFACE, QuotactlBinding.getDefault());
+			System.setProperty(QuotactlBinding.BINDING_PROPERTY, "direct");
+			assertSame(QuotactlBinding.DIRECT, QuotactlBinding.getDefault());
+			System.setProperty(QuotactlBinding.BINDING_PROPERTY, "jni");
+			try {
+				QuotactlBinding.getDefault();
+				fail("IllegalArgumentException expected");
+			} catch (IllegalArgumentException e) {
+				log.debug(e.getMessage());
+			}
+		} finally {
+			System.clearProperty(QuotactlBinding.BINDING_PROPERTY);
+		}
+		/* the direct mapping is the default wherever it can be registered */
+		Assume.assumeTrue(QuotactlBinding.getDefault() == QuotactlBinding.DIRECT);
+
+		/* a real quotactl() call, which fails before reaching any quota file */
+		long[] dqblk = new long[QuotactlBackend.DQBLK_VALUES];
+		int errNo = QuotactlBinding.DIRECT.getQuota(QuotaCommand.qcmd(QuotaCommand.Q_GETQUOTA, QuotaCommand.GRPQUOTA),
+				MISSING_BLOCKDEVICE, FAKE_GID, dqblk);
+		log.debug("quotactl() on {}: errno {}", MISSING_BLOCKDEVICE, errNo);
+		assertTrue(errNo != 0);
+		assertEquals(errNo,
+				QuotactlBinding.DIRECT.getNextQuota(QuotaCommand.qcmd(QuotaCommand.Q_GETNEXTQUOTA, QuotaCommand.GRPQUOTA),
+						MISSING_BLOCKDEVICE, 0, new long[QuotactlBackend.NEXTDQBLK_VALUES]));
+
+		/* the same errno through the structure path of the manager */
+		PosixQuotaManager pqm = new PosixQuotaManager(QuotactlBinding.DIRECT);
+		assertEquals(errNo, pqm.readGroupQuota(MISSING_BLOCKDEVICE, FAKE_GID).getErrorCode());
+		try {
+			pqm.getGroupQuota(MISSING_BLOCKDEVICE, FAKE_GID);
+			fail("Error " + errNo + " not raised!");
+		} catch (PosixQuotaException e) {
+			assertEquals(errNo, ((LastErrorException) e.getCause()).getErrorCode());
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testCustomBackend() throws PosixQuotaException {
+
+		FakeQuotactlBackend backend = new FakeQuotactlBackend();
+		PosixQuotaManager pqm = new PosixQuotaManager(backend);
+		assertSame(backend, pqm.getBackend());
+		assertSame(QuotactlBinding.getDefault(), pqm.getBinding());
+
+		PosixQuotaInfo pqi = pqm.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID);
+		log.debug("{}", pqi);
+		assertEquals(FAKE_GID * 10L, pqi.getBlockUsage());
+		assertEquals(PosixQuotaInfo.QIF_ALL, pqi.getValid());
+		/* the format of the JNA structure is kept */
+		assertEquals("PosixQuotaInfo [dablk=T_dqblk [dqb_bhardlimit=0, dqb_bsoftlimit=0, dqb_curspace=10000, "
+				+ "dqb_ihardlimit=0, dqb_isoftlimit=0, dqb_curinodes=0, dqb_btime=0, dqb_itime=0, dqb_valid=111111]]",
+				pqi.toString());
+
+		assertEquals(FAKE_PROJID * 10L, pqm.getProjectQuota(FAKE_BLOCKDEVICE, FAKE_PROJID).getBlockUsage());
+		assertEquals(QuotaCommand.qcmd(QuotaCommand.Q_GETQUOTA, QuotaCommand.PRJQUOTA), backend.lastCmd);
+
+		PosixQuotaResult result = pqm.readGroupQuota(FAKE_BLOCKDEVICE, NO_QUOTA_GID);
+		assertTrue(result.isNoQuota());
+		assertEquals(pqi, pqm.readGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID).getQuotaInfo());
+
+		try {
+			pqm.getGroupQuota(FAKE_BLOCKDEVICE, NO_QUOTA_GID);
+			fail("Error " + ErrNo.ESRCH + " not raised!");
+		} catch (PosixQuotaException e) {
+			log.debug(e.getMessage());
+			assertEquals(ErrNo.ESRCH, ((LastErrorException) e.getCause()).getErrorCode());
+		}
+		assertEquals(5, backend.calls.get());
+	}
+
+}
@@ -0,0 +1,124 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.LastErrorException;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.metrics.InstrumentedPosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.metrics.LatencyHistogram;
+import it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetrics;
+import it.grid.storm.api.filesystem.quota.posix.metrics.QuotactlMetricsRegistry;
+
+public class QuotactlMetricsMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(QuotactlMetricsMockedTest.class);
+
+	private static String FAKE_BLOCKDEVICE = "/dev/fake";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+	private static int NO_PERM_GID = 1002;
+
+	/**
+	 * A manager which never calls quotactl(): NO_QUOTA_GID fails with ESRCH
+	 * and NO_PERM_GID with EPERM.
+	 */
+	static class FailingPosixQuotaManager extends PosixQuotaManager {
+
+		FailingPosixQuotaManager() {
+			super(QuotactlBinding.INTERFACE);
+		}
+
+		@Override
+		public PosixQuotaInfo getGroupQuota(String blockDevice, int gid) throws PosixQuotaException {
+			return readGroupQuota(blockDevice, gid).getQuotaInfoOrThrow();
+		}
+
+		@Override
+		public PosixQuotaResult readGroupQuota(String blockDevice, int gid) {
+
+			if (gid == NO_QUOTA_GID) {
+				return PosixQuotaResult.failure(blockDevice, gid, ErrNo.ESRCH);
+			}
+			if (gid == NO_PERM_GID) {
+				return PosixQuotaResult.failure(blockDevice, gid, ErrNo.EPERM);
+			}
+			return PosixQuotaResult.ok(blockDevice, gid, new PosixQuotaInfo(new CLibrary.T_dqblk()));
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testHistogramPercentiles() {
+
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getPercentile(50));
+		for (long nanos = 1; nanos <= 1000; nanos++) {
+			h.record(nanos * 1000);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(1000000, h.getMax());
+		long p50 = h.getPercentile(50);
+		long p99 = h.getPercentile(99);
+		log.debug("p50 {} p99 {}", p50, p99);
+		/* at most 12.5% of relative error */
+		assertTrue(Math.abs(p50 - 500000) <= 500000 / 8);
+		assertTrue(Math.abs(p99 - 990000) <= 990000 / 8);
+		assertEquals(1000000, h.getPercentile(100));
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testCountersAndMBean() throws Exception {
+
+		QuotactlMetricsRegistry registry = new QuotactlMetricsRegistry();
+		PosixQuotaManager pqm = new InstrumentedPosixQuotaManager(new FailingPosixQuotaManager(), registry);
+
+		pqm.getGroupQuota(FAKE_BLOCKDEVICE, FAKE_GID);
+		pqm.readGroupQuota(FAKE_BLOCKDEVICE, NO_QUOTA_GID);
+		pqm.readGroupQuota(FAKE_BLOCKDEVICE, NO_QUOTA_GID);
+		try {
+			pqm.getGroupQuota(FAKE_BLOCKDEVICE, NO_PERM_GID);
+			fail("Error " + ErrNo.EPERM + " not raised!");
+		} catch (PosixQuotaException e) {
+			assertEquals(ErrNo.EPERM, ((LastErrorException) e.getCause()).getErrorCode());
+		}
+
+		QuotactlMetrics metrics = registry.forDevice(FAKE_BLOCKDEVICE);
+		log.debug("{}", metrics);
+		assertEquals(4, metrics.getCallCount());
+		assertEquals(0, metrics.getInFlight());
+		assertEquals(3, metrics.getErrorCount());
+		assertEquals(2, metrics.getErrorCount(ErrNo.ESRCH));
+		assertEquals(1, metrics.getErrorCount(ErrNo.EPERM));
+		assertEquals(Long.valueOf(2), metrics.getErrorCounts().get("ESRCH"));
+		assertEquals(4, metrics.getLatency().getCount());
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = QuotactlMetricsRegistry.objectNameOf(FAKE_BLOCKDEVICE);
+		assertEquals(4L, server.getAttribute(name, "CallCount"));
+		assertTrue((Double) server.getAttribute(name, "Latency99thPercentile") >= 0);
+		assertEquals(2, ((TabularData) server.getAttribute(name, "ErrorCounts")).size());
+
+		registry.unregisterAll();
+		assertFalse(server.isRegistered(name));
+	}
+
+}
@@ -0,0 +1,144 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.ledger.Reservation;
+import it.grid.storm.api.filesystem.quota.posix.ledger.ReservationLedger;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedDevice;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedGroup;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class ReservationLedgerMockedTest {
+
+	private static String SIM_BLOCKDEVICE = "/dev/sim";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+	private static int BROKEN_GID = 1002;
+
+	@Test
+	@Category(MockedTests.class)
+	public void testReserveCommitRelease() {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		SimulatedGroup group = device.addGroup(FAKE_GID, 100, 0, 0);
+		device.addGroup(BROKEN_GID, 100, 0, 0).setErrNo(ErrNo.EIO);
+		ReservationLedger ledger = new ReservationLedger(new PosixQuotaManager(backend), Duration.ofMinutes(1));
+
+		assertTrue(ledger.canAllocate(SIM_BLOCKDEVICE, FAKE_GID, 100 * 1024));
+		assertFalse(ledger.canAllocate(SIM_BLOCKDEVICE, FAKE_GID, 100 * 1024 + 1));
+		for (int i = 0; i < 1000; i++) {
+			ledger.canAllocate(SIM_BLOCKDEVICE, FAKE_GID, 1);
+		}
+		assertEquals(1, backend.getCallCount());
+
+		Reservation first = ledger.reserve(SIM_BLOCKDEVICE, FAKE_GID, 60 * 1024);
+		assertNotNull(first);
+		assertNull(ledger.reserve(SIM_BLOCKDEVICE, FAKE_GID, 50 * 1024));
+		Reservation second = ledger.reserve(SIM_BLOCKDEVICE, FAKE_GID, 30 * 1024);
+		assertNotNull(second);
+		assertEquals(10 * 1024, ledger.getAvailable(SIM_BLOCKDEVICE, FAKE_GID));
+
+		ledger.release(second);
+		assertTrue(second.isSettled());
+		assertEquals(40 * 1024, ledger.getAvailable(SIM_BLOCKDEVICE, FAKE_GID));
+		try {
+			ledger.commit(second);
+			fail("A released reservation can't be committed");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+
+		/* the upload wrote less than reserved */
+		ledger.commit(first, 50 * 1024);
+		assertEquals(0, ledger.getReserved(SIM_BLOCKDEVICE, FAKE_GID));
+		assertEquals(50 * 1024, ledger.getCommitted(SIM_BLOCKDEVICE, FAKE_GID));
+		assertEquals(50 * 1024, ledger.getAvailable(SIM_BLOCKDEVICE, FAKE_GID));
+
+		/* the kernel accounted it, and someone else wrote 10 blocks */
+		group.setBlockUsage(60 * 1024);
+		ledger.resync();
+		assertEquals(0, ledger.getCommitted(SIM_BLOCKDEVICE, FAKE_GID));
+		assertEquals(40 * 1024, ledger.getAvailable(SIM_BLOCKDEVICE, FAKE_GID));
+		assertEquals(1, ledger.getResyncCount());
+
+		assertTrue(ledger.canAllocate(SIM_BLOCKDEVICE, NO_QUOTA_GID, Long.MAX_VALUE / 2));
+		assertEquals(Long.MAX_VALUE, ledger.getAvailable(SIM_BLOCKDEVICE, NO_QUOTA_GID));
+		assertNull(ledger.reserve(SIM_BLOCKDEVICE, BROKEN_GID, 1));
+		assertEquals(2, ledger.getAdmittedCount());
+		assertEquals(2, ledger.getRefusedCount());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testFailedReadIsKept() throws InterruptedException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedGroup broken = backend.addDevice(SIM_BLOCKDEVICE).addGroup(BROKEN_GID, 100, 0, 0);
+		broken.setErrNo(ErrNo.EIO);
+		ReservationLedger ledger = new ReservationLedger(new PosixQuotaManager(backend), Duration.ofMinutes(1),
+				Duration.ofMillis(200));
+
+		/* refused with no other quotactl() call while the failure is kept */
+		for (int i = 0; i < 100; i++) {
+			assertFalse(ledger.canAllocate(SIM_BLOCKDEVICE, BROKEN_GID, 1));
+			assertNull(ledger.reserve(SIM_BLOCKDEVICE, BROKEN_GID, 1));
+		}
+		assertEquals(1, backend.getCallCount());
+		assertEquals(1, ledger.getFailureCount());
+
+		broken.setErrNo(0);
+		Thread.sleep(250);
+		assertTrue(ledger.canAllocate(SIM_BLOCKDEVICE, BROKEN_GID, 1));
+		assertEquals(2, backend.getCallCount());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testConcurrentReservations() throws InterruptedException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		backend.addDevice(SIM_BLOCKDEVICE).addGroup(FAKE_GID, 100, 0, 0);
+		final ReservationLedger ledger = new ReservationLedger(new PosixQuotaManager(backend),
+				Duration.ofMinutes(1));
+		final AtomicInteger reserved = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 100; i++) {
+						if (ledger.reserve(SIM_BLOCKDEVICE, FAKE_GID, 1024) != null) {
+							reserved.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertTrue(reserved.get() <= 100);
+		assertTrue(ledger.getReserved(SIM_BLOCKDEVICE, FAKE_GID) <= 100 * 1024);
+		assertEquals(800, ledger.getAdmittedCount() + ledger.getRefusedCount());
+	}
+
+}
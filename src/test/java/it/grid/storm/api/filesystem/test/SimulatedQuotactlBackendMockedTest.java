@@ -0,0 +1,188 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaEntry;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotaTable;
+import it.grid.storm.api.filesystem.quota.posix.QuotaVisitor;
+import it.grid.storm.api.filesystem.quota.posix.UncheckedPosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.sim.LatencyDistribution;
+import it.grid.storm.api.filesystem.quota.posix.sim.LoadReport;
+import it.grid.storm.api.filesystem.quota.posix.sim.QuotaLoadGenerator;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedDevice;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedGroup;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class SimulatedQuotactlBackendMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(SimulatedQuotactlBackendMockedTest.class);
+
+	private static String SIM_BLOCKDEVICE = "/dev/sim";
+	private static int FAKE_GID = 1000;
+	private static int FULL_GID = 1001;
+	private static int BROKEN_GID = 1002;
+	private static int NO_QUOTA_GID = 1003;
+	private static int NOBODY_GID = 0xFFFFFFFE;
+
+	@Test
+	@Category(MockedTests.class)
+	public void testSimulatedQuotas() throws PosixQuotaException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		device.addGroup(FAKE_GID, 0, 4096, 1024);
+		device.addGroup(FULL_GID, 8, 0, 1024);
+		SimulatedGroup broken = device.addGroup(BROKEN_GID, 0, 0, 0);
+		broken.setErrNo(ErrNo.EIO);
+		PosixQuotaManager pqm = new PosixQuotaManager(backend);
+
+		long usage = pqm.getGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).getBlockUsage();
+		assertTrue(usage >= 4096);
+		backend.advance(Duration.ofSeconds(100));
+		long grown = pqm.getGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).getBlockUsage();
+		log.debug("usage {} then {}", usage, grown);
+		assertTrue(grown >= usage + 100 * 1024);
+		assertTrue(grown < usage + 101 * 1024);
+		assertEquals(8 * 1024, pqm.getGroupQuota(SIM_BLOCKDEVICE, FULL_GID).getBlockUsage());
+
+		assertEquals(ErrNo.EIO, pqm.readGroupQuota(SIM_BLOCKDEVICE, BROKEN_GID).getErrorCode());
+		assertTrue(pqm.readGroupQuota(SIM_BLOCKDEVICE, NO_QUOTA_GID).isNoQuota());
+		assertEquals(ErrNo.ENOENT, pqm.readGroupQuota("/dev/unknown", FAKE_GID).getErrorCode());
+
+		PosixQuotaBatch batch = pqm.getGroupQuotas(SIM_BLOCKDEVICE, new int[] { FAKE_GID, NO_QUOTA_GID, FULL_GID });
+		assertTrue(batch.isSuccess(0));
+		assertEquals(ErrNo.ESRCH, batch.getErrorCode(1));
+		assertEquals(8 * 1024, batch.getBlockUsage(2));
+
+		device.injectError(ErrNo.EMFILE, 1);
+		assertEquals(ErrNo.EMFILE, pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).getErrorCode());
+		device.clearErrors();
+		assertTrue(pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).isOk());
+
+		device.setLatency(LatencyDistribution.fixed(Duration.ofMillis(2)));
+		long start = System.nanoTime();
+		pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(2));
+		assertEquals(12, backend.getCallCount());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testSimulatedEnumeration() throws PosixQuotaException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		device.addGroup(NOBODY_GID, 0, 512, 0);
+		device.addGroup(FULL_GID, 8, 2048, 0);
+		device.addGroup(FAKE_GID, 0, 4096, 0);
+		PosixQuotaManager pqm = new PosixQuotaManager(backend);
+
+		/* ascending unsigned gid order, one call per gid plus the last ESRCH */
+		List<PosixQuotaEntry> entries = pqm.streamGroupQuotas(SIM_BLOCKDEVICE).collect(Collectors.toList());
+		assertEquals(3, entries.size());
+		assertEquals(FAKE_GID, entries.get(0).getId());
+		assertEquals(4096, entries.get(0).getQuotaInfo().getBlockUsage());
+		assertEquals(FULL_GID, entries.get(1).getId());
+		assertEquals(2048, entries.get(1).getQuotaInfo().getBlockUsage());
+		assertEquals(NOBODY_GID, entries.get(2).getId());
+		assertEquals(4, backend.getCallCount());
+		assertEquals(0, pqm.streamUserQuotas(SIM_BLOCKDEVICE).count());
+
+		QuotaTable table = new QuotaTable();
+		pqm.loadGroupQuotas(SIM_BLOCKDEVICE, table);
+		assertEquals(3, table.size());
+		assertEquals(512, table.getQuotaInfo(NOBODY_GID).getBlockUsage());
+
+		final List<Integer> gids = new ArrayList<Integer>();
+		long visited = pqm.forEachGroupQuota(SIM_BLOCKDEVICE, new MutableQuotaInfo(), new QuotaVisitor() {
+
+			@Override
+			public boolean visit(MutableQuotaInfo info) {
+				gids.add(info.getGid());
+				return info.getGid() != FULL_GID;
+			}
+		});
+		assertEquals(2, visited);
+		assertEquals(FAKE_GID, (int) gids.get(0));
+		assertEquals(FULL_GID, (int) gids.get(1));
+
+		device.injectError(ErrNo.EIO, 1);
+		try {
+			pqm.loadGroupQuotas(SIM_BLOCKDEVICE, new QuotaTable());
+			fail("EIO expected");
+		} catch (PosixQuotaException e) {
+			log.debug("{}", e.getMessage());
+		}
+		try {
+			pqm.streamGroupQuotas(SIM_BLOCKDEVICE).count();
+			fail("EIO expected");
+		} catch (UncheckedPosixQuotaException e) {
+			log.debug("{}", e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testLoadGenerator() throws InterruptedException {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		device.addGroup(FAKE_GID, 0, 0, 0);
+		device.setLatency(LatencyDistribution.fixed(Duration.ofMillis(1)));
+		PosixQuotaManager pqm = new PosixQuotaManager(backend);
+
+		LoadReport report = new QuotaLoadGenerator(
+				QuotaLoadGenerator.readGroupQuota(pqm, SIM_BLOCKDEVICE, new int[] { FAKE_GID, NO_QUOTA_GID }), 1000, 2)
+						.run(Duration.ofMillis(200));
+		log.debug("{}", report);
+		assertEquals(200, report.getOperations());
+		assertEquals(100, report.getErrors());
+		assertTrue(report.getServiceTime().getPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(1));
+		assertEquals(200, backend.getCallCount());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testCoordinatedOmission() throws InterruptedException {
+
+		final SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		final SimulatedDevice device = backend.addDevice(SIM_BLOCKDEVICE);
+		device.addGroup(FAKE_GID, 0, 0, 0);
+		final PosixQuotaManager pqm = new PosixQuotaManager(backend);
+
+		/* the first call stalls for 100ms, the others are immediate */
+		QuotaLoadGenerator.Operation stalling = new QuotaLoadGenerator.Operation() {
+
+			@Override
+			public int call(long sequence) {
+				device.setLatency(sequence == 0 ? LatencyDistribution.fixed(Duration.ofMillis(100))
+						: LatencyDistribution.none());
+				return pqm.readGroupQuota(SIM_BLOCKDEVICE, FAKE_GID).getErrorCode();
+			}
+		};
+		LoadReport report = new QuotaLoadGenerator(stalling, 1000, 1).run(Duration.ofMillis(200));
+		log.debug("{}", report);
+		assertEquals(200, report.getOperations());
+		/* the 90 calls scheduled during the stall waited for it */
+		assertTrue(report.getServiceTime().getPercentile(75) < TimeUnit.MILLISECONDS.toNanos(10));
+		assertTrue(report.getResponseTime().getPercentile(75) > TimeUnit.MILLISECONDS.toNanos(10));
+		assertTrue(report.getResponseTime().getMax() >= TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+}
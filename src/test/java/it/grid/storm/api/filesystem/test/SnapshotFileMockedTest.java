@@ -0,0 +1,200 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBackend;
+import it.grid.storm.api.filesystem.quota.posix.mmap.SnapshotFileReader;
+import it.grid.storm.api.filesystem.quota.posix.mmap.SnapshotFileWriter;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaPoller;
+import it.grid.storm.api.filesystem.quota.posix.poll.QuotaSnapshot;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class SnapshotFileMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(SnapshotFileMockedTest.class);
+
+	private static String FIRST_BLOCKDEVICE = "/dev/sim1";
+	private static String SECOND_BLOCKDEVICE = "/dev/sim2";
+	private static int ATLAS_GID = 1000;
+	private static int CMS_GID = 1001;
+
+	/**
+	 * A quota whose dqblk values are all equal to value, to detect torn reads.
+	 */
+	private static PosixQuotaInfo uniform(long value) {
+
+		long[] dqblk = new long[QuotactlBackend.DQBLK_VALUES];
+		for (int i = 0; i < dqblk.length; i++) {
+			dqblk[i] = value;
+		}
+		return new PosixQuotaInfo(dqblk);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testWriteRead() throws Exception {
+
+		Path file = Files.createTempDirectory("quota-snapshot").resolve("quota.snapshot");
+		try (SnapshotFileWriter writer = new SnapshotFileWriter(file, 16);
+				SnapshotFileReader reader = new SnapshotFileReader(file)) {
+
+			GroupQuotaKey atlas = new GroupQuotaKey(FIRST_BLOCKDEVICE, ATLAS_GID);
+			assertTrue(writer.put(atlas, uniform(7), 1000L));
+			assertTrue(writer.put(new GroupQuotaKey(SECOND_BLOCKDEVICE, CMS_GID), uniform(9), 1000L));
+			/* not committed yet */
+			assertNull(reader.get(FIRST_BLOCKDEVICE, ATLAS_GID));
+			writer.commit(2000L);
+
+			assertEquals(1, reader.getGeneration());
+			assertEquals(2000L, reader.getTimestamp());
+			assertEquals(7, reader.get(FIRST_BLOCKDEVICE, ATLAS_GID).getBlockUsage());
+			long[] dqblk = new long[QuotactlBackend.DQBLK_VALUES];
+			assertEquals(1000L, reader.read(SECOND_BLOCKDEVICE, CMS_GID, dqblk));
+			assertEquals(9, dqblk[QuotactlBackend.DQB_VALID]);
+			assertNull(reader.get(SECOND_BLOCKDEVICE, ATLAS_GID));
+
+			/* in place updates are visible at once */
+			writer.put(atlas, uniform(8), 3000L);
+			assertEquals(8, reader.get(FIRST_BLOCKDEVICE, ATLAS_GID).getINodesUsage());
+			assertTrue(writer.remove(atlas));
+			assertNull(reader.get(FIRST_BLOCKDEVICE, ATLAS_GID));
+			assertEquals(1, reader.toMap().size());
+			log.debug("{} {}", writer, reader);
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testWarmRestart() throws Exception {
+
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		backend.addDevice(FIRST_BLOCKDEVICE).addGroup(ATLAS_GID, 100, 1000, 0);
+		backend.getDevice(FIRST_BLOCKDEVICE).addGroup(CMS_GID, 200, 2000, 0);
+		QuotaPoller poller = new QuotaPoller(new PosixQuotaManager(backend), Duration.ofMillis(10),
+				Duration.ofSeconds(1));
+		poller.register(FIRST_BLOCKDEVICE, ATLAS_GID);
+		poller.register(FIRST_BLOCKDEVICE, CMS_GID);
+		poller.start();
+		QuotaSnapshot snapshot = poller.getSnapshot();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (snapshot.asMap().size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			snapshot = poller.getSnapshot();
+		}
+		poller.shutdown();
+
+		Path file = Files.createTempDirectory("quota-snapshot").resolve("quota.snapshot");
+		try (SnapshotFileWriter writer = new SnapshotFileWriter(file, 4)) {
+			assertTrue(writer.write(snapshot));
+		}
+		/* same capacity: the file is reused as it is */
+		try (SnapshotFileWriter writer = new SnapshotFileWriter(file, 4)) {
+			assertEquals(2, writer.getRecordCount());
+			assertEquals(1, writer.getGeneration());
+		}
+
+		SnapshotFileReader reader = new SnapshotFileReader(file);
+		assertEquals(2000, reader.get(FIRST_BLOCKDEVICE, CMS_GID).getBlockUsage());
+		long[] dqblk = new long[QuotactlBackend.DQBLK_VALUES];
+		long readAt = reader.read(FIRST_BLOCKDEVICE, ATLAS_GID, dqblk);
+		/* larger capacity: the pairs are carried over to a new file */
+		try (SnapshotFileWriter writer = new SnapshotFileWriter(file, 64)) {
+			assertEquals(2, writer.getRecordCount());
+			assertEquals(2, writer.getGeneration());
+
+			/* a second writer is kept out before it replaces the file */
+			try {
+				new SnapshotFileWriter(file, 8).close();
+				fail("IOException expected");
+			} catch (IOException e) {
+				log.debug("{}", e.getMessage());
+			}
+		}
+		Map<GroupQuotaKey, PosixQuotaInfo> quotas = reader.toMap();
+		assertEquals(1, reader.getRemapCount());
+		assertEquals(64, reader.getCapacity());
+		assertEquals(1000, quotas.get(new GroupQuotaKey(FIRST_BLOCKDEVICE, ATLAS_GID)).getBlockUsage());
+		assertEquals(readAt, reader.read(FIRST_BLOCKDEVICE, ATLAS_GID, dqblk));
+		assertEquals(snapshot.getTimestamp(), reader.getTimestamp());
+		reader.close();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testNoTornReads() throws Exception {
+
+		Path file = Files.createTempDirectory("quota-snapshot").resolve("quota.snapshot");
+		final SnapshotFileWriter writer = new SnapshotFileWriter(file, 4);
+		final GroupQuotaKey key = new GroupQuotaKey(FIRST_BLOCKDEVICE, ATLAS_GID);
+		writer.put(key, uniform(0), 0);
+		writer.commit(0);
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong writes = new AtomicLong();
+		Thread writerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				long value = 1;
+				while (running.get()) {
+					writer.put(key, uniform(value++), value);
+					writes.incrementAndGet();
+				}
+			}
+		});
+
+		final SnapshotFileReader reader = new SnapshotFileReader(file);
+		final AtomicReference<String> torn = new AtomicReference<String>();
+		final AtomicLong reads = new AtomicLong();
+		Thread readerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				long[] dqblk = new long[QuotactlBackend.DQBLK_VALUES];
+				while (running.get()) {
+					if (reader.read(FIRST_BLOCKDEVICE, ATLAS_GID, dqblk) < 0) {
+						continue;
+					}
+					reads.incrementAndGet();
+					for (int i = 1; i < dqblk.length; i++) {
+						if (dqblk[i] != dqblk[0]) {
+							torn.compareAndSet(null, Arrays.toString(dqblk));
+						}
+					}
+				}
+			}
+		});
+
+		writerThread.start();
+		readerThread.start();
+		Thread.sleep(300);
+		running.set(false);
+		writerThread.join();
+		readerThread.join();
+		writer.close();
+
+		log.debug("writes {} reads {} retries {}", writes.get(), reads.get(), reader.getRetryCount());
+		assertNull(torn.get());
+		assertTrue(reads.get() > 0);
+		assertTrue(writes.get() > 0);
+	}
+
+}
@@ -0,0 +1,100 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.grid.storm.api.filesystem.quota.posix.GroupQuotaKey;
+import it.grid.storm.api.filesystem.quota.posix.history.Aggregation;
+import it.grid.storm.api.filesystem.quota.posix.history.UsageHistory;
+import it.grid.storm.api.filesystem.quota.posix.history.UsageSeries;
+
+public class UsageHistoryMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(UsageHistoryMockedTest.class);
+
+	private static final GroupQuotaKey KEY = new GroupQuotaKey("/dev/sdb", 1003);
+	private static final long START = 1500000000000L;
+	private static final int SAMPLES = 3000;
+
+	private static long usage(int n) {
+		/* growing, with an occasional cleanup */
+		return 1000000L + 4096L * n - (n % 500 == 0 ? 500000L : 0);
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testRingAndLog() throws IOException {
+
+		Path dir = Files.createTempDirectory("usage");
+		try {
+			UsageHistory history = new UsageHistory(dir, 100, 50);
+			for (int n = 0; n < SAMPLES; n++) {
+				assertTrue(history.record(KEY, START + n * 1000L, usage(n), n));
+			}
+			assertFalse(history.record(KEY, START, 0, 0));
+			assertEquals(SAMPLES, history.getRecordedCount());
+			log.debug("{} samples in {} bytes", SAMPLES, history.getLogSize(KEY));
+			assertTrue(history.getLogSize(KEY) < SAMPLES * 10);
+
+			/* entirely from the log, across blocks */
+			UsageSeries old = history.query(KEY, START + 1234 * 1000L, START + 1434 * 1000L);
+			assertEquals(201, old.size());
+			assertEquals(usage(1234), old.getBlockUsage(0));
+			assertEquals(1434, old.getINodesUsage(200));
+
+			/* from the log and from the ring */
+			UsageSeries all = history.query(KEY, START - 1, START + SAMPLES * 1000L);
+			assertEquals(SAMPLES, all.size());
+			for (int n = 0; n < SAMPLES; n++) {
+				assertEquals(START + n * 1000L, all.getTimestamp(n));
+				assertEquals(usage(n), all.getBlockUsage(n));
+			}
+
+			UsageSeries hourly = history.downsample(KEY, START, START + SAMPLES * 1000L, 3600 * 1000L,
+					Aggregation.LAST);
+			assertEquals(1, hourly.size());
+			assertEquals(usage(SAMPLES - 1), hourly.getBlockUsage(0));
+			UsageSeries tenMinutes = history.downsample(KEY, START, START + SAMPLES * 1000L, 600 * 1000L,
+					Aggregation.MAX);
+			assertEquals(5, tenMinutes.size());
+			assertEquals(START + 600 * 1000L, tenMinutes.getTimestamp(1));
+			assertEquals(usage(1199), tenMinutes.getBlockUsage(1));
+			UsageSeries mean = history.downsample(KEY, START, START + 3000L, 2000L, Aggregation.MEAN);
+			assertEquals(2, mean.size());
+			assertEquals((usage(2) + usage(3)) / 2, mean.getBlockUsage(1));
+			history.close();
+
+			/* a new history reads the log back, a torn block is dropped */
+			Path file;
+			try (Stream<Path> files = Files.list(dir)) {
+				file = files.findFirst().get();
+			}
+			long size = Files.size(file);
+			Files.write(file, new byte[] { 0x55, 0x53, 0x47, 0x31, 0, 0, 0, 1 }, StandardOpenOption.APPEND);
+			UsageHistory reopened = new UsageHistory(dir, 100, 50);
+			assertTrue(reopened.getKeys().contains(KEY));
+			assertEquals(size, reopened.getLogSize(KEY));
+			assertEquals(SAMPLES, reopened.query(KEY, START, START + SAMPLES * 1000L).size());
+			assertFalse(reopened.record(KEY, START + (SAMPLES - 1) * 1000L, 0, 0));
+			assertTrue(reopened.record(KEY, START + SAMPLES * 1000L, 0, 0));
+			assertEquals(SAMPLES + 1, reopened.query(KEY, START, Long.MAX_VALUE).size());
+		} finally {
+			for (File f : dir.toFile().listFiles()) {
+				f.delete();
+			}
+			dir.toFile().delete();
+		}
+	}
+
+}
@@ -0,0 +1,268 @@
+package it.grid.storm.api.filesystem.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import it.grid.storm.api.filesystem.quota.posix.CLibrary;
+import it.grid.storm.api.filesystem.quota.posix.ErrNo;
+import it.grid.storm.api.filesystem.quota.posix.FilesystemAwarePosixQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.MutableQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaBatch;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaEntry;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaException;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.PosixQuotaResult;
+import it.grid.storm.api.filesystem.quota.posix.QuotaCommand;
+import it.grid.storm.api.filesystem.quota.posix.QuotaTable;
+import it.grid.storm.api.filesystem.quota.posix.QuotaVisitor;
+import it.grid.storm.api.filesystem.quota.posix.QuotactlBinding;
+import it.grid.storm.api.filesystem.quota.posix.XfsQuotaInfo;
+import it.grid.storm.api.filesystem.quota.posix.XfsQuotaManager;
+import it.grid.storm.api.filesystem.quota.posix.XfsQuotaState;
+import it.grid.storm.api.filesystem.quota.posix.mount.MountResolver;
+import it.grid.storm.api.filesystem.quota.posix.sim.SimulatedQuotactlBackend;
+
+public class XfsQuotaMockedTest {
+
+	private static final Logger log = LoggerFactory.getLogger(XfsQuotaMockedTest.class);
+
+	private static String XFS_BLOCKDEVICE = "/dev/xfs";
+	private static String EXT4_BLOCKDEVICE = "/dev/ext4";
+	private static int FAKE_GID = 1000;
+	private static int NO_QUOTA_GID = 1001;
+	private static int PARTIAL_GID = 1002;
+
+	private static String XFS_MOUNT = "36 22 8:16 / /storage/xfs rw - xfs /dev/xfs rw,gqnoenforce";
+	private static String EXT4_MOUNT = "37 22 8:32 / /storage/ext4 rw - ext4 /dev/ext4 rw,grpquota";
+
+	private static int XGETQUOTA_GROUP_CMD = 0x580301;
+	private static int XGETNEXTQUOTA_GROUP_CMD = 0x580901;
+	private static int XGETQSTATV_CMD = 0x580800;
+	private static int GETQUOTA_GROUP_CMD = 0x80000701;
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+
+		PosixQuotaManagerMockedTest.restoreCLibrary();
+	}
+
+	/**
+	 * Mock a CLibrary which answers Q_XGETQUOTA with 10 basic blocks used out
+	 * of a 1 MiB hard limit and 5 real-time basic blocks used, Q_XGETQSTATV
+	 * with group quotas accounted and enforced, and the generic Q_GETQUOTA
+	 * with 4096 bytes used. NO_QUOTA_GID fails with ENOENT on XFS, and
+	 * PARTIAL_GID reports only its block hard limit and count into
+	 * d_fieldmask. Q_XGETNEXTQUOTA enumerates FAKE_GID and PARTIAL_GID.
+	 */
+	private static void initMockedCLibrary() {
+
+		CLibrary mockedCLib = mock(CLibrary.class);
+		when(mockedCLib.quotactl(anyInt(), any(Pointer.class), anyInt(), any(Pointer.class)))
+				.thenAnswer(new Answer<Integer>() {
+
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+
+						Object[] args = invocation.getArguments();
+						int cmd = (Integer) args[0];
+						int id = (Integer) args[2];
+						Pointer addr = (Pointer) args[3];
+						if (cmd == XGETQUOTA_GROUP_CMD || cmd == XGETNEXTQUOTA_GROUP_CMD) {
+							if (cmd == XGETNEXTQUOTA_GROUP_CMD) {
+								id = Integer.compareUnsigned(id, FAKE_GID) <= 0 ? FAKE_GID
+										: Integer.compareUnsigned(id, PARTIAL_GID) <= 0 ? PARTIAL_GID : NO_QUOTA_GID;
+							}
+							if (id == NO_QUOTA_GID) {
+								Native.setLastError(ErrNo.ENOENT);
+								return -1;
+							}
+							addr.setByte(0, (byte) 1);
+							addr.setByte(1, (byte) XfsQuotaInfo.FS_GROUP_QUOTA);
+							if (id == PARTIAL_GID) {
+								addr.setShort(2, (short) (XfsQuotaInfo.FS_DQ_BHARD | XfsQuotaInfo.FS_DQ_BCOUNT));
+							}
+							addr.setInt(4, id);
+							addr.setLong(8, 2048);
+							addr.setLong(40, 10);
+							addr.setLong(48, 3);
+							addr.setLong(88, 5);
+							return 0;
+						}
+						if (cmd == XGETQSTATV_CMD) {
+							assertEquals(1, addr.getByte(0));
+							addr.setShort(2, (short) (XfsQuotaState.FS_QUOTA_GDQ_ACCT
+									| XfsQuotaState.FS_QUOTA_GDQ_ENFD | XfsQuotaState.FS_QUOTA_PDQ_ACCT));
+							addr.setLong(32, 131);
+							addr.setInt(80, 604800);
+							return 0;
+						}
+						if (cmd == GETQUOTA_GROUP_CMD) {
+							addr.clear(72);
+							addr.setLong(16, 4096);
+							return 0;
+						}
+						Native.setLastError(ErrNo.EINVAL);
+						return -1;
+					}
+				});
+		try {
+			PosixQuotaManagerMockedTest.setFinalStatic(CLibrary.class.getDeclaredField("INSTANCE"), mockedCLib);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			fail(t.getMessage());
+		}
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testXfsQuota() throws PosixQuotaException {
+
+		initMockedCLibrary();
+		XfsQuotaManager xqm = new XfsQuotaManager(QuotactlBinding.INTERFACE);
+
+		XfsQuotaInfo xqi = xqm.getGroupQuota(XFS_BLOCKDEVICE, FAKE_GID);
+		log.debug("{}", xqi);
+		assertEquals(XfsQuotaInfo.FS_GROUP_QUOTA, xqi.getFlags());
+		assertEquals(FAKE_GID, xqi.getId());
+		assertEquals(10, xqi.getBlockCount());
+		assertEquals(10 * XfsQuotaInfo.BBSIZE, xqi.getBlockUsage());
+		assertEquals(5, xqi.getRealtimeBlockCount());
+
+		PosixQuotaInfo pqi = xqi.toPosixQuotaInfo();
+		assertEquals(1024, pqi.getBlockHardLimit());
+		assertEquals(10 * XfsQuotaInfo.BBSIZE, pqi.getBlockUsage());
+		assertEquals(3, pqi.getINodesUsage());
+		/* no value flag into d_fieldmask: all the values are filled */
+		assertEquals(PosixQuotaInfo.QIF_ALL, pqi.getValid());
+		assertEquals(PosixQuotaInfo.QIF_BLIMITS | PosixQuotaInfo.QIF_SPACE,
+				xqm.getGroupQuota(XFS_BLOCKDEVICE, PARTIAL_GID).toPosixQuotaInfo().getValid());
+
+		XfsQuotaState state = xqm.getQuotaState(XFS_BLOCKDEVICE);
+		log.debug("{}", state);
+		assertTrue(state.isAccounting(QuotaCommand.GRPQUOTA));
+		assertTrue(state.isEnforced(QuotaCommand.GRPQUOTA));
+		assertTrue(state.isAccounting(QuotaCommand.PRJQUOTA));
+		assertFalse(state.isEnforced(QuotaCommand.PRJQUOTA));
+		assertFalse(state.isAccounting(QuotaCommand.USRQUOTA));
+		assertEquals(131, state.getQuotaFileInode(QuotaCommand.GRPQUOTA));
+		assertEquals(604800, state.getBlockTimeLimit());
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testSelectionByFilesystemType() throws Exception {
+
+		initMockedCLibrary();
+		File f = File.createTempFile("mountinfo", null);
+		f.deleteOnExit();
+		Files.write(f.toPath(), Arrays.asList(XFS_MOUNT, EXT4_MOUNT), StandardCharsets.UTF_8);
+		MountResolver resolver = new MountResolver(f.toPath(), Duration.ofMinutes(1));
+
+		FilesystemAwarePosixQuotaManager pqm = new FilesystemAwarePosixQuotaManager(QuotactlBinding.INTERFACE,
+				resolver);
+		assertTrue(pqm.isXfs(XFS_BLOCKDEVICE));
+		assertFalse(pqm.isXfs(EXT4_BLOCKDEVICE));
+		assertNull(pqm.getFilesystemType("/dev/unmounted"));
+
+		assertEquals(10 * XfsQuotaInfo.BBSIZE, pqm.getGroupQuota(XFS_BLOCKDEVICE, FAKE_GID).getBlockUsage());
+		assertEquals(10 * XfsQuotaInfo.BBSIZE,
+				pqm.readGroupQuota(XFS_BLOCKDEVICE, FAKE_GID).getQuotaInfo().getBlockUsage());
+		assertEquals(4096, pqm.readGroupQuota(EXT4_BLOCKDEVICE, FAKE_GID).getQuotaInfo().getBlockUsage());
+		resolver.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testXfsEnumeration() throws Exception {
+
+		initMockedCLibrary();
+		File f = File.createTempFile("mountinfo", null);
+		f.deleteOnExit();
+		Files.write(f.toPath(), Arrays.asList(XFS_MOUNT, EXT4_MOUNT), StandardCharsets.UTF_8);
+		MountResolver resolver = new MountResolver(f.toPath(), Duration.ofMinutes(1));
+		SimulatedQuotactlBackend backend = new SimulatedQuotactlBackend();
+		backend.addDevice(EXT4_BLOCKDEVICE).addGroup(FAKE_GID, 0, 8192, 0);
+		FilesystemAwarePosixQuotaManager pqm = new FilesystemAwarePosixQuotaManager(QuotactlBinding.INTERFACE,
+				backend, resolver);
+
+		/* the batch reads and the enumerations go through the XFS commands too */
+		PosixQuotaBatch batch = pqm.getGroupQuotas(XFS_BLOCKDEVICE, new int[] { FAKE_GID, NO_QUOTA_GID });
+		assertEquals(10 * XfsQuotaInfo.BBSIZE, batch.getBlockUsage(0));
+		assertEquals(ErrNo.ESRCH, batch.getErrorCode(1));
+		List<PosixQuotaEntry> entries = pqm.streamGroupQuotas(XFS_BLOCKDEVICE).collect(Collectors.toList());
+		assertEquals(2, entries.size());
+		assertEquals(FAKE_GID, entries.get(0).getId());
+		assertEquals(PARTIAL_GID, entries.get(1).getId());
+		QuotaTable table = new QuotaTable();
+		pqm.loadGroupQuotas(XFS_BLOCKDEVICE, table);
+		assertEquals(2, table.size());
+		assertEquals(1024, table.getQuotaInfo(FAKE_GID).getBlockHardLimit());
+		assertEquals(PosixQuotaInfo.QIF_BLIMITS | PosixQuotaInfo.QIF_SPACE,
+				table.getQuotaInfo(PARTIAL_GID).getValid());
+		final List<Integer> visited = new ArrayList<Integer>();
+		assertEquals(2, pqm.forEachGroupQuota(XFS_BLOCKDEVICE, new MutableQuotaInfo(), new QuotaVisitor() {
+
+			@Override
+			public boolean visit(MutableQuotaInfo info) {
+				visited.add(info.getGid());
+				return true;
+			}
+		}));
+		assertEquals(Arrays.asList(FAKE_GID, PARTIAL_GID), visited);
+
+		/* the other filesystems go through the backend */
+		assertEquals(8192, pqm.readGroupQuota(EXT4_BLOCKDEVICE, FAKE_GID).getQuotaInfo().getBlockUsage());
+		assertEquals(1, pqm.getGroupQuotas(EXT4_BLOCKDEVICE, new int[] { FAKE_GID }).size());
+		assertEquals(1, pqm.streamGroupQuotas(EXT4_BLOCKDEVICE).count());
+		resolver.shutdown();
+	}
+
+	@Test
+	@Category(MockedTests.class)
+	public void testXfsNoQuota() throws Exception {
+
+		initMockedCLibrary();
+		File f = File.createTempFile("mountinfo", null);
+		f.deleteOnExit();
+		Files.write(f.toPath(), Arrays.asList(XFS_MOUNT), StandardCharsets.UTF_8);
+		MountResolver resolver = new MountResolver(f.toPath(), Duration.ofMinutes(1));
+		FilesystemAwarePosixQuotaManager pqm = new FilesystemAwarePosixQuotaManager(QuotactlBinding.INTERFACE,
+				resolver);
+
+		/* the ENOENT of XFS is the ESRCH of the generic path */
+		PosixQuotaResult result = pqm.readGroupQuota(XFS_BLOCKDEVICE, NO_QUOTA_GID);
+		assertEquals(PosixQuotaResult.Status.NO_QUOTA, result.getStatus());
+		assertEquals(ErrNo.ESRCH, result.getErrorCode());
+		MutableQuotaInfo holder = new MutableQuotaInfo();
+		assertEquals(ErrNo.ESRCH, pqm.readGroupQuota(XFS_BLOCKDEVICE, NO_QUOTA_GID, holder, PosixQuotaInfo.QIF_ALL));
+		try {
+			pqm.getGroupQuota(XFS_BLOCKDEVICE, NO_QUOTA_GID);
+			fail("Error " + ErrNo.ESRCH + " not raised!");
+		} catch (PosixQuotaException e) {
+			assertEquals(ErrNo.ESRCH, ((LastErrorException) e.getCause()).getErrorCode());
+		}
+		resolver.shutdown();
+	}
+
+}
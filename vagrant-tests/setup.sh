@@ -4,7 +4,7 @@ set -e
 
 # Install packages
 echo "Install necessary packages ..."
-yum -y install git maven vim-enhanced java-1.8.0-openjdk quota xfsprogs-devel glibc-headers
+yum -y install git maven vim-enhanced java-11-openjdk-devel quota xfsprogs-devel glibc-headers
 
 # Users and groups
 user="storm"